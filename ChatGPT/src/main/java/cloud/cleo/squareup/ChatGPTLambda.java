@@ -2,7 +2,16 @@ package cloud.cleo.squareup;
 
 import static cloud.cleo.squareup.enums.LexDialogAction.*;
 import static cloud.cleo.squareup.enums.LexMessageContentType.*;
+import cloud.cleo.squareup.cache.AnswerCache;
+import cloud.cleo.squareup.cache.TurnIdempotency;
+import cloud.cleo.squareup.cassette.Cassette;
+import cloud.cleo.squareup.fastpath.FastPathResponder;
 import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.functions.FunctionExecutionEngine;
+import cloud.cleo.squareup.functions.FunctionSelector;
+import cloud.cleo.squareup.functions.PhoneValidation;
+import cloud.cleo.squareup.functions.ToolPrefetch;
+import cloud.cleo.squareup.json.ChatFunctionMixIn;
 import cloud.cleo.squareup.json.DurationDeserializer;
 import cloud.cleo.squareup.json.DurationSerializer;
 import cloud.cleo.squareup.json.LocalDateDeserializer;
@@ -11,6 +20,12 @@ import cloud.cleo.squareup.json.LocalTimeDeserializer;
 import cloud.cleo.squareup.json.LocalTimeSerializer;
 import cloud.cleo.squareup.json.ZoneIdDeserializer;
 import cloud.cleo.squareup.json.ZonedSerializer;
+import cloud.cleo.squareup.openai.CrtOpenAiClient;
+import cloud.cleo.squareup.openai.HedgedOpenAiClient;
+import cloud.cleo.squareup.openai.OpenAiClient;
+import cloud.cleo.squareup.openai.RetrofitOpenAiClient;
+import cloud.cleo.squareup.outbox.Outbox;
+import cloud.cleo.squareup.server.FulfillmentServer;
 import static cloud.cleo.squareup.lang.LangUtil.LanguageIds.*;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
@@ -24,11 +39,15 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.theokanning.openai.completion.chat.ChatCompletionRequest;
+import com.theokanning.openai.completion.chat.ChatFunction;
 import com.theokanning.openai.completion.chat.ChatFunctionCall;
 import com.theokanning.openai.completion.chat.ChatMessage;
+import com.theokanning.openai.completion.chat.ChatMessageRole;
 import com.theokanning.openai.service.FunctionExecutor;
 import com.theokanning.openai.service.OpenAiService;
 import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.text.MessageFormat;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalTime;
@@ -38,9 +57,11 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.crac.Core;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
 import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
 import software.amazon.awssdk.enhanced.dynamodb.Key;
@@ -48,6 +69,7 @@ import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
 import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
 import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
 
 /**
  *
@@ -56,22 +78,31 @@ import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response> {
 
     // Initialize the Log4j logger.
-    Logger log = LogManager.getLogger(ChatGPTLambda.class);
+    final static Logger log = LogManager.getLogger(ChatGPTLambda.class);
 
     final static ObjectMapper mapper;
 
     final static TableSchema<ChatGPTSessionState> schema = TableSchema.fromBean(ChatGPTSessionState.class);
 
-    // Create an AwsCrtAsyncHttpClient shared instance.
-    public final static SdkAsyncHttpClient crtAsyncHttpClient = AwsCrtAsyncHttpClient.create();
+    // Create an AwsCrtAsyncHttpClient shared instance (AWS SDK clients, OpenAI has its own so it can be evicted).
+    public final static SdkAsyncHttpClient crtAsyncHttpClient = buildCrtHttpClient();
 
-    final static DynamoDbAsyncClient dynamoDbAsyncClient = DynamoDbAsyncClient.builder().httpClient(crtAsyncHttpClient).build();
+    final static DynamoDbAsyncClient dynamoDbAsyncClient = buildDynamoDbClient();
 
-    final static DynamoDbEnhancedAsyncClient enhancedClient = DynamoDbEnhancedAsyncClient.builder().dynamoDbClient(dynamoDbAsyncClient).build();
+    public final static DynamoDbEnhancedAsyncClient enhancedClient = DynamoDbEnhancedAsyncClient.builder().dynamoDbClient(dynamoDbAsyncClient).build();
 
     final static DynamoDbAsyncTable<ChatGPTSessionState> sessionState = enhancedClient.table(System.getenv("SESSION_TABLE_NAME"), schema);
 
-    final static OpenAiService open_ai_service = new OpenAiService(System.getenv("OPENAI_API_KEY"), Duration.ofSeconds(50));
+    final static ObjectMapper openAiMapper = OpenAiService.defaultObjectMapper()
+            // Function parameter schemas come from the registry generated at build time
+            .addMixIn(ChatFunction.class, ChatFunctionMixIn.class);
+    final static Duration OPENAI_TIMEOUT = Duration.ofSeconds(50);
+
+    /**
+     * Turn deadline when there is no Lambda context to ask (priming, async callers), matches the function timeout.
+     */
+    final static Duration TURN_TIMEOUT = Duration.ofSeconds(30);
+    final static OpenAiClient openAiClient = buildOpenAiClient();
     final static String OPENAI_MODEL = System.getenv("OPENAI_MODEL");
 
     public final static String TRANSFER_FUNCTION_NAME = "transfer_call";
@@ -79,6 +110,9 @@ public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response>
     public final static String FACEBOOK_HANDOVER_FUNCTION_NAME = "facebook_inbox";
     public final static String SWITCH_LANGUAGE_FUNCTION_NAME = "switch_language";
 
+    // CRaC only holds weak references to resources, so keep this one reachable
+    private final static SnapStartPriming priming = new SnapStartPriming();
+
 
     // Eveverything here will be done at SnapStart init
     static {
@@ -105,6 +139,96 @@ public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response>
         AbstractFunction.init();
         // Hit static initializers in this as well so it's loaded and hot
         new FaceBookOperations();
+
+        // Prime a full turn before the SnapStart checkpoint and reconnect after restore
+        Core.getGlobalContext().register(priming);
+
+        if (!"snap-start".equals(System.getenv("AWS_LAMBDA_INITIALIZATION_TYPE"))) {
+            // Plain cold start (or server mode), open the OpenAI connection now so the first turn skips the TLS handshake.
+            // With SnapStart this happens after restore instead, a connection opened here would be dead in the snapshot.
+            openAiClient.getModel(OPENAI_MODEL).whenComplete((m, t) -> {
+                if (t != null) {
+                    LogManager.getLogger(ChatGPTLambda.class).debug("Unable to pre-connect to OpenAI", t);
+                }
+            });
+        }
+    }
+
+    /**
+     * Dynamo client, pointed at DYNAMO_ENDPOINT when set (local stand-in or DynamoDB Local), otherwise the region
+     * endpoint.
+     *
+     * @return
+     */
+    private static DynamoDbAsyncClient buildDynamoDbClient() {
+        final var builder = DynamoDbAsyncClient.builder().httpClient(crtAsyncHttpClient);
+        final var endpoint = System.getenv("DYNAMO_ENDPOINT");
+        if (endpoint != null && !endpoint.isBlank()) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Shared CRT client. Connections are kept alive (with TCP keep-alive so idle ones aren't silently dropped by NAT) and
+     * the pool is sized by CRT_MAX_CONCURRENCY (default 100) so server mode doesn't queue turns behind each other.
+     *
+     * @return
+     */
+    private static SdkAsyncHttpClient buildCrtHttpClient() {
+        final var maxConcurrency = System.getenv("CRT_MAX_CONCURRENCY");
+        return AwsCrtAsyncHttpClient.builder()
+                .maxConcurrency(maxConcurrency == null || maxConcurrency.isBlank() ? 100 : Integer.parseInt(maxConcurrency))
+                .connectionTimeout(Duration.ofSeconds(3))
+                .connectionMaxIdleTime(Duration.ofSeconds(60))
+                .tcpKeepAliveConfiguration(b -> b.keepAliveInterval(Duration.ofSeconds(30)).keepAliveTimeout(Duration.ofSeconds(5)))
+                .build();
+    }
+
+    /**
+     * OpenAI client, pointed at OPENAI_BASE_URL when set (local stand-in), otherwise the public OpenAI API. Runs on its
+     * own CRT client (same settings as the shared one) unless OPENAI_TRANSPORT is okhttp.
+     *
+     * When OPENAI_ENDPOINTS is set (JSON array of name, url, apiKey and apiVersion for Azure deployments, url and apiKey
+     * default to the above), completions are hedged across those endpoints instead.
+     *
+     * @return
+     */
+    private static OpenAiClient buildOpenAiClient() {
+        final var baseUrl = withSlash(System.getenv("OPENAI_BASE_URL"), "https://api.openai.com/");
+        final var apiKey = System.getenv("OPENAI_API_KEY");
+        final var endpoints = System.getenv("OPENAI_ENDPOINTS");
+        if (endpoints != null && !endpoints.isBlank()) {
+            try {
+                final var list = new LinkedList<HedgedOpenAiClient.Endpoint>();
+                for (var e : openAiMapper.readTree(endpoints)) {
+                    final var client = new CrtOpenAiClient(ChatGPTLambda::buildCrtHttpClient,
+                            withSlash(e.path("url").asText(null), baseUrl),
+                            e.path("apiKey").asText(apiKey),
+                            OPENAI_TIMEOUT, openAiMapper,
+                            e.path("apiVersion").asText(null));
+                    list.add(new HedgedOpenAiClient.Endpoint(e.path("name").asText("endpoint-" + list.size()), client));
+                }
+                return new HedgedOpenAiClient(list);
+            } catch (Exception e) {
+                // Better to run on the single endpoint than not at all
+                LogManager.getLogger(ChatGPTLambda.class).error("Invalid OPENAI_ENDPOINTS, using OPENAI_BASE_URL only", e);
+            }
+        }
+        if ("okhttp".equalsIgnoreCase(System.getenv("OPENAI_TRANSPORT"))) {
+            return new RetrofitOpenAiClient(baseUrl, apiKey, OPENAI_TIMEOUT, openAiMapper);
+        }
+        return new CrtOpenAiClient(ChatGPTLambda::buildCrtHttpClient, baseUrl, apiKey, OPENAI_TIMEOUT, openAiMapper);
+    }
+
+    /**
+     * Base URL ending in a slash so relative paths resolve under it.
+     */
+    private static String withSlash(String url, String defaultUrl) {
+        if (url == null || url.isBlank()) {
+            return defaultUrl;
+        }
+        return url.endsWith("/") ? url : url + "/";
     }
 
     @Override
@@ -112,18 +236,9 @@ public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response>
          // Wrapped Event Class
         final LexV2EventWrapper event = new LexV2EventWrapper(lexRequest);
         try {
-            log.debug(mapper.valueToTree(lexRequest).toPrettyString());
-            // Intent which doesn't matter for us
-            log.debug("Intent: " + event.getIntent());
-
-            // For this use case, we only ever get the FallBack Intent, so the intent name means nothing here
-            // We will process everythiung coming in as text to pass to GPT
-            // IE, we are only using lex here to process speech and send it to us
-            return switch (event.getIntent()) {
-                default ->
-                    processGPT(event);
-            };
-
+            // The only place the turn is waited on
+            final long remaining = cntxt != null ? cntxt.getRemainingTimeInMillis() : TURN_TIMEOUT.toMillis();
+            return handleRequestAsync(event, System.currentTimeMillis() + remaining).join();
         } catch (CompletionException e) {
             log.error("Unhandled Future Exception", e.getCause());
             return buildResponse(new LexV2EventWrapper(lexRequest), event.getLangString(UNHANDLED_EXCEPTION));
@@ -134,7 +249,40 @@ public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response>
         }
     }
 
-    private LexV2Response processGPT(LexV2EventWrapper lexRequest) {
+    /**
+     * Run the turn without blocking, the returned future completes with the Lex response (or the unhandled error).
+     *
+     * @param event
+     * @return
+     */
+    public CompletableFuture<LexV2Response> handleRequestAsync(LexV2EventWrapper event) {
+        return handleRequestAsync(event, System.currentTimeMillis() + TURN_TIMEOUT.toMillis());
+    }
+
+    /**
+     * Run the turn without blocking, the returned future completes with the Lex response (or the unhandled error).
+     *
+     * @param event
+     * @param deadline epoch millis the turn has to be answered by, function calls are cut short to make it
+     * @return
+     */
+    public CompletableFuture<LexV2Response> handleRequestAsync(LexV2EventWrapper event, long deadline) {
+        log.debug(mapper.valueToTree(event.getEvent()).toPrettyString());
+        // Intent which doesn't matter for us
+        log.debug("Intent: " + event.getIntent());
+
+        // For this use case, we only ever get the FallBack Intent, so the intent name means nothing here
+        // We will process everythiung coming in as text to pass to GPT
+        // IE, we are only using lex here to process speech and send it to us
+        return switch (event.getIntent()) {
+            default ->
+                // A re-delivered turn gets the first delivery's response instead of running again
+                TurnIdempotency.run(event, deadline, () -> processGPT(event, deadline),
+                        () -> buildResponse(event, event.getLangString(OPERATION_TIMED_OUT)));
+        };
+    }
+
+    private CompletableFuture<LexV2Response> processGPT(LexV2EventWrapper lexRequest, long deadline) {
         final var input = lexRequest.getInputTranscript();
         final var attrs = lexRequest.getSessionAttributes();
         // Will be phone if from SMS, Facebook the Page Scoped userID, Chime unique generated ID
@@ -145,12 +293,21 @@ public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response>
         
         // Special Facebook Short Circut
         if (attrs.containsKey(FACEBOOK_HANDOVER_FUNCTION_NAME)) {
-            log.debug("Facebook Short Circut, calling FB API to move thread to FB Inbox");
-            FaceBookOperations.transferToInbox(session_id);
+            log.debug("Facebook Short Circut, moving thread to FB Inbox");
             // Clear out all sessions Attributes
             attrs.clear();
+            final var response = buildTerminatingResponse(lexRequest, FACEBOOK_HANDOVER_FUNCTION_NAME, Map.of(), "Thread moved to Facebook Inbox.");
+            if (Outbox.isEnabled()) {
+                // The dispatcher calls Facebook (and retries), we only wait on the outbox write
+                return Outbox.enqueue(Outbox.handover(session_id))
+                        .exceptionallyCompose(t -> {
+                            log.error("Unable to queue Facebook handover, calling Facebook directly", unwrap(t));
+                            return transferToInbox(session_id);
+                        })
+                        .thenApply(queued -> response);
+            }
             // Send a close indicating we are done with this Lex Session
-            return buildTerminatingResponse(lexRequest, FACEBOOK_HANDOVER_FUNCTION_NAME, Map.of(), "Thread moved to Facebook Inbox.");
+            return transferToInbox(session_id).thenApply(transferred -> response);
         }
 
         if (input == null || input.isBlank()) {
@@ -162,101 +319,392 @@ public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response>
             if (count > 2) {
                 log.debug("Two blank responses, sending to Quit Intent");
                 // Hang up on caller after 2 silience requests
-                return buildTerminatingResponse(lexRequest, "hangup_call", Map.of(), lexRequest.getLangString(GOODBYE));
+                return CompletableFuture.completedFuture(buildTerminatingResponse(lexRequest, "hangup_call", Map.of(), lexRequest.getLangString(GOODBYE)));
             } else {
                 attrs.put("blankCounter", count.toString());
                 // If we get slience (timeout without speech), then we get empty string on the transcript
-                return buildResponse(lexRequest, lexRequest.getLangString(BLANK_RESPONSE));
+                return CompletableFuture.completedFuture(buildResponse(lexRequest, lexRequest.getLangString(BLANK_RESPONSE)));
             }
         } else {
             // The Input is not blank, so always put the counter back to zero
             attrs.put("blankCounter", "0");
         }
 
+        // Senders over the text rate limit get a canned answer without touching the session or OpenAI
+        return RateLimiter.admit(lexRequest).thenCompose(admitted -> admitted ? answerTurn(lexRequest, deadline)
+                : CompletableFuture.completedFuture(buildResponse(lexRequest, lexRequest.getLangString(RATE_LIMITED))));
+    }
+
+    /**
+     * Load the session and answer the input.
+     *
+     * @param lexRequest
+     * @param deadline
+     * @return
+     */
+    private CompletableFuture<LexV2Response> answerTurn(LexV2EventWrapper lexRequest, long deadline) {
+        final var input = lexRequest.getInputTranscript();
+        final var session_id = lexRequest.getSessionId();
         log.debug("Lex Session ID is " + session_id);
 
+        final var mode = DegradationController.getMode();
+        if (mode == DegradationController.Mode.BYPASS) {
+            // OpenAI is mostly failing, get the caller to a person instead of making them wait on it
+            return CompletableFuture.completedFuture(buildBypassResponse(lexRequest));
+        }
+
         // Key to record in Dynamo which we key by date.  So SMS/Facebook session won't span forever (by day)
         final var key = Key.builder().partitionValue(session_id).sortValue(LocalDate.now(ZoneId.of("America/Chicago")).toString()).build();
 
-        //  load session state if it exists
-        var session = sessionState.getItem(key).join();
+        //  Start loading session state (if it exists)
+        //   Texts sent in quick succession are answered together by whichever invocation owns the session
+        final var sessionLoad = SessionCoalescer.applies(lexRequest) ? SessionCoalescer.join(lexRequest, key, deadline)
+                : loadSession(key).thenApply(loaded -> {
+                    final var session = loaded == null ? new ChatGPTSessionState(lexRequest) : loaded;
+                    session.markLoaded();
+                    // add the user request to the session
+                    session.addUserMessage(input);
+                    return Optional.of(new SessionCoalescer.Turn(session, loaded == null, 1));
+                });
+        final var prefetch = new ToolPrefetch();
+        if (!lexRequest.isText()) {
+            // Know whether the caller can take a text before GPT offers to send directions
+            PhoneValidation.prefetch(lexRequest.getPhoneE164());
+        }
+
+        // Trivial turns (thanks, bye, hours) are answered locally, the store lookup overlaps the session load
+        final var fastPath = FastPathResponder.answer(lexRequest);
+
+        return sessionLoad.thenCombine(fastPath, (turn, fast) -> {
+            if (turn.isEmpty()) {
+                // Another invocation is answering this message along with the ones around it
+                return CompletableFuture.completedFuture(buildSilentResponse(lexRequest));
+            }
+            // Track whether is new session so we can send welcome card for Facebook Channel
+            final boolean session_new = turn.get().isNew();
+            final var session = turn.get().session();
+            // Fast path and cached answers only fit a single message
+            final boolean single = turn.get().merged() == 1;
+
+            if (single && fast.isPresent()) {
+                return fastPathTurn(lexRequest, fast.get(), session, session_new);
+            }
 
-        boolean session_new = false;
-        if (session == null) {
-            session = new ChatGPTSessionState(lexRequest);
-            session_new = true;  // Track whether is new session so we can send welcome card for Facebook Channel
+            // Only the functions this conversation is about are sent, each definition is prompt tokens on every completion
+            final FunctionExecutor functionExecutor = AbstractFunction.getFunctionExecuter(lexRequest,
+                    DegradationController.functionFilter(mode).and(FunctionSelector.forTurn(session)), prefetch);
+            functionExecutor.setObjectMapper(mapper);
+            final var engine = new FunctionExecutionEngine(functionExecutor, deadline);
+
+            if (single && session_new) {
+                // Opening questions repeat a lot (hours, directions), answer those from the cache when we can
+                return AnswerCache.lookup(lexRequest).thenCompose(hit -> hit.isPresent()
+                        ? localTurn(lexRequest, hit.get().answer(), hit.get().functionCalls(), session, session_new)
+                        : gptTurn(lexRequest, session, session_new, engine, prefetch));
+            }
+
+            return gptTurn(lexRequest, session, session_new, engine, prefetch);
+        }).thenCompose(response -> response);
+    }
+
+    /**
+     * Answer the turn with GPT.
+     *
+     * @param lexRequest
+     * @param session with the user message already added
+     * @param session_new
+     * @param engine runs the functions GPT asks for
+     * @param prefetch the function executor's prefetch
+     * @return
+     */
+    private CompletableFuture<LexV2Response> gptTurn(LexV2EventWrapper lexRequest, ChatGPTSessionState session, boolean session_new,
+            FunctionExecutionEngine engine, ToolPrefetch prefetch) {
+        // Square calls the transcript clearly needs run while GPT thinks about it
+        if (!DegradationController.getMode().atLeast(DegradationController.Mode.CACHED_ONLY)) {
+            prefetch.start(lexRequest);
         }
 
-        // add the user request to the session
-        session.addUserMessage(input);
+        // Store all the calls made, each completion/function stage runs after the last so no locking is needed
+        final List<ChatFunctionCall> functionCallsMade = new LinkedList<>();
+        final long start = System.currentTimeMillis();
+
+        // Hours/location questions get the store facts up front so GPT can skip the store_hours round trip
+        return StoreFacts.forTurn(lexRequest)
+                .thenCompose(facts -> {
+                    final List<ChatMessage> context = facts.map(f -> List.of(new ChatMessage(ChatMessageRole.SYSTEM.value(), f))).orElse(List.of());
+                    return completeTurn(lexRequest, CompletionProfile.Stage.FIRST_REPLY, session, context, engine, functionCallsMade)
+                            .whenComplete((r, t) -> {
+                                if (t == null) {
+                                    StoreFacts.record(facts.isPresent(), functionCallsMade.stream().anyMatch(f -> StoreFacts.isHoursFunction(f.getName())),
+                                            System.currentTimeMillis() - start);
+                                }
+                            });
+                })
+                .thenCompose(botResponse -> {
+                    // Save the session to dynamo
+                    session.incrementCounter();
+                    // First turn answers go in the answer cache too, if the functions behind them allow it and all worked
+                    final var cacheStore = session_new && engine.allSucceeded() ? AnswerCache.store(lexRequest, botResponse, functionCallsMade)
+                            : CompletableFuture.completedFuture(false);
+                    return CompletableFuture.allOf(saveSession(session), cacheStore).thenApply(v -> botResponse);
+                })
+                .handle((botResponse, t) -> {
+                    if (t == null) {
+                        return buildTurnResponse(lexRequest, botResponse, functionCallsMade, session_new);
+                    }
+                    final var cause = unwrap(t);
+                    if (cause instanceof FunctionCallException) {
+                        log.error("Funtion call error", cause.getCause());
+                        return buildResponse(lexRequest, "FunctionCall Error: " + cause.getCause().getMessage());
+                    }
+                    if (cause instanceof SocketTimeoutException || cause.getCause() instanceof SocketTimeoutException) {
+                        log.error("Response timed out", cause);
+                        return buildTurnResponse(lexRequest, lexRequest.getLangString(OPERATION_TIMED_OUT), functionCallsMade, session_new);
+                    }
+                    throw t instanceof CompletionException ce ? ce : new CompletionException(cause);
+                });
+    }
 
-        String botResponse;
-        // Store all the calls made
-        List<ChatFunctionCall> functionCallsMade = new LinkedList<>();
-        try {
-            FunctionExecutor functionExecutor = AbstractFunction.getFunctionExecuter(lexRequest);
+    /**
+     * Finish a turn answered by the fast path, see {@link #localTurn}.
+     *
+     * @param lexRequest
+     * @param answer
+     * @param session
+     * @param session_new
+     * @return
+     */
+    private CompletableFuture<LexV2Response> fastPathTurn(LexV2EventWrapper lexRequest, FastPathResponder.Answer answer, ChatGPTSessionState session, boolean session_new) {
+        log.debug("Fast path answered " + answer.intent() + ", skipping OpenAI");
+        final List<ChatFunctionCall> functionCallsMade = new LinkedList<>();
+        if (answer.functionName() != null) {
+            final var call = new ChatFunctionCall();
+            call.setName(answer.functionName());
+            call.setArguments(mapper.valueToTree(answer.functionArgs()));
+            functionCallsMade.add(call);
+        }
+        return localTurn(lexRequest, answer.text(), functionCallsMade, session, session_new);
+    }
+
+    /**
+     * Finish a turn answered without GPT (fast path or answer cache). The exchange still goes in the session so GPT has
+     * the context on the next turn, and any function calls are handled just like GPT had made them.
+     *
+     * @param lexRequest
+     * @param text answer, null when a handover function replaces it
+     * @param functionCallsMade
+     * @param session
+     * @param session_new
+     * @return
+     */
+    private CompletableFuture<LexV2Response> localTurn(LexV2EventWrapper lexRequest, String text, List<ChatFunctionCall> functionCallsMade,
+            ChatGPTSessionState session, boolean session_new) {
+        if (text != null) {
+            session.addAssistantMessage(text);
+        }
+        session.incrementCounter();
+        return saveSession(session)
+                .thenApply(v -> buildTurnResponse(lexRequest, text == null ? "" : text, functionCallsMade, session_new));
+    }
+
+    /**
+     * Ask GPT a question outside of any conversation and put the answer in the answer cache, see {@link FaqMiningJob}.
+     * Only cacheable functions are offered so nothing gets sent, booked or transferred, and no session is written.
+     *
+     * @param lexRequest synthetic first turn
+     * @return true when a new answer was cached
+     */
+    CompletableFuture<Boolean> warmAnswer(LexV2EventWrapper lexRequest) {
+        return AnswerCache.lookup(lexRequest).thenCompose(hit -> {
+            if (hit.isPresent()) {
+                return CompletableFuture.completedFuture(false);
+            }
+            final FunctionExecutor functionExecutor = AbstractFunction.getFunctionExecuter(lexRequest, AbstractFunction::isCacheable, null);
             functionExecutor.setObjectMapper(mapper);
+            final var engine = new FunctionExecutionEngine(functionExecutor, System.currentTimeMillis() + TURN_TIMEOUT.toMillis());
+            final var session = new ChatGPTSessionState(lexRequest);
+            session.addUserMessage(lexRequest.getInputTranscript());
+            final List<ChatFunctionCall> functionCallsMade = new LinkedList<>();
+            // No store facts, the cached answer shouldn't depend on what was true when it was mined
+            return completeTurn(lexRequest, CompletionProfile.Stage.FIRST_REPLY, session, List.of(), engine, functionCallsMade)
+                    .thenCompose(answer -> engine.allSucceeded() ? AnswerCache.store(lexRequest, answer, functionCallsMade, "mined")
+                            : CompletableFuture.completedFuture(false));
+        });
+    }
+
+    /**
+     * Send the conversation to GPT, and while it asks for functions, run them and send the results back. Each round
+     * trip is chained onto the last so no thread waits on OpenAI or a function.
+     *
+     * @param lexRequest
+     * @param stage first reply or after a function result, picks the completion profile
+     * @param session
+     * @param context extra messages sent after the system prompt for this turn only, never saved in the session
+     * @param engine
+     * @param functionCallsMade every function call GPT made is added here
+     * @return future of GPT's final text response
+     */
+    private CompletableFuture<String> completeTurn(LexV2EventWrapper lexRequest, CompletionProfile.Stage stage, ChatGPTSessionState session,
+            List<ChatMessage> context, FunctionExecutionEngine engine, List<ChatFunctionCall> functionCallsMade) {
+        // A provider brownout means a smaller budget and less history
+        final var mode = DegradationController.getMode();
+        final var profile = DegradationController.adjust(CompletionProfile.of(lexRequest, stage), mode);
+        final var chatMessages = DegradationController.trimHistory(session.getChatMessages(), mode);
+        chatMessages.addAll(1, context);
+        if (profile.brevity() != null) {
+            // Length is asked for, the token budget is only a safety net
+            chatMessages.add(1, new ChatMessage(ChatMessageRole.SYSTEM.value(), profile.brevity()));
+        }
+
+        log.debug(chatMessages);
+        return complete(profile.model(), profile, chatMessages, engine.getExecutor()).thenCompose(responseMessage -> {
+            if (responseMessage.getFunctionCall() != null && profile.escalateTo() != null) {
+                // The fast model wants a function, let the stronger one decide which and with what arguments
+                log.debug("Escalating from " + profile.model() + " to " + profile.escalateTo() + " for a function call");
+                return complete(profile.escalateTo(), profile, chatMessages, engine.getExecutor());
+            }
+            return CompletableFuture.completedFuture(responseMessage);
+        }).thenCompose(responseMessage -> {
+            // Add response to session
+            session.addMessage(responseMessage);
+
+            ChatFunctionCall functionCall = responseMessage.getFunctionCall();
+            if (functionCall == null) {
+                return CompletableFuture.completedFuture(responseMessage.getContent());
+            }
+
+            log.debug("Trying to execute " + functionCall.getName() + "...");
+            return executeFunction(engine, functionCall).thenCompose(message -> {
+                log.debug("Executed " + functionCall.getName() + ".");
+                session.addMessage(message);
+                // Track each call made
+                functionCallsMade.add(functionCall);
+                return completeTurn(lexRequest, CompletionProfile.Stage.AFTER_FUNCTION, session, context, engine, functionCallsMade);
+            });
+        });
+    }
 
-            while (true) {
-                final var chatMessages = session.getChatMessages();
-                ChatCompletionRequest request = ChatCompletionRequest.builder()
-                        .messages(chatMessages)
-                        .model(OPENAI_MODEL)
-                        .maxTokens(500)
-                        .temperature(0.2) // More focused
-                        .n(1) // Only return 1 completion
-                        .functions(functionExecutor.getFunctions())
-                        .functionCall(ChatCompletionRequest.ChatCompletionRequestFunctionCall.of("auto"))
-                        .build();
-
-                log.debug(chatMessages);
-                log.debug("Start API Completion Call to ChatGPT");
-                final var completion = open_ai_service.createChatCompletion(request);
-                log.debug("End API Completion Call to ChatGPT");
-                log.debug(completion);
-
-                ChatMessage responseMessage = completion.getChoices().get(0).getMessage();
-                botResponse = completion.getChoices().get(0).getMessage().getContent();
-
-                // Add response to session
-                session.addMessage(responseMessage);
-
-                ChatFunctionCall functionCall = responseMessage.getFunctionCall();
-                if (functionCall != null) {
-                    log.debug("Trying to execute " + functionCall.getName() + "...");
-
-                    Optional<ChatMessage> message = functionExecutor.executeAndConvertToMessageSafely(functionCall);
-
-                    if (message.isPresent()) {
-                        log.debug("Executed " + functionCall.getName() + ".");
-                        session.addMessage(message.get());
-                        // Track each call made
-                        functionCallsMade.add(functionCall);
-                        continue;
-                    } else {
-                        log.debug("Something went wrong with the execution of " + functionCall.getName() + "...");
-                        try {
-                            functionExecutor.executeAndConvertToMessage(functionCall);
-                        } catch (Exception e) {
-                            log.error("Funtion call error", e);
-                            return buildResponse(lexRequest, "FunctionCall Error: " + e.getMessage());
+    /**
+     * One chat completion.
+     *
+     * @param model
+     * @param profile token budget, temperature and stop sequences
+     * @param chatMessages
+     * @param functionExecutor
+     * @return future of the response message
+     */
+    private CompletableFuture<ChatMessage> complete(String model, CompletionProfile profile, List<ChatMessage> chatMessages, FunctionExecutor functionExecutor) {
+        return complete(model, profile, profile.maxTokens(), chatMessages, functionExecutor);
+    }
+
+    private CompletableFuture<ChatMessage> complete(String model, CompletionProfile profile, int maxTokens, List<ChatMessage> chatMessages, FunctionExecutor functionExecutor) {
+        ChatCompletionRequest request = ChatCompletionRequest.builder()
+                .messages(chatMessages)
+                .model(model)
+                .maxTokens(maxTokens)
+                .temperature(profile.temperature()) // More focused
+                .stop(profile.stop().isEmpty() ? null : profile.stop())
+                .n(1) // Only return 1 completion
+                .functions(functionExecutor.getFunctions())
+                .functionCall(ChatCompletionRequest.ChatCompletionRequestFunctionCall.of("auto"))
+                .build();
+
+        log.debug("Start API Completion Call to ChatGPT (" + model + ")");
+        final var call = openAiClient.createChatCompletion(request);
+        DegradationController.recordOpenAi(call, TURN_TIMEOUT.toMillis());
+        return call
+                .thenCompose(completion -> {
+                    log.debug("End API Completion Call to ChatGPT");
+                    log.debug(completion);
+                    final var choice = completion.getChoices().get(0);
+                    final var message = choice.getMessage();
+                    if (!"length".equals(choice.getFinishReason())) {
+                        return CompletableFuture.completedFuture(message);
+                    }
+                    if (message.getFunctionCall() != null) {
+                        if (maxTokens < CompletionProfile.FUNCTION_CALL_MAX_TOKENS) {
+                            // Cut off arguments won't parse, ask again with room for them
+                            log.warn("Function call cut off at " + maxTokens + " tokens on " + model + ", asking again");
+                            return complete(model, profile, CompletionProfile.FUNCTION_CALL_MAX_TOKENS, chatMessages, functionExecutor);
                         }
+                        return CompletableFuture.completedFuture(message);
                     }
-                }
-                break;
-            }
+                    log.warn("Completion cut off at " + maxTokens + " tokens on " + model + ", trimming to the last full sentence");
+                    message.setContent(trimToSentence(message.getContent()));
+                    return CompletableFuture.completedFuture(message);
+                });
+    }
 
-            // Save the session to dynamo
-            session.incrementCounter();
-            sessionState.putItem(session).join();
-        } catch (RuntimeException rte) {
-            if (rte.getCause() != null && rte.getCause() instanceof SocketTimeoutException) {
-                log.error("Response timed out", rte);
-                botResponse = lexRequest.getLangString(OPERATION_TIMED_OUT);
-            } else {
-                throw rte;
+    /**
+     * A reply cut off at the token budget, ending at its last full sentence (or word) instead of mid sentence.
+     *
+     * @param text
+     * @return
+     */
+    static String trimToSentence(String text) {
+        if (text == null || text.isBlank()) {
+            return text;
+        }
+        final var trimmed = text.strip();
+        int end = -1;
+        for (int i = 0; i < trimmed.length(); i++) {
+            final char c = trimmed.charAt(i);
+            if ((c == '.' || c == '!' || c == '?') && (i + 1 == trimmed.length() || Character.isWhitespace(trimmed.charAt(i + 1)))) {
+                end = i + 1;
             }
         }
+        if (end > 0) {
+            return trimmed.substring(0, end);
+        }
+        // No full sentence at all, end on a whole word
+        final int space = trimmed.lastIndexOf(' ');
+        return (space > 0 ? trimmed.substring(0, space) : trimmed) + "...";
+    }
+
+    /**
+     * Run a function GPT asked for, once. When it fails, times out or is turned away GPT is told so in the function
+     * message and can answer the caller itself, only a call that couldn't be run at all or a turn out of time ends the
+     * turn.
+     *
+     * @param engine
+     * @param functionCall
+     * @return future of the function message to add to the session
+     */
+    private CompletableFuture<ChatMessage> executeFunction(FunctionExecutionEngine engine, ChatFunctionCall functionCall) {
+        return engine.execute(functionCall).thenApply(result -> {
+            final var content = switch (result.status()) {
+                case OK ->
+                    mapper.valueToTree(result.value()).toPrettyString();
+                case INVALID ->
+                    // Unknown function or arguments that don't bind to the Request class
+                    throw new FunctionCallException(result.error());
+                case DEADLINE ->
+                    // Surface this like the OpenAI timeout so the caller hears the timed out message
+                    throw new CompletionException(new SocketTimeoutException(result.error().getMessage()));
+                case FAILED ->
+                    functionError("The request failed, tell the user this is not available right now");
+                case TIMED_OUT, REJECTED ->
+                    functionError("The request took too long, tell the user this is not available right now");
+            };
+            return new ChatMessage(ChatMessageRole.FUNCTION.value(), content, functionCall.getName());
+        });
+    }
+
+    private static String functionError(String error) {
+        return mapper.createObjectNode().put("error", error).toPrettyString();
+    }
+
+    /**
+     * Lex response once GPT has answered, taking into account any terminating or handover functions that were called.
+     *
+     * @param lexRequest
+     * @param botResponse
+     * @param functionCallsMade
+     * @param session_new
+     * @return
+     */
+    private LexV2Response buildTurnResponse(LexV2EventWrapper lexRequest, String botResponse, List<ChatFunctionCall> functionCallsMade, boolean session_new) {
+        final var attrs = lexRequest.getSessionAttributes();
 
         log.debug("botResponse is [" + botResponse + "]");
 
@@ -303,6 +751,85 @@ public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response>
         return buildResponse(lexRequest, botResponse);
     }
 
+    /**
+     * Call Facebook directly to pass the thread to the Inbox. Lambda freezes the instance once the response is returned,
+     * so the calls (and retries) are waited on there. The fulfillment server stays up, so it doesn't hold the turn.
+     *
+     * @param session_id page scoped user ID
+     * @return future of whether the thread was passed (always false when not waited on), never fails
+     */
+    private static CompletableFuture<Boolean> transferToInbox(String session_id) {
+        final var transfer = FaceBookOperations.transferToInbox(session_id);
+        return FulfillmentServer.isRunning() ? CompletableFuture.completedFuture(false) : transfer;
+    }
+
+    /**
+     * Load the session, priming turns always start a new one without reading the real table.
+     *
+     * @param key
+     * @return future of the session, null when there is none
+     */
+    private static CompletableFuture<ChatGPTSessionState> loadSession(Key key) {
+        return Cassette.getInstance().isPriming() ? CompletableFuture.completedFuture(null) : sessionState.getItem(key);
+    }
+
+    /**
+     * Save the session at the end of a turn. When another invocation wrote it since it was loaded (a text that arrived
+     * mid turn), this turn's messages are added to that copy instead of overwriting it.
+     *
+     * @param session
+     * @return
+     */
+    private static CompletableFuture<Void> saveSession(ChatGPTSessionState session) {
+        return saveSession(session, 1);
+    }
+
+    private static CompletableFuture<Void> saveSession(ChatGPTSessionState session, int attempt) {
+        if (Cassette.getInstance().isPriming()) {
+            // Exercise the bean mapping for the snapshot, but priming turns never touch the real table
+            schema.itemToMap(session, true);
+            return CompletableFuture.completedFuture(null);
+        }
+        session.releaseOwnership();
+        return sessionState.putItem(session)
+                .thenRun(session::markSaved)
+                .exceptionallyCompose(t -> {
+                    if (!(unwrap(t) instanceof ConditionalCheckFailedException) || attempt >= 5) {
+                        return CompletableFuture.failedFuture(unwrap(t));
+                    }
+                    log.debug("Session " + session.getSessionId() + " changed during the turn, merging");
+                    return sessionState.getItem(r -> r.key(session.getKey()).consistentRead(true))
+                            .thenCompose(fresh -> {
+                                if (fresh == null) {
+                                    // Gone (expired), write it new
+                                    session.setVersion(null);
+                                    return saveSession(session, attempt + 1);
+                                }
+                                return saveSession(session.mergeInto(fresh), attempt + 1);
+                            });
+                });
+    }
+
+    /**
+     * The real error behind a failed future.
+     *
+     * @param t
+     * @return
+     */
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /**
+     * Marks a function GPT asked for that could not be run at all.
+     */
+    private static class FunctionCallException extends RuntimeException {
+
+        FunctionCallException(Throwable cause) {
+            super(cause);
+        }
+    }
+
     /**
      * Response that will tell Lex we are done so some action can be performed
      * at the Chime Level (hang up, transfer, MOH, etc.)
@@ -384,6 +911,39 @@ public class ChatGPTLambda implements RequestHandler<LexV2Event, LexV2Response>
         return lexV2Res;
     }
 
+    /**
+     * Response while OpenAI is down (see {@link DegradationController}), voice is transferred to the main number and
+     * text is asked to call or try again later.
+     *
+     * @param lexRequest
+     * @return
+     */
+    private LexV2Response buildBypassResponse(LexV2EventWrapper lexRequest) {
+        final var mainNumber = System.getenv("MAIN_NUMBER");
+        if (lexRequest.isVoice() && mainNumber != null) {
+            return buildTerminatingResponse(lexRequest, TRANSFER_FUNCTION_NAME, Map.of("transfer_number", mainNumber),
+                    lexRequest.getLangString(DEGRADED_TRANSFER));
+        }
+        return buildResponse(lexRequest, MessageFormat.format(lexRequest.getLangString(DEGRADED_TEXT), String.valueOf(mainNumber)));
+    }
+
+    /**
+     * Response with no message, for a text that another invocation answers together with the ones around it.
+     *
+     * @param lexRequest
+     * @return
+     */
+    private LexV2Response buildSilentResponse(LexV2EventWrapper lexRequest) {
+        final var ss = SessionState.builder()
+                .withSessionAttributes(lexRequest.getSessionAttributes())
+                .withDialogAction(ElicitIntent.getDialogAction())
+                .build();
+        return LexV2Response.builder()
+                .withSessionState(ss)
+                .withMessages(new LexV2Response.Message[0])
+                .build();
+    }
+
     /**
      * Send a response without a card.
      *
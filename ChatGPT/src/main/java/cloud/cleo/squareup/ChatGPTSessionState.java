@@ -5,6 +5,7 @@ import static cloud.cleo.squareup.ChatGPTLambda.SWITCH_LANGUAGE_FUNCTION_NAME;
 import static cloud.cleo.squareup.ChatGPTLambda.TRANSFER_FUNCTION_NAME;
 import cloud.cleo.squareup.enums.Language;
 import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.functions.StoreData;
 import com.theokanning.openai.completion.chat.ChatMessage;
 import java.time.Duration;
 import java.time.Instant;
@@ -15,6 +16,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.stream.Collectors;
 import lombok.Data;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.extensions.annotations.DynamoDbVersionAttribute;
 import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.*;
 
 /**
@@ -46,6 +49,35 @@ public class ChatGPTSessionState {
      */
     private Long counter;
 
+    /**
+     * Channel, input mode and bot locale the session started on, so sessions can be grouped later (FAQ mining).
+     */
+    private String channel;
+    private String inputMode;
+    private String locale;
+
+    /**
+     * Bumped on every write, a write from a stale copy fails instead of overwriting what another invocation saved.
+     */
+    private Long version;
+
+    /**
+     * Text messages that arrived while a turn was running or within the coalescing window, and the invocation that will
+     * answer them, see {@link SessionCoalescer}.
+     */
+    private List<PendingMessage> pending;
+    private String ownerId;
+    private Long ownerSince;
+
+    /**
+     * Messages there were when loaded, anything after was added by this turn.
+     */
+    private int loadedCount;
+    /**
+     * Owner ID this turn gives up when saved.
+     */
+    private String releaseOwner;
+
     /**
      * Unix timestamp when this Dynamo record should be deleted. We don't want session data hanging in the table
      * forever.
@@ -54,12 +86,17 @@ public class ChatGPTSessionState {
 
     public ChatGPTSessionState() {
         this.messages = new LinkedList<>();
+        this.pending = new LinkedList<>();
     }
 
     public ChatGPTSessionState(LexV2EventWrapper lexRequest) {
         this.sessionId = lexRequest.getSessionId();
-        this.date = LocalDate.now(ZoneId.of("America/Chicago"));
+        this.date = LocalDate.now(StoreData.getClock().withZone(ZoneId.of("America/Chicago")));
         this.messages = new LinkedList<>();
+        this.pending = new LinkedList<>();
+        this.channel = lexRequest.getChannelPlatform().toString();
+        this.inputMode = lexRequest.getInputMode().toString();
+        this.locale = lexRequest.getLocale().toString();
 
         final var sb = new StringBuilder();
 
@@ -149,6 +186,72 @@ public class ChatGPTSessionState {
         return date;
     }
 
+    @DynamoDbVersionAttribute
+    public Long getVersion() {
+        return version;
+    }
+
+    @DynamoDbIgnore
+    public int getLoadedCount() {
+        return loadedCount;
+    }
+
+    @DynamoDbIgnore
+    public String getReleaseOwner() {
+        return releaseOwner;
+    }
+
+    /**
+     * Key of this session in the table.
+     *
+     * @return
+     */
+    @DynamoDbIgnore
+    public Key getKey() {
+        return Key.builder().partitionValue(sessionId).sortValue(date.toString()).build();
+    }
+
+    /**
+     * Remember how many messages there are now, called when the session is loaded or created.
+     */
+    public void markLoaded() {
+        loadedCount = messages.size();
+    }
+
+    /**
+     * After a successful write, the version Dynamo now has (the versioned record extension only bumps the written
+     * item).
+     */
+    public void markSaved() {
+        version = version == null ? 1L : version + 1L;
+        markLoaded();
+    }
+
+    /**
+     * Give up answering pending messages if this turn holds that.
+     */
+    public void releaseOwnership() {
+        if (releaseOwner != null && releaseOwner.equals(ownerId)) {
+            ownerId = null;
+            ownerSince = null;
+        }
+    }
+
+    /**
+     * Add what this turn did to a copy someone else saved since this one was loaded, keeping what they added (messages,
+     * pending texts).
+     *
+     * @param fresh the copy in the table now
+     * @return fresh with this turn's messages and counter
+     */
+    public ChatGPTSessionState mergeInto(ChatGPTSessionState fresh) {
+        fresh.getMessages().addAll(messages.subList(Math.min(loadedCount, messages.size()), messages.size()));
+        fresh.incrementCounter();
+        fresh.setReleaseOwner(releaseOwner);
+        fresh.markLoaded();
+        return fresh;
+    }
+
     public void addUserMessage(String message) {
         messages.add(new ChatGPTMessage(ChatGPTMessage.MessageRole.user, message));
     }
@@ -165,6 +268,20 @@ public class ChatGPTSessionState {
         messages.add(new ChatGPTMessage(cm));
     }
 
+    /**
+     * The first thing the user said in this session.
+     *
+     * @return null if nothing yet
+     */
+    @DynamoDbIgnore
+    public String getFirstUserMessage() {
+        return messages.stream()
+                .filter(m -> ChatGPTMessage.MessageRole.user.toString().equals(m.getRole()))
+                .map(m -> m.getContent())
+                .findFirst()
+                .orElse(null);
+    }
+
     @DynamoDbIgnore
     public List<ChatMessage> getChatMessages() {
         final var cms = new LinkedList<ChatMessage>();
@@ -0,0 +1,165 @@
+package cloud.cleo.squareup;
+
+import cloud.cleo.squareup.enums.ChannelPlatform;
+import cloud.cleo.squareup.enums.LexInputMode;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Completion settings (model, brevity instruction, token budget, stop sequences) for a turn, picked by channel, input
+ * mode and where in the function loop the turn is. Voice has to be fast and short, SMS wants under 180 characters.
+ *
+ * Length comes from the brevity instruction sent with each completion. The token budget is only a safety net well
+ * above that, since a reply cut at the budget ends mid sentence and a cut function call has broken arguments (see
+ * {@link #FUNCTION_CALL_MAX_TOKENS}).
+ *
+ * <ul>
+ * <li>Built in defaults below, all on OPENAI_MODEL.</li>
+ * <li>When OPENAI_FAST_MODEL is set, the first reply goes to that model and only escalates to OPENAI_MODEL when the
+ * answer is a function call (the stronger model is better at picking functions and filling the arguments).</li>
+ * <li>COMPLETION_PROFILES (JSON) overrides any of it, keyed by "channel/inputMode/stage" where any part can be "*", for
+ * example {"TWILIO/TEXT/*":{"brevity":"Answer in under 100 characters."},"CHIME/SPEECH/FIRST_REPLY":{"model":"gpt-3.5-turbo","escalateTo":"gpt-4"}}.
+ * The most specific key wins and unset fields come from the built in profile.</li>
+ * </ul>
+ *
+ * @author sjensen
+ * @param model
+ * @param maxTokens
+ * @param temperature
+ * @param stop stop sequences, empty for none
+ * @param escalateTo model to re-ask when this one answers with a function call, null to never escalate
+ * @param brevity system instruction on answer length sent with the completion, null for none
+ */
+public record CompletionProfile(String model, int maxTokens, double temperature, List<String> stop, String escalateTo, String brevity) {
+
+    /**
+     * Budget a function call cut off at a profile's budget is asked again with, arguments like an email body don't fit
+     * a text message budget.
+     */
+    public final static int FUNCTION_CALL_MAX_TOKENS = 600;
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(CompletionProfile.class);
+
+    /**
+     * Where in the turn the completion is.
+     */
+    public enum Stage {
+        /**
+         * Answering what the user just said.
+         */
+        FIRST_REPLY,
+        /**
+         * Answering with a function result in hand.
+         */
+        AFTER_FUNCTION
+    }
+
+    private final static String MODEL = System.getenv("OPENAI_MODEL");
+    private final static String FAST_MODEL = System.getenv("OPENAI_FAST_MODEL");
+    private final static JsonNode overrides = loadOverrides();
+    private final static Map<String, CompletionProfile> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * Profile for a completion.
+     *
+     * @param lexRequest
+     * @param stage
+     * @return
+     */
+    public static CompletionProfile of(LexV2EventWrapper lexRequest, Stage stage) {
+        final var channel = lexRequest.getChannelPlatform();
+        final var inputMode = lexRequest.getInputMode();
+        // Only a handful of combinations, so resolve each once
+        return resolved.computeIfAbsent(channel + "/" + inputMode + "/" + stage, k -> resolve(channel, inputMode, stage));
+    }
+
+    private static CompletionProfile resolve(ChannelPlatform channel, LexInputMode inputMode, Stage stage) {
+        var profile = defaults(channel, inputMode, stage);
+        if (overrides == null) {
+            return profile;
+        }
+        // Least to most specific, each one layered over the last
+        for (var key : List.of("*/*/*",
+                "*/" + inputMode + "/*", channel + "/*/*",
+                "*/*/" + stage, "*/" + inputMode + "/" + stage, channel + "/*/" + stage,
+                channel + "/" + inputMode + "/*", channel + "/" + inputMode + "/" + stage)) {
+            final var node = overrides.get(key);
+            if (node != null) {
+                profile = profile.with(node);
+            }
+        }
+        log.debug("Completion profile for " + channel + "/" + inputMode + "/" + stage + " is " + profile);
+        return profile;
+    }
+
+    /**
+     * The built in profiles.
+     */
+    private static CompletionProfile defaults(ChannelPlatform channel, LexInputMode inputMode, Stage stage) {
+        // Fast model only helps the first reply, once a function ran the escalated model is already in play
+        final boolean fast = FAST_MODEL != null && !FAST_MODEL.isBlank() && stage == Stage.FIRST_REPLY;
+        final var model = fast ? FAST_MODEL : MODEL;
+        final var escalateTo = fast ? MODEL : null;
+        return switch (inputMode) {
+            // Spoken answers need to be short, function results (hours, items) get a bit more room
+            case SPEECH, DTMF ->
+                new CompletionProfile(model, 300, 0.2, List.of(), escalateTo, stage == Stage.FIRST_REPLY
+                        ? "Answer in one or two short sentences that sound natural spoken aloud, no lists or formatting."
+                        : "Answer in two or three short sentences that sound natural spoken aloud, no lists or formatting.");
+            case TEXT ->
+                switch (channel) {
+                    // Under 180 characters is roughly 45 tokens in English, the budget leaves room for other languages
+                    case TWILIO ->
+                        new CompletionProfile(model, 200, 0.2, List.of(), escalateTo,
+                        "Answer in plain text under 180 characters.");
+                    case FACEBOOK ->
+                        new CompletionProfile(model, 400, 0.2, List.of(), escalateTo,
+                        "Answer in a few short sentences.");
+                    default ->
+                        new CompletionProfile(model, 500, 0.2, List.of(), escalateTo,
+                        "Keep the answer short.");
+                };
+        };
+    }
+
+    /**
+     * This profile with the fields set in the JSON replaced.
+     */
+    private CompletionProfile with(JsonNode node) {
+        var stopList = stop;
+        if (node.has("stop")) {
+            stopList = new ArrayList<>();
+            for (var s : node.get("stop")) {
+                stopList.add(s.asText());
+            }
+        }
+        return new CompletionProfile(
+                node.path("model").asText(model),
+                node.path("maxTokens").asInt(maxTokens),
+                node.path("temperature").asDouble(temperature),
+                List.copyOf(stopList),
+                node.has("escalateTo") ? node.get("escalateTo").asText(null) : escalateTo,
+                node.has("brevity") ? node.get("brevity").asText(null) : brevity);
+    }
+
+    private static JsonNode loadOverrides() {
+        final var json = System.getenv("COMPLETION_PROFILES");
+        if (json == null || json.isBlank()) {
+            return null;
+        }
+        try {
+            return new ObjectMapper().readTree(json);
+        } catch (Exception e) {
+            // Run on the built in profiles rather than not at all
+            log.error("Invalid COMPLETION_PROFILES, using the built in profiles", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package cloud.cleo.squareup;
+
+import static cloud.cleo.squareup.ChatGPTLambda.dynamoDbAsyncClient;
+import cloud.cleo.squareup.cassette.Cassette;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import com.theokanning.openai.completion.chat.ChatMessage;
+import com.theokanning.openai.completion.chat.ChatMessageRole;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.stream.LongStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+
+/**
+ * Watches how OpenAI completions and Square calls are doing and steps the Lambda down when either browns out, so a slow
+ * provider means shorter answers or a transfer to the store instead of every caller sitting through timeouts and then
+ * hearing the unhandled exception message.
+ *
+ * <ul>
+ * <li>NORMAL, everything as configured.</li>
+ * <li>REDUCED (OpenAI slow or failing), smaller max tokens, only the essential functions and a shorter history.</li>
+ * <li>CACHED_ONLY (Square slow or failing), also REDUCED, and no function or prefetch calls Square, store data is
+ * served from cache even when stale.</li>
+ * <li>BYPASS (OpenAI mostly failing), no completions, voice callers are transferred to the main number and text gets a
+ * canned answer.</li>
+ * </ul>
+ *
+ * Error rate and p90 latency are taken over the last DEGRADATION_WINDOW_SECONDS of calls. A Lambda instance only sees
+ * the one turn it is running, so with HEALTH_TABLE_NAME set every instance adds its calls to per minute counters in that
+ * table (an atomic ADD, like {@link RateLimiter}) and judges by the totals, read back every few seconds. The shared
+ * window is whole minutes, and p90 is only known against the thresholds (calls over each one are counted). Without the
+ * table (or until the first read comes back) each JVM judges by its own calls, which is only useful in server mode.
+ *
+ * A completion still running when a whole turn's time is up counts as failed right then, the caller has already heard
+ * the timed out message and the Lambda may not be around when it finishes.
+ *
+ * A worse mode takes effect right away, a better one only after the current mode has held for a while, one step at a
+ * time. In BYPASS there are no completions to measure, so once the window empties the next step down lets a few
+ * through to try OpenAI again.
+ *
+ * DEGRADATION_MODE pins a mode (NORMAL, REDUCED, CACHED_ONLY, BYPASS), or "off" to always run NORMAL.
+ *
+ * @author sjensen
+ */
+public class DegradationController {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(DegradationController.class);
+
+    public enum Mode {
+        NORMAL, REDUCED, CACHED_ONLY, BYPASS;
+
+        /**
+         * @param other
+         * @return whether this mode is other or worse
+         */
+        public boolean atLeast(Mode other) {
+            return compareTo(other) >= 0;
+        }
+    }
+
+    private final static String SETTING = System.getenv("DEGRADATION_MODE");
+    private final static Mode pinned = parseMode(SETTING);
+
+    private final static long WINDOW_MILLIS = envLong("DEGRADATION_WINDOW_SECONDS", 60) * 1000;
+    private final static long OPENAI_REDUCED_P90_MILLIS = envLong("OPENAI_REDUCED_P90_MILLIS", 8000);
+    private final static long OPENAI_BYPASS_P90_MILLIS = envLong("OPENAI_BYPASS_P90_MILLIS", 20000);
+    private final static long SQUARE_CACHED_P90_MILLIS = envLong("SQUARE_CACHED_P90_MILLIS", 3000);
+
+    private final static double REDUCED_ERROR_RATE = 0.2;
+    private final static double BYPASS_ERROR_RATE = 0.5;
+    private final static double CACHED_ERROR_RATE = 0.3;
+
+    /**
+     * Too few calls to judge by.
+     */
+    private final static int MIN_SAMPLES = 10;
+
+    /**
+     * How long a mode holds before stepping to a better one.
+     */
+    private final static long HOLD_MILLIS = 30000;
+
+    /**
+     * Messages kept after the system prompt in REDUCED and worse.
+     */
+    private final static int REDUCED_HISTORY = 6;
+
+    private final static String TABLE_NAME = System.getenv("HEALTH_TABLE_NAME");
+
+    private final static long MINUTE_MILLIS = 60000;
+
+    /**
+     * How often each instance reads back the shared counters.
+     */
+    private final static long REFRESH_MILLIS = 5000;
+
+    private final static Provider openAi = new Provider("openai", OPENAI_REDUCED_P90_MILLIS, OPENAI_BYPASS_P90_MILLIS);
+    private final static Provider square = new Provider("square", SQUARE_CACHED_P90_MILLIS);
+
+    private static Mode mode = Mode.NORMAL;
+    private static long changedAt = System.currentTimeMillis();
+
+    private DegradationController() {
+    }
+
+    /**
+     * Record one OpenAI completion.
+     *
+     * @param millis
+     * @param failed error or timeout
+     */
+    public static void recordOpenAi(long millis, boolean failed) {
+        if (!Cassette.getInstance().isPriming()) {
+            openAi.add(millis, failed);
+        }
+    }
+
+    /**
+     * Record an OpenAI completion when it finishes, or as failed once it has run longer than a turn.
+     *
+     * @param completion
+     * @param turnMillis how long a turn has
+     */
+    public static void recordOpenAi(CompletableFuture<?> completion, long turnMillis) {
+        final long start = System.currentTimeMillis();
+        // Timed out on a copy so the completion itself is left alone
+        completion.copy()
+                .orTimeout(turnMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((r, t) -> recordOpenAi(System.currentTimeMillis() - start, t != null));
+    }
+
+    /**
+     * Record one Square call.
+     *
+     * @param millis
+     * @param failed error or timeout
+     */
+    public static void recordSquare(long millis, boolean failed) {
+        if (!Cassette.getInstance().isPriming()) {
+            square.add(millis, failed);
+        }
+    }
+
+    /**
+     * The mode to run a turn in.
+     *
+     * @return
+     */
+    public static synchronized Mode getMode() {
+        if (pinned != null) {
+            return pinned;
+        }
+        final long now = System.currentTimeMillis();
+        final var target = evaluate(now);
+        if (target.atLeast(mode)) {
+            if (target != mode) {
+                log.warn("Degrading from " + mode + " to " + target + " (OpenAI " + openAi.stats(now) + ", Square " + square.stats(now) + ")");
+                mode = target;
+                changedAt = now;
+            }
+        } else if (now - changedAt >= HOLD_MILLIS) {
+            final var better = Mode.values()[mode.ordinal() - 1];
+            log.info("Recovering from " + mode + " to " + better);
+            mode = better;
+            changedAt = now;
+        }
+        return mode;
+    }
+
+    private static Mode evaluate(long now) {
+        return evaluate(openAi.stats(now), square.stats(now));
+    }
+
+    /**
+     * The mode the current numbers call for.
+     *
+     * @param ai OpenAI completions in the window
+     * @param sq Square calls in the window
+     * @return
+     */
+    static Mode evaluate(Stats ai, Stats sq) {
+        var target = Mode.NORMAL;
+        if (ai.count() >= MIN_SAMPLES) {
+            if (ai.errorRate() >= BYPASS_ERROR_RATE || ai.p90() >= OPENAI_BYPASS_P90_MILLIS) {
+                return Mode.BYPASS;
+            }
+            if (ai.errorRate() >= REDUCED_ERROR_RATE || ai.p90() >= OPENAI_REDUCED_P90_MILLIS) {
+                target = Mode.REDUCED;
+            }
+        }
+        if (sq.count() >= MIN_SAMPLES && (sq.errorRate() >= CACHED_ERROR_RATE || sq.p90() >= SQUARE_CACHED_P90_MILLIS)) {
+            target = Mode.CACHED_ONLY;
+        }
+        return target;
+    }
+
+    /**
+     * Which functions to offer GPT in a mode.
+     *
+     * @param mode
+     * @return
+     */
+    public static Predicate<AbstractFunction> functionFilter(Mode mode) {
+        return switch (mode) {
+            case NORMAL ->
+                f -> true;
+            case REDUCED ->
+                f -> f.isEssential();
+            default ->
+                f -> f.isEssential() && !f.usesSquare();
+        };
+    }
+
+    /**
+     * Completion settings for a mode, REDUCED and worse are asked for shorter answers and get a smaller token budget.
+     *
+     * @param profile
+     * @param mode
+     * @return
+     */
+    public static CompletionProfile adjust(CompletionProfile profile, Mode mode) {
+        if (!mode.atLeast(Mode.REDUCED)) {
+            return profile;
+        }
+        final var brevity = profile.brevity() == null ? "Keep the answer as short as possible." : profile.brevity() + "  Keep it as short as possible.";
+        return new CompletionProfile(profile.model(), Math.max(120, profile.maxTokens() * 6 / 10), profile.temperature(),
+                profile.stop(), profile.escalateTo(), brevity);
+    }
+
+    /**
+     * Conversation to send for a mode, REDUCED and worse only send the system prompt and the latest messages.
+     *
+     * @param chatMessages system prompt first
+     * @param mode
+     * @return
+     */
+    public static List<ChatMessage> trimHistory(List<ChatMessage> chatMessages, Mode mode) {
+        if (!mode.atLeast(Mode.REDUCED) || chatMessages.size() <= REDUCED_HISTORY + 1) {
+            return chatMessages;
+        }
+        final var trimmed = new LinkedList<>(chatMessages.subList(chatMessages.size() - REDUCED_HISTORY, chatMessages.size()));
+        // A function result without the call that asked for it is rejected by OpenAI
+        while (!trimmed.isEmpty() && ChatMessageRole.FUNCTION.value().equals(trimmed.getFirst().getRole())) {
+            trimmed.removeFirst();
+        }
+        trimmed.addFirst(chatMessages.get(0));
+        return trimmed;
+    }
+
+    /**
+     * Error rate and p90 of the calls in a window.
+     */
+    record Stats(int count, double errorRate, long p90) {
+
+        /**
+         * Stats from counters, where the p90 is the highest threshold at least 10% of calls took (0 when under all of
+         * them), which is all {@link #evaluate(Stats, Stats)} needs to know.
+         *
+         * @param count calls
+         * @param failed calls that failed
+         * @param thresholds ascending
+         * @param over calls that took at least each threshold
+         * @return
+         */
+        static Stats fromCounts(long count, long failed, long[] thresholds, long[] over) {
+            if (count <= 0) {
+                return new Stats(0, 0, -1);
+            }
+            // Same nearest rank as the local window, p90 is at least t when enough calls are at t or over
+            final long needed = count - (long) Math.ceil(0.9 * count) + 1;
+            long p90 = 0;
+            for (int i = 0; i < thresholds.length; i++) {
+                if (over[i] >= needed) {
+                    p90 = thresholds[i];
+                }
+            }
+            return new Stats((int) Math.min(Integer.MAX_VALUE, count), (double) failed / count, p90);
+        }
+    }
+
+    /**
+     * One provider's calls, in this JVM and (with HEALTH_TABLE_NAME set) shared across instances.
+     */
+    private static class Provider {
+
+        private final String name;
+        private final long[] thresholds;
+        private final Window window = new Window();
+
+        private volatile Stats shared;
+        private volatile long fetchedAt;
+        private final AtomicBoolean fetching = new AtomicBoolean();
+
+        Provider(String name, long... thresholds) {
+            this.name = name;
+            this.thresholds = thresholds;
+        }
+
+        void add(long millis, boolean failed) {
+            window.add(millis, failed);
+            if (isShared()) {
+                count(millis, failed);
+            }
+        }
+
+        Stats stats(long now) {
+            if (!isShared()) {
+                return window.stats(now);
+            }
+            if (now - fetchedAt >= REFRESH_MILLIS && fetching.compareAndSet(false, true)) {
+                fetch(now);
+            }
+            final var current = shared;
+            return current != null ? current : window.stats(now);
+        }
+
+        private static boolean isShared() {
+            return TABLE_NAME != null && !TABLE_NAME.isBlank();
+        }
+
+        private String key(long minute) {
+            return "degradation#" + name + "#" + minute;
+        }
+
+        /**
+         * Add the call to this minute's counters, nobody waits on it.
+         */
+        private void count(long millis, boolean failed) {
+            final long minute = System.currentTimeMillis() / MINUTE_MILLIS;
+            final Map<String, String> names = new HashMap<>(Map.of("#count", "count", "#failed", "failed", "#ttl", "ttl"));
+            final Map<String, AttributeValue> values = new HashMap<>(Map.of(
+                    ":one", AttributeValue.fromN("1"),
+                    ":failed", AttributeValue.fromN(failed ? "1" : "0"),
+                    ":ttl", AttributeValue.fromN(Long.toString((minute + 2) * MINUTE_MILLIS / 1000 + WINDOW_MILLIS / 1000))));
+            final var expression = new StringBuilder("ADD #count :one, #failed :failed");
+            for (int i = 0; i < thresholds.length; i++) {
+                names.put("#over" + i, "over" + thresholds[i]);
+                values.put(":over" + i, AttributeValue.fromN(millis >= thresholds[i] ? "1" : "0"));
+                expression.append(", #over").append(i).append(" :over").append(i);
+            }
+            dynamoDbAsyncClient.updateItem(r -> r.tableName(TABLE_NAME)
+                    .key(Map.of("id", AttributeValue.fromS(key(minute))))
+                    .updateExpression(expression.append(" SET #ttl = :ttl").toString())
+                    .expressionAttributeNames(names)
+                    .expressionAttributeValues(values))
+                    .exceptionally(t -> {
+                        log.debug("Unable to count " + name + " call", t);
+                        return null;
+                    });
+        }
+
+        /**
+         * Read back the counters for the minutes in the window and total them.
+         */
+        private void fetch(long now) {
+            final long last = now / MINUTE_MILLIS;
+            // BatchGetItem takes at most 100 keys
+            final long first = Math.max(last - 99, (now - WINDOW_MILLIS) / MINUTE_MILLIS);
+            final var keys = LongStream.rangeClosed(first, last)
+                    .mapToObj(m -> Map.of("id", AttributeValue.fromS(key(m))))
+                    .toList();
+            dynamoDbAsyncClient.batchGetItem(r -> r.requestItems(Map.of(TABLE_NAME, KeysAndAttributes.builder().keys(keys).build())))
+                    .whenComplete((res, t) -> {
+                        if (t == null) {
+                            long count = 0, failed = 0;
+                            final long[] over = new long[thresholds.length];
+                            for (var item : res.responses().getOrDefault(TABLE_NAME, List.of())) {
+                                count += number(item, "count");
+                                failed += number(item, "failed");
+                                for (int i = 0; i < thresholds.length; i++) {
+                                    over[i] += number(item, "over" + thresholds[i]);
+                                }
+                            }
+                            shared = Stats.fromCounts(count, failed, thresholds, over);
+                        } else {
+                            // Keep the last totals, try again after the next refresh interval
+                            log.debug("Unable to read " + name + " counters", t);
+                        }
+                        fetchedAt = System.currentTimeMillis();
+                        fetching.set(false);
+                    });
+        }
+
+        private static long number(Map<String, AttributeValue> item, String name) {
+            final var value = item.get(name);
+            return value == null || value.n() == null ? 0 : Long.parseLong(value.n());
+        }
+    }
+
+    /**
+     * Calls over the last WINDOW_MILLIS.
+     */
+    private static class Window {
+
+        private final static int MAX_SAMPLES = 1000;
+
+        /**
+         * {at, millis, failed 0/1}
+         */
+        private final Deque<long[]> samples = new ArrayDeque<>();
+
+        synchronized void add(long millis, boolean failed) {
+            samples.addLast(new long[]{System.currentTimeMillis(), millis, failed ? 1 : 0});
+            if (samples.size() > MAX_SAMPLES) {
+                samples.removeFirst();
+            }
+        }
+
+        synchronized Stats stats(long now) {
+            while (!samples.isEmpty() && samples.peekFirst()[0] < now - WINDOW_MILLIS) {
+                samples.removeFirst();
+            }
+            if (samples.isEmpty()) {
+                return new Stats(0, 0, -1);
+            }
+            final long[] millis = samples.stream().mapToLong(s -> s[1]).toArray();
+            final long failed = samples.stream().filter(s -> s[2] == 1).count();
+            Arrays.sort(millis);
+            final int rank = (int) Math.ceil(0.9 * millis.length) - 1;
+            return new Stats(millis.length, (double) failed / millis.length, millis[Math.max(0, rank)]);
+        }
+    }
+
+    private static Mode parseMode(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        if (value.equalsIgnoreCase("off")) {
+            return Mode.NORMAL;
+        }
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring invalid DEGRADATION_MODE " + value);
+            return null;
+        }
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        final var value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid " + name + " value " + value);
+            return defaultValue;
+        }
+    }
+}
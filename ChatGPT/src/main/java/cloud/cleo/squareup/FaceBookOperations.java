@@ -1,17 +1,29 @@
 package cloud.cleo.squareup;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import lombok.NonNull;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Perform various Facebook operations. Used when Channel is FB.  Rather
- * than pull in some other dependency, we will just use basic HTTP for all
- * Facebook operations.
+ * Perform various Facebook operations. Used when Channel is FB. Calls go to the Graph API on one OkHttp client, so
+ * connections are pooled and kept alive between turns, and are enqueued so no thread waits on Facebook.
  *
  * @author sjensen
  */
@@ -22,106 +34,180 @@ public class FaceBookOperations {
 
     private final static ObjectMapper mapper = new ObjectMapper();
 
+    private final static MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final static OkHttpClient httpClient = new OkHttpClient.Builder()
+            .connectTimeout(Duration.ofSeconds(3))
+            .callTimeout(Duration.ofSeconds(10))
+            .build();
+
+    /**
+     * Page scoped IDs don't change names often, a day keeps repeat emails from the same user off the Graph API.
+     */
+    private final static long NAME_TTL_MILLIS = Duration.ofDays(1).toMillis();
+    private final static int MAX_NAMES = 1000;
+
+    private record CachedName(CompletableFuture<String> name, long expires) {
+
+    }
+
+    private final static Map<String, CachedName> names = new ConcurrentHashMap<>();
+
     /**
-     * Transfer control of Messenger Thread Session from Bot control to the
-     * Inbox. Used when end user needs to deal with a real person to resolve
-     * issue the Bot can't handle.  Some people despise Bots, so we need to allow
-     * getting the Bot out of the conversation.
-     * 
+     * Handover attempts when done in process (no outbox).
+     */
+    private final static int HANDOVER_ATTEMPTS = 3;
+
+    /**
+     * Transfer control of Messenger Thread Session from Bot control to the Inbox, retrying a couple times. Used when
+     * end user needs to deal with a real person to resolve issue the Bot can't handle. Some people despise Bots, so we
+     * need to allow getting the Bot out of the conversation.
+     *
      * https://developers.facebook.com/docs/messenger-platform/handover-protocol/conversation-control
      *
      * @param id
+     * @return future of whether control was passed, never fails
      */
-    public static void transferToInbox(String id) {
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) getFaceBookURL(System.getenv("FB_PAGE_ID"), "pass_thread_control").openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json; utf-8");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setDoOutput(true);
-
-            // Construct the payload
-            var json = mapper.createObjectNode();
-            // Special Target for Inbox
-            json.put("target_app_id", "263902037430900");
-            // The page scoped user ID of the person chatting with us
-            json.putObject("recipient").put("id", id);
-
-            log.debug("Post Payload for thread control " + json.toPrettyString());
-            mapper.writeValue(connection.getOutputStream(), json);
-
-            final int responseCode = connection.getResponseCode();
-            log.debug("Facebook Call Response Code: " + responseCode);
-
-            final var result = mapper.readTree(connection.getInputStream());
-            log.debug("FB Pass Thread Control result is " + result.toPrettyString());
+    public static CompletableFuture<Boolean> transferToInbox(String id) {
+        return transferToInbox(id, 1);
+    }
 
-            if (result.findValue("success") != null && result.findValue("success").asBoolean() == true) {
-                log.debug("Call Succeeded in passing thread control");
-            } else {
-                log.debug("Call FAILED to pass thread control");
+    private static CompletableFuture<Boolean> transferToInbox(String id, int attempt) {
+        return passThreadControl(id).thenApply(v -> true).exceptionallyCompose(t -> {
+            if (attempt >= HANDOVER_ATTEMPTS) {
+                log.error("Facebook Pass Thread Control error, giving up", unwrap(t));
+                return CompletableFuture.completedFuture(false);
             }
+            log.warn("Facebook Pass Thread Control error on attempt " + attempt, unwrap(t));
+            return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(200L * attempt, TimeUnit.MILLISECONDS))
+                    .thenCompose(v -> transferToInbox(id, attempt + 1));
+        });
+    }
 
-        } catch (Exception e) {
-            log.error("Facebook Pass Thread Control error", e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+    /**
+     * One pass_thread_control call.
+     *
+     * @param id page scoped user ID
+     * @return future that fails unless Facebook reports success
+     */
+    public static CompletableFuture<Void> passThreadControl(String id) {
+        // Construct the payload
+        var json = mapper.createObjectNode();
+        // Special Target for Inbox
+        json.put("target_app_id", "263902037430900");
+        // The page scoped user ID of the person chatting with us
+        json.putObject("recipient").put("id", id);
+
+        log.debug("Post Payload for thread control " + json.toPrettyString());
+        final var request = new Request.Builder()
+                .url(getFaceBookURL(System.getenv("FB_PAGE_ID"), "pass_thread_control"))
+                .header("Accept", "application/json")
+                .post(RequestBody.create(json.toString(), JSON))
+                .build();
+
+        return call(request).thenAccept(result -> {
+            log.debug("FB Pass Thread Control result is " + result.toPrettyString());
+            if (result.findValue("success") != null && result.findValue("success").asBoolean()) {
+                log.debug("Call Succeeded in passing thread control");
+            } else {
+                throw new CompletionException(new IOException("Call FAILED to pass thread control: " + result));
             }
-        }
+        });
     }
 
     /**
-     * Given a Facebook user Page Scoped ID get the users full name
+     * Given a Facebook user Page Scoped ID get the users full name. Names are cached for a day.
      *
      * @param id
-     * @return
+     * @return future of the name, "Unknown" when it can't be had
      */
-    public static String getFacebookName(String id) {
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) getFaceBookURL(id, null).openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Accept", "application/json");
-
-            final int responseCode = connection.getResponseCode();
-            log.debug("Facebook Call Response Code: " + responseCode);
-
-            final var result = mapper.readTree(connection.getInputStream());
-            log.debug("FB Graph Query result is " + result.toPrettyString());
-
-            // Check for name first
-            if (result.findValue("name") != null) {
-                return result.findValue("name").asText();
+    public static CompletableFuture<String> getFacebookName(String id) {
+        final long now = System.currentTimeMillis();
+        final var cached = names.get(id);
+        if (cached != null && cached.expires() > now) {
+            return cached.name();
+        }
+        if (names.size() >= MAX_NAMES) {
+            names.values().removeIf(c -> c.expires() <= now);
+            if (names.size() >= MAX_NAMES) {
+                names.clear();
             }
+        }
 
-            // Usually returns first and last
-            if (result.findValue("first_name") != null && result.findValue("last_name") != null) {
-                return result.findValue("first_name").asText() + " " + result.findValue("last_name").asText();
+        final var lookup = call(new Request.Builder()
+                .url(getFaceBookURL(id, null))
+                .header("Accept", "application/json")
+                .get()
+                .build())
+                .thenApply(result -> {
+                    log.debug("FB Graph Query result is " + result.toPrettyString());
+
+                    // Check for name first
+                    if (result.findValue("name") != null) {
+                        return result.findValue("name").asText();
+                    }
+
+                    // Usually returns first and last
+                    if (result.findValue("first_name") != null && result.findValue("last_name") != null) {
+                        return result.findValue("first_name").asText() + " " + result.findValue("last_name").asText();
+                    }
+                    return "Unknown";
+                });
+        // Callers asking while the lookup is in flight share it
+        final var entry = new CachedName(new CompletableFuture<>(), now + NAME_TTL_MILLIS);
+        names.put(id, entry);
+        lookup.whenComplete((name, t) -> {
+            if (t != null) {
+                log.error("Facebook user name retrieval error", unwrap(t));
+                // Try again next time
+                names.remove(id, entry);
+                entry.name().complete("Unknown");
+            } else {
+                entry.name().complete(name);
             }
+        });
+        return entry.name();
+    }
 
-        } catch (Exception e) {
-            log.error("Facebook user name retrieval error", e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+    /**
+     * Enqueue a Graph API call.
+     *
+     * @param request
+     * @return future of the response JSON, failed on transport errors and non 2xx responses
+     */
+    private static CompletableFuture<JsonNode> call(Request request) {
+        final var future = new CompletableFuture<JsonNode>();
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
             }
-        }
 
-        return "Unknown";
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    log.debug("Facebook Call Response Code: " + response.code());
+                    if (!response.isSuccessful()) {
+                        // Graph errors come back as JSON too, don't let them pass for a result
+                        throw new IOException("Facebook call failed with HTTP " + response.code() + ": " + response.body().string());
+                    }
+                    future.complete(mapper.readTree(response.body().byteStream()));
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
     }
 
     /**
-     * Get the base URL for Facebook Graph Operations with page access token
-     * incorporated.
+     * Get the base URL for Facebook Graph Operations with page access token incorporated.
      *
      * @param id
      * @param operation
      * @return
-     * @throws MalformedURLException
      */
-    private static URL getFaceBookURL(@NonNull String id, String operation) throws MalformedURLException {
+    private static HttpUrl getFaceBookURL(@NonNull String id, String operation) {
         final var sb = new StringBuilder("https://graph.facebook.com/");
 
         // Version of API we are calling
@@ -137,6 +223,10 @@ public class FaceBookOperations {
 
         sb.append("?access_token=").append(System.getenv("FB_PAGE_ACCESS_TOKEN"));
 
-        return new URL(sb.toString());
+        return HttpUrl.get(sb.toString());
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
     }
 }
@@ -0,0 +1,308 @@
+package cloud.cleo.squareup;
+
+import static cloud.cleo.squareup.ChatGPTLambda.sessionState;
+import cloud.cleo.squareup.cache.AnswerCache;
+import cloud.cleo.squareup.enums.ChannelPlatform;
+import cloud.cleo.squareup.enums.LexInputMode;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.functions.StoreData;
+import com.amazonaws.services.lambda.runtime.events.LexV2Event;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.model.ScanEnhancedRequest;
+
+/**
+ * Batch job that finds the questions people open conversations with most and pre-generates cached answers for them.
+ *
+ * The session table (SESSION_TABLE_NAME) is read with a parallel segmented scan. The first user message of each
+ * session is normalized the same way the {@link AnswerCache} does it, grouped by locale, channel and input mode, and
+ * near duplicates are clustered. The biggest clusters are asked of GPT (only cacheable functions offered) and the
+ * answers written to the answer cache, so the next caller asking gets the answer without a completion.
+ *
+ * Cached answers are only good for the date and store status they were given under (see
+ * {@link StoreData#getVersion()}), so each question is answered as of three times in the coming day: before opening,
+ * while open and after closing. The coming day is the next one with open hours that haven't ended yet, so run it
+ * nightly after close (or early in the morning) to warm the whole next day.
+ *
+ * Runs with the same environment as the Lambda, so pointing DYNAMO_ENDPOINT at the harness stand-in or DynamoDB Local
+ * runs it locally (see the harness mode=mine). Options are passed as key=value:
+ * <ul>
+ * <li>segments=4 - parallel scan segments</li>
+ * <li>top=20 - clusters to pre-generate answers for</li>
+ * <li>minCount=2 - smallest cluster worth an answer</li>
+ * <li>warm=true - false to only print the ranking</li>
+ * </ul>
+ * Sessions written before channel and locale were recorded are skipped.
+ *
+ * @author sjensen
+ */
+public class FaqMiningJob {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(FaqMiningJob.class);
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * Sessions are grouped by what the cache buckets on (the store data version is added at warm time).
+     *
+     * @param locale
+     * @param channel
+     * @param inputMode
+     */
+    public record Group(String locale, ChannelPlatform channel, LexInputMode inputMode) {
+
+    }
+
+    /**
+     * Near duplicate first messages.
+     *
+     * @param group
+     * @param utterance normalized form of the most common member
+     * @param transcript what was actually said for that member, this is what gets asked
+     * @param count sessions in the cluster
+     */
+    public record Cluster(Group group, String utterance, String transcript, int count) {
+
+    }
+
+    /**
+     * One normalized first message and how often it was seen.
+     */
+    private static class Seen {
+
+        final String transcript;
+        final AtomicInteger count = new AtomicInteger();
+
+        Seen(String transcript) {
+            this.transcript = transcript;
+        }
+    }
+
+    private final Map<Group, Map<String, Seen>> seen = new ConcurrentHashMap<>();
+    private final AtomicInteger scanned = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final Map<String, String> options;
+
+    public FaqMiningJob(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final var options = new LinkedHashMap<String, String>();
+        for (var arg : args) {
+            final var kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+        }
+        new FaqMiningJob(options).run();
+        // CRT leaves non-daemon threads around
+        System.exit(0);
+    }
+
+    /**
+     * Scan, cluster, rank and warm the cache, printing what was done.
+     *
+     * @return the clusters answers were generated for
+     */
+    public List<Cluster> run() {
+        final int segments = Integer.parseInt(options.getOrDefault("segments", "4"));
+        final int top = Integer.parseInt(options.getOrDefault("top", "20"));
+        final int minCount = Integer.parseInt(options.getOrDefault("minCount", "2"));
+        final boolean warm = Boolean.parseBoolean(options.getOrDefault("warm", "true")) && AnswerCache.isEnabled();
+
+        final long start = System.currentTimeMillis();
+        scan(segments).join();
+        System.out.println("Scanned " + scanned.get() + " sessions in " + segments + " segments (" + skipped.get()
+                + " without a first message or channel) in " + (System.currentTimeMillis() - start) + " ms");
+
+        final var ranked = cluster().stream()
+                .filter(c -> c.count() >= minCount)
+                .limit(top)
+                .toList();
+
+        final var handler = warm ? new ChatGPTLambda() : null;
+        final var times = warm ? warmTimes() : List.<ZonedDateTime>of();
+        times.forEach(t -> System.out.println("Answering as of " + t));
+        System.out.printf("%-5s %-6s %-28s %-9s %s%n", "rank", "count", "group", "new", "utterance");
+        try {
+            for (int i = 0; i < ranked.size(); i++) {
+                final var c = ranked.get(i);
+                String cached = "-";
+                if (handler != null) {
+                    int stored = 0;
+                    for (var time : times) {
+                        StoreData.setClock(Clock.fixed(time.toInstant(), time.getZone()));
+                        try {
+                            stored += handler.warmAnswer(new LexV2EventWrapper(event(c))).join() ? 1 : 0;
+                        } catch (Exception e) {
+                            log.error("Unable to generate answer for [" + c.transcript() + "] as of " + time, e);
+                        }
+                    }
+                    cached = stored + "/" + times.size();
+                }
+                System.out.printf("%-5d %-6d %-28s %-9s %s%n", i + 1, c.count(),
+                        c.group().locale() + "/" + c.group().channel() + "/" + c.group().inputMode(), cached, c.utterance());
+            }
+        } finally {
+            StoreData.setClock(Clock.systemUTC());
+        }
+        if (!warm) {
+            System.out.println("Answer cache not warmed (CACHE_TABLE_NAME not set or warm=false)");
+        }
+        return ranked;
+    }
+
+    /**
+     * Times to answer as of, in the store's time zone. Just now when Square isn't set up or can't be reached.
+     */
+    private static List<ZonedDateTime> warmTimes() {
+        if (!AbstractFunction.isSquareEnabled()) {
+            return List.of(ZonedDateTime.now());
+        }
+        try {
+            final var loc = StoreData.getLocation().join();
+            return warmTimes(StoreData.getHours(loc), ZonedDateTime.now(ZoneId.of(loc.getTimezone())));
+        } catch (Exception e) {
+            log.error("Unable to get store hours, answering as of now only", e);
+            return List.of(ZonedDateTime.now());
+        }
+    }
+
+    /**
+     * Half an hour before opening, the middle of the first open period and half an hour after closing on the coming
+     * day (skipping either end when that falls on another date).
+     *
+     * @param hours open periods, see {@link StoreData#getHours}
+     * @param now in the store's time zone
+     * @return
+     */
+    static List<ZonedDateTime> warmTimes(List<StoreData.Period> hours, ZonedDateTime now) {
+        for (int days = 0; days < 8; days++) {
+            final var date = now.toLocalDate().plusDays(days);
+            final var periods = hours.stream().filter(p -> p.dow() == date.getDayOfWeek()).toList();
+            if (periods.isEmpty()) {
+                continue;
+            }
+            final var first = periods.get(0);
+            final var last = periods.get(periods.size() - 1);
+            final var closing = date.atTime(last.end()).atZone(now.getZone());
+            if (!closing.isAfter(now)) {
+                continue;
+            }
+            final List<ZonedDateTime> times = new ArrayList<>();
+            final var opening = date.atTime(first.start()).atZone(now.getZone());
+            if (first.start().isAfter(LocalTime.of(0, 30))) {
+                times.add(opening.minusMinutes(30));
+            }
+            times.add(opening.plus(Duration.between(first.start(), first.end()).dividedBy(2)));
+            if (last.end().isBefore(LocalTime.of(23, 30))) {
+                times.add(closing.plusMinutes(30));
+            }
+            return times;
+        }
+        // No open hours at all, closed whenever it's asked
+        return List.of(now);
+    }
+
+    /**
+     * Parallel segmented scan of the session table, each segment a separate stream of pages.
+     */
+    private CompletableFuture<Void> scan(int segments) {
+        return CompletableFuture.allOf(IntStream.range(0, segments)
+                .mapToObj(segment -> {
+                    final var request = ScanEnhancedRequest.builder().segment(segment).totalSegments(segments).build();
+                    return sessionState.scan(request).items().subscribe(this::add);
+                })
+                .toArray(CompletableFuture[]::new));
+    }
+
+    private void add(ChatGPTSessionState session) {
+        scanned.incrementAndGet();
+        final var first = session.getFirstUserMessage();
+        final var utterance = AnswerCache.normalize(first);
+        if (utterance.isEmpty() || session.getChannel() == null || session.getInputMode() == null || session.getLocale() == null) {
+            skipped.incrementAndGet();
+            return;
+        }
+        final var group = new Group(session.getLocale(), ChannelPlatform.valueOf(session.getChannel()), LexInputMode.valueOf(session.getInputMode()));
+        if (group.inputMode() == LexInputMode.DTMF) {
+            skipped.incrementAndGet();
+            return;
+        }
+        seen.computeIfAbsent(group, g -> new ConcurrentHashMap<>())
+                .computeIfAbsent(utterance, u -> new Seen(first))
+                .count.incrementAndGet();
+    }
+
+    /**
+     * Greedy clustering within each group, most common utterances first so each cluster is named by its most common
+     * member. Largest clusters first.
+     */
+    private List<Cluster> cluster() {
+        final var clusters = new ArrayList<Cluster>();
+        seen.forEach((group, utterances) -> {
+            final var byCount = utterances.entrySet().stream()
+                    .sorted(Comparator.comparingInt((Map.Entry<String, Seen> e) -> e.getValue().count.get()).reversed())
+                    .toList();
+            final var groupClusters = new ArrayList<Cluster>();
+            for (var e : byCount) {
+                final int count = e.getValue().count.get();
+                final var match = IntStream.range(0, groupClusters.size())
+                        .filter(i -> AnswerCache.isNearDuplicate(groupClusters.get(i).utterance(), e.getKey()))
+                        .findFirst();
+                if (match.isPresent()) {
+                    final var c = groupClusters.get(match.getAsInt());
+                    groupClusters.set(match.getAsInt(), new Cluster(group, c.utterance(), c.transcript(), c.count() + count));
+                } else {
+                    groupClusters.add(new Cluster(group, e.getKey(), e.getValue().transcript, count));
+                }
+            }
+            clusters.addAll(groupClusters);
+        });
+        clusters.sort(Comparator.comparingInt(Cluster::count).reversed());
+        return clusters;
+    }
+
+    /**
+     * Synthetic first turn for a cluster.
+     */
+    private static LexV2Event event(Cluster cluster) {
+        final ObjectNode json = mapper.createObjectNode();
+        json.put("messageVersion", "1.0");
+        json.put("invocationSource", "FulfillmentCodeHook");
+        json.put("inputMode", cluster.group().inputMode().getMode());
+        json.put("sessionId", "faq-mining");
+        json.put("inputTranscript", cluster.transcript());
+        json.putObject("bot")
+                .put("name", "FAQ-Mining")
+                .put("localeId", cluster.group().locale());
+        if (cluster.group().channel() != ChannelPlatform.UNKNOWN) {
+            json.putObject("requestAttributes").put("x-amz-lex:channels:platform", cluster.group().channel().getChannel());
+        }
+        final var state = json.putObject("sessionState");
+        state.putObject("sessionAttributes");
+        state.putObject("intent")
+                .put("name", "FallbackIntent")
+                .put("state", "InProgress")
+                .put("confirmationState", "None");
+        return mapper.convertValue(json, LexV2Event.class);
+    }
+}
@@ -0,0 +1,29 @@
+package cloud.cleo.squareup;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+
+/**
+ * A text message waiting in the session to be answered along with others sent right after it, see
+ * {@link SessionCoalescer}.
+ *
+ * @author sjensen
+ */
+@DynamoDbBean
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PendingMessage {
+
+    /**
+     * The delivery that added it.
+     */
+    private String id;
+    private String text;
+    /**
+     * Epoch millis it arrived.
+     */
+    private Long at;
+}
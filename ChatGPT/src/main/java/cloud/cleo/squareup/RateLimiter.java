@@ -0,0 +1,174 @@
+package cloud.cleo.squareup;
+
+import static cloud.cleo.squareup.ChatGPTLambda.dynamoDbAsyncClient;
+import cloud.cleo.squareup.cassette.Cassette;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+
+/**
+ * Admission control for the text channels, so one phone number or Messenger user (or an SMS auto-responder stuck in a
+ * loop with us) can't run up hundreds of completions an hour and eat into the OpenAI rate limits real customers need.
+ *
+ * Each sender (channel and session ID) has a token bucket in memory, RATE_LIMIT_BURST messages that refill at
+ * RATE_LIMIT_PER_HOUR, which turns away bursts without a round trip. Messages the bucket lets through are counted with
+ * an atomic ADD in the rate limit table (RATE_LIMIT_TABLE_NAME) per clock hour, shared by every instance, and a sender
+ * over RATE_LIMIT_PER_HOUR is refused until the hour is up.
+ *
+ * Everything is admitted when RATE_LIMIT_TABLE_NAME is not set, and when the table can't be reached.
+ *
+ * @author sjensen
+ */
+public class RateLimiter {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(RateLimiter.class);
+
+    private final static String TABLE_NAME = System.getenv("RATE_LIMIT_TABLE_NAME");
+
+    final static long BURST = envLong("RATE_LIMIT_BURST", 10L);
+    final static long PER_HOUR = envLong("RATE_LIMIT_PER_HOUR", 60L);
+
+    private final static long HOUR_MILLIS = Duration.ofHours(1).toMillis();
+
+    /**
+     * Senders tracked in memory before idle ones are dropped.
+     */
+    final static int MAX_BUCKETS = 5000;
+
+    static class Bucket {
+
+        double tokens = BURST;
+        long refilledAt;
+        /**
+         * Epoch millis the shared count said to stop until.
+         */
+        long blockedUntil;
+
+        Bucket(long now) {
+            refilledAt = now;
+        }
+
+        /**
+         * Refill for the time since the last message (never past BURST) and take a token for this one.
+         *
+         * @param now
+         * @return false when there was no token to take
+         */
+        boolean take(long now) {
+            tokens = Math.min(BURST, tokens + (now - refilledAt) * (double) PER_HOUR / HOUR_MILLIS);
+            refilledAt = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    private final static Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private RateLimiter() {
+    }
+
+    /**
+     * Count a message against its sender.
+     *
+     * @param lexRequest
+     * @return future of whether to answer it, never fails
+     */
+    public static CompletableFuture<Boolean> admit(LexV2EventWrapper lexRequest) {
+        if (TABLE_NAME == null || TABLE_NAME.isBlank() || !lexRequest.isText() || Cassette.getInstance().isPriming()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        final var sender = lexRequest.getChannelPlatform() + "#" + lexRequest.getSessionId();
+        final long now = System.currentTimeMillis();
+        final var bucket = bucket(sender, now);
+
+        synchronized (bucket) {
+            if (bucket.blockedUntil > now) {
+                return CompletableFuture.completedFuture(false);
+            }
+            if (!bucket.take(now)) {
+                log.warn("Rate limiting burst from " + sender);
+                return CompletableFuture.completedFuture(false);
+            }
+        }
+
+        final long hour = now / HOUR_MILLIS;
+        return dynamoDbAsyncClient.updateItem(r -> r.tableName(TABLE_NAME)
+                .key(Map.of("id", AttributeValue.fromS(sender + "#" + hour)))
+                .updateExpression("ADD #count :one SET #ttl = :ttl")
+                .expressionAttributeNames(Map.of("#count", "count", "#ttl", "ttl"))
+                .expressionAttributeValues(Map.of(
+                        ":one", AttributeValue.fromN("1"),
+                        ":ttl", AttributeValue.fromN(Long.toString((hour + 2) * HOUR_MILLIS / 1000))))
+                .returnValues(ReturnValue.UPDATED_NEW))
+                .thenApply(res -> {
+                    final long count = Long.parseLong(res.attributes().get("count").n());
+                    if (count <= PER_HOUR) {
+                        return true;
+                    }
+                    synchronized (bucket) {
+                        if (bucket.blockedUntil <= now) {
+                            log.warn("Rate limiting " + sender + ", " + count + " messages this hour");
+                        }
+                        bucket.blockedUntil = (hour + 1) * HOUR_MILLIS;
+                    }
+                    return false;
+                })
+                .exceptionally(t -> {
+                    log.warn("Rate limit count failed, admitting " + sender, t);
+                    return true;
+                });
+    }
+
+    private static Bucket bucket(String sender, long now) {
+        if (buckets.size() >= MAX_BUCKETS) {
+            evict(buckets, now, MAX_BUCKETS);
+        }
+        return buckets.computeIfAbsent(sender, s -> new Bucket(now));
+    }
+
+    /**
+     * Make room for new senders. Buckets that have refilled are dropped first (a full bucket is the same as none), then
+     * the longest idle ones until there is a tenth free. Blocked senders are always kept, forgetting them would let
+     * them straight back in, so the map only outgrows the limit when they're all blocked.
+     *
+     * @param buckets
+     * @param now
+     * @param max
+     */
+    static void evict(Map<String, Bucket> buckets, long now, int max) {
+        buckets.values().removeIf(b -> b.blockedUntil <= now && now - b.refilledAt > HOUR_MILLIS);
+        final int excess = buckets.size() - max * 9 / 10;
+        if (excess > 0) {
+            buckets.entrySet().stream()
+                    .filter(e -> e.getValue().blockedUntil <= now)
+                    .sorted(Comparator.comparingLong(e -> e.getValue().refilledAt))
+                    .limit(excess)
+                    .map(Map.Entry::getKey)
+                    .toList()
+                    .forEach(buckets::remove);
+        }
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        final var value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid " + name + " value " + value);
+            return defaultValue;
+        }
+    }
+}
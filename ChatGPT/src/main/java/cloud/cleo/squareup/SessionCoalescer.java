@@ -0,0 +1,241 @@
+package cloud.cleo.squareup;
+
+import static cloud.cleo.squareup.ChatGPTLambda.sessionState;
+import cloud.cleo.squareup.cassette.Cassette;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+
+/**
+ * People texting (SMS, Messenger) often send a thought as several messages a second or two apart. Each one is its own
+ * Lex turn, so without this each gets its own completion, the answers race each other and the last session write
+ * wins.
+ *
+ * Each message is added to the session's pending list with a versioned (conditional) write. The first invocation to
+ * find nobody answering becomes the owner, waits out the window (COALESCE_WINDOW_MILLIS) and answers everything pending
+ * in one completion. The others return right away with no reply once the owner has taken their message, or take over if
+ * the owner finished (or gave up) before getting to it. A message that arrives while the owner is still answering, and
+ * is still waiting with only {@link #ANSWER_RESERVE_MILLIS} of its own turn left, is answered on its own so it never
+ * goes unanswered.
+ *
+ * Voice turns, and all turns when COALESCE_WINDOW_MILLIS is not set, are answered one at a time as before.
+ *
+ * @author sjensen
+ */
+public class SessionCoalescer {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(SessionCoalescer.class);
+
+    private final static long WINDOW_MILLIS = envLong("COALESCE_WINDOW_MILLIS", 0L);
+
+    /**
+     * An owner that hasn't finished in this long has died (timed out Lambda), the next message takes over.
+     */
+    private final static long OWNER_STALE_MILLIS = 30000L;
+
+    /**
+     * How often a message that isn't the owner checks whether it was taken.
+     */
+    private final static long POLL_MILLIS = 200L;
+
+    /**
+     * Time a waiting message keeps back to answer itself when the owner is still busy.
+     */
+    private final static long ANSWER_RESERVE_MILLIS = 10000L;
+
+    /**
+     * Attempts at a session write that keeps losing to other writers.
+     */
+    private final static int MAX_WRITES = 10;
+
+    /**
+     * Session to answer, with every pending message added as a user message.
+     *
+     * @param session
+     * @param isNew nothing had been answered in the session before
+     * @param merged how many messages the turn answers
+     */
+    public record Turn(ChatGPTSessionState session, boolean isNew, int merged) {
+
+    }
+
+    private SessionCoalescer() {
+    }
+
+    /**
+     * @param lexRequest
+     * @return whether messages on this turn's channel are coalesced
+     */
+    public static boolean applies(LexV2EventWrapper lexRequest) {
+        if (WINDOW_MILLIS <= 0 || !lexRequest.isText() || Cassette.getInstance().isPriming()) {
+            return false;
+        }
+        return switch (lexRequest.getChannelPlatform()) {
+            case TWILIO, FACEBOOK ->
+                true;
+            default ->
+                false;
+        };
+    }
+
+    /**
+     * Add this turn's message to the session.
+     *
+     * @param lexRequest
+     * @param key session key
+     * @param deadline epoch millis the response is due
+     * @return future of the turn to answer, empty when another invocation answers this message
+     */
+    public static CompletableFuture<Optional<Turn>> join(LexV2EventWrapper lexRequest, Key key, long deadline) {
+        final var id = UUID.randomUUID().toString();
+        final var message = new PendingMessage(id, lexRequest.getInputTranscript(), System.currentTimeMillis());
+
+        return update(lexRequest, key, s -> {
+            s.getPending().add(message);
+            claimIfFree(s, id);
+        }).thenCompose(s -> {
+            if (id.equals(s.getOwnerId())) {
+                // Give the rest of the thought a chance to arrive
+                return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(WINDOW_MILLIS, TimeUnit.MILLISECONDS))
+                        .thenCompose(v -> take(lexRequest, key, id));
+            }
+            return await(lexRequest, key, id, deadline - ANSWER_RESERVE_MILLIS);
+        });
+    }
+
+    /**
+     * Not the owner, wait for the owner to take this message.
+     */
+    private static CompletableFuture<Optional<Turn>> await(LexV2EventWrapper lexRequest, Key key, String id, long giveUpAt) {
+        return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(POLL_MILLIS, TimeUnit.MILLISECONDS))
+                .thenCompose(v -> sessionState.getItem(r -> r.key(key).consistentRead(true)))
+                .thenCompose(s -> {
+                    if (s == null || s.getPending().stream().noneMatch(p -> id.equals(p.getId()))) {
+                        log.debug("Message merged into another turn on session " + key.partitionKeyValue().s());
+                        return CompletableFuture.completedFuture(Optional.<Turn>empty());
+                    }
+                    if (isFree(s)) {
+                        // The owner finished (or died) before getting to this one
+                        return update(lexRequest, key, fresh -> claimIfFree(fresh, id))
+                                .thenCompose(fresh -> id.equals(fresh.getOwnerId()) ? take(lexRequest, key, id)
+                                : await(lexRequest, key, id, giveUpAt));
+                    }
+                    if (System.currentTimeMillis() + POLL_MILLIS >= giveUpAt) {
+                        // Owner still busy, nothing may come after this to pick it up so answer it here
+                        log.warn("Owner of session " + key.partitionKeyValue().s() + " still busy, answering message on its own");
+                        return takeOwn(lexRequest, key, id);
+                    }
+                    return await(lexRequest, key, id, giveUpAt);
+                });
+    }
+
+    /**
+     * Owner, move everything pending into the conversation.
+     */
+    private static CompletableFuture<Optional<Turn>> take(LexV2EventWrapper lexRequest, Key key, String id) {
+        final boolean[] isNew = new boolean[1];
+        final int[] merged = new int[1];
+        return update(lexRequest, key, s -> {
+            isNew[0] = s.getCounter() == null || s.getCounter() == 0L;
+            merged[0] = s.getPending().size();
+            s.getPending().forEach(p -> s.addUserMessage(p.getText()));
+            s.getPending().clear();
+            // Keep ownership through the completion so new messages wait for it, the final save gives it up
+            s.setOwnerId(id);
+            s.setOwnerSince(System.currentTimeMillis());
+        }).thenApply(s -> {
+            s.setReleaseOwner(id);
+            if (merged[0] > 1) {
+                log.info("Answering " + merged[0] + " messages in one turn on session " + key.partitionKeyValue().s());
+            }
+            return Optional.of(new Turn(s, isNew[0], merged[0]));
+        });
+    }
+
+    /**
+     * Not the owner and out of time, move just this message into the conversation. The owner keeps ownership and
+     * whatever else is pending, its save merges with this one.
+     */
+    private static CompletableFuture<Optional<Turn>> takeOwn(LexV2EventWrapper lexRequest, Key key, String id) {
+        final boolean[] taken = new boolean[1];
+        final boolean[] isNew = new boolean[1];
+        return update(lexRequest, key, s -> {
+            isNew[0] = s.getCounter() == null || s.getCounter() == 0L;
+            final var own = s.getPending().stream().filter(p -> id.equals(p.getId())).findFirst();
+            taken[0] = own.isPresent();
+            own.ifPresent(p -> {
+                s.getPending().remove(p);
+                s.addUserMessage(p.getText());
+            });
+        }).thenApply(s -> {
+            if (!taken[0]) {
+                // The owner got to it in the meantime
+                log.debug("Message merged into another turn on session " + key.partitionKeyValue().s());
+                return Optional.<Turn>empty();
+            }
+            return Optional.of(new Turn(s, isNew[0], 1));
+        });
+    }
+
+    /**
+     * Read, change and write the session, starting over when another invocation wrote it in between.
+     */
+    private static CompletableFuture<ChatGPTSessionState> update(LexV2EventWrapper lexRequest, Key key, Consumer<ChatGPTSessionState> change) {
+        return update(lexRequest, key, change, 1);
+    }
+
+    private static CompletableFuture<ChatGPTSessionState> update(LexV2EventWrapper lexRequest, Key key, Consumer<ChatGPTSessionState> change, int attempt) {
+        return sessionState.getItem(r -> r.key(key).consistentRead(true))
+                .thenCompose(loaded -> {
+                    final var s = loaded == null ? new ChatGPTSessionState(lexRequest) : loaded;
+                    change.accept(s);
+                    return sessionState.putItem(s).thenApply(v -> {
+                        s.markSaved();
+                        return s;
+                    });
+                })
+                .exceptionallyCompose(t -> {
+                    if (unwrap(t) instanceof ConditionalCheckFailedException && attempt < MAX_WRITES) {
+                        return update(lexRequest, key, change, attempt + 1);
+                    }
+                    return CompletableFuture.failedFuture(unwrap(t));
+                });
+    }
+
+    private static boolean isFree(ChatGPTSessionState s) {
+        return s.getOwnerId() == null || s.getOwnerSince() == null
+                || s.getOwnerSince() + OWNER_STALE_MILLIS < System.currentTimeMillis();
+    }
+
+    private static void claimIfFree(ChatGPTSessionState s, String id) {
+        if (isFree(s)) {
+            s.setOwnerId(id);
+            s.setOwnerSince(System.currentTimeMillis());
+        }
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        final var value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid " + name + " value " + value);
+            return defaultValue;
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+}
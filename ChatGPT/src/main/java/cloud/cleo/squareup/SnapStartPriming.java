@@ -0,0 +1,114 @@
+package cloud.cleo.squareup;
+
+import static cloud.cleo.squareup.ChatGPTLambda.OPENAI_MODEL;
+import static cloud.cleo.squareup.ChatGPTLambda.dynamoDbAsyncClient;
+import static cloud.cleo.squareup.ChatGPTLambda.openAiClient;
+import static cloud.cleo.squareup.ChatGPTLambda.sessionState;
+import cloud.cleo.squareup.cassette.Cassette;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.functions.StoreData;
+import com.amazonaws.services.lambda.runtime.events.LexV2Event;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.crac.Context;
+import org.crac.Resource;
+
+/**
+ * SnapStart (CRaC) hooks for the ChatGPT Lambda.
+ *
+ * Before the checkpoint a synthetic voice turn and a synthetic SMS turn are run through the real handler. OpenAI and
+ * Square are answered from a bundled priming cassette (GPT asks for store_hours, then answers) so Jackson binding,
+ * the OpenAI client, the Square SDK, the function executor and the Dynamo enhanced client are all loaded and exercised in
+ * the snapshot. Priming turns never read or write the real Dynamo tables (the session bean is only mapped, see
+ * ChatGPTLambda#saveSession), so publishing a snapshot leaves nothing behind for the FAQ mining job to pick up. Then
+ * pooled OkHttp connections are dropped so nothing dead is restored.
+ *
+ * After restore, cheap calls to Dynamo, OpenAI and Square are made in parallel to open fresh connections before the
+ * first caller gets there.
+ *
+ * @author sjensen
+ */
+public class SnapStartPriming implements Resource {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(SnapStartPriming.class);
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final static String PRIMING_CASSETTE = "/priming/priming.cassette";
+
+    /**
+     * How long to hold up restore waiting on connections, the first turn will just pay whatever is left.
+     */
+    private final static long RESTORE_WAIT_SECONDS = 5;
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) throws Exception {
+        final var cassette = Cassette.getInstance();
+        final var handler = new ChatGPTLambda();
+        try {
+            cassette.startPriming(PRIMING_CASSETTE);
+            for (var event : List.of(event("Chime", "Speech", "snapstart-priming"), event("Twilio", "Text", "15555550100"))) {
+                final long start = System.currentTimeMillis();
+                handler.handleRequest(event, null);
+                log.debug("Priming turn on " + event.getRequestAttributes().get("x-amz-lex:channels:platform")
+                        + " took " + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (Exception e) {
+            // Never fail the snapshot over priming, worst case the first turn is just slower
+            log.error("Priming turn failed", e);
+        } finally {
+            cassette.endPriming();
+            // Store data came from the cassette, fetch the real thing after restore
+            StoreData.clear();
+        }
+
+        openAiClient.evictConnections();
+        AbstractFunction.evictConnections();
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) throws Exception {
+        final long start = System.currentTimeMillis();
+        final var warm = CompletableFuture.allOf(
+                dynamoDbAsyncClient.describeTable(b -> b.tableName(sessionState.tableName())),
+                openAiClient.getModel(OPENAI_MODEL),
+                AbstractFunction.warmConnections());
+        try {
+            warm.get(RESTORE_WAIT_SECONDS, TimeUnit.SECONDS);
+            log.debug("Connections warmed after restore in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            log.error("Unable to warm all connections after restore", e);
+        }
+    }
+
+    /**
+     * Synthetic Lex event asking about store hours.
+     */
+    private static LexV2Event event(String platform, String inputMode, String sessionId) {
+        final ObjectNode json = mapper.createObjectNode();
+        json.put("messageVersion", "1.0");
+        json.put("invocationSource", "FulfillmentCodeHook");
+        json.put("inputMode", inputMode);
+        json.put("sessionId", sessionId);
+        json.put("inputTranscript", "What are your hours today?");
+        json.putObject("bot")
+                .put("name", "SnapStart-Priming")
+                .put("localeId", "en_US");
+        json.putObject("requestAttributes").put("x-amz-lex:channels:platform", platform);
+        final var state = json.putObject("sessionState");
+        state.putObject("sessionAttributes").put("callingNumber", "+15555550100");
+        state.putObject("intent")
+                .put("name", "FallbackIntent")
+                .put("state", "InProgress")
+                .put("confirmationState", "None");
+        return mapper.convertValue(json, LexV2Event.class);
+    }
+}
@@ -0,0 +1,160 @@
+package cloud.cleo.squareup;
+
+import cloud.cleo.squareup.fastpath.FastPathResponder;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.functions.StoreData;
+import cloud.cleo.squareup.openai.LatencyTracker;
+import com.squareup.square.models.Location;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.TextStyle;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Compact store facts (open now, hours, address) put in the prompt for turns that look like they need them, so GPT can
+ * answer right away instead of calling store_hours and waiting on a second completion. Only added when the transcript
+ * asks about hours or location, otherwise the prompt stays as is.
+ *
+ * How often the facts save the function round trip, and roughly how much time that is, is logged every
+ * {@link #REPORT_EVERY} turns. Set STORE_FACTS to "off" to disable.
+ *
+ * @author sjensen
+ */
+public class StoreFacts {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(StoreFacts.class);
+
+    private final static boolean ENABLED = !"off".equalsIgnoreCase(System.getenv("STORE_FACTS"));
+
+    private final static String HOURS_FUNCTION_NAME = "store_hours";
+
+    /**
+     * Hours, open/closed and where-are-you wording in English, Spanish and German (normalized, no accents).
+     */
+    private final static Pattern PREDICT = Pattern.compile(
+            "\\b(hours?|open|opens|close|closes|closed|closing|opening|address|located|location|where are you|directions"
+            + "|horarios?|abierto|abren|cierran|direccion|donde estan|ubicados"
+            + "|offnungszeiten|geoffnet|offen|schliessen|adresse|wo sind sie)\\b");
+
+    private final static int REPORT_EVERY = 100;
+
+    private final static AtomicLong turns = new AtomicLong();
+    private final static AtomicLong injected = new AtomicLong();
+    private final static AtomicLong answeredFromFacts = new AtomicLong();
+    /**
+     * Whole GPT turn times, answered from the facts vs. calling store_hours. The gap is the saving.
+     */
+    private final static LatencyTracker factsLatency = new LatencyTracker(200);
+    private final static LatencyTracker functionLatency = new LatencyTracker(200);
+
+    /**
+     * Facts block cached by store data version, it only changes when the hours/address do or the store opens/closes.
+     * The current time isn't part of it, that's added fresh on every turn.
+     */
+    private static volatile String cachedVersion;
+    private static volatile String cachedFacts;
+
+    private StoreFacts() {
+    }
+
+    /**
+     * Facts to add to the prompt for this turn, empty when the turn doesn't look like it needs them (or Square can't be
+     * reached, GPT still has store_hours then).
+     *
+     * @param lexRequest
+     * @return
+     */
+    public static CompletableFuture<Optional<String>> forTurn(LexV2EventWrapper lexRequest) {
+        final var input = lexRequest.getInputTranscript();
+        if (!ENABLED || !AbstractFunction.isSquareEnabled() || AbstractFunction.getFunctionByName(HOURS_FUNCTION_NAME) == null
+                || input == null || !PREDICT.matcher(FastPathResponder.normalize(input)).find()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return StoreData.getVersion().thenCombine(StoreData.getLocation(), (version, loc) -> {
+            if (!version.equals(cachedVersion)) {
+                cachedFacts = build(loc);
+                cachedVersion = version;
+            }
+            return Optional.of(asOf(ZoneId.of(loc.getTimezone())) + cachedFacts);
+        }).exceptionally(t -> {
+            log.debug("No store facts for this turn", t);
+            return Optional.empty();
+        });
+    }
+
+    /**
+     * Record how a GPT turn went.
+     *
+     * @param factsInjected
+     * @param calledStoreHours did GPT call store_hours anyway
+     * @param millis the whole GPT turn
+     */
+    public static void record(boolean factsInjected, boolean calledStoreHours, long millis) {
+        final long n = turns.incrementAndGet();
+        if (factsInjected) {
+            injected.incrementAndGet();
+            if (!calledStoreHours) {
+                answeredFromFacts.incrementAndGet();
+                factsLatency.record(millis);
+            }
+        }
+        if (calledStoreHours) {
+            functionLatency.record(millis);
+        }
+        log.debug("Store facts injected=" + factsInjected + " calledStoreHours=" + calledStoreHours + " in " + millis + " ms");
+
+        if (n % REPORT_EVERY == 0) {
+            final long withFacts = factsLatency.quantile(0.5);
+            final long withFunction = functionLatency.quantile(0.5);
+            log.info(String.format("Store facts on %d of %d GPT turns, %d answered without %s (%.0f%%), p50 %d ms vs %d ms calling it, saves ~%d ms",
+                    injected.get(), n, answeredFromFacts.get(), HOURS_FUNCTION_NAME,
+                    injected.get() == 0 ? 0.0 : 100.0 * answeredFromFacts.get() / injected.get(),
+                    withFacts, withFunction, Math.max(0, withFunction - withFacts)));
+        }
+    }
+
+    /**
+     * Did GPT call store_hours.
+     *
+     * @param name function name
+     * @return
+     */
+    public static boolean isHoursFunction(String name) {
+        return HOURS_FUNCTION_NAME.equals(name);
+    }
+
+    /**
+     * When the facts are from, always now.
+     */
+    private static String asOf(ZoneId tz) {
+        final var now = ZonedDateTime.now(tz);
+        return "Store facts as of " + now.getDayOfWeek().getDisplayName(TextStyle.SHORT, Locale.US) + ' '
+                + now.toLocalDate() + ' ' + now.toLocalTime().withNano(0).withSecond(0) + " (" + tz + "), ";
+    }
+
+    private static String build(Location loc) {
+        final var hours = StoreData.getHours(loc).stream()
+                .map(p -> p.dow().getDisplayName(TextStyle.SHORT, Locale.US) + " " + p.start() + "-" + p.end())
+                .collect(Collectors.joining(", "));
+        final var sb = new StringBuilder("use these instead of calling ").append(HOURS_FUNCTION_NAME).append(".  ");
+        sb.append("Open right now: ").append(StoreData.isOpen(loc) ? "yes" : "no").append(".  ");
+        sb.append("Hours: ").append(hours.isEmpty() ? "none listed" : hours).append(", any day not listed is closed.  ");
+        final var address = loc.getAddress();
+        if (address != null) {
+            sb.append("Address: ").append(Stream.of(address.getAddressLine1(), address.getLocality(),
+                    address.getAdministrativeDistrictLevel1(), address.getPostalCode())
+                    .filter(s -> s != null && !s.isBlank())
+                    .collect(Collectors.joining(", "))).append('.');
+        }
+        return sb.toString();
+    }
+}
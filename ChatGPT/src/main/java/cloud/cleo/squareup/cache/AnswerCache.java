@@ -0,0 +1,310 @@
+package cloud.cleo.squareup.cache;
+
+import static cloud.cleo.squareup.ChatGPTLambda.enhancedClient;
+import cloud.cleo.squareup.LexV2EventWrapper;
+import cloud.cleo.squareup.cassette.Cassette;
+import cloud.cleo.squareup.enums.ChannelPlatform;
+import cloud.cleo.squareup.enums.LexInputMode;
+import cloud.cleo.squareup.fastpath.FastPathResponder;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.functions.StoreData;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.theokanning.openai.completion.chat.ChatFunctionCall;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
+
+/**
+ * Cache of first turn answers, so the 50th "what time do you close today" of the day doesn't cost a completion.
+ *
+ * Entries are bucketed by locale, channel, input mode and the store data version (hours/address hash, date, and
+ * whether the store is open, yet to open or closed for the day, see {@link StoreData#getVersion()}). When any of those change lookups go to a new bucket and the
+ * old entries simply age out on the Dynamo TTL. A bucket is loaded from CACHE_TABLE_NAME in one query and held in
+ * memory, then searched for the same normalized utterance or a near duplicate. A near duplicate may only differ by
+ * fillers or word order, every other word (numbers, days, sizes, product names) has to match, since "size 8 needles"
+ * and "size 9 needles" are a word apart and need different answers.
+ *
+ * Only answers where every function GPT called is {@link AbstractFunction#isCacheable()} are stored. Nothing is
+ * cached when CACHE_TABLE_NAME is not set.
+ *
+ * @author sjensen
+ */
+public class AnswerCache {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(AnswerCache.class);
+
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private final static String TABLE_NAME = System.getenv("CACHE_TABLE_NAME");
+
+    private final static DynamoDbAsyncTable<CachedAnswer> table = TABLE_NAME == null || TABLE_NAME.isBlank() ? null
+            : enhancedClient.table(TABLE_NAME, TableSchema.fromBean(CachedAnswer.class));
+
+    /**
+     * Reload a bucket from Dynamo this often to pick up entries other containers (or the mining job) added.
+     */
+    private final static long RELOAD_MILLIS = Duration.ofMinutes(10).toMillis();
+    /**
+     * Entries are only good for the day (the version has the date), the TTL just cleans up.
+     */
+    private final static Duration TTL = Duration.ofDays(2);
+
+    /**
+     * Fillers, hedges and pleasantries that don't change the question. Also "hesitation", what is left of Transcribe's
+     * %HESITATION marker after normalizing.
+     */
+    private final static Set<String> FILLER = Set.of(
+            "um", "uh", "uhm", "er", "ah", "hmm", "mm", "hesitation", "hi", "hello", "hey", "ok", "okay", "so", "well", "yeah", "please",
+            "just", "actually", "really", "basically",
+            "eh", "este", "pues", "hola", "porfa",
+            "ahm", "ahem", "hallo", "bitte", "also");
+
+    private final static Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private record Bucket(CompletableFuture<List<CachedAnswer>> entries, long loadedAt) {
+
+    }
+
+    /**
+     * A cached answer for the turn.
+     *
+     * @param answer GPT's final text
+     * @param functionCalls the calls GPT made to get it
+     */
+    public record Hit(String answer, List<ChatFunctionCall> functionCalls) {
+
+    }
+
+    private AnswerCache() {
+    }
+
+    public static boolean isEnabled() {
+        return table != null;
+    }
+
+    /**
+     * Look for a cached answer to the turn. Never fails, a problem with the cache is just a miss.
+     *
+     * @param lexRequest
+     * @return
+     */
+    public static CompletableFuture<Optional<Hit>> lookup(LexV2EventWrapper lexRequest) {
+        // Priming runs on cassette store data, keep it out of the cache
+        if (!isEnabled() || Cassette.getInstance().isPriming()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        final var utterance = normalize(lexRequest.getInputTranscript());
+        if (utterance.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return StoreData.getVersion()
+                .thenCompose(version -> entries(bucket(lexRequest, version)))
+                .thenApply(entries -> closest(entries, utterance).map(e -> {
+                    log.debug("Answer cache hit for [" + utterance + "] on [" + e.getUtterance() + "]");
+                    return new Hit(e.getAnswer(), readCalls(e.getFunctionCalls()));
+                }))
+                .exceptionally(t -> {
+                    log.warn("Answer cache lookup failed", t);
+                    return Optional.empty();
+                });
+    }
+
+    /**
+     * Cache GPT's answer to a first turn, if the functions it called allow it. Never fails.
+     *
+     * @param lexRequest
+     * @param answer
+     * @param functionCalls
+     * @return
+     */
+    public static CompletableFuture<Boolean> store(LexV2EventWrapper lexRequest, String answer, List<ChatFunctionCall> functionCalls) {
+        return store(lexRequest, answer, functionCalls, "turn");
+    }
+
+    /**
+     * Cache an answer, if the functions called for it allow it. Never fails.
+     *
+     * @param lexRequest
+     * @param answer
+     * @param functionCalls
+     * @param source where it came from, for looking at the table
+     * @return whether it was stored
+     */
+    public static CompletableFuture<Boolean> store(LexV2EventWrapper lexRequest, String answer, List<ChatFunctionCall> functionCalls, String source) {
+        if (!isEnabled() || Cassette.getInstance().isPriming() || answer == null || answer.isBlank() || !isCacheable(functionCalls)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        final var utterance = normalize(lexRequest.getInputTranscript());
+        if (utterance.isEmpty()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return StoreData.getVersion()
+                .thenCompose(version -> put(entry(bucket(lexRequest, version), utterance, answer, functionCalls, source)))
+                .thenApply(v -> true)
+                .exceptionally(t -> {
+                    log.warn("Unable to store answer in cache", t);
+                    return false;
+                });
+    }
+
+    /**
+     * Write an entry to the table, and to the bucket in memory if it's loaded.
+     *
+     * @param entry
+     * @return
+     */
+    public static CompletableFuture<Void> put(CachedAnswer entry) {
+        return table.putItem(entry).thenRun(() -> {
+            final var bucket = buckets.get(entry.getBucket());
+            if (bucket != null && bucket.entries().isDone() && !bucket.entries().isCompletedExceptionally()) {
+                final var entries = bucket.entries().join();
+                entries.removeIf(e -> e.getSimHash().equals(entry.getSimHash()));
+                entries.add(entry);
+            }
+        });
+    }
+
+    /**
+     * New cache entry.
+     *
+     * @param bucket
+     * @param utterance normalized utterance
+     * @param answer
+     * @param functionCalls
+     * @param source where it came from, for looking at the table
+     * @return
+     */
+    public static CachedAnswer entry(String bucket, String utterance, String answer, List<ChatFunctionCall> functionCalls, String source) {
+        final var entry = new CachedAnswer();
+        entry.setBucket(bucket);
+        entry.setSimHash(Long.toHexString(SimHash.of(utterance)));
+        entry.setUtterance(utterance);
+        entry.setAnswer(answer);
+        entry.setFunctionCalls(mapper.valueToTree(functionCalls).toString());
+        entry.setSource(source);
+        entry.setTtl(Instant.now().plus(TTL).getEpochSecond());
+        return entry;
+    }
+
+    public static String bucket(LexV2EventWrapper lexRequest, String version) {
+        return bucket(lexRequest.getLocale().toString(), lexRequest.getChannelPlatform(), lexRequest.getInputMode(), version);
+    }
+
+    /**
+     * Bucket for a locale (en_US), channel and input mode under a store data version.
+     *
+     * @param locale
+     * @param channel
+     * @param inputMode
+     * @param version
+     * @return
+     */
+    public static String bucket(String locale, ChannelPlatform channel, LexInputMode inputMode, String version) {
+        return locale + "/" + channel + "/" + inputMode + "/" + version;
+    }
+
+    /**
+     * The fast path normalization (case, accents, punctuation) with fillers dropped as well.
+     *
+     * @param input
+     * @return
+     */
+    public static String normalize(String input) {
+        if (input == null) {
+            return "";
+        }
+        return Arrays.stream(FastPathResponder.normalize(input).replace("por favor", " ").split(" "))
+                .filter(w -> !w.isEmpty() && !FILLER.contains(w))
+                .collect(Collectors.joining(" "));
+    }
+
+    /**
+     * Did the answer only need functions that are safe to replay.
+     */
+    private static boolean isCacheable(List<ChatFunctionCall> functionCalls) {
+        return functionCalls.stream()
+                .map(f -> AbstractFunction.getFunctionByName(f.getName()))
+                .allMatch(f -> f != null && f.isCacheable());
+    }
+
+    private static CompletableFuture<List<CachedAnswer>> entries(String bucket) {
+        final long now = System.currentTimeMillis();
+        // Buckets for past versions are never asked for again
+        buckets.values().removeIf(b -> now - b.loadedAt() > 6 * RELOAD_MILLIS);
+        return buckets.compute(bucket, (k, b) -> b == null || now - b.loadedAt() > RELOAD_MILLIS || b.entries().isCompletedExceptionally()
+                ? new Bucket(load(k), now) : b).entries();
+    }
+
+    private static CompletableFuture<List<CachedAnswer>> load(String bucket) {
+        final List<CachedAnswer> entries = new CopyOnWriteArrayList<>();
+        return table.query(QueryConditional.keyEqualTo(k -> k.partitionValue(bucket)))
+                .items()
+                .subscribe(entries::add)
+                .thenApply(v -> {
+                    log.debug("Loaded " + entries.size() + " cached answers for " + bucket);
+                    return entries;
+                });
+    }
+
+    /**
+     * Same utterance, or else a near duplicate.
+     */
+    private static Optional<CachedAnswer> closest(List<CachedAnswer> entries, String utterance) {
+        final var exact = entries.stream().filter(e -> utterance.equals(e.getUtterance())).findAny();
+        if (exact.isPresent()) {
+            return exact;
+        }
+        final var words = words(utterance);
+        return entries.stream()
+                .filter(e -> words.equals(words(e.getUtterance())))
+                .findAny();
+    }
+
+    /**
+     * Would the cache answer one normalized utterance with the other's answer. Only fillers and word order may differ.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static boolean isNearDuplicate(String a, String b) {
+        return a.equals(b) || words(a).equals(words(b));
+    }
+
+    /**
+     * The words that aren't fillers, with how often each appears.
+     */
+    private static Map<String, Long> words(String utterance) {
+        return Arrays.stream(utterance.split(" "))
+                .filter(w -> !w.isEmpty() && !FILLER.contains(w))
+                .collect(Collectors.groupingBy(w -> w, Collectors.counting()));
+    }
+
+    private static List<ChatFunctionCall> readCalls(String json) {
+        if (json == null || json.isBlank()) {
+            return List.of();
+        }
+        try {
+            return mapper.readValue(json, new TypeReference<List<ChatFunctionCall>>() {
+            });
+        } catch (Exception e) {
+            log.warn("Unreadable function calls on cached answer " + json, e);
+            return List.of();
+        }
+    }
+}
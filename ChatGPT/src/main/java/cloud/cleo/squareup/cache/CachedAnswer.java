@@ -0,0 +1,56 @@
+package cloud.cleo.squareup.cache;
+
+import lombok.Data;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbSortKey;
+
+/**
+ * A first turn answer in the answer cache table.
+ *
+ * @author sjensen
+ */
+@DynamoDbBean
+@Data
+public class CachedAnswer {
+
+    /**
+     * Locale, channel, input mode and store data version, see {@link AnswerCache#bucket}. Everything in a bucket is
+     * loaded at once and searched for near duplicates.
+     */
+    private String bucket;
+    /**
+     * SimHash of the normalized utterance as hex.
+     */
+    private String simHash;
+    /**
+     * The normalized utterance.
+     */
+    private String utterance;
+    /**
+     * GPT's final text answer.
+     */
+    private String answer;
+    /**
+     * Function calls GPT made to get there, JSON array of name/arguments.
+     */
+    private String functionCalls;
+    /**
+     * Where the entry came from (turn, mined).
+     */
+    private String source;
+    /**
+     * Unix timestamp when Dynamo should delete the entry.
+     */
+    private Long ttl;
+
+    @DynamoDbPartitionKey
+    public String getBucket() {
+        return bucket;
+    }
+
+    @DynamoDbSortKey
+    public String getSimHash() {
+        return simHash;
+    }
+}
@@ -0,0 +1,85 @@
+package cloud.cleo.squareup.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 64 bit SimHash over word shingles (single words and word pairs). Utterances that differ by a word or two end up a few
+ * bits apart, unrelated ones around 32 bits apart.
+ *
+ * @author sjensen
+ */
+public final class SimHash {
+
+    private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private SimHash() {
+    }
+
+    /**
+     * SimHash of a normalized utterance (words separated by single spaces).
+     *
+     * @param normalized
+     * @return
+     */
+    public static long of(String normalized) {
+        final var counts = new int[64];
+        for (var shingle : shingles(normalized)) {
+            final long h = fnv(shingle);
+            for (int bit = 0; bit < 64; bit++) {
+                counts[bit] += ((h >>> bit) & 1) == 1 ? 1 : -1;
+            }
+        }
+        long hash = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (counts[bit] > 0) {
+                hash |= 1L << bit;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Number of differing bits.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * Words and adjacent word pairs.
+     *
+     * @param normalized
+     * @return
+     */
+    static Set<String> shingles(String normalized) {
+        final var words = List.of(normalized.split(" "));
+        final var shingles = new HashSet<String>(words);
+        for (int i = 1; i < words.size(); i++) {
+            shingles.add(words.get(i - 1) + " " + words.get(i));
+        }
+        return shingles;
+    }
+
+    /**
+     * 64 bit FNV-1a, String.hashCode() only gives 32 bits.
+     *
+     * @param text
+     * @return
+     */
+    public static long fnv(String text) {
+        long h = FNV_OFFSET;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+}
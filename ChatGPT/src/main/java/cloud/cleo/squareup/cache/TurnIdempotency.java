@@ -0,0 +1,222 @@
+package cloud.cleo.squareup.cache;
+
+import static cloud.cleo.squareup.ChatGPTLambda.enhancedClient;
+import cloud.cleo.squareup.LexV2EventWrapper;
+import cloud.cleo.squareup.cassette.Cassette;
+import com.amazonaws.services.lambda.runtime.events.LexV2Response;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.Expression;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+
+/**
+ * Makes a turn safe to deliver twice. When a turn runs slow, Lex and the channel integrations send the same input again,
+ * and without this each delivery would call OpenAI, run the functions (send the email) and add the messages to the
+ * session again.
+ *
+ * Each turn is keyed by session ID, the turn counter (a session attribute bumped every turn, so a re-delivery carries
+ * the same value as the original) and a hash of the transcript. The first delivery claims the key with a conditional
+ * write to the turn table (TURN_TABLE_NAME) and stores its Lex response there when done. A duplicate gets that stored
+ * response, waiting for it if the first delivery is still running. Records only live a few minutes, and one past its
+ * ttl is ignored even if Dynamo hasn't deleted it yet.
+ *
+ * A claim still in progress after a whole turn's time is from a delivery that crashed or was killed, so the next
+ * delivery takes it over (the same conditional write, on the claim's startedAt) instead of waiting on a response that
+ * will never come.
+ *
+ * Every turn runs as before when TURN_TABLE_NAME is not set.
+ *
+ * @author sjensen
+ */
+public class TurnIdempotency {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(TurnIdempotency.class);
+
+    public final static String TURN_COUNTER = "turnCounter";
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final static String TABLE_NAME = System.getenv("TURN_TABLE_NAME");
+
+    private final static DynamoDbAsyncTable<TurnRecord> table = TABLE_NAME == null || TABLE_NAME.isBlank() ? null
+            : enhancedClient.table(TABLE_NAME, TableSchema.fromBean(TurnRecord.class));
+
+    private final static Duration TTL = Duration.ofMinutes(10);
+
+    /**
+     * How often a duplicate checks whether the first delivery is done.
+     */
+    private final static long POLL_MILLIS = 250;
+
+    private TurnIdempotency() {
+    }
+
+    /**
+     * Run the turn unless it is a duplicate delivery, in which case answer with the first delivery's response.
+     *
+     * @param lexRequest
+     * @param deadline epoch millis the response is due, a duplicate stops waiting a second before
+     * @param turn runs the turn
+     * @param stillRunning response for a duplicate when the first delivery doesn't finish in time
+     * @return
+     */
+    public static CompletableFuture<LexV2Response> run(LexV2EventWrapper lexRequest, long deadline,
+            Supplier<CompletableFuture<LexV2Response>> turn, Supplier<LexV2Response> stillRunning) {
+        final var attrs = lexRequest.getSessionAttributes();
+        final var counter = attrs.getOrDefault(TURN_COUNTER, "0");
+        // The response carries the next value, a re-delivery of this turn still has this one
+        attrs.put(TURN_COUNTER, Long.toString(parse(counter) + 1));
+
+        if (table == null || Cassette.getInstance().isPriming()) {
+            return turn.get();
+        }
+
+        final var id = key(lexRequest.getSessionId(), counter, lexRequest.getInputTranscript());
+        final var now = Instant.now();
+        final var claim = new TurnRecord();
+        claim.setId(id);
+        claim.setStatus(TurnRecord.Status.IN_PROGRESS);
+        claim.setStartedAt(now.toEpochMilli());
+        claim.setTtl(now.plus(TTL).getEpochSecond());
+
+        return table.putItem(r -> r.item(claim)
+                .conditionExpression(claimCondition(now, deadline - now.toEpochMilli())))
+                .thenApply(v -> true)
+                .exceptionally(t -> {
+                    if (unwrap(t) instanceof ConditionalCheckFailedException) {
+                        return false;
+                    }
+                    // Can't tell, so just run it
+                    log.warn("Turn claim failed, running turn " + id, unwrap(t));
+                    return null;
+                })
+                .thenCompose(claimed -> {
+                    if (claimed == null) {
+                        return turn.get();
+                    }
+                    if (claimed) {
+                        return turn.get()
+                                .thenCompose(response -> store(claim, response))
+                                // Let a retry run it again rather than wait on a response that will never be stored
+                                .exceptionallyCompose(t -> table.deleteItem(claim).<LexV2Response>handle((d, dt) -> {
+                                    throw t instanceof CompletionException ce ? ce : new CompletionException(t);
+                                }));
+                    }
+                    log.info("Duplicate delivery of turn " + id + ", answering with the first delivery's response");
+                    return await(id, deadline - 1000, stillRunning);
+                });
+    }
+
+    /**
+     * Save the response for duplicates, the caller gets it either way.
+     */
+    private static CompletableFuture<LexV2Response> store(TurnRecord claim, LexV2Response response) {
+        try {
+            claim.setStatus(TurnRecord.Status.DONE);
+            claim.setResponse(mapper.writeValueAsString(response));
+        } catch (JsonProcessingException e) {
+            log.warn("Unable to store turn response", e);
+            return CompletableFuture.completedFuture(response);
+        }
+        return table.putItem(claim)
+                .handle((v, t) -> {
+                    if (t != null) {
+                        log.warn("Unable to store turn response", unwrap(t));
+                    }
+                    return response;
+                });
+    }
+
+    /**
+     * Wait for the first delivery's response.
+     */
+    private static CompletableFuture<LexV2Response> await(String id, long giveUpAt, Supplier<LexV2Response> stillRunning) {
+        return table.getItem(r -> r.key(Key.builder().partitionValue(id).build()).consistentRead(true)).thenCompose(record -> {
+            if (record != null && record.getStatus() == TurnRecord.Status.DONE && !isExpired(record, Instant.now())) {
+                try {
+                    return CompletableFuture.completedFuture(mapper.readValue(record.getResponse(), LexV2Response.class));
+                } catch (JsonProcessingException e) {
+                    throw new CompletionException(e);
+                }
+            }
+            if (System.currentTimeMillis() + POLL_MILLIS >= giveUpAt) {
+                log.warn("First delivery of turn " + id + " still running");
+                return CompletableFuture.completedFuture(stillRunning.get());
+            }
+            return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(POLL_MILLIS, TimeUnit.MILLISECONDS))
+                    .thenCompose(v -> await(id, giveUpAt, stillRunning));
+        });
+    }
+
+    /**
+     * The turn can be claimed when there is no record, the record is past its ttl, or it is a claim that has been in
+     * progress longer than a turn can run.
+     *
+     * @param now
+     * @param turnMillis how long a turn has
+     * @return
+     */
+    static Expression claimCondition(Instant now, long turnMillis) {
+        return Expression.builder()
+                .expression("attribute_not_exists(id) OR #ttl < :now OR (#status = :inProgress AND startedAt < :abandoned)")
+                .expressionNames(Map.of("#ttl", "ttl", "#status", "status"))
+                .expressionValues(Map.of(
+                        ":now", AttributeValue.fromN(Long.toString(now.getEpochSecond())),
+                        ":inProgress", AttributeValue.fromS(TurnRecord.Status.IN_PROGRESS.name()),
+                        ":abandoned", AttributeValue.fromN(Long.toString(now.toEpochMilli() - Math.max(0, turnMillis)))))
+                .build();
+    }
+
+    /**
+     * Past its ttl, Dynamo only deletes expired items eventually.
+     */
+    static boolean isExpired(TurnRecord record, Instant now) {
+        return record.getTtl() != null && record.getTtl() < now.getEpochSecond();
+    }
+
+    /**
+     * Session, turn counter and SHA-256 of the transcript.
+     */
+    static String key(String sessionId, String counter, String transcript) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256").digest(String.valueOf(transcript).getBytes(StandardCharsets.UTF_8));
+            return sessionId + "#" + counter + "#" + HexFormat.of().formatHex(digest, 0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long parse(String counter) {
+        try {
+            return Long.parseLong(counter);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+}
@@ -0,0 +1,42 @@
+package cloud.cleo.squareup.cache;
+
+import lombok.Data;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+
+/**
+ * A turn in the turn table, claimed by the first delivery and holding its response once done.
+ *
+ * @author sjensen
+ */
+@DynamoDbBean
+@Data
+public class TurnRecord {
+
+    public enum Status {
+        IN_PROGRESS, DONE
+    }
+
+    /**
+     * Session ID, turn counter and transcript hash, see {@link TurnIdempotency#key}.
+     */
+    private String id;
+    private Status status;
+    /**
+     * The Lex response as JSON once DONE.
+     */
+    private String response;
+    /**
+     * Epoch millis the turn was claimed, a claim in progress longer than a turn can run has been abandoned.
+     */
+    private Long startedAt;
+    /**
+     * Unix timestamp when Dynamo should delete the entry, only needs to outlive Lex retries.
+     */
+    private Long ttl;
+
+    @DynamoDbPartitionKey
+    public String getId() {
+        return id;
+    }
+}
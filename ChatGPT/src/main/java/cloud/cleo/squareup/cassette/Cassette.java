@@ -0,0 +1,360 @@
+package cloud.cleo.squareup.cassette;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Record and replay of outbound OpenAI and Square exchanges so prompt and history changes can be benchmarked offline
+ * against real conversation shapes, without paying for tokens or touching Square.
+ *
+ * Controlled by the environment:
+ * <ul>
+ * <li>CASSETTE_MODE - OFF (default), RECORD or REPLAY</li>
+ * <li>CASSETTE_FILE - path of the cassette, defaults to /tmp/chatgpt.cassette</li>
+ * <li>CASSETTE_TIME_SCALE - multiplier applied to recorded timings on replay, 1.0 replays original timing and 0 as
+ * fast as possible</li>
+ * </ul>
+ *
+ * The cassette is gzip compressed JSON lines, one exchange per line, keyed by a fingerprint of the request. Only the
+ * response is stored (never headers, so API keys never land in a cassette) and emails and phone numbers are swapped for
+ * stable fake values before writing. Query parameters are part of the fingerprint (decoded and sorted, so their order
+ * doesn't matter), since Square searches and pages differ only there. For chat completions the fingerprint only covers the current turn (last user
+ * message, function calls and the names of functions that answered), so changing the system prompt or how much history
+ * is sent still replays.
+ *
+ * @author sjensen
+ */
+public class Cassette {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(Cassette.class);
+
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private final static Pattern EMAIL = Pattern.compile("[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}");
+    private final static Pattern PHONE = Pattern.compile("\\+?1?[2-9]\\d{2}[2-9]\\d{6}\\b");
+    private final static Pattern ISO_DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}(T[0-9:.]+([+-]\\d{2}:\\d{2}|Z)?(\\[[^\\]]+\\])?)?");
+
+    public enum Mode {
+        OFF,
+        RECORD,
+        REPLAY
+    }
+
+    @Getter
+    private final Mode mode;
+    private final Path file;
+    private final double timeScale;
+
+    /**
+     * Recorded exchanges by fingerprint, the same request can be recorded many times (same question in different
+     * conversations) so replay walks through them in order.
+     */
+    private final Map<String, List<Exchange>> exchanges = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> replayPosition = new ConcurrentHashMap<>();
+
+    /**
+     * Canned exchanges used while priming before a SnapStart checkpoint, keyed by service and method.
+     */
+    private volatile Map<String, List<Exchange>> priming;
+    private final Map<String, AtomicInteger> primingPosition = new ConcurrentHashMap<>();
+
+    private final static Cassette instance = new Cassette();
+
+    private Cassette() {
+        final var m = System.getenv("CASSETTE_MODE");
+        mode = m == null || m.isBlank() ? Mode.OFF : Mode.valueOf(m.trim().toUpperCase());
+        final var f = System.getenv("CASSETTE_FILE");
+        file = Path.of(f == null || f.isBlank() ? "/tmp/chatgpt.cassette" : f);
+        final var s = System.getenv("CASSETTE_TIME_SCALE");
+        timeScale = s == null || s.isBlank() ? 1.0 : Double.parseDouble(s);
+
+        if (mode == Mode.REPLAY) {
+            load();
+        }
+        log.debug("Cassette mode " + mode + " file " + file);
+    }
+
+    public static Cassette getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return mode != Mode.OFF;
+    }
+
+    public boolean isPriming() {
+        return priming != null;
+    }
+
+    /**
+     * Answer every request from a bundled priming cassette (JSON lines on the classpath) until {@link #endPriming()}.
+     * Used to run a synthetic turn before a SnapStart checkpoint without calling OpenAI or Square. Entries are matched
+     * only on service and method and handed out in order, so the file is just the sequence of responses one turn needs.
+     *
+     * @param resource classpath resource
+     * @throws IOException
+     */
+    public void startPriming(String resource) throws IOException {
+        final var map = new ConcurrentHashMap<String, List<Exchange>>();
+        final var in = Cassette.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Priming cassette " + resource + " not found");
+        }
+        try (var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    final var exchange = mapper.readValue(line, Exchange.class);
+                    map.computeIfAbsent(exchange.service() + ' ' + exchange.method(), k -> new CopyOnWriteArrayList<>()).add(exchange);
+                }
+            }
+        }
+        primingPosition.clear();
+        priming = map;
+    }
+
+    public void endPriming() {
+        priming = null;
+    }
+
+    /**
+     * Next priming exchange for a service and method.
+     *
+     * @param service
+     * @param method
+     * @return
+     */
+    public Optional<Exchange> primed(String service, String method) {
+        final var map = priming;
+        final var key = service + ' ' + method;
+        final var list = map == null ? null : map.get(key);
+        if (list == null || list.isEmpty()) {
+            return Optional.empty();
+        }
+        final int pos = primingPosition.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+        return Optional.of(list.get(pos % list.size()));
+    }
+
+    /**
+     * One recorded exchange.
+     *
+     * @param fp request fingerprint
+     * @param service openai or square
+     * @param method HTTP method
+     * @param path request path
+     * @param status HTTP status returned
+     * @param millis how long the real call took
+     * @param body response body (redacted)
+     */
+    public record Exchange(String fp, String service, String method, String path, int status, long millis, String body) {
+
+    }
+
+    /**
+     * Fingerprint for a request.
+     *
+     * @param service
+     * @param method
+     * @param path
+     * @param query raw query string (can be null)
+     * @param body request body (can be null)
+     * @return
+     */
+    public static String fingerprint(String service, String method, String path, String query, String body) {
+        final var sb = new StringBuilder(service).append(' ').append(method).append(' ').append(path);
+        final var params = queryOf(query);
+        if (!params.isEmpty()) {
+            sb.append('?').append(params);
+        }
+        sb.append('\n');
+        if (body != null && !body.isBlank()) {
+            if (path.endsWith("/chat/completions")) {
+                sb.append(turnOf(body));
+            } else {
+                sb.append(normalize(body));
+            }
+        }
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Query parameters decoded, normalized and sorted, so the same parameters in any order or encoding match.
+     */
+    private static String queryOf(String query) {
+        if (query == null || query.isBlank()) {
+            return "";
+        }
+        return Arrays.stream(query.split("&"))
+                .filter(p -> !p.isEmpty())
+                .map(p -> normalize(URLDecoder.decode(p, StandardCharsets.UTF_8)))
+                .sorted()
+                .collect(Collectors.joining("&"));
+    }
+
+    /**
+     * The current turn of a chat completion request, the last user message and everything after it (function calls and
+     * results). The system prompt and earlier history are left out on purpose.
+     */
+    private static String turnOf(String body) {
+        try {
+            final var messages = (ArrayNode) mapper.readTree(body).path("messages");
+            int start = 0;
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                if ("user".equals(messages.get(i).path("role").asText())) {
+                    start = i;
+                    break;
+                }
+            }
+            final var sb = new StringBuilder();
+            for (int i = start; i < messages.size(); i++) {
+                final JsonNode m = messages.get(i);
+                sb.append(m.path("role").asText()).append(':').append(m.path("name").asText("")).append(':');
+                // Function results carry live data (open/closed, current time), so only the function name counts
+                if (!"function".equals(m.path("role").asText())) {
+                    sb.append(m.path("content").asText("")).append(':').append(m.path("function_call").toString());
+                }
+                sb.append('\n');
+            }
+            return normalize(sb.toString());
+        } catch (IOException | ClassCastException e) {
+            return normalize(body);
+        }
+    }
+
+    /**
+     * Normalize volatile or personal values so the same request fingerprints the same on every run.
+     */
+    private static String normalize(String text) {
+        var out = EMAIL.matcher(text).replaceAll("<email>");
+        out = ISO_DATE.matcher(out).replaceAll("<date>");
+        out = PHONE.matcher(out).replaceAll("<phone>");
+        return out.toLowerCase().replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * Swap emails and phone numbers for fake values. The same real value always maps to the same fake one so a number
+     * returned from Square and later used in a transfer still lines up.
+     *
+     * @param text
+     * @return
+     */
+    public static String redact(String text) {
+        var out = EMAIL.matcher(text).replaceAll(m -> "user-" + shortHash(m.group()) + "@example.com");
+        out = PHONE.matcher(out).replaceAll(m -> "+1555" + String.format("%07d", Math.abs(shortHash(m.group()).hashCode()) % 10_000_000));
+        return out;
+    }
+
+    private static String shortHash(String value) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 4);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Next recorded exchange for a fingerprint, sleeping the (scaled) original time first.
+     *
+     * @param fp
+     * @return
+     */
+    public Optional<Exchange> replay(String fp) {
+        final var list = exchanges.get(fp);
+        if (list == null || list.isEmpty()) {
+            return Optional.empty();
+        }
+        final int pos = replayPosition.computeIfAbsent(fp, k -> new AtomicInteger()).getAndIncrement();
+        final var exchange = list.get(pos % list.size());
+        final long sleep = Math.round(exchange.millis() * timeScale);
+        if (sleep > 0) {
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return Optional.of(exchange);
+    }
+
+    /**
+     * Record an exchange, appended to the cassette right away since a Lambda can be frozen at any time.
+     *
+     * @param fp
+     * @param service
+     * @param method
+     * @param path
+     * @param status
+     * @param millis
+     * @param body
+     */
+    public void record(String fp, String service, String method, String path, int status, long millis, String body) {
+        final var exchange = new Exchange(fp, service, method, path, status, millis, redact(body));
+        exchanges.computeIfAbsent(fp, k -> new CopyOnWriteArrayList<>()).add(exchange);
+        // Each line is its own gzip member, GZIPInputStream reads concatenated members back as one stream
+        synchronized (this) {
+            try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file.toFile(), true))) {
+                out.write(mapper.writeValueAsBytes(exchange));
+                out.write('\n');
+            } catch (IOException e) {
+                log.error("Unable to write cassette " + file, e);
+            }
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            log.error("Cassette " + file + " does not exist, every request will miss");
+            return;
+        }
+        try (var reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file.toFile())), StandardCharsets.UTF_8))) {
+            String line;
+            int count = 0;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    final var exchange = mapper.readValue(line, Exchange.class);
+                    exchanges.computeIfAbsent(exchange.fp(), k -> new CopyOnWriteArrayList<>()).add(exchange);
+                    count++;
+                }
+            }
+            log.debug("Loaded " + count + " exchanges from cassette " + file);
+        } catch (IOException e) {
+            log.error("Unable to read cassette " + file, e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package cloud.cleo.squareup.cassette;
+
+import java.io.IOException;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * OkHttp interceptor that records to or replays from the {@link Cassette}. OpenAI and Square both use OkHttp under the
+ * covers, so this sits at the same place for both services. While the cassette is priming every request is answered
+ * from the priming responses no matter what mode is set.
+ *
+ * @author sjensen
+ */
+public class CassetteInterceptor implements Interceptor {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(CassetteInterceptor.class);
+
+    private final static MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    private final Cassette cassette = Cassette.getInstance();
+    private final String service;
+
+    /**
+     * @param service name stored with each exchange (openai, square)
+     */
+    public CassetteInterceptor(String service) {
+        this.service = service;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final var request = chain.request();
+        if (cassette.isPriming()) {
+            final var exchange = cassette.primed(service, request.method())
+                    .orElseThrow(() -> new IOException("No priming response for " + service + " " + request.method()));
+            return replayed(request, exchange);
+        }
+        if (!cassette.isEnabled()) {
+            return chain.proceed(request);
+        }
+
+        final var path = request.url().encodedPath();
+        final var fp = Cassette.fingerprint(service, request.method(), path, request.url().encodedQuery(), bodyOf(request));
+
+        return switch (cassette.getMode()) {
+            case REPLAY ->
+                replayed(request, cassette.replay(fp)
+                        .orElseThrow(() -> new IOException("Cassette miss for " + service + " " + request.method() + " " + path + " fp " + fp)));
+            case RECORD -> {
+                final long start = System.nanoTime();
+                final var response = chain.proceed(request);
+                final var body = response.body() != null ? response.body().string() : "";
+                final long millis = (System.nanoTime() - start) / 1_000_000;
+                cassette.record(fp, service, request.method(), path, response.code(), millis, body);
+                log.debug("Recorded " + service + " " + path + " in " + millis + " ms");
+                // Body was consumed above, hand back a fresh copy
+                final var contentType = response.body() != null ? response.body().contentType() : JSON;
+                yield response.newBuilder().body(ResponseBody.create(body, contentType)).build();
+            }
+            default ->
+                chain.proceed(request);
+        };
+    }
+
+    private static Response replayed(Request request, Cassette.Exchange exchange) {
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(exchange.status())
+                .message("Replayed")
+                .body(ResponseBody.create(exchange.body(), JSON))
+                .build();
+    }
+
+    private static String bodyOf(Request request) throws IOException {
+        if (request.body() == null) {
+            return null;
+        }
+        final var buffer = new Buffer();
+        request.body().writeTo(buffer);
+        return buffer.readUtf8();
+    }
+}
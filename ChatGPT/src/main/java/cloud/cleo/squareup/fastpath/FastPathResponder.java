@@ -0,0 +1,260 @@
+package cloud.cleo.squareup.fastpath;
+
+import static cloud.cleo.squareup.ChatGPTLambda.FACEBOOK_HANDOVER_FUNCTION_NAME;
+import static cloud.cleo.squareup.ChatGPTLambda.HANGUP_FUNCTION_NAME;
+import static cloud.cleo.squareup.ChatGPTLambda.TRANSFER_FUNCTION_NAME;
+import cloud.cleo.squareup.LexV2EventWrapper;
+import cloud.cleo.squareup.cassette.Cassette;
+import cloud.cleo.squareup.enums.LexInputMode;
+import cloud.cleo.squareup.functions.AbstractFunction;
+import cloud.cleo.squareup.functions.DrivingDirections;
+import cloud.cleo.squareup.functions.StoreData;
+import cloud.cleo.squareup.lang.LangUtil;
+import cloud.cleo.squareup.lang.LangUtil.LanguageIds;
+import static cloud.cleo.squareup.lang.LangUtil.LanguageIds.*;
+import com.squareup.square.models.Location;
+import java.text.MessageFormat;
+import java.text.Normalizer;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.time.format.TextStyle;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Answers trivial utterances (thanks, bye, hours, address, keypad digits, the Facebook welcome card buttons) locally
+ * from the lang bundles and cached Square data, no OpenAI call needed.
+ *
+ * Transcripts are normalized (lower case, accents and punctuation dropped) and must match one of the patterns below
+ * entirely, so anything with more to it than the bare question still goes to GPT. On voice only the bot's language is
+ * tried since that is what Lex transcribed in, on text the answer is in whichever language matched.
+ *
+ * Set FAST_PATH to "off" to send everything to GPT.
+ *
+ * @author sjensen
+ */
+public class FastPathResponder {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(FastPathResponder.class);
+
+    private final static boolean ENABLED = !"off".equalsIgnoreCase(System.getenv("FAST_PATH"));
+
+    private final static String MAIN_NUMBER = System.getenv("MAIN_NUMBER");
+
+    private final static Locale ENGLISH = new Locale("en", "US");
+    private final static Locale SPANISH = new Locale("es", "US");
+    private final static Locale GERMAN = new Locale("de", "DE");
+
+    /**
+     * A local answer for the turn.
+     *
+     * @param intent what matched
+     * @param text what to say, null when the function response replaces it (Facebook handover)
+     * @param functionName terminating or handover function to act on, null for just a text answer
+     * @param functionArgs arguments for that function
+     */
+    public record Answer(LocalIntent intent, String text, String functionName, Map<String, String> functionArgs) {
+
+        static Answer text(LocalIntent intent, String text) {
+            return new Answer(intent, text, null, Map.of());
+        }
+    }
+
+    record Rule(Locale locale, LocalIntent intent, Pattern pattern) {
+
+    }
+
+    /**
+     * Patterns run against the normalized transcript, see {@link #normalize(String)}.
+     */
+    private final static List<Rule> rules = List.of(
+            // Facebook welcome card buttons, sent exactly as defined in buildWelcomeCard()
+            rule(ENGLISH, LocalIntent.HOURS, "what are you business hours"),
+            rule(ENGLISH, LocalIntent.LOCATION, "what is your address and driving directions"),
+            rule(ENGLISH, LocalIntent.HANDOVER, "please hand this conversation over to a person"),
+            // English
+            rule(ENGLISH, LocalIntent.GOODBYE, "((ok|okay|no|great|perfect) )?(thanks |thank you )?(bye|goodbye|good bye|bye bye|see you|see ya|thats all|that is all|thats it|nothing else|im done)( thanks| thank you)?( bye| goodbye)?"),
+            rule(ENGLISH, LocalIntent.THANKS, "((ok|okay|great|perfect|awesome) )?(thanks|thank you|thx|ty)( so much| very much)?"),
+            rule(ENGLISH, LocalIntent.HOURS, "(what are )?(your |the )?(store |business )?hours( today)?|when are you open( today)?|what time do you (open|close)( today)?|are you open( today| now| right now)?"),
+            rule(ENGLISH, LocalIntent.LOCATION, "(what is |whats )?(your |the )?(store )?(address|location)|where are you( located)?|where is the store"),
+            // Spanish
+            rule(SPANISH, LocalIntent.GOODBYE, "(no )?(gracias )?(adios|hasta luego|chao|eso es todo|nada mas)( gracias)?"),
+            rule(SPANISH, LocalIntent.THANKS, "(muchas |mil )?gracias"),
+            rule(SPANISH, LocalIntent.HOURS, "(cual es |cuales son )?(su |el |los |sus )?horarios?( de hoy)?|a que hora (abren|cierran)( hoy)?|estan abiertos( hoy| ahora)?"),
+            rule(SPANISH, LocalIntent.LOCATION, "(cual es )?(su |la )?direccion|donde (estan|se encuentran)( ubicados)?"),
+            // German
+            rule(GERMAN, LocalIntent.GOODBYE, "(nein )?(danke )?(tschuss|auf wiedersehen|auf wiederhoren|ciao|das wars|das war alles)( danke)?"),
+            rule(GERMAN, LocalIntent.THANKS, "danke|danke schon|danke sehr|vielen dank"),
+            rule(GERMAN, LocalIntent.HOURS, "(was sind )?(ihre |die )?offnungszeiten( heute)?|wann haben sie( heute)? (geoffnet|offen)|haben sie( heute| jetzt)? (geoffnet|offen)"),
+            rule(GERMAN, LocalIntent.LOCATION, "(was ist )?(ihre |die )?adresse|wo (sind sie|finde ich sie|befinden sie sich)"));
+
+    private FastPathResponder() {
+    }
+
+    /**
+     * Answer the turn locally if it's simple enough. Empty means send it to GPT, which is also what happens when the
+     * data for an answer (Square) can't be had.
+     *
+     * @param lexRequest
+     * @return
+     */
+    public static CompletableFuture<Optional<Answer>> answer(LexV2EventWrapper lexRequest) {
+        // Priming has to run the GPT path, that's what the snapshot needs loaded
+        if (!ENABLED || Cassette.getInstance().isPriming()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        final var input = lexRequest.getInputTranscript();
+        if (input == null || input.isBlank()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        if (lexRequest.getInputMode() == LexInputMode.DTMF) {
+            return CompletableFuture.completedFuture(Optional.of(dtmf(lexRequest, input.trim())));
+        }
+
+        final var match = classify(lexRequest, input);
+        if (match.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        final var rule = match.get();
+        final var locale = lexRequest.isVoice() ? lexRequest.getLocale() : rule.locale();
+        log.debug("Fast path matched " + rule.intent() + " in " + rule.locale());
+
+        return switch (rule.intent()) {
+            case GOODBYE ->
+                CompletableFuture.completedFuture(Optional.of(goodbye(lexRequest, locale)));
+            case THANKS ->
+                CompletableFuture.completedFuture(Optional.of(Answer.text(LocalIntent.THANKS, LangUtil.getString(THANKS_RESPONSE, locale))));
+            case HOURS ->
+                fromStore(LocalIntent.HOURS, loc -> hours(loc, locale));
+            case LOCATION ->
+                fromStore(LocalIntent.LOCATION, loc -> location(loc, locale, lexRequest.isText()));
+            case HANDOVER ->
+                CompletableFuture.completedFuture(handover());
+            default ->
+                CompletableFuture.completedFuture(Optional.empty());
+        };
+    }
+
+    /**
+     * First rule matching the whole transcript, rules in the bot's language tried first.
+     */
+    private static Optional<Rule> classify(LexV2EventWrapper lexRequest, String input) {
+        return classify(input, lexRequest.getLocale().getLanguage(), lexRequest.isVoice(), lexRequest.isFacebook());
+    }
+
+    /**
+     * First rule matching the whole transcript.
+     *
+     * @param input raw transcript
+     * @param language the bot's language, the only one tried on voice
+     * @param voice
+     * @param facebook the welcome card handover button only exists on Messenger
+     * @return
+     */
+    static Optional<Rule> classify(String input, String language, boolean voice, boolean facebook) {
+        final var text = normalize(input);
+        return rules.stream()
+                .filter(r -> !voice || r.locale().getLanguage().equals(language))
+                .filter(r -> r.intent() != LocalIntent.HANDOVER || facebook)
+                .sorted(Comparator.comparing(r -> !r.locale().getLanguage().equals(language)))
+                .filter(r -> r.pattern().matcher(text).matches())
+                .findFirst();
+    }
+
+    /**
+     * Lower case, no accents, no apostrophes, any other punctuation to a single space.
+     *
+     * @param input
+     * @return
+     */
+    public static String normalize(String input) {
+        return Normalizer.normalize(input, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}", "")
+                .toLowerCase(Locale.ROOT)
+                .replaceAll("['\\u2019]", "")
+                .replaceAll("[^\\p{L}\\p{N}]+", " ")
+                .trim();
+    }
+
+    private static Answer goodbye(LexV2EventWrapper lexRequest, Locale locale) {
+        if (lexRequest.isVoice() && AbstractFunction.getFunctionByName(HANGUP_FUNCTION_NAME) != null) {
+            return new Answer(LocalIntent.GOODBYE, LangUtil.getString(GOODBYE, locale), HANGUP_FUNCTION_NAME, Map.of());
+        }
+        return Answer.text(LocalIntent.GOODBYE, LangUtil.getString(GOODBYE_TEXT, locale));
+    }
+
+    private static Optional<Answer> handover() {
+        if (AbstractFunction.getFunctionByName(FACEBOOK_HANDOVER_FUNCTION_NAME) == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new Answer(LocalIntent.HANDOVER, null, FACEBOOK_HANDOVER_FUNCTION_NAME, Map.of()));
+    }
+
+    /**
+     * Zero goes to the main number, anything else gets told to speak.
+     */
+    private static Answer dtmf(LexV2EventWrapper lexRequest, String digits) {
+        final var locale = lexRequest.getLocale();
+        if ("0".equals(digits) && MAIN_NUMBER != null && AbstractFunction.getFunctionByName(TRANSFER_FUNCTION_NAME) != null) {
+            return new Answer(LocalIntent.DTMF, LangUtil.getString(TRANSFER_OPERATOR, locale), TRANSFER_FUNCTION_NAME, Map.of("transfer_number", MAIN_NUMBER));
+        }
+        return Answer.text(LocalIntent.DTMF, LangUtil.getString(DTMF_NOT_SUPPORTED, locale));
+    }
+
+    /**
+     * Answer from the cached Square location, empty when Square fails or the location lacks the data.
+     */
+    private static CompletableFuture<Optional<Answer>> fromStore(LocalIntent intent, Function<Location, String> format) {
+        return StoreData.getLocation()
+                .thenApply(loc -> Optional.ofNullable(format.apply(loc)).map(text -> Answer.text(intent, text)))
+                .exceptionally(t -> {
+                    log.debug("Fast path could not get store data, leaving " + intent + " to GPT", t);
+                    return Optional.empty();
+                });
+    }
+
+    private static String hours(Location loc, Locale locale) {
+        final var hours = StoreData.getHours(loc);
+        if (hours.isEmpty()) {
+            return null;
+        }
+        final var time = DateTimeFormatter.ofLocalizedTime(FormatStyle.SHORT).withLocale(locale);
+        final var ranges = hours.stream()
+                .map(p -> format(HOURS_RANGE, locale, p.dow().getDisplayName(TextStyle.FULL, locale), time.format(p.start()), time.format(p.end())))
+                .collect(Collectors.joining(", "));
+        final var now = LangUtil.getString(StoreData.isOpen(loc) ? STORE_OPEN_NOW : STORE_CLOSED_NOW, locale);
+        return format(STORE_HOURS, locale, now, ranges);
+    }
+
+    private static String location(Location loc, Locale locale, boolean text) {
+        final var address = loc.getAddress();
+        if (address == null || address.getAddressLine1() == null) {
+            return null;
+        }
+        final var parts = Stream.of(address.getAddressLine1(), address.getLocality(), address.getAdministrativeDistrictLevel1())
+                .filter(s -> s != null && !s.isBlank())
+                .collect(Collectors.joining(", "));
+        final var answer = format(STORE_LOCATION, locale, parts);
+        // Text can take a link, on voice the address is enough
+        return text ? answer + "  https://" + DrivingDirections.DRIVING_DIRECTIONS_URL : answer;
+    }
+
+    private static String format(LanguageIds id, Locale locale, Object... args) {
+        return new MessageFormat(LangUtil.getString(id, locale), locale).format(args);
+    }
+
+    private static Rule rule(Locale locale, LocalIntent intent, String regex) {
+        return new Rule(locale, intent, Pattern.compile(regex));
+    }
+}
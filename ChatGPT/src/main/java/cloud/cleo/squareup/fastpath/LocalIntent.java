@@ -0,0 +1,33 @@
+package cloud.cleo.squareup.fastpath;
+
+/**
+ * Utterances simple enough to answer without GPT.
+ *
+ * @author sjensen
+ */
+public enum LocalIntent {
+    /**
+     * Bye, that's all, etc. Hangs up on voice.
+     */
+    GOODBYE,
+    /**
+     * Thanks, thank you.
+     */
+    THANKS,
+    /**
+     * What are your hours, are you open.
+     */
+    HOURS,
+    /**
+     * Where are you, what is your address.
+     */
+    LOCATION,
+    /**
+     * Facebook welcome card "Person" button.
+     */
+    HANDOVER,
+    /**
+     * Keypad input on a call.
+     */
+    DTMF
+}
@@ -3,10 +3,10 @@ package cloud.cleo.squareup.functions;
 import static cloud.cleo.squareup.ChatGPTLambda.crtAsyncHttpClient;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
+import com.fasterxml.jackson.databind.JsonNode;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import static java.time.temporal.ChronoUnit.DAYS;
-import java.util.concurrent.CompletionException;
 import java.util.function.Function;
 import software.amazon.awssdk.services.costexplorer.CostExplorerAsyncClient;
 import software.amazon.awssdk.services.costexplorer.model.GetCostForecastRequest;
@@ -73,13 +73,14 @@ public class AWSCostForecast<Request> extends AbstractFunction {
                         .metric(Metric.BLENDED_COST)
                         .build();
 
-                GetCostForecastResponse res =  costExplorerAsyncClient.getCostForecast(cfr).join();
-                final var json = mapper.valueToTree(mapper.convertValue(res.toBuilder(), GetCostForecastResponse.serializableBuilderClass()));
-                log.debug("Cost Forecast response is " + json.toPrettyString());
-                return json;
-            } catch (CompletionException e) {
-                log.error("Unhandled Error", e.getCause());
-                return mapper.createObjectNode().put("status", "FAILED").put("message", "An error has occurred, the cost could not be determined.");
+                return costExplorerAsyncClient.getCostForecast(cfr).thenApply(res -> {
+                    final JsonNode json = mapper.valueToTree(mapper.convertValue(res.toBuilder(), GetCostForecastResponse.serializableBuilderClass()));
+                    log.debug("Cost Forecast response is " + json.toPrettyString());
+                    return json;
+                }).exceptionally(t -> {
+                    log.error("Unhandled Error", unwrap(t));
+                    return mapper.createObjectNode().put("status", "FAILED").put("message", "An error has occurred, the cost could not be determined.");
+                });
             } catch (Exception e) {
                 log.error("Unhandled Error", e);
                 return mapper.createObjectNode().put("status", "FAILED").put("message", "An error has occurred, the cost could not be determined.");
@@ -1,29 +1,28 @@
 package cloud.cleo.squareup.functions;
 
+import cloud.cleo.squareup.cassette.CassetteInterceptor;
 import cloud.cleo.squareup.enums.ChannelPlatform;
-import static cloud.cleo.squareup.ChatGPTLambda.crtAsyncHttpClient;
 import cloud.cleo.squareup.LexV2EventWrapper;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.squareup.square.Environment;
 import com.squareup.square.SquareClient;
 import com.theokanning.openai.completion.chat.ChatFunction;
 import com.theokanning.openai.service.FunctionExecutor;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Modifier;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.reflections.Reflections;
-import software.amazon.awssdk.services.pinpoint.PinpointAsyncClient;
-import software.amazon.awssdk.services.pinpoint.model.NumberValidateResponse;
 
 /**
  * Base class for ChatGPT functions
@@ -38,12 +37,11 @@ public abstract class AbstractFunction<T> implements Cloneable {
 
     protected final static ObjectMapper mapper = new ObjectMapper();
 
-    private static final Map<String, AbstractFunction> functions = new HashMap<>();
-    private static boolean inited = false;
+    static final long DEFAULT_TIMEOUT_MILLIS = FunctionExecutionEngine.envLong("FUNCTION_TIMEOUT_MILLIS", 5000);
+    static final int DEFAULT_MAX_CONCURRENT = (int) FunctionExecutionEngine.envLong("FUNCTION_MAX_CONCURRENT", 32);
 
-    private final static PinpointAsyncClient pinpointAsyncClient = PinpointAsyncClient.builder()
-            .httpClient(crtAsyncHttpClient)
-            .build();
+    private static final Map<String, AbstractFunction> functions = new ConcurrentHashMap<>();
+    private static volatile boolean inited = false;
 
     /**
      * When user is interacting via Voice, we need the calling number to send SMS to them.
@@ -67,8 +65,19 @@ public abstract class AbstractFunction<T> implements Cloneable {
     @Setter(AccessLevel.PRIVATE)
     private String sessionId;
 
+    /**
+     * Calls started for this turn before GPT asked for them.
+     */
+    @Setter(AccessLevel.PRIVATE)
+    private ToolPrefetch prefetch;
+
     private final static boolean squareEnabled;
     private final static SquareClient squareClient;
+    private final static OkHttpClient squareHttpClient = new OkHttpClient.Builder()
+            .addInterceptor(new CassetteInterceptor("square"))
+            // Async calls are queued on the dispatcher, the default of 5 per host would serialize concurrent turns
+            .dispatcher(asyncDispatcher())
+            .build();
 
     static {
         final var key = System.getenv("SQUARE_API_KEY");
@@ -79,15 +88,34 @@ public abstract class AbstractFunction<T> implements Cloneable {
 
         // If square enabled, then configure the client
         if (squareEnabled) {
-            squareClient = new SquareClient.Builder()
+            final var builder = new SquareClient.Builder()
                     .accessToken(key)
-                    .environment(Environment.valueOf(System.getenv("SQUARE_ENVIRONMENT")))
-                    .build();
+                    .environment(Environment.valueOf(System.getenv("SQUARE_ENVIRONMENT")));
+            // When environment is CUSTOM (local stand-in), the base URL comes from SQUARE_CUSTOM_URL
+            final var customUrl = System.getenv("SQUARE_CUSTOM_URL");
+            if (customUrl != null && !customUrl.isBlank()) {
+                builder.customUrl(customUrl);
+            }
+            // Our own OkHttp client so calls can be recorded/replayed and pooled connections dropped before a checkpoint
+            builder.httpClientConfig(c -> c.httpClientInstance(squareHttpClient));
+            squareClient = builder.build();
         } else {
             squareClient = null;
         }
     }
 
+    /**
+     * OkHttp dispatcher that doesn't hold back async calls, the turn pipeline never waits on a thread for them.
+     *
+     * @return
+     */
+    private static Dispatcher asyncDispatcher() {
+        final var dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(256);
+        dispatcher.setMaxRequestsPerHost(256);
+        return dispatcher;
+    }
+
     /**
      * Is Square enabled (API Key and Location ID set to something that looks valid).
      *
@@ -106,40 +134,63 @@ public abstract class AbstractFunction<T> implements Cloneable {
         return squareClient;
     }
 
+    /**
+     * Drop pooled Square connections. Called before a SnapStart checkpoint so a restored snapshot doesn't start out
+     * with dead sockets.
+     */
+    public static void evictConnections() {
+        squareHttpClient.connectionPool().evictAll();
+    }
+
+    /**
+     * Open a fresh connection to Square with a cheap location lookup. Called after a SnapStart restore so the first
+     * caller asking about hours or products doesn't pay for the TLS handshake.
+     *
+     * @return future that completes when the call is done
+     */
+    public static CompletableFuture<?> warmConnections() {
+        if (!squareEnabled) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return squareClient.getLocationsApi().retrieveLocationAsync(System.getenv("SQUARE_LOCATION_ID"));
+    }
+
     /**
      * Register all the functions in this package. This should be called by a top level object that is being initialized
      * like a lambda, so during SNAPSTART init, all the functions will be inited as well.
      */
-    public static void init() {
+    public static synchronized void init() {
         if (inited) {
             return;  // only init once
         }
 
-        // Use Reflections to get all classes in the package
-        Reflections reflections = new Reflections(AbstractFunction.class.getPackage().getName());
-        final var allClasses = reflections.getSubTypesOf(AbstractFunction.class);
-
-        // Remove any further Abstract Classes
-        allClasses.removeIf(c -> Modifier.isAbstract(c.getModifiers()));
-
-        // Loop through each class and instantiate using the default constructor
-        for (var clazz : allClasses) {
+        // Registry of all the function classes is generated at build time (see chatgpt-function-processor)
+        for (var supplier : FunctionRegistry.FUNCTIONS) {
             try {
-                final var func = (AbstractFunction) clazz.getDeclaredConstructor().newInstance();
+                final var func = supplier.get();
                 if (func.isEnabled()) {
-                    log.debug("Instantiated class: " + clazz.getName());
+                    log.debug("Instantiated class: " + func.getClass().getName());
                     functions.put(func.getName(), func);
                 } else {
-                    log.debug("Class Disabled, Ignoring: " + clazz.getName());
+                    log.debug("Class Disabled, Ignoring: " + func.getClass().getName());
                 }
-
-            } catch (InstantiationException | IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+            } catch (RuntimeException e) {
                 log.error("Error processing Function Classes", e);
             }
         }
         inited = true;
     }
 
+    /**
+     * The parameters JSON schema generated at build time for a function Request class.
+     *
+     * @param requestClass
+     * @return schema or null if the class is not a known Request class
+     */
+    public static String getParametersSchema(Class<?> requestClass) {
+        return FunctionRegistry.SCHEMAS.get(requestClass.getName());
+    }
+
     /**
      * Obtain an Executer for all the registered functions
      *
@@ -147,6 +198,19 @@ public abstract class AbstractFunction<T> implements Cloneable {
      * @return
      */
     public static FunctionExecutor getFunctionExecuter(LexV2EventWrapper lexRequest) {
+        return getFunctionExecuter(lexRequest, f -> true, null);
+    }
+
+    /**
+     * Obtain an Executer for the registered functions that pass a filter.
+     *
+     * @param lexRequest
+     * @param filter
+     * @param prefetch calls started ahead of GPT asking for them, used when GPT asks with the same arguments (may be
+     * null)
+     * @return
+     */
+    public static FunctionExecutor getFunctionExecuter(LexV2EventWrapper lexRequest, Predicate<AbstractFunction> filter, ToolPrefetch prefetch) {
         if (!inited) {
             init();
         }
@@ -159,11 +223,15 @@ public abstract class AbstractFunction<T> implements Cloneable {
         final var isText = lexRequest.isText();
 
         for (var f : functions.values()) {
+            if (!filter.test(f)) {
+                continue;
+            }
             try {
                 final var func = (AbstractFunction) f.clone();
                 func.setCallingNumber(callingNumber);
                 func.setChannelPlatform(channelPlatform);
                 func.setSessionId(sessionId);
+                func.setPrefetch(prefetch);
                 if (isText) {
                     if (func.isText()) {
                         list.add(func);
@@ -213,7 +281,9 @@ public abstract class AbstractFunction<T> implements Cloneable {
     protected abstract Class<T> getRequestClass();
 
     /**
-     * The Executer that will be run when the function is executed by the Executer
+     * The Executer that will be run when the function is executed by the Executer. Anything making a remote call should
+     * return a CompletableFuture of the result rather than blocking on it, the turn pipeline waits on it without tying up
+     * a thread.
      *
      * @return
      */
@@ -225,14 +295,19 @@ public abstract class AbstractFunction<T> implements Cloneable {
      * @return
      */
     private ChatFunction getChatFunction() {
+        final var executor = getExecutor();
         return ChatFunction.builder()
                 .description(getDescription())
                 .name(getName())
-                .executor(getRequestClass(), getExecutor())
+                .executor(getRequestClass(), prefetch == null ? executor : (T r) -> {
+                    // Already started from the transcript with these same arguments
+                    final var prefetched = prefetch.take(getName(), r);
+                    return prefetched != null ? prefetched : executor.apply(r);
+                })
                 .build();
     }
 
-    private static final Pattern US_E164_PATTERN = Pattern.compile("^\\+1[2-9]\\d{2}[2-9]\\d{6}$");
+    static final Pattern US_E164_PATTERN = Pattern.compile("^\\+1[2-9]\\d{2}[2-9]\\d{6}$");
 
     /**
      * Is the callers number a valid US Phone number
@@ -246,54 +321,35 @@ public abstract class AbstractFunction<T> implements Cloneable {
         return US_E164_PATTERN.matcher(callingNumber).matches();
     }
 
-    /**
-     * Store this in case we try and send SMS twice ever, don't want to pay for the lookup again since it costs money.
-     * AWS usually calls the same Lambda, but anyways no harm to try and cache to save a couple cents here and there.
-     */
-    private static final Map<String, NumberValidateResponse> validatePhoneMap = new HashMap<>();
-
     /**
      * Is the callers number a valid Number we can send SMS to. We won't attempt to send to Voip or Landline callers
      *
-     * @return
+     * @return future that completes with false on any error
      */
-    protected boolean hasValidUSMobileNumber() {
+    protected CompletableFuture<Boolean> hasValidUSMobileNumber() {
         if (!hasValidUSE164Number()) {
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
-        try {
-            NumberValidateResponse numberValidateResponse;
-            log.debug("Validating " + callingNumber + "  with Pinpoint");
-            if (!validatePhoneMap.containsKey(callingNumber)) {
-                // First lookup, call pinpoint
-                numberValidateResponse = pinpointAsyncClient
-                        .phoneNumberValidate(t -> t.numberValidateRequest(r -> r.isoCountryCode("US").phoneNumber(callingNumber)))
-                        .join().numberValidateResponse();
-                log.debug("Pinpoint returned " + convertPinpointResposeToJson(numberValidateResponse));
-                // Add to cache
-                validatePhoneMap.put(callingNumber, numberValidateResponse);
-            } else {
-                numberValidateResponse = validatePhoneMap.get(callingNumber);
-                log.debug("Using cached Pinpoint response " + convertPinpointResposeToJson(numberValidateResponse));
-            }
-            // The description of the phone type. Valid values are: MOBILE, LANDLINE, VOIP, INVALID, PREPAID, and OTHER.
-            return switch (numberValidateResponse.phoneType()) {
-                case "MOBILE", "PREPAID" ->
-                    true;
-                default ->
-                    false;
-            };
-        } catch (CompletionException e) {
-            log.error("Unhandled Error", e.getCause());
+        // The description of the phone type. Valid values are: MOBILE, LANDLINE, VOIP, INVALID, PREPAID, and OTHER.
+        return PhoneValidation.phoneType(callingNumber).thenApply(phoneType -> switch (phoneType) {
+            case "MOBILE", "PREPAID" ->
+                true;
+            default ->
+                false;
+        }).exceptionally(t -> {
+            log.error("Error making pinpoint call", unwrap(t));
             return false;
-        } catch (Exception e) {
-            log.error("Error making pinpoint call", e);
-            return false;
-        }
+        });
     }
 
-    private String convertPinpointResposeToJson(NumberValidateResponse res) {
-        return mapper.valueToTree(mapper.convertValue(res.toBuilder(), NumberValidateResponse.serializableBuilderClass())).toPrettyString();
+    /**
+     * The real error behind a failed future.
+     *
+     * @param t
+     * @return
+     */
+    protected static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
     }
 
     /**
@@ -336,4 +392,53 @@ public abstract class AbstractFunction<T> implements Cloneable {
     public boolean isTerminating() {
         return false;
     }
+
+    /**
+     * How long to wait on this function before telling GPT it timed out. FUNCTION_TIMEOUT_MILLIS sets the default.
+     *
+     * @return
+     */
+    public long getTimeoutMillis() {
+        return DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * How many calls to this function may be in flight at once before more are turned away. FUNCTION_MAX_CONCURRENT
+     * sets the default.
+     *
+     * @return
+     */
+    public int getMaxConcurrent() {
+        return DEFAULT_MAX_CONCURRENT;
+    }
+
+    /**
+     * Can a turn that called this function be answered from the answer cache next time. Only for read only lookups
+     * whose results don't depend on who is asking, never anything that sends, books or transfers.
+     *
+     * @return
+     */
+    public boolean isCacheable() {
+        return false;
+    }
+
+    /**
+     * Still offered to GPT when OpenAI is degraded, see {@link cloud.cleo.squareup.DegradationController}. Only what it
+     * takes to end or hand off the conversation and answer the basics.
+     *
+     * @return
+     */
+    public boolean isEssential() {
+        return isTerminating();
+    }
+
+    /**
+     * Does this function call Square itself (not through the cached {@link StoreData}). Its calls count toward Square's
+     * health and it isn't offered while Square is degraded.
+     *
+     * @return
+     */
+    public boolean usesSquare() {
+        return false;
+    }
 }
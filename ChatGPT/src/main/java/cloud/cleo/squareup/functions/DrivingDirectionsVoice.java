@@ -1,7 +1,8 @@
 package cloud.cleo.squareup.functions;
 
 import static cloud.cleo.squareup.ChatGPTLambda.crtAsyncHttpClient;
-import java.util.concurrent.CompletionException;
+import cloud.cleo.squareup.outbox.Outbox;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.sns.SnsAsyncClient;
@@ -38,17 +39,28 @@ public class DrivingDirectionsVoice extends DrivingDirections {
                     return mapper.createObjectNode().put("status","FAILED").put("message", "Calling number is not a valid US phone number");
                 }
                 
-                // Do not attempt to send to non-mobile numbers
-                if ( ! hasValidUSMobileNumber() ) {
-                    return mapper.createObjectNode().put("status","FAILED").put("message", "Caller is not calling from a mobile device");
-                }
-                
-                final var result = snsAsyncClient.publish(b -> b.phoneNumber(callingNumber).message(DRIVING_DIRECTIONS_URL) ).join();
-                log.info("SMS Directions sent to " + callingNumber + " with SNS id of " + result.messageId());
-                return mapper.createObjectNode().put("status","SUCCESS").put("message", "The directions have been sent");
-            } catch (CompletionException e) {
-               log.error("Could not send Directions via SMS to caller",e.getCause());
-                return mapper.createObjectNode().put("status","FAILED").put("message", "An error has occurred, this function may be down");
+                // Subclasses extend the raw type, so give the check its type back
+                final CompletableFuture<Boolean> mobileCheck = hasValidUSMobileNumber();
+                return mobileCheck.thenCompose(mobile -> {
+                    // Do not attempt to send to non-mobile numbers
+                    if ( ! mobile ) {
+                        return CompletableFuture.completedFuture(mapper.createObjectNode().put("status","FAILED").put("message", "Caller is not calling from a mobile device"));
+                    }
+                    if (Outbox.isEnabled()) {
+                        // Caller doesn't wait on cross region SNS, the dispatcher sends it (once per call)
+                        return Outbox.enqueue(Outbox.sms(getSessionId(), callingNumber, DRIVING_DIRECTIONS_URL)).thenApply(queued -> {
+                            log.info("SMS Directions to " + callingNumber + (queued ? " queued" : " were already queued"));
+                            return mapper.createObjectNode().put("status","SUCCESS").put("message", "The directions have been sent");
+                        });
+                    }
+                    return snsAsyncClient.publish(b -> b.phoneNumber(callingNumber).message(DRIVING_DIRECTIONS_URL) ).thenApply(result -> {
+                        log.info("SMS Directions sent to " + callingNumber + " with SNS id of " + result.messageId());
+                        return mapper.createObjectNode().put("status","SUCCESS").put("message", "The directions have been sent");
+                    });
+                }).exceptionally(t -> {
+                    log.error("Could not send Directions via SMS to caller",unwrap(t));
+                    return mapper.createObjectNode().put("status","FAILED").put("message", "An error has occurred, this function may be down");
+                });
             } catch (Exception e) {
                 log.error("Could not send Directions via SMS to caller",e);
                 return mapper.createObjectNode().put("status","FAILED").put("message", "An error has occurred, this function may be down");
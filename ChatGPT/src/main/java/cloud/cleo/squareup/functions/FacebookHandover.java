@@ -65,4 +65,14 @@ public class FacebookHandover<Request> extends AbstractFunction {
         return false;
     }
 
+    /**
+     * Getting to a person matters most when the bot isn't working well.
+     *
+     * @return
+     */
+    @Override
+    public boolean isEssential() {
+        return true;
+    }
+
 }
@@ -0,0 +1,262 @@
+package cloud.cleo.squareup.functions;
+
+import cloud.cleo.squareup.DegradationController;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.theokanning.openai.completion.chat.ChatFunction;
+import com.theokanning.openai.completion.chat.ChatFunctionCall;
+import com.theokanning.openai.service.FunctionExecutor;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the functions GPT asks for during one turn. Each call is run exactly once, bounded by the function's timeout,
+ * by how many calls to that function may be in flight across all turns (bulkhead), and by the turn deadline so a hung
+ * Square or SES call can't eat the whole Lambda timeout. Every call ends in a {@link Result}, never an exception.
+ *
+ * Timing out only stops waiting, the call itself keeps its bulkhead slot until it really finishes so a slow backend
+ * isn't hit with more calls than the limit.
+ *
+ * @author sjensen
+ */
+public class FunctionExecutionEngine {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(FunctionExecutionEngine.class);
+
+    /**
+     * Binds arguments the same way FunctionExecutor does.
+     */
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Time left at the deadline for GPT to answer with whatever the functions returned.
+     */
+    final static long DEADLINE_RESERVE_MILLIS = envLong("FUNCTION_DEADLINE_RESERVE_MILLIS", 4000);
+
+    /**
+     * Calls in flight per function name, across all turns in this JVM.
+     */
+    private final static Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    public enum Status {
+        /**
+         * Function returned a result.
+         */
+        OK,
+        /**
+         * Unknown function or arguments that don't bind to the Request class, nothing was run.
+         */
+        INVALID,
+        /**
+         * Function ran and failed.
+         */
+        FAILED,
+        /**
+         * Function didn't finish within its timeout.
+         */
+        TIMED_OUT,
+        /**
+         * Too many calls to this function in flight, nothing was run.
+         */
+        REJECTED,
+        /**
+         * Turn deadline too close to start or wait on the call.
+         */
+        DEADLINE
+    }
+
+    /**
+     * Outcome of one function call.
+     *
+     * @param name function name
+     * @param status
+     * @param value what the function returned (null unless OK)
+     * @param error what went wrong (null when OK)
+     * @param millis time from start to outcome
+     */
+    public record Result(String name, Status status, Object value, Throwable error, long millis) {
+
+        public boolean isOk() {
+            return status == Status.OK;
+        }
+    }
+
+    @Getter
+    private final FunctionExecutor executor;
+    private final long deadline;
+
+    /**
+     * Every call made this turn in order.
+     */
+    @Getter
+    private final List<Result> results = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param executor functions offered to GPT this turn
+     * @param deadline epoch millis the turn has to be answered by
+     */
+    public FunctionExecutionEngine(FunctionExecutor executor, long deadline) {
+        this.executor = executor;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Run a call GPT asked for, once.
+     *
+     * @param call
+     * @return future of the outcome, never completes exceptionally
+     */
+    public CompletableFuture<Result> execute(ChatFunctionCall call) {
+        final var name = call.getName();
+        final long start = System.currentTimeMillis();
+        final long wait = Math.min(getTimeoutMillis(name), deadline - DEADLINE_RESERVE_MILLIS - start);
+        if (wait <= 0) {
+            return done(new Result(name, Status.DEADLINE, null, new TimeoutException("Turn deadline too close to run " + name), 0));
+        }
+
+        // Bound before anything runs, so only a call GPT got wrong is INVALID
+        final ChatFunction function;
+        final Object request;
+        try {
+            function = functionOf(name);
+            request = bind(call, function);
+        } catch (IllegalArgumentException e) {
+            return done(new Result(name, Status.INVALID, null, e, System.currentTimeMillis() - start));
+        }
+
+        final var count = inFlight.computeIfAbsent(name, n -> new AtomicInteger());
+        if (count.incrementAndGet() > getMaxConcurrent(name)) {
+            count.decrementAndGet();
+            return done(new Result(name, Status.REJECTED, null, new IllegalStateException(name + " has too many calls in flight"), 0));
+        }
+
+        final var callFuture = invoke(function, request);
+        // Slot is held until the call itself is done, not just until we stop waiting
+        callFuture.whenComplete((r, t) -> count.decrementAndGet());
+
+        // The timeout is on a dependent copy, callFuture itself is never cancelled or timed out so the slot can't be freed
+        //  while the SDK call is still running
+        return callFuture.copy()
+                .thenApply(value -> new Result(name, Status.OK, value, null, System.currentTimeMillis() - start))
+                .orTimeout(wait, TimeUnit.MILLISECONDS)
+                .exceptionally(t -> {
+                    final var cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                    final long millis = System.currentTimeMillis() - start;
+                    if (cause instanceof TimeoutException) {
+                        final boolean byDeadline = wait < getTimeoutMillis(name);
+                        return new Result(name, byDeadline ? Status.DEADLINE : Status.TIMED_OUT, null,
+                                new TimeoutException(name + " did not finish in " + wait + " ms"), millis);
+                    }
+                    return new Result(name, Status.FAILED, null, cause, millis);
+                })
+                .thenApply(this::record);
+    }
+
+    /**
+     * Did every call this turn return a result.
+     *
+     * @return
+     */
+    public boolean allSucceeded() {
+        return results.stream().allMatch(Result::isOk);
+    }
+
+    private ChatFunction functionOf(String name) {
+        return executor.getFunctions().stream()
+                .filter(f -> f.getName().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown function " + name));
+    }
+
+    /**
+     * Arguments GPT sent as an instance of the function's Request class.
+     *
+     * @param call
+     * @param function
+     * @return
+     * @throws IllegalArgumentException when the arguments don't bind
+     */
+    private static Object bind(ChatFunctionCall call, ChatFunction function) {
+        final var arguments = call.getArguments();
+        try {
+            // GPT sometimes sends the arguments as a JSON string rather than an object
+            return mapper.readValue(arguments instanceof TextNode ? arguments.asText() : String.valueOf(arguments), function.getParametersClass());
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Arguments for " + function.getName() + " don't bind: " + e.getOriginalMessage(), e);
+        }
+    }
+
+    /**
+     * Run the function body, anything it throws fails the future so GPT is told the call failed.
+     *
+     * @param function
+     * @param request
+     * @return
+     */
+    private static CompletableFuture<?> invoke(ChatFunction function, Object request) {
+        try {
+            final var value = function.getExecutor().apply(request);
+            return value instanceof CompletableFuture<?> f ? f : CompletableFuture.completedFuture(value);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CompletableFuture<Result> done(Result result) {
+        return CompletableFuture.completedFuture(record(result));
+    }
+
+    private Result record(Result result) {
+        results.add(result);
+        final var func = AbstractFunction.getFunctionByName(result.name());
+        // A call cut off by the turn deadline timed the turn out, so it counts, one never started doesn't
+        final boolean ran = result.status() != Status.INVALID && !(result.status() == Status.DEADLINE && result.millis() == 0);
+        if (func != null && func.usesSquare() && ran) {
+            // The Square functions answer errors as an error_message result rather than failing
+            final boolean failed = !result.isOk() || (result.value() instanceof JsonNode node && node.has("error_message"));
+            DegradationController.recordSquare(result.millis(), failed);
+        }
+        if (result.isOk()) {
+            log.debug("Function " + result.name() + " OK in " + result.millis() + " ms");
+        } else {
+            log.warn("Function " + result.name() + " " + result.status() + " after " + result.millis() + " ms: " + result.error());
+        }
+        return result;
+    }
+
+    private static long getTimeoutMillis(String name) {
+        final var func = AbstractFunction.getFunctionByName(name);
+        return func != null ? func.getTimeoutMillis() : AbstractFunction.DEFAULT_TIMEOUT_MILLIS;
+    }
+
+    private static int getMaxConcurrent(String name) {
+        final var func = AbstractFunction.getFunctionByName(name);
+        return func != null ? func.getMaxConcurrent() : AbstractFunction.DEFAULT_MAX_CONCURRENT;
+    }
+
+    static long envLong(String name, long defaultValue) {
+        final var value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid " + name + " [" + value + "], using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
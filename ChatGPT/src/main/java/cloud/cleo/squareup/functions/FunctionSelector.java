@@ -0,0 +1,127 @@
+package cloud.cleo.squareup.functions;
+
+import static cloud.cleo.squareup.ChatGPTLambda.FACEBOOK_HANDOVER_FUNCTION_NAME;
+import static cloud.cleo.squareup.ChatGPTLambda.SWITCH_LANGUAGE_FUNCTION_NAME;
+import cloud.cleo.squareup.ChatGPTMessage;
+import cloud.cleo.squareup.ChatGPTSessionState;
+import cloud.cleo.squareup.fastpath.FastPathResponder;
+import com.theokanning.openai.completion.chat.ChatMessage;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Picks the functions worth offering GPT on a turn. Every function definition (description and JSON schema) is sent
+ * with every completion, so offering aws_cost_forecast to someone asking about candles costs prompt tokens and latency
+ * for nothing.
+ *
+ * The latest user messages are matched against keywords for each group of functions (the same kind of guess
+ * {@link ToolPrefetch} makes). Terminating functions (hang up, transfer, hold), language switching and the Messenger
+ * handover are always offered, and so is anything already called in the session since follow ups lean on it. When
+ * nothing matches the turn could be about anything, so everything is offered.
+ *
+ * Set FUNCTION_SELECTION to "off" to always offer everything.
+ *
+ * @author sjensen
+ */
+public class FunctionSelector {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(FunctionSelector.class);
+
+    private final static boolean ENABLED = !"off".equalsIgnoreCase(System.getenv("FUNCTION_SELECTION"));
+
+    /**
+     * User messages looked at, the current one and the ones before it.
+     */
+    private final static int RECENT_USER_MESSAGES = 3;
+
+    private final static Set<String> ALWAYS = Set.of(SWITCH_LANGUAGE_FUNCTION_NAME, FACEBOOK_HANDOVER_FUNCTION_NAME);
+
+    private final static Pattern ITEMS = Pattern.compile(
+            "\\b(have|carry|sell|stock|buy|price|prices|cost|items?|products?|categor\\w*|gifts?|shop|shopping|looking for|sale"
+            + "|tienen|venden|precio|regalos?|productos?|haben|verkaufen|preis|geschenke?|produkte?)\\b");
+
+    private final static Pattern DIRECTIONS = Pattern.compile(
+            "\\b(directions?|where|located|location|address|get there|how far|route|map|drive|driving"
+            + "|direccion|donde|ubicad\\w*|wo|adresse|wegbeschreibung)\\b");
+
+    private final static Pattern PRIVATE_SHOPPING = Pattern.compile(
+            "\\b(private|appointment|schedule|book|reserve|reservation|after hours|cita|reservar|termin|privat\\w*)\\b");
+
+    private final static Pattern AWS = Pattern.compile("\\b(aws|amazon web services|cost forecast|forecast)\\b");
+
+    /**
+     * Functions each keyword group points at.
+     */
+    private final static Map<Pattern, List<String>> GROUPS = Map.of(
+            ToolPrefetch.HOURS, List.of("store_hours"),
+            ITEMS, List.of("store_product_item", "store_product_categories"),
+            // Emails to the team need the address from team_members
+            ToolPrefetch.STAFF, List.of("team_members", "send_email_message"),
+            DIRECTIONS, List.of("driving_directions"),
+            PRIVATE_SHOPPING, List.of("schedule_private_shoping"),
+            AWS, List.of("aws_cost_forecast"));
+
+    private FunctionSelector() {
+    }
+
+    /**
+     * Filter for the functions to offer this turn.
+     *
+     * @param session with this turn's user message(s) added
+     * @return
+     */
+    public static Predicate<AbstractFunction> forTurn(ChatGPTSessionState session) {
+        if (!ENABLED) {
+            return f -> true;
+        }
+        final var selected = selectedNames(session.getMessages());
+        if (selected.isEmpty()) {
+            log.debug("No function keywords in turn, offering all functions");
+            return f -> true;
+        }
+        log.debug("Offering functions " + selected + " plus terminating functions");
+        return f -> f.isTerminating() || selected.contains(f.getName());
+    }
+
+    /**
+     * Names of the functions to offer besides the terminating ones.
+     *
+     * @param messages the session's conversation
+     * @return empty when nothing matched and everything should be offered
+     */
+    static Set<String> selectedNames(List<? extends ChatMessage> messages) {
+        final var recent = messages.stream()
+                .filter(m -> ChatGPTMessage.MessageRole.user.toString().equals(m.getRole()) && m.getContent() != null)
+                .map(m -> FastPathResponder.normalize(m.getContent()))
+                .toList();
+        final var text = String.join(" ", recent.subList(Math.max(0, recent.size() - RECENT_USER_MESSAGES), recent.size()));
+
+        final Set<String> selected = new HashSet<>();
+        GROUPS.forEach((pattern, names) -> {
+            if (pattern.matcher(text).find()) {
+                selected.addAll(names);
+            }
+        });
+        if (Arrays.stream(text.split(" ")).anyMatch(ToolPrefetch.knownNames::contains)) {
+            selected.addAll(GROUPS.get(ToolPrefetch.STAFF));
+        }
+        if (selected.isEmpty()) {
+            return selected;
+        }
+
+        // Already used in this conversation, likely to come up again
+        messages.stream()
+                .filter(m -> m.getFunctionCall() != null)
+                .forEach(m -> selected.add(m.getFunctionCall().getName()));
+        selected.addAll(ALWAYS);
+        return selected;
+    }
+}
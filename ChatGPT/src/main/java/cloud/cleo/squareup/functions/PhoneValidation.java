@@ -0,0 +1,150 @@
+package cloud.cleo.squareup.functions;
+
+import static cloud.cleo.squareup.ChatGPTLambda.crtAsyncHttpClient;
+import static cloud.cleo.squareup.ChatGPTLambda.enhancedClient;
+import cloud.cleo.squareup.cassette.Cassette;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.pinpoint.PinpointAsyncClient;
+
+/**
+ * Pinpoint phone number validation, which costs money and a round trip, looked up once per number rather than once
+ * per call.
+ *
+ * Numbers are held in a bounded in-memory LRU (lookups in flight included, so two turns asking at once share one
+ * call) in front of the phone table (PHONE_TABLE_NAME), so every instance in the region benefits from a number any of
+ * them validated. Each region's stack creates its own table, so a number is validated at most once per region. Entries
+ * age out on the Dynamo TTL since numbers get ported. Without PHONE_TABLE_NAME only the LRU is used.
+ *
+ * With the table configured the lookup is started as soon as a voice turn has the calling number ({@link #prefetch}),
+ * so it is done by the time GPT decides to text directions.
+ *
+ * @author sjensen
+ */
+public class PhoneValidation {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(PhoneValidation.class);
+
+    private final static String TABLE_NAME = System.getenv("PHONE_TABLE_NAME");
+
+    private final static DynamoDbAsyncTable<ValidatedNumber> table = TABLE_NAME == null || TABLE_NAME.isBlank() ? null
+            : enhancedClient.table(TABLE_NAME, TableSchema.fromBean(ValidatedNumber.class));
+
+    private final static PinpointAsyncClient pinpointAsyncClient = PinpointAsyncClient.builder()
+            .httpClient(crtAsyncHttpClient)
+            .build();
+
+    private final static int MAX_ENTRIES = 1000;
+
+    private final static Duration TTL = Duration.ofDays(30);
+
+    /**
+     * Phone type by number, least recently used dropped first.
+     */
+    private final static Map<String, CompletableFuture<String>> lru = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<String>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private PhoneValidation() {
+    }
+
+    /**
+     * Start validating a caller's number if it isn't known yet. Only done when the phone table is configured, otherwise
+     * the lookup waits until a function needs it.
+     *
+     * @param e164
+     */
+    public static void prefetch(String e164) {
+        if (table == null || e164 == null || !AbstractFunction.US_E164_PATTERN.matcher(e164).matches() || Cassette.getInstance().isPriming()) {
+            return;
+        }
+        phoneType(e164);
+    }
+
+    /**
+     * The Pinpoint phone type of a number (MOBILE, LANDLINE, VOIP, INVALID, PREPAID, OTHER).
+     *
+     * @param e164
+     * @return future of the type, a failed lookup fails the future and is not cached
+     */
+    public static CompletableFuture<String> phoneType(String e164) {
+        final CompletableFuture<String> lookup;
+        synchronized (lru) {
+            final var cached = lru.get(e164);
+            if (cached != null && !cached.isCompletedExceptionally()) {
+                return cached;
+            }
+            lookup = new CompletableFuture<>();
+            lru.put(e164, lookup);
+        }
+
+        fromTable(e164)
+                .thenCompose(type -> type != null ? CompletableFuture.completedFuture(type) : fromPinpoint(e164))
+                .whenComplete((type, t) -> {
+                    if (t != null) {
+                        synchronized (lru) {
+                            lru.remove(e164, lookup);
+                        }
+                        lookup.completeExceptionally(t);
+                    } else {
+                        lookup.complete(type);
+                    }
+                });
+        return lookup;
+    }
+
+    private static CompletableFuture<String> fromTable(String e164) {
+        if (table == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return table.getItem(Key.builder().partitionValue(e164).build())
+                .thenApply(item -> {
+                    if (item != null) {
+                        log.debug("Using stored Pinpoint validation for " + e164 + ": " + item.getPhoneType());
+                    }
+                    return item != null ? item.getPhoneType() : null;
+                })
+                .exceptionally(t -> {
+                    // The table is only a cache, Pinpoint still answers
+                    log.warn("Phone table lookup failed", t);
+                    return null;
+                });
+    }
+
+    private static CompletableFuture<String> fromPinpoint(String e164) {
+        log.debug("Validating " + e164 + " with Pinpoint");
+        return pinpointAsyncClient
+                .phoneNumberValidate(t -> t.numberValidateRequest(r -> r.isoCountryCode("US").phoneNumber(e164)))
+                .thenApply(res -> {
+                    final var response = res.numberValidateResponse();
+                    log.debug("Pinpoint returned " + response);
+                    if (table != null) {
+                        final var now = Instant.now();
+                        final var item = new ValidatedNumber();
+                        item.setPhoneNumber(e164);
+                        item.setPhoneType(response.phoneType());
+                        item.setCarrier(response.carrier());
+                        item.setValidatedAt(now.toEpochMilli());
+                        item.setTtl(now.plus(TTL).getEpochSecond());
+                        // Don't hold up the caller on the write
+                        table.putItem(item).exceptionally(t -> {
+                            log.warn("Unable to store Pinpoint validation for " + e164, t);
+                            return null;
+                        });
+                    }
+                    return response.phoneType();
+                });
+    }
+}
@@ -2,9 +2,11 @@ package cloud.cleo.squareup.functions;
 
 import static cloud.cleo.squareup.ChatGPTLambda.crtAsyncHttpClient;
 import cloud.cleo.squareup.FaceBookOperations;
+import cloud.cleo.squareup.outbox.Outbox;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyDescription;
-import java.util.concurrent.CompletionException;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import software.amazon.awssdk.services.ses.SesAsyncClient;
 
@@ -44,34 +46,14 @@ public class SendEmail<Request> extends AbstractFunction {
         return (var r) -> {
 
             try {
-                // Put the callingNumber in the subject if it exists, it might not if using lex console for example
-                final String subject = switch (getChannelPlatform()) {
-                    case CHIME, CONNECT ->
-                        "[From Voice " + getCallingNumber() + "] " + r.subject;
-                    case TWILIO ->
-                        "[From SMS " + getCallingNumber() + "] " + r.subject;
+                // Facebook users are named in the subject, the name lookup is cached so usually already there
+                final CompletableFuture<String> from = switch (getChannelPlatform()) {
                     case FACEBOOK ->
-                        "[From Facebook User " + FaceBookOperations.getFacebookName(getSessionId()) + "] " + r.subject;
+                        FaceBookOperations.getFacebookName(getSessionId()).thenApply(name -> "[From Facebook User " + name + "] ");
                     default ->
-                        "[From " + getChannelPlatform() + "/" + getSessionId() + "] " + r.subject;
+                        CompletableFuture.completedFuture(fromPrefix());
                 };
-
-                final var id = sesAsyncClient.sendEmail((email) -> {
-                    email.destination(dest -> dest.toAddresses(r.employee_email))
-                            .message((mesg) -> {
-                                mesg.body((body) -> {
-                                    body.text(cont -> cont.data(r.message));
-                                }).subject(cont -> cont.data(subject));
-                            }).source("chatgpt@copperfoxgifts.com");
-                }).join();
-
-                log.info("Sent email to " + r.employee_email + " with id " + id.messageId());
-                log.info("Subject: " + subject);
-                log.info("Message: " + r.message);
-                return mapper.createObjectNode().put("status", "SUCCESS").put("message", "The email has been successfuly sent.");
-            } catch (CompletionException e) {
-                log.error("Unhandled Error", e.getCause());
-                return mapper.createObjectNode().put("status", "FAILED").put("message", "An error has occurred, the email could not be sent.");
+                return from.thenCompose(prefix -> send(r, prefix + r.subject));
             } catch (Exception e) {
                 log.error("Unhandled Error", e);
                 return mapper.createObjectNode().put("status", "FAILED").put("message", "An error has occurred, the email could not be sent.");
@@ -79,6 +61,50 @@ public class SendEmail<Request> extends AbstractFunction {
         };
     }
 
+    /**
+     * Put the callingNumber in the subject if it exists, it might not if using lex console for example.
+     */
+    private String fromPrefix() {
+        return switch (getChannelPlatform()) {
+            case CHIME, CONNECT ->
+                "[From Voice " + getCallingNumber() + "] ";
+            case TWILIO ->
+                "[From SMS " + getCallingNumber() + "] ";
+            default ->
+                "[From " + getChannelPlatform() + "/" + getSessionId() + "] ";
+        };
+    }
+
+    private CompletableFuture<ObjectNode> send(Request r, String subject) {
+        if (Outbox.isEnabled()) {
+            // Caller doesn't wait on SES, the dispatcher sends it (once, even if this turn is retried)
+            return Outbox.enqueue(Outbox.email(getSessionId(), r.employee_email, subject, r.message)).thenApply(queued -> {
+                log.info("Email to " + r.employee_email + (queued ? " queued" : " was already queued"));
+                return mapper.createObjectNode().put("status", "SUCCESS").put("message", "The email will be sent shortly.");
+            }).exceptionally(t -> {
+                log.error("Unhandled Error", unwrap(t));
+                return mapper.createObjectNode().put("status", "FAILED").put("message", "An error has occurred, the email could not be sent.");
+            });
+        }
+
+        return sesAsyncClient.sendEmail((email) -> {
+            email.destination(dest -> dest.toAddresses(r.employee_email))
+                    .message((mesg) -> {
+                        mesg.body((body) -> {
+                            body.text(cont -> cont.data(r.message));
+                        }).subject(cont -> cont.data(subject));
+                    }).source("chatgpt@copperfoxgifts.com");
+        }).thenApply(id -> {
+            log.info("Sent email to " + r.employee_email + " with id " + id.messageId());
+            log.info("Subject: " + subject);
+            log.info("Message: " + r.message);
+            return mapper.createObjectNode().put("status", "SUCCESS").put("message", "The email has been successfuly sent.");
+        }).exceptionally(t -> {
+            log.error("Unhandled Error", unwrap(t));
+            return mapper.createObjectNode().put("status", "FAILED").put("message", "An error has occurred, the email could not be sent.");
+        });
+    }
+
     private static class Request {
 
         @JsonPropertyDescription("The employee email address")
@@ -104,4 +130,14 @@ public class SendEmail<Request> extends AbstractFunction {
         return isSquareEnabled();
     }
 
+    /**
+     * Leaving a message for the team matters most when the bot isn't working well.
+     *
+     * @return
+     */
+    @Override
+    public boolean isEssential() {
+        return true;
+    }
+
 }
@@ -43,23 +43,28 @@ public class SquareCategories<Request> extends AbstractFunction {
     public Function<Request, Object> getExecutor() {
         return (var r) -> {
             try {
-                final var objects = getSquareClient().getCatalogApi()
+                return getSquareClient().getCatalogApi()
                         // Only retrieve Category objects
-                        .searchCatalogObjects(new SearchCatalogObjectsRequest.Builder()
+                        .searchCatalogObjectsAsync(new SearchCatalogObjectsRequest.Builder()
                                 .includeDeletedObjects(false)
                                 .objectTypes(List.of("CATEGORY"))
                                 .query(new CatalogQuery.Builder().textQuery(new CatalogQueryText(List.of(r.search_text))).build())
                                 .build())
-                        .getObjects();
-
-                if (objects != null && !objects.isEmpty()) {
-                    return objects.stream()
-                            // Map these down to just the cat name
-                            .map(cat -> cat.getCategoryData().getName())
-                            .toList();
-                } else {
-                    return mapper.createObjectNode().put("message", "No categories match the search query");
-                }
+                        .<Object>thenApply(res -> {
+                            final var objects = res.getObjects();
+                            if (objects != null && !objects.isEmpty()) {
+                                return objects.stream()
+                                        // Map these down to just the cat name
+                                        .map(cat -> cat.getCategoryData().getName())
+                                        .toList();
+                            } else {
+                                return mapper.createObjectNode().put("message", "No categories match the search query");
+                            }
+                        })
+                        .exceptionally(t -> {
+                            log.error("Unhandled Error", unwrap(t));
+                            return mapper.createObjectNode().put("error_message", unwrap(t).getLocalizedMessage());
+                        });
             } catch (Exception ex) {
                 log.error("Unhandled Error",ex);
                 return mapper.createObjectNode().put("error_message", ex.getLocalizedMessage());
@@ -67,6 +72,16 @@ public class SquareCategories<Request> extends AbstractFunction {
         };
     }
 
+    /**
+     * Read only lookup, same answer for everyone.
+     *
+     * @return
+     */
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     private static class Request {
 
         @JsonPropertyDescription("the search text to search for item categories in English Language")
@@ -80,4 +95,14 @@ public class SquareCategories<Request> extends AbstractFunction {
         return isSquareEnabled();
     }
 
+    /**
+     * Catalog API call on every use.
+     *
+     * @return
+     */
+    @Override
+    public boolean usesSquare() {
+        return true;
+    }
+
 }
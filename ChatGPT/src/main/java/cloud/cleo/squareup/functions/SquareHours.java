@@ -11,7 +11,6 @@ import static java.time.DayOfWeek.SUNDAY;
 import static java.time.DayOfWeek.THURSDAY;
 import static java.time.DayOfWeek.TUESDAY;
 import static java.time.DayOfWeek.WEDNESDAY;
-import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.ZoneId;
@@ -54,26 +53,30 @@ public class SquareHours<Request> extends AbstractFunction {
     public Function<Request, Object> getExecutor() {
         return (var r) -> {
             try {
-                final var loc = getSquareClient().getLocationsApi().retrieveLocation(System.getenv("SQUARE_LOCATION_ID")).getLocation();
-                final var bh = new BusinessHours(loc);
+                return StoreData.getLocation().<Object>thenApply(loc -> {
+                    final var bh = new BusinessHours(loc);
                 
-                final var tz = ZoneId.of(loc.getTimezone());
-                final var now = ZonedDateTime.now(tz);
-                final var dow = now.getDayOfWeek();
-
-                /**
-                 * GPT gives wrong information sometimes saying its open when store is closed.
-                 * Giving it the concrete status of OPEN or CLOSED seems to help with a timestamp.
-                 * Sometimes even though it knows the date, it says the wrong day of week too, so added that as well
-                 * returning all this info vs just the periods seems to fix everything and I can't get it to return wrong answer anymore
-                 */
-                final ObjectNode json = mapper.createObjectNode();
-                json.put("open_closed_status", bh.isOpen() ? "OPEN" : "CLOSED");
-                json.put("current_date_time", now.toString());
-                json.put("current_day_of_week", now.getDayOfWeek().getDisplayName(TextStyle.SHORT, Locale.US).toUpperCase());
-                json.putPOJO("open_hours", loc.getBusinessHours().getPeriods());
+                    final var tz = ZoneId.of(loc.getTimezone());
+                    final var now = ZonedDateTime.now(StoreData.getClock().withZone(tz));
+                    final var dow = now.getDayOfWeek();
+
+                    /**
+                     * GPT gives wrong information sometimes saying its open when store is closed.
+                     * Giving it the concrete status of OPEN or CLOSED seems to help with a timestamp.
+                     * Sometimes even though it knows the date, it says the wrong day of week too, so added that as well
+                     * returning all this info vs just the periods seems to fix everything and I can't get it to return wrong answer anymore
+                     */
+                    final ObjectNode json = mapper.createObjectNode();
+                    json.put("open_closed_status", bh.isOpen() ? "OPEN" : "CLOSED");
+                    json.put("current_date_time", now.toString());
+                    json.put("current_day_of_week", now.getDayOfWeek().getDisplayName(TextStyle.SHORT, Locale.US).toUpperCase());
+                    json.putPOJO("open_hours", loc.getBusinessHours().getPeriods());
                 
-                return json;
+                    return json;
+                }).exceptionally(t -> {
+                    log.error("Unhandled Error", unwrap(t));
+                    return mapper.createObjectNode().put("error_message", unwrap(t).getLocalizedMessage());
+                });
             } catch (Exception ex) {
                 log.error("Unhandled Error",ex);
                 return mapper.createObjectNode().put("error_message", ex.getLocalizedMessage());
@@ -81,10 +84,30 @@ public class SquareHours<Request> extends AbstractFunction {
         };
     }
 
+    /**
+     * Read only lookup, same answer for everyone.
+     *
+     * @return
+     */
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    /**
+     * Answered from cached store data, so it still works when things are degraded.
+     *
+     * @return
+     */
+    @Override
+    public boolean isEssential() {
+        return true;
+    }
+
     private static class Request {
     }
 
-    private static class BusinessHours extends ArrayList<OpenPeriod> {
+    static class BusinessHours extends ArrayList<OpenPeriod> {
 
         private final Location loc;
 
@@ -96,8 +119,8 @@ public class SquareHours<Request> extends AbstractFunction {
         public boolean isOpen() {
             final var tz = ZoneId.of(loc.getTimezone());
             // The current time in the TZ
-            final var now = ZonedDateTime.now(tz);
-            final var today = LocalDate.now(tz);
+            final var now = ZonedDateTime.now(StoreData.getClock().withZone(tz));
+            final var today = now.toLocalDate();
 
             // The Day of Week
             final var dow = now.getDayOfWeek();
@@ -115,10 +138,20 @@ public class SquareHours<Request> extends AbstractFunction {
             // We don't have any entries for today, so definitely closed
             return false;
         }
+
+        /**
+         * Does an open period start later today.
+         *
+         * @return
+         */
+        public boolean opensLaterToday() {
+            final var now = ZonedDateTime.now(StoreData.getClock().withZone(ZoneId.of(loc.getTimezone())));
+            return stream().anyMatch(p -> p.getDow().equals(now.getDayOfWeek()) && now.toLocalTime().isBefore(p.getStart()));
+        }
     }
 
-    @Getter(AccessLevel.PRIVATE)
-    private static class OpenPeriod {
+    @Getter(AccessLevel.PACKAGE)
+    static class OpenPeriod {
 
         final DayOfWeek dow;
         final LocalTime start;
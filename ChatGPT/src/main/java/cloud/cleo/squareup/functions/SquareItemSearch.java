@@ -40,20 +40,25 @@ public class SquareItemSearch<Request> extends AbstractFunction {
     public Function<Request, Object> getExecutor() {
         return (var r) -> {
             try {
-                var items = getSquareClient().getCatalogApi()
-                        .searchCatalogItems(new SearchCatalogItemsRequest.Builder().textFilter(r.search_text).limit(5).build())
-                        .getItems();
-
-                if (items != null && !items.isEmpty()) {
-                    return items
-                            .stream()
-                            .map(item -> item.getItemData())
-                            // Just return item names 
-                            .map(l -> l.getName())
-                            .toList();
-                } else {
-                    return mapper.createObjectNode().put("message", "No items match the search query");
-                }
+                return getSquareClient().getCatalogApi()
+                        .searchCatalogItemsAsync(new SearchCatalogItemsRequest.Builder().textFilter(r.search_text).limit(5).build())
+                        .<Object>thenApply(res -> {
+                            final var items = res.getItems();
+                            if (items != null && !items.isEmpty()) {
+                                return items
+                                        .stream()
+                                        .map(item -> item.getItemData())
+                                        // Just return item names 
+                                        .map(l -> l.getName())
+                                        .toList();
+                            } else {
+                                return mapper.createObjectNode().put("message", "No items match the search query");
+                            }
+                        })
+                        .exceptionally(t -> {
+                            log.error("Unhandled Error", unwrap(t));
+                            return mapper.createObjectNode().put("error_message", unwrap(t).getLocalizedMessage());
+                        });
             } catch (Exception ex) {
                 log.error("Unhandled Error",ex);
                 return mapper.createObjectNode().put("error_message", ex.getLocalizedMessage());
@@ -73,4 +78,14 @@ public class SquareItemSearch<Request> extends AbstractFunction {
         return isSquareEnabled();
     }
 
+    /**
+     * Catalog API call on every use.
+     *
+     * @return
+     */
+    @Override
+    public boolean usesSquare() {
+        return true;
+    }
+
 }
@@ -42,13 +42,17 @@ public class SquareTeamMembers<Request> extends AbstractFunction {
         return (var r) -> {
             try {
                 return getSquareClient().getTeamApi()
-                        .searchTeamMembers(new SearchTeamMembersRequest.Builder().query(new SearchTeamMembersQuery.Builder()
+                        .searchTeamMembersAsync(new SearchTeamMembersRequest.Builder().query(new SearchTeamMembersQuery.Builder()
                                 // Only return active employees at the defined location
                                 .filter(new SearchTeamMembersFilter.Builder().status("ACTIVE").locationIds(List.of(System.getenv("SQUARE_LOCATION_ID"))).build())
                                 .build()).build())
-                        .getTeamMembers().stream()
-                        .map(tm -> new Response(tm))
-                        .toList();
+                        .<Object>thenApply(res -> res.getTeamMembers().stream()
+                                .map(tm -> new Response(tm))
+                                .toList())
+                        .exceptionally(t -> {
+                            log.error("Unhandled Error", unwrap(t));
+                            return mapper.createObjectNode().put("error_message", unwrap(t).getLocalizedMessage());
+                        });
             } catch (Exception ex) {
                 log.error("Unhandled Error",ex);
                 return mapper.createObjectNode().put("error_message", ex.getLocalizedMessage());
@@ -83,4 +87,15 @@ public class SquareTeamMembers<Request> extends AbstractFunction {
     protected boolean isEnabled() {
         return isSquareEnabled();
     }
+
+    /**
+     * Team API call on every use.
+     *
+     * @return
+     */
+    @Override
+    public boolean usesSquare() {
+        return true;
+    }
+
 }
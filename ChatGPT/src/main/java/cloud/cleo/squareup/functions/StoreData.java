@@ -0,0 +1,158 @@
+package cloud.cleo.squareup.functions;
+
+import cloud.cleo.squareup.DegradationController;
+import com.squareup.square.models.Location;
+import java.time.Clock;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Store data from Square that hardly ever changes (location, address, business hours), cached so the store_hours
+ * function and the fast path answers don't call Square on every turn.
+ *
+ * @author sjensen
+ */
+public class StoreData {
+
+    /**
+     * How long a location lookup is used before asking Square again.
+     */
+    private final static long TTL_MILLIS = Duration.ofMinutes(5).toMillis();
+
+    private static volatile CompletableFuture<Location> location;
+    private static volatile long loadedAt;
+
+    /**
+     * What "now" is for store hours, the open or closed status and the date GPT is told.
+     */
+    private static volatile Clock clock = Clock.systemUTC();
+
+    /**
+     * One open period of the week.
+     *
+     * @param dow
+     * @param start
+     * @param end
+     */
+    public record Period(DayOfWeek dow, LocalTime start, LocalTime end) {
+
+    }
+
+    private StoreData() {
+    }
+
+    /**
+     * The Square location, from cache when it's fresh. A failed lookup is not cached.
+     *
+     * @return
+     */
+    public static CompletableFuture<Location> getLocation() {
+        if (!AbstractFunction.isSquareEnabled()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Square is not enabled"));
+        }
+        var current = location;
+        if (current != null && current.isDone() && !current.isCompletedExceptionally()
+                && DegradationController.getMode().atLeast(DegradationController.Mode.CACHED_ONLY)) {
+            // Square is struggling, hours from a while ago beat waiting on it
+            return current;
+        }
+        if (current == null || System.currentTimeMillis() - loadedAt > TTL_MILLIS || current.isCompletedExceptionally()) {
+            // Two turns racing here both look it up, no harm
+            final long start = System.currentTimeMillis();
+            current = AbstractFunction.getSquareClient().getLocationsApi()
+                    .retrieveLocationAsync(System.getenv("SQUARE_LOCATION_ID"))
+                    .thenApply(res -> res.getLocation())
+                    .whenComplete((loc, t) -> DegradationController.recordSquare(System.currentTimeMillis() - start, t != null));
+            location = current;
+            loadedAt = System.currentTimeMillis();
+        }
+        return current;
+    }
+
+    /**
+     * The clock answers about the store are given as of, the system clock unless the FAQ mining job has set it.
+     *
+     * @return
+     */
+    public static Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Answer as of another time, only for the FAQ mining job which warms answers for times in the coming day. Turns
+     * always run on the system clock.
+     *
+     * @param clock
+     */
+    public static void setClock(Clock clock) {
+        StoreData.clock = clock;
+    }
+
+    /**
+     * Version of what answers about the store depend on: the hours and address, the date (GPT is told the date) and
+     * where the store is in its day (see {@link #getStatus(Location)}). Anything cached under an older version is stale.
+     *
+     * @return
+     */
+    public static CompletableFuture<String> getVersion() {
+        final var today = LocalDate.now(clock.withZone(ZoneId.of("America/Chicago"))).toString();
+        if (!AbstractFunction.isSquareEnabled()) {
+            return CompletableFuture.completedFuture(today);
+        }
+        return getLocation().thenApply(loc -> {
+            final var data = String.valueOf(loc.getBusinessHours()) + loc.getAddress() + loc.getTimezone();
+            return Integer.toHexString(data.hashCode()) + "-" + today + "-" + getStatus(loc);
+        });
+    }
+
+    /**
+     * Drop the cache. Called before a SnapStart checkpoint since priming fills it from the priming cassette.
+     */
+    public static void clear() {
+        location = null;
+    }
+
+    /**
+     * Is the store open right now.
+     *
+     * @param loc
+     * @return
+     */
+    public static boolean isOpen(Location loc) {
+        return new SquareHours.BusinessHours(loc).isOpen();
+    }
+
+    /**
+     * Where the store is in its day: "open", "before-open" when it opens later today, otherwise "closed". Answers
+     * before opening ("we open at 10 today") and after closing ("we open tomorrow at 10") differ, so they are told apart.
+     *
+     * @param loc
+     * @return
+     */
+    public static String getStatus(Location loc) {
+        final var hours = new SquareHours.BusinessHours(loc);
+        if (hours.isOpen()) {
+            return "open";
+        }
+        return hours.opensLaterToday() ? "before-open" : "closed";
+    }
+
+    /**
+     * Open periods in day of week order (Monday first).
+     *
+     * @param loc
+     * @return
+     */
+    public static List<Period> getHours(Location loc) {
+        return new SquareHours.BusinessHours(loc).stream()
+                .map(p -> new Period(p.getDow(), p.getStart(), p.getEnd()))
+                .sorted(Comparator.comparing(Period::dow).thenComparing(Period::start))
+                .toList();
+    }
+}
@@ -0,0 +1,146 @@
+package cloud.cleo.squareup.functions;
+
+import cloud.cleo.squareup.LexV2EventWrapper;
+import cloud.cleo.squareup.fastpath.FastPathResponder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Starts the Square call behind a function while the completion is still running, when the transcript makes it
+ * obvious GPT is going to ask for it (hours questions for store_hours, "do you have candles" for store_product_item,
+ * asking for someone for team_members). When GPT then calls the function with the same arguments the result is
+ * already there or on its way, instead of the Square call starting only once the completion returns. A wrong guess
+ * costs one unused Square call.
+ *
+ * One instance per turn. Set TOOL_PREFETCH to "off" to disable.
+ *
+ * @author sjensen
+ */
+public class ToolPrefetch {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(ToolPrefetch.class);
+
+    // Most requests have no fields, those still make a key ("{}")
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+
+    private final static boolean ENABLED = !"off".equalsIgnoreCase(System.getenv("TOOL_PREFETCH"));
+
+    final static Pattern HOURS = Pattern.compile(
+            "\\b(hours?|open|opens|close|closes|closed|closing|opening|horarios?|abierto|abren|cierran|offnungszeiten|geoffnet|offen|schliessen)\\b");
+
+    /**
+     * Item search text GPT sends is in English, so only English phrasing is guessed at.
+     */
+    private final static Pattern ITEM = Pattern.compile(
+            "\\b(?:do you|does the store|you guys) (?:have|carry|sell|stock)(?: any| some| a| an)? (.+?)(?: in stock| for sale| today| right now)?$"
+            + "|\\b(?:looking for|shopping for|searching for)(?: any| some| a| an)? (.+)$");
+
+    private final static String TEAM_MEMBERS = "team_members";
+
+    final static Pattern STAFF = Pattern.compile(
+            "\\b(speak|talk|transfer|connect|employee|staff|owner|manager|working today|leave a message|message for|email)\\b");
+
+    /**
+     * First names seen in team_members results, asking for one of them by name is asking for team_members.
+     */
+    final static Set<String> knownNames = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, CompletableFuture<Object>> started = new ConcurrentHashMap<>();
+
+    /**
+     * Start whatever the transcript points at. Call once per turn, before the first completion.
+     *
+     * @param lexRequest
+     */
+    public void start(LexV2EventWrapper lexRequest) {
+        final var input = lexRequest.getInputTranscript();
+        if (!ENABLED || !AbstractFunction.isSquareEnabled() || input == null || input.isBlank()) {
+            return;
+        }
+        guesses(FastPathResponder.normalize(input)).forEach((name, args) -> {
+            final var call = prefetch(name, args);
+            if (TEAM_MEMBERS.equals(name)) {
+                call.thenAccept(ToolPrefetch::learnNames);
+            }
+        });
+    }
+
+    /**
+     * The calls GPT looks likely to make for a transcript.
+     *
+     * @param text normalized transcript
+     * @return function name to arguments, in the order to start them
+     */
+    static Map<String, Map<String, String>> guesses(String text) {
+        final Map<String, Map<String, String>> guesses = new LinkedHashMap<>();
+        if (HOURS.matcher(text).find()) {
+            guesses.put("store_hours", Map.of());
+        }
+
+        final var item = ITEM.matcher(text);
+        if (item.find()) {
+            final var searchText = item.group(1) != null ? item.group(1) : item.group(2);
+            guesses.put("store_product_item", Map.of("search_text", searchText));
+        }
+
+        if (STAFF.matcher(text).find() || Arrays.stream(text.split(" ")).anyMatch(knownNames::contains)) {
+            guesses.put(TEAM_MEMBERS, Map.of());
+        }
+        return guesses;
+    }
+
+    /**
+     * The prefetched result for a call, if one was started with the same arguments.
+     *
+     * @param name function name
+     * @param request the request GPT's arguments bound to
+     * @return future of the result, or null to run the function
+     */
+    CompletableFuture<Object> take(String name, Object request) {
+        final var call = started.remove(key(name, request));
+        if (call != null) {
+            log.debug("Using prefetched " + name);
+        }
+        return call;
+    }
+
+    private CompletableFuture<Object> prefetch(String name, Map<String, String> args) {
+        final var func = AbstractFunction.getFunctionByName(name);
+        if (func == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final var request = mapper.convertValue(args, func.getRequestClass());
+        log.debug("Prefetching " + name + " " + args);
+        final var result = func.getExecutor().apply(request);
+        final var call = result instanceof CompletableFuture<?> f ? f.thenApply(r -> (Object) r) : CompletableFuture.completedFuture(result);
+        started.put(key(name, request), call);
+        return call;
+    }
+
+    /**
+     * Function name and arguments as JSON, case folded so "Candles" and "candles" are the same call.
+     */
+    private static String key(String name, Object request) {
+        return name + mapper.valueToTree(request).toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static void learnNames(Object teamMembers) {
+        if (teamMembers != null) {
+            mapper.valueToTree(teamMembers).findValuesAsText("first_name").stream()
+                    .filter(n -> n != null && !n.isBlank())
+                    .forEach(n -> knownNames.add(FastPathResponder.normalize(n)));
+        }
+    }
+}
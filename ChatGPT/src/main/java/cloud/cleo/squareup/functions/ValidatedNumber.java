@@ -0,0 +1,38 @@
+package cloud.cleo.squareup.functions;
+
+import lombok.Data;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+
+/**
+ * A Pinpoint validated phone number in the phone table.
+ *
+ * @author sjensen
+ */
+@DynamoDbBean
+@Data
+public class ValidatedNumber {
+
+    /**
+     * E164 number.
+     */
+    private String phoneNumber;
+    /**
+     * Pinpoint phone type (MOBILE, LANDLINE, VOIP, INVALID, PREPAID, OTHER).
+     */
+    private String phoneType;
+    private String carrier;
+    /**
+     * Epoch millis of the Pinpoint lookup.
+     */
+    private Long validatedAt;
+    /**
+     * Unix timestamp when Dynamo should delete the entry, numbers get ported so they are looked up again eventually.
+     */
+    private Long ttl;
+
+    @DynamoDbPartitionKey
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+}
@@ -0,0 +1,17 @@
+package cloud.cleo.squareup.json;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.theokanning.openai.completion.chat.ChatFunction;
+
+/**
+ * Jackson mix-in for {@link ChatFunction} so the parameters schema comes from {@link FunctionSchemaSerializer}.
+ *
+ * @author sjensen
+ */
+public abstract class ChatFunctionMixIn {
+
+    @JsonProperty("parameters")
+    @JsonSerialize(using = FunctionSchemaSerializer.class)
+    private Class<?> parametersClass;
+}
@@ -0,0 +1,35 @@
+package cloud.cleo.squareup.json;
+
+import cloud.cleo.squareup.functions.AbstractFunction;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.theokanning.openai.service.ChatFunctionParametersSerializer;
+import java.io.IOException;
+
+/**
+ * Writes a function's parameters schema from the registry generated at build time, rather than generating it from the
+ * Request class on every completion call. Falls back to the OpenAI library serializer for anything not in the
+ * registry.
+ *
+ * @author sjensen
+ */
+public class FunctionSchemaSerializer extends StdSerializer<Class<?>> {
+
+    private final static ChatFunctionParametersSerializer fallback = new ChatFunctionParametersSerializer();
+
+    @SuppressWarnings("unchecked")
+    public FunctionSchemaSerializer() {
+        super((Class<Class<?>>) (Class<?>) Class.class);
+    }
+
+    @Override
+    public void serialize(Class<?> requestClass, JsonGenerator jg, SerializerProvider sp) throws IOException {
+        final var schema = AbstractFunction.getParametersSchema(requestClass);
+        if (schema != null) {
+            jg.writeRawValue(schema);
+        } else {
+            fallback.serialize(requestClass, jg, sp);
+        }
+    }
+}
@@ -29,6 +29,30 @@ public class LangBundle extends ListResourceBundle {
         {CHATGPT_RESPONSE_LANGUAGE.toString(), "Please respond to all prompts in English.  "},
         // Thank you for calling, goodbye.
         {GOODBYE.toString(), "Thank you for calling, goodbye."},
+        // Thanks for reaching out, have a great day!
+        {GOODBYE_TEXT.toString(), "Thanks for reaching out, have a great day!"},
+        // You're welcome!
+        {THANKS_RESPONSE.toString(), "You're welcome!"},
+        // We are {0} right now.  Our hours are {1}.
+        {STORE_HOURS.toString(), "We are {0} right now.  Our hours are {1}."},
+        // open
+        {STORE_OPEN_NOW.toString(), "open"},
+        // closed
+        {STORE_CLOSED_NOW.toString(), "closed"},
+        // {0} {1} to {2}
+        {HOURS_RANGE.toString(), "{0} {1} to {2}"},
+        // We are located at {0}.
+        {STORE_LOCATION.toString(), "We are located at {0}."},
+        // Sorry, I can only understand speech, press zero to speak with someone, otherwise tell me how I can help?
+        {DTMF_NOT_SUPPORTED.toString(), "Sorry, I can only understand speech, press zero to speak with someone, otherwise tell me how I can help?"},
+        // Please hold while I transfer you.
+        {TRANSFER_OPERATOR.toString(), "Please hold while I transfer you."},
+        // You're sending messages faster than I can answer them, please wait a few minutes and try again.
+        {RATE_LIMITED.toString(), "You're sending messages faster than I can answer them, please wait a few minutes and try again."},
+        // Sorry, I'm having trouble right now, let me transfer you to someone who can help.
+        {DEGRADED_TRANSFER.toString(), "Sorry, I'm having trouble right now, let me transfer you to someone who can help."},
+        // Sorry, I am having trouble answering right now. Please call the store at {0} or try again in a few minutes.
+        {DEGRADED_TEXT.toString(), "Sorry, I am having trouble answering right now. Please call the store at {0} or try again in a few minutes."},
     };
 
     @Override
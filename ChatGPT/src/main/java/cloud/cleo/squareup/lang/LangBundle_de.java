@@ -29,6 +29,30 @@ public class LangBundle_de extends ListResourceBundle {
         {CHATGPT_RESPONSE_LANGUAGE.toString(), "Please respond to all prompts in German.  "},
          // Thank you for calling, goodbye.
         {GOODBYE.toString(), "Danke für Ihren Anruf, auf Wiedersehen."},
+        // Thanks for reaching out, have a great day!
+        {GOODBYE_TEXT.toString(), "Danke für Ihre Nachricht, einen schönen Tag noch!"},
+        // You're welcome!
+        {THANKS_RESPONSE.toString(), "Gern geschehen!"},
+        // We are {0} right now.  Our hours are {1}.
+        {STORE_HOURS.toString(), "Wir haben gerade {0}.  Unsere Öffnungszeiten sind {1}."},
+        // open
+        {STORE_OPEN_NOW.toString(), "geöffnet"},
+        // closed
+        {STORE_CLOSED_NOW.toString(), "geschlossen"},
+        // {0} {1} to {2}
+        {HOURS_RANGE.toString(), "{0} {1} bis {2}"},
+        // We are located at {0}.
+        {STORE_LOCATION.toString(), "Sie finden uns in {0}."},
+        // Sorry, I can only understand speech, press zero to speak with someone, otherwise tell me how I can help?
+        {DTMF_NOT_SUPPORTED.toString(), "Es tut mir leid, ich verstehe nur Sprache. Drücken Sie die Null, um mit jemandem zu sprechen, oder sagen Sie mir, wie ich helfen kann?"},
+        // Please hold while I transfer you.
+        {TRANSFER_OPERATOR.toString(), "Bitte warten Sie, ich verbinde Sie."},
+        // You're sending messages faster than I can answer them, please wait a few minutes and try again.
+        {RATE_LIMITED.toString(), "Sie senden Nachrichten schneller, als ich sie beantworten kann. Bitte warten Sie ein paar Minuten und versuchen Sie es erneut."},
+        // Sorry, I'm having trouble right now, let me transfer you to someone who can help.
+        {DEGRADED_TRANSFER.toString(), "Entschuldigung, ich habe gerade Probleme, ich verbinde Sie mit jemandem, der Ihnen helfen kann."},
+        // Sorry, I am having trouble answering right now. Please call the store at {0} or try again in a few minutes.
+        {DEGRADED_TEXT.toString(), "Entschuldigung, ich kann gerade nicht antworten. Bitte rufen Sie das Geschäft unter {0} an oder versuchen Sie es in ein paar Minuten erneut."},
     };
 
     @Override
@@ -29,6 +29,30 @@ public class LangBundle_es extends ListResourceBundle {
         {CHATGPT_RESPONSE_LANGUAGE.toString(), "Please respond to all prompts in Spanish.  "},
          // Thank you for calling, goodbye.
         {GOODBYE.toString(), "Gracias por llamar, adiós."},
+        // Thanks for reaching out, have a great day!
+        {GOODBYE_TEXT.toString(), "Gracias por comunicarse, ¡que tenga un buen día!"},
+        // You're welcome!
+        {THANKS_RESPONSE.toString(), "¡De nada!"},
+        // We are {0} right now.  Our hours are {1}.
+        {STORE_HOURS.toString(), "Ahora mismo estamos {0}.  Nuestro horario es {1}."},
+        // open
+        {STORE_OPEN_NOW.toString(), "abiertos"},
+        // closed
+        {STORE_CLOSED_NOW.toString(), "cerrados"},
+        // {0} {1} to {2}
+        {HOURS_RANGE.toString(), "{0} de {1} a {2}"},
+        // We are located at {0}.
+        {STORE_LOCATION.toString(), "Estamos ubicados en {0}."},
+        // Sorry, I can only understand speech, press zero to speak with someone, otherwise tell me how I can help?
+        {DTMF_NOT_SUPPORTED.toString(), "Lo siento, solo entiendo la voz, presione cero para hablar con alguien, de lo contrario, dígame cómo puedo ayudarle?"},
+        // Please hold while I transfer you.
+        {TRANSFER_OPERATOR.toString(), "Por favor espere mientras le transfiero."},
+        // You're sending messages faster than I can answer them, please wait a few minutes and try again.
+        {RATE_LIMITED.toString(), "Está enviando mensajes más rápido de lo que puedo responderlos, espere unos minutos e inténtelo de nuevo."},
+        // Sorry, I'm having trouble right now, let me transfer you to someone who can help.
+        {DEGRADED_TRANSFER.toString(), "Lo siento, estoy teniendo problemas en este momento, permítame transferirle a alguien que pueda ayudarle."},
+        // Sorry, I am having trouble answering right now. Please call the store at {0} or try again in a few minutes.
+        {DEGRADED_TEXT.toString(), "Lo siento, tengo problemas para responder en este momento. Llame a la tienda al {0} o inténtelo de nuevo en unos minutos."},
     };
 
     @Override
@@ -7,10 +7,10 @@ package cloud.cleo.squareup.lang;
 
 
 
-import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class to get Language Strings
@@ -20,7 +20,7 @@ import java.util.ResourceBundle;
 public class LangUtil {
 
     // Cache Bundles
-    private final static Map<Locale, ResourceBundle> map = new HashMap<>();
+    private final static Map<Locale, ResourceBundle> map = new ConcurrentHashMap<>();
 
     // Reference the Bundle class Name in this package
     private final static String BUNDLE_NAME = LangUtil.class.getPackageName() + ".LangBundle";
@@ -52,7 +52,55 @@ public class LangUtil {
         /**
          * Thank you for calling, goodbye.
          */
-        GOODBYE
+        GOODBYE,
+        /**
+         * Goodbye on a text channel (nothing to hang up).
+         */
+        GOODBYE_TEXT,
+        /**
+         * You're welcome!
+         */
+        THANKS_RESPONSE,
+        /**
+         * Store hours answer, {0} is open/closed now, {1} the list of hours.
+         */
+        STORE_HOURS,
+        /**
+         * open
+         */
+        STORE_OPEN_NOW,
+        /**
+         * closed
+         */
+        STORE_CLOSED_NOW,
+        /**
+         * One day of hours, {0} day, {1} open time, {2} close time.
+         */
+        HOURS_RANGE,
+        /**
+         * Store location answer, {0} is the address.
+         */
+        STORE_LOCATION,
+        /**
+         * Keypad input other than 0.
+         */
+        DTMF_NOT_SUPPORTED,
+        /**
+         * Transferring after 0 was pressed.
+         */
+        TRANSFER_OPERATOR,
+        /**
+         * Sender went over the text rate limit.
+         */
+        RATE_LIMITED,
+        /**
+         * Transferring a voice caller because the bot is degraded.
+         */
+        DEGRADED_TRANSFER,
+        /**
+         * Text answer while the bot is degraded, {0} is the main number.
+         */
+        DEGRADED_TEXT
        
     }
 
@@ -73,12 +121,7 @@ public class LangUtil {
     }
 
     public static String getString(LanguageIds id, Locale locale) {
-        var bundle = map.get(locale);
-        if (bundle == null) {
-            bundle = ResourceBundle.getBundle(BUNDLE_NAME, locale);
-            map.put(locale, bundle);
-        }
-        return bundle.getString(id.toString());
+        return map.computeIfAbsent(locale, l -> ResourceBundle.getBundle(BUNDLE_NAME, l)).getString(id.toString());
     }
     
    
@@ -0,0 +1,370 @@
+package cloud.cleo.squareup.openai;
+
+import cloud.cleo.squareup.cassette.Cassette;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.theokanning.openai.OpenAiError;
+import com.theokanning.openai.OpenAiHttpException;
+import com.theokanning.openai.completion.chat.ChatCompletionRequest;
+import com.theokanning.openai.completion.chat.ChatCompletionResult;
+import com.theokanning.openai.model.Model;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.http.SdkHttpFullRequest;
+import software.amazon.awssdk.http.SdkHttpMethod;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.http.async.AsyncExecuteRequest;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpResponseHandler;
+import software.amazon.awssdk.http.async.SdkHttpContentPublisher;
+
+/**
+ * OpenAI over an AWS CRT async HTTP client like the AWS SDK clients use, so the Lambda has one TLS stack and one set of
+ * event loop threads instead of a separate OkHttp stack just for OpenAI.
+ *
+ * The request/response JSON is the same the library's Retrofit interface sends, bound with the same object mapper.
+ * Cassette record/replay and SnapStart priming are handled here since the OkHttp interceptor isn't in the path.
+ *
+ * It also talks to Azure OpenAI deployments, which take the same chat completion JSON under the deployment URL with an
+ * api-version parameter and an api-key header.
+ *
+ * CRT can't drop pooled connections, so the client has one of its own and {@link #evictConnections()} replaces it with
+ * a new one. A call that fails before any response came back (a pooled connection that died) is tried once more on a
+ * new connection.
+ *
+ * @author sjensen
+ */
+public class CrtOpenAiClient implements OpenAiClient {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(CrtOpenAiClient.class);
+
+    private final static String SERVICE = "openai";
+
+    private final Supplier<SdkAsyncHttpClient> httpClientFactory;
+    private volatile SdkAsyncHttpClient httpClient;
+    private final URI baseUri;
+    private final String apiKey;
+    private final Duration timeout;
+    private final ObjectMapper mapper;
+    private final String azureApiVersion;
+    private final Cassette cassette = Cassette.getInstance();
+
+    /**
+     * Status and body of a call.
+     */
+    private record Response(int status, String body) {
+
+    }
+
+    /**
+     * @param httpClientFactory builds the CRT client, again each time connections are evicted
+     * @param baseUrl API base, ending with a slash
+     * @param apiKey
+     * @param timeout time to wait for a complete response
+     * @param mapper OpenAI object mapper
+     */
+    public CrtOpenAiClient(Supplier<SdkAsyncHttpClient> httpClientFactory, String baseUrl, String apiKey, Duration timeout, ObjectMapper mapper) {
+        this(httpClientFactory, baseUrl, apiKey, timeout, mapper, null);
+    }
+
+    /**
+     * @param httpClientFactory builds the CRT client, again each time connections are evicted
+     * @param baseUrl API base ending with a slash, for Azure the deployment (https://res.openai.azure.com/openai/deployments/name/)
+     * @param apiKey
+     * @param timeout time to wait for a complete response
+     * @param mapper OpenAI object mapper
+     * @param azureApiVersion api-version when this is an Azure OpenAI deployment, null for the OpenAI API
+     */
+    public CrtOpenAiClient(Supplier<SdkAsyncHttpClient> httpClientFactory, String baseUrl, String apiKey, Duration timeout, ObjectMapper mapper, String azureApiVersion) {
+        this.httpClientFactory = httpClientFactory;
+        this.httpClient = httpClientFactory.get();
+        this.baseUri = URI.create(baseUrl);
+        this.apiKey = apiKey;
+        this.timeout = timeout;
+        this.mapper = mapper;
+        this.azureApiVersion = azureApiVersion;
+    }
+
+    @Override
+    public CompletableFuture<ChatCompletionResult> createChatCompletion(ChatCompletionRequest request) {
+        final byte[] body;
+        try {
+            body = mapper.writeValueAsBytes(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        final var path = azureApiVersion != null ? "chat/completions?api-version=" + azureApiVersion : "v1/chat/completions";
+        return call(SdkHttpMethod.POST, path, body, ChatCompletionResult.class);
+    }
+
+    @Override
+    public CompletableFuture<Model> getModel(String model) {
+        if (azureApiVersion != null) {
+            // A deployment has no model lookup, list the resource's models just to open the connection
+            return call(SdkHttpMethod.GET, "../../models?api-version=" + azureApiVersion, null, null).thenApply(v -> {
+                final var m = new Model();
+                m.setId(model);
+                return m;
+            });
+        }
+        return call(SdkHttpMethod.GET, "v1/models/" + model, null, Model.class);
+    }
+
+    /**
+     * Close the CRT client and its pooled connections and start a new one, which connects again on the next call (the
+     * restore hook warms it).
+     */
+    @Override
+    public synchronized void evictConnections() {
+        final var old = httpClient;
+        httpClient = httpClientFactory.get();
+        old.close();
+    }
+
+    private <T> CompletableFuture<T> call(SdkHttpMethod method, String path, byte[] body, Class<T> type) {
+        final var exchange = exchange(method, baseUri.resolve(path), body);
+        final var result = exchange.thenApply(res -> {
+            try {
+                if (res.status() >= 300) {
+                    throw new OpenAiHttpException(errorOf(res), new IOException("HTTP " + res.status() + " " + res.body()), res.status());
+                }
+                return type == null ? null : mapper.readValue(res.body(), type);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+        // Cancelling the result has to reach the exchange to stop the call
+        result.whenComplete((res, t) -> {
+            if (result.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private OpenAiError errorOf(Response res) {
+        try {
+            final var error = mapper.readValue(res.body(), OpenAiError.class);
+            if (error.getError() != null) {
+                return error;
+            }
+        } catch (IOException e) {
+            // Not an OpenAI error body (a proxy or load balancer page)
+        }
+        // Keep the text as the message
+        final var error = new OpenAiError();
+        error.setError(new OpenAiError.OpenAiErrorDetails());
+        error.getError().setMessage(res.body());
+        return error;
+    }
+
+    /**
+     * Send the request, or answer it from the cassette when priming, recording or replaying.
+     */
+    private CompletableFuture<Response> exchange(SdkHttpMethod method, URI uri, byte[] body) {
+        if (cassette.isPriming()) {
+            return cassette.primed(SERVICE, method.name())
+                    .map(e -> CompletableFuture.completedFuture(new Response(e.status(), e.body())))
+                    .orElseGet(() -> CompletableFuture.failedFuture(new IOException("No priming response for " + SERVICE + " " + method)));
+        }
+        if (!cassette.isEnabled()) {
+            return send(method, uri, body);
+        }
+
+        final var path = uri.getRawPath();
+        final var fp = Cassette.fingerprint(SERVICE, method.name(), path, uri.getRawQuery(), body == null ? null : new String(body, StandardCharsets.UTF_8));
+        return switch (cassette.getMode()) {
+            case REPLAY ->
+                // Replay sleeps the recorded time, so keep that off the caller's thread
+                CompletableFuture.supplyAsync(() -> cassette.replay(fp)
+                        .map(e -> new Response(e.status(), e.body()))
+                        .orElseThrow(() -> new CompletionException(new IOException("Cassette miss for " + SERVICE + " " + method + " " + path + " fp " + fp))));
+            case RECORD -> {
+                final long start = System.nanoTime();
+                yield send(method, uri, body).thenApply(res -> {
+                    final long millis = (System.nanoTime() - start) / 1_000_000;
+                    cassette.record(fp, SERVICE, method.name(), path, res.status(), millis, res.body());
+                    log.debug("Recorded " + SERVICE + " " + path + " in " + millis + " ms");
+                    return res;
+                });
+            }
+            default ->
+                send(method, uri, body);
+        };
+    }
+
+    /**
+     * Send the request. Cancelling the returned future (or it timing out) stops the stream on the CRT connection.
+     */
+    private CompletableFuture<Response> send(SdkHttpMethod method, URI uri, byte[] body) {
+        final var result = new CompletableFuture<Response>();
+        final var execution = new AtomicReference<CompletableFuture<Void>>();
+        // Surface this like the OkHttp read timeout would. The timer is cancelled once the call completes
+        final var deadline = new CompletableFuture<Void>().orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        deadline.whenComplete((v, t) -> {
+            if (t != null) {
+                result.completeExceptionally(new SocketTimeoutException("No response from OpenAI in " + timeout.toSeconds() + "s"));
+            }
+        });
+        result.whenComplete((res, t) -> {
+            deadline.complete(null);
+            final var running = execution.get();
+            if (t != null && running != null) {
+                running.cancel(true);
+            }
+        });
+        attempt(method, uri, body, true, result, execution);
+        return result;
+    }
+
+    private void attempt(SdkHttpMethod method, URI uri, byte[] body, boolean retry, CompletableFuture<Response> result, AtomicReference<CompletableFuture<Void>> execution) {
+        final var content = body == null ? new byte[0] : body;
+        final var builder = SdkHttpFullRequest.builder()
+                .method(method)
+                .uri(uri)
+                .putHeader("Host", uri.getPort() > 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost())
+                .putHeader("Accept", "application/json")
+                .putHeader("Content-Type", "application/json")
+                .putHeader("Content-Length", String.valueOf(content.length));
+        if (azureApiVersion != null) {
+            builder.putHeader("api-key", apiKey);
+        } else {
+            builder.putHeader("Authorization", "Bearer " + apiKey);
+        }
+
+        final var handler = new BodyHandler();
+        final var running = httpClient.execute(AsyncExecuteRequest.builder()
+                .request(builder.build())
+                .requestContentPublisher(new BytesPublisher(content))
+                .responseHandler(handler)
+                .build());
+        execution.set(running);
+        if (result.isDone()) {
+            // Cancelled while this attempt was being set up
+            running.cancel(true);
+        }
+        running.whenComplete((v, t) -> {
+            if (t != null) {
+                handler.result.completeExceptionally(t);
+            }
+        });
+
+        handler.result.whenComplete((res, t) -> {
+            if (t == null) {
+                result.complete(res);
+            } else if (result.isDone()) {
+                // Already cancelled or timed out
+            } else if (retry && !handler.headersReceived.get()) {
+                log.debug("OpenAI call failed before any response, trying a new connection", t);
+                attempt(method, uri, body, false, result, execution);
+            } else {
+                result.completeExceptionally(t);
+            }
+        });
+    }
+
+    /**
+     * Collects the whole response body.
+     */
+    private static class BodyHandler implements SdkAsyncHttpResponseHandler {
+
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        final AtomicBoolean headersReceived = new AtomicBoolean();
+        private volatile int status;
+
+        @Override
+        public void onHeaders(SdkHttpResponse headers) {
+            headersReceived.set(true);
+            status = headers.statusCode();
+        }
+
+        @Override
+        public void onStream(Publisher<ByteBuffer> stream) {
+            stream.subscribe(new Subscriber<ByteBuffer>() {
+                private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                @Override
+                public void onSubscribe(Subscription s) {
+                    s.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(ByteBuffer buffer) {
+                    final var bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    out.write(bytes, 0, bytes.length);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    result.completeExceptionally(t);
+                }
+
+                @Override
+                public void onComplete() {
+                    result.complete(new Response(status, out.toString(StandardCharsets.UTF_8)));
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Publishes the request body as a single buffer.
+     */
+    private static class BytesPublisher implements SdkHttpContentPublisher {
+
+        private final byte[] content;
+
+        BytesPublisher(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public Optional<Long> contentLength() {
+            return Optional.of((long) content.length);
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+            final var done = new AtomicBoolean();
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    if (n > 0 && done.compareAndSet(false, true)) {
+                        if (content.length > 0) {
+                            subscriber.onNext(ByteBuffer.wrap(content));
+                        }
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    done.set(true);
+                }
+            });
+        }
+    }
+}
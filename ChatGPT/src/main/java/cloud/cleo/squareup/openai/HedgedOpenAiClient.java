@@ -0,0 +1,170 @@
+package cloud.cleo.squareup.openai;
+
+import com.theokanning.openai.completion.chat.ChatCompletionRequest;
+import com.theokanning.openai.completion.chat.ChatCompletionResult;
+import com.theokanning.openai.model.Model;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * OpenAI client over several endpoints serving the same model (OpenAI, an Azure OpenAI deployment, a local stand-in).
+ *
+ * Completions go to the first endpoint. If it hasn't answered by its own recent p95 a duplicate (hedge) request goes to
+ * the next endpoint, or the same one again when only one is listed, and whichever answers first wins while the other is
+ * cancelled. If the first call fails outright the hedge is sent right away instead of waiting. The handful of
+ * completions that take 10x the median cost one extra request each instead of a caller hanging up.
+ *
+ * @author sjensen
+ */
+public class HedgedOpenAiClient implements OpenAiClient {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(HedgedOpenAiClient.class);
+
+    /**
+     * Latency quantile at which to hedge.
+     */
+    private final static double HEDGE_QUANTILE = 0.95;
+    /**
+     * Calls to keep per endpoint for the moving quantile.
+     */
+    private final static int WINDOW = 200;
+    /**
+     * Until an endpoint has this many samples its p95 means nothing, so use the default below.
+     */
+    private final static int MIN_SAMPLES = 20;
+    private final static long DEFAULT_HEDGE_MILLIS = 5000;
+    /**
+     * Never hedge sooner than this, even if the endpoint has been very fast.
+     */
+    private final static long MIN_HEDGE_MILLIS = 250;
+
+    /**
+     * One endpoint and its recent latency.
+     *
+     * @param name for logging
+     * @param client
+     * @param latency
+     */
+    public record Endpoint(String name, OpenAiClient client, LatencyTracker latency) {
+
+        public Endpoint(String name, OpenAiClient client) {
+            this(name, client, new LatencyTracker(WINDOW));
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+
+    /**
+     * @param endpoints in order of preference, the first gets every call
+     */
+    public HedgedOpenAiClient(List<Endpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one OpenAI endpoint is required");
+        }
+        this.endpoints = List.copyOf(endpoints);
+    }
+
+    @Override
+    public CompletableFuture<ChatCompletionResult> createChatCompletion(ChatCompletionRequest request) {
+        final var primary = endpoints.get(0);
+        final var secondary = endpoints.get(endpoints.size() > 1 ? 1 : 0);
+        final var turn = new Hedge(request);
+        // Once there is an answer (or the caller gave up) stop whatever is still running
+        turn.result.whenComplete((r, t) -> turn.calls.forEach(c -> c.cancel(true)));
+
+        final long hedgeMillis = hedgeDelay(primary);
+        final Runnable sendHedge = () -> {
+            if (!turn.result.isDone() && turn.hedged.compareAndSet(false, true)) {
+                log.debug("Hedging completion to " + secondary.name() + " after " + hedgeMillis + " ms on " + primary.name());
+                send(secondary, turn, null);
+            }
+        };
+        send(primary, turn, sendHedge);
+        CompletableFuture.delayedExecutor(hedgeMillis, TimeUnit.MILLISECONDS).execute(sendHedge);
+        return turn.result;
+    }
+
+    /**
+     * State shared by the first call and its hedge.
+     */
+    private static class Hedge {
+
+        final ChatCompletionRequest request;
+        final CompletableFuture<ChatCompletionResult> result = new CompletableFuture<>();
+        final List<CompletableFuture<ChatCompletionResult>> calls = new CopyOnWriteArrayList<>();
+        final AtomicBoolean hedged = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+
+        Hedge(ChatCompletionRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Send to one endpoint, completing the shared result with the first answer.
+     *
+     * @param onFailure run when this call fails, null for the hedge itself
+     */
+    private void send(Endpoint endpoint, Hedge turn, Runnable onFailure) {
+        final long start = System.nanoTime();
+        final var call = endpoint.client().createChatCompletion(turn.request);
+        turn.calls.add(call);
+        if (turn.result.isDone()) {
+            // Answered while this one was being sent
+            call.cancel(true);
+        }
+        call.whenComplete((r, t) -> {
+            final long millis = (System.nanoTime() - start) / 1_000_000;
+            if (t == null) {
+                endpoint.latency().record(millis);
+                turn.result.complete(r);
+            } else if (call.isCancelled()) {
+                // Lost the race, it took at least this long, without it slow calls would never count toward the p95
+                endpoint.latency().record(millis);
+            } else {
+                log.debug("Completion on " + endpoint.name() + " failed after " + millis + " ms", t);
+                if (turn.failures.incrementAndGet() == 2) {
+                    // Both calls failed
+                    turn.result.completeExceptionally(t);
+                } else if (onFailure != null) {
+                    // Don't wait out the delay when the first call already failed
+                    onFailure.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * How long to give an endpoint before hedging.
+     */
+    private static long hedgeDelay(Endpoint endpoint) {
+        if (endpoint.latency().getCount() < MIN_SAMPLES) {
+            return DEFAULT_HEDGE_MILLIS;
+        }
+        return Math.max(MIN_HEDGE_MILLIS, endpoint.latency().quantile(HEDGE_QUANTILE));
+    }
+
+    /**
+     * Looks the model up on every endpoint so all of them have a connection open, answering with the first endpoint's.
+     *
+     * @param model
+     * @return
+     */
+    @Override
+    public CompletableFuture<Model> getModel(String model) {
+        final var lookups = endpoints.stream().map(e -> e.client().getModel(model)).toList();
+        return CompletableFuture.allOf(lookups.toArray(CompletableFuture[]::new)).thenCompose(v -> lookups.get(0));
+    }
+
+    @Override
+    public void evictConnections() {
+        endpoints.forEach(e -> e.client().evictConnections());
+    }
+}
@@ -0,0 +1,62 @@
+package cloud.cleo.squareup.openai;
+
+import java.util.Arrays;
+
+/**
+ * Moving latency quantiles over the last so many calls to one endpoint. Completion times drift with load on the
+ * provider side, so only a recent window is kept rather than all time.
+ *
+ * @author sjensen
+ */
+public class LatencyTracker {
+
+    private final long[] samples;
+    private int next = 0;
+    private int count = 0;
+
+    /**
+     * @param window how many of the most recent samples to keep
+     */
+    public LatencyTracker(int window) {
+        this.samples = new long[window];
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param millis
+     */
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Number of samples in the window.
+     *
+     * @return
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Quantile of the samples in the window (nearest rank).
+     *
+     * @param q 0 to 1, like 0.95
+     * @return millis, or -1 when there are no samples yet
+     */
+    public long quantile(double q) {
+        final long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        final int rank = (int) Math.ceil(q * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,37 @@
+package cloud.cleo.squareup.openai;
+
+import com.theokanning.openai.completion.chat.ChatCompletionRequest;
+import com.theokanning.openai.completion.chat.ChatCompletionResult;
+import com.theokanning.openai.model.Model;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The OpenAI calls a turn makes, all non-blocking. Errors from the API complete the future with an
+ * OpenAiHttpException, and a call that doesn't answer in time with a SocketTimeoutException. Cancelling a returned
+ * future stops the call.
+ *
+ * @author sjensen
+ */
+public interface OpenAiClient {
+
+    /**
+     * Chat completion.
+     *
+     * @param request
+     * @return
+     */
+    CompletableFuture<ChatCompletionResult> createChatCompletion(ChatCompletionRequest request);
+
+    /**
+     * Model lookup, cheap enough to use for opening connections ahead of the first turn.
+     *
+     * @param model
+     * @return
+     */
+    CompletableFuture<Model> getModel(String model);
+
+    /**
+     * Drop pooled connections, called before a SnapStart checkpoint.
+     */
+    void evictConnections();
+}
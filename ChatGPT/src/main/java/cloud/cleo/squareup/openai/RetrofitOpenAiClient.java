@@ -0,0 +1,99 @@
+package cloud.cleo.squareup.openai;
+
+import cloud.cleo.squareup.cassette.CassetteInterceptor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.theokanning.openai.OpenAiError;
+import com.theokanning.openai.OpenAiHttpException;
+import com.theokanning.openai.client.OpenAiApi;
+import com.theokanning.openai.completion.chat.ChatCompletionRequest;
+import com.theokanning.openai.completion.chat.ChatCompletionResult;
+import com.theokanning.openai.model.Model;
+import com.theokanning.openai.service.OpenAiService;
+import io.reactivex.Single;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import retrofit2.HttpException;
+import retrofit2.Retrofit;
+import retrofit2.adapter.rxjava2.RxJava2CallAdapterFactory;
+import retrofit2.converter.jackson.JacksonConverterFactory;
+
+/**
+ * OpenAI over the library's Retrofit interface on its own OkHttp client. Calls are enqueued (async RxJava adapter) so
+ * nothing waits on a thread for a completion.
+ *
+ * @author sjensen
+ */
+public class RetrofitOpenAiClient implements OpenAiClient {
+
+    private final ObjectMapper mapper;
+    private final OkHttpClient httpClient;
+    private final OpenAiApi api;
+
+    /**
+     * @param baseUrl API base, ending with a slash
+     * @param apiKey
+     * @param timeout
+     * @param mapper OpenAI object mapper
+     */
+    public RetrofitOpenAiClient(String baseUrl, String apiKey, Duration timeout, ObjectMapper mapper) {
+        this.mapper = mapper;
+        // Completions are enqueued rather than executed, so don't let the dispatcher hold them back
+        final var dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(256);
+        dispatcher.setMaxRequestsPerHost(256);
+        this.httpClient = OpenAiService.defaultClient(apiKey, timeout).newBuilder()
+                .addInterceptor(new CassetteInterceptor("openai"))
+                .dispatcher(dispatcher)
+                .build();
+        this.api = new Retrofit.Builder()
+                .baseUrl(baseUrl)
+                .client(httpClient)
+                .addConverterFactory(JacksonConverterFactory.create(mapper))
+                .addCallAdapterFactory(RxJava2CallAdapterFactory.createAsync())
+                .build()
+                .create(OpenAiApi.class);
+    }
+
+    @Override
+    public CompletableFuture<ChatCompletionResult> createChatCompletion(ChatCompletionRequest request) {
+        return toFuture(api.createChatCompletion(request));
+    }
+
+    @Override
+    public CompletableFuture<Model> getModel(String model) {
+        return toFuture(api.getModel(model));
+    }
+
+    @Override
+    public void evictConnections() {
+        httpClient.connectionPool().evictAll();
+    }
+
+    /**
+     * Adapt a call to a future, turning HTTP errors into the same OpenAiHttpException the OpenAiService throws.
+     */
+    private <T> CompletableFuture<T> toFuture(Single<T> single) {
+        final var future = new CompletableFuture<T>();
+        final var subscription = single.subscribe(future::complete, t -> {
+            if (t instanceof HttpException e && e.response() != null && e.response().errorBody() != null) {
+                try {
+                    final var error = mapper.readValue(e.response().errorBody().string(), OpenAiError.class);
+                    future.completeExceptionally(new OpenAiHttpException(error, e, e.code()));
+                    return;
+                } catch (Exception ignore) {
+                    // Not an OpenAI error body, just pass on the HTTP error
+                }
+            }
+            future.completeExceptionally(t);
+        });
+        // Cancelling the future cancels the OkHttp call
+        future.whenComplete((r, t) -> {
+            if (future.isCancelled()) {
+                subscription.dispose();
+            }
+        });
+        return future;
+    }
+}
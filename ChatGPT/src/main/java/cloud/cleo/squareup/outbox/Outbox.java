@@ -0,0 +1,145 @@
+package cloud.cleo.squareup.outbox;
+
+import static cloud.cleo.squareup.ChatGPTLambda.enhancedClient;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.Expression;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+
+/**
+ * Emails and texts functions want sent, and Facebook inbox handovers. Instead of making the caller wait on SES or cross region SNS, the message is
+ * written to the outbox table (OUTBOX_TABLE_NAME) and the function returns. {@link OutboxDispatcher} picks new entries
+ * off the table's stream and delivers them.
+ *
+ * Each message is keyed by a hash of its content and session, and only written if not already there, so a retried Lex
+ * turn (or GPT calling the function twice) doesn't send it twice. When OUTBOX_TABLE_NAME is not set functions send
+ * directly like before.
+ *
+ * @author sjensen
+ */
+public class Outbox {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(Outbox.class);
+
+    private final static String TABLE_NAME = System.getenv("OUTBOX_TABLE_NAME");
+
+    private final static DynamoDbAsyncTable<OutboxMessage> table = TABLE_NAME == null || TABLE_NAME.isBlank() ? null
+            : enhancedClient.table(TABLE_NAME, TableSchema.fromBean(OutboxMessage.class));
+
+    /**
+     * Long enough to look at what was sent for a call, the TTL just cleans up.
+     */
+    private final static Duration TTL = Duration.ofDays(7);
+
+    private Outbox() {
+    }
+
+    public static boolean isEnabled() {
+        return table != null;
+    }
+
+    /**
+     * An email to queue.
+     *
+     * @param sessionId
+     * @param to
+     * @param subject
+     * @param body
+     * @return
+     */
+    public static OutboxMessage email(String sessionId, String to, String subject, String body) {
+        return message(OutboxMessage.Type.EMAIL, sessionId, to, subject, body);
+    }
+
+    /**
+     * A text to queue.
+     *
+     * @param sessionId
+     * @param phone E164
+     * @param body
+     * @return
+     */
+    public static OutboxMessage sms(String sessionId, String phone, String body) {
+        return message(OutboxMessage.Type.SMS, sessionId, phone, null, body);
+    }
+
+    /**
+     * A Messenger thread to pass to the page inbox. Keyed to the minute, a retried turn is deduplicated but the same
+     * user handed back and asking again later still gets through.
+     *
+     * @param psid page scoped user ID
+     * @return
+     */
+    public static OutboxMessage handover(String psid) {
+        return message(OutboxMessage.Type.HANDOVER, psid, psid, null, Long.toString(System.currentTimeMillis() / 60_000));
+    }
+
+    /**
+     * Write a message to the outbox unless the same one is already there.
+     *
+     * @param message
+     * @return future of true when queued, false when it was already queued (or sent)
+     */
+    public static CompletableFuture<Boolean> enqueue(OutboxMessage message) {
+        return table.putItem(r -> r.item(message)
+                .conditionExpression(Expression.builder().expression("attribute_not_exists(id)").build()))
+                .thenApply(v -> {
+                    log.info("Queued " + message.getType() + " to " + message.getDestination() + " as " + message.getId());
+                    return true;
+                })
+                .exceptionally(t -> {
+                    if (unwrap(t) instanceof ConditionalCheckFailedException) {
+                        log.info("Duplicate " + message.getType() + " to " + message.getDestination() + " already queued as " + message.getId());
+                        return false;
+                    }
+                    throw t instanceof CompletionException ce ? ce : new CompletionException(t);
+                });
+    }
+
+    private static OutboxMessage message(OutboxMessage.Type type, String sessionId, String destination, String subject, String body) {
+        final var now = Instant.now();
+        final var message = new OutboxMessage();
+        message.setId(id(type, sessionId, destination, subject, body));
+        message.setType(type);
+        message.setSessionId(sessionId);
+        message.setDestination(destination);
+        message.setSubject(subject);
+        message.setBody(body);
+        message.setStatus(OutboxMessage.Status.PENDING);
+        message.setAttempts(0);
+        message.setCreatedAt(now.toEpochMilli());
+        message.setTtl(now.plus(TTL).getEpochSecond());
+        return message;
+    }
+
+    /**
+     * Dedup key, SHA-256 of everything that makes the message what it is.
+     */
+    private static String id(OutboxMessage.Type type, String sessionId, String destination, String subject, String body) {
+        try {
+            final var digest = MessageDigest.getInstance("SHA-256");
+            for (var part : new String[]{type.name(), sessionId, destination, subject, body}) {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest(), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+}
@@ -0,0 +1,216 @@
+package cloud.cleo.squareup.outbox;
+
+import cloud.cleo.squareup.FaceBookOperations;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.ses.SesAsyncClient;
+import software.amazon.awssdk.services.sns.SnsAsyncClient;
+
+/**
+ * Delivers what {@link Outbox} queued. Subscribed to the outbox table stream (new entries only), each batch of records
+ * is delivered concurrently.
+ *
+ * A message is claimed with a conditional update before sending, so a stream record seen twice (streams are at least
+ * once) or a message already sent is skipped. A failed send puts the message back to PENDING and reports the record as
+ * a batch item failure so Lambda retries from there, after {@link #MAX_ATTEMPTS} it is marked FAILED and given up on.
+ * A record only counts as done once its message is SENT or FAILED, one claimed by another attempt that may have died
+ * is retried too. Anything the stream retries run out on is picked up by {@link OutboxSweeper}.
+ *
+ * Kept apart from the ChatGPT Lambda so none of its init (OpenAI, functions, SnapStart priming) runs here.
+ *
+ * @author sjensen
+ */
+public class OutboxDispatcher implements RequestHandler<DynamodbEvent, StreamsEventResponse> {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(OutboxDispatcher.class);
+
+    final static String TABLE_NAME = System.getenv("OUTBOX_TABLE_NAME");
+
+    private final static String EMAIL_SOURCE = "chatgpt@copperfoxgifts.com";
+
+    private final static int MAX_ATTEMPTS = 5;
+
+    /**
+     * A SENDING claim older than this is from an attempt that died mid send and can be taken over.
+     */
+    final static long CLAIM_EXPIRES_MILLIS = 120_000;
+
+    private final static TableSchema<OutboxMessage> schema = TableSchema.fromBean(OutboxMessage.class);
+
+    private final static SdkAsyncHttpClient httpClient = AwsCrtAsyncHttpClient.create();
+
+    final static DynamoDbAsyncClient dynamoDbAsyncClient = buildDynamoDbClient();
+
+    private final static SesAsyncClient sesAsyncClient = SesAsyncClient.builder()
+            .httpClient(httpClient)
+            .build();
+
+    // Same as DrivingDirectionsVoice, all the 10DLC registration is in us-east-1
+    private final static SnsAsyncClient snsAsyncClient = SnsAsyncClient.builder()
+            .region(Region.US_EAST_1)
+            .httpClient(httpClient)
+            .build();
+
+    @Override
+    public StreamsEventResponse handleRequest(DynamodbEvent event, Context context) {
+        final var records = event.getRecords();
+        log.debug("Outbox batch of " + records.size());
+
+        final var failures = records.stream()
+                .map(record -> dispatch(record.getDynamodb().getKeys().get("id").getS())
+                .thenApply(ok -> ok ? null : new StreamsEventResponse.BatchItemFailure(record.getDynamodb().getSequenceNumber())))
+                .toList().stream()
+                .map(CompletableFuture::join)
+                .filter(f -> f != null)
+                .toList();
+
+        if (!failures.isEmpty()) {
+            log.warn(failures.size() + " of " + records.size() + " outbox messages failed, will be retried");
+        }
+        return new StreamsEventResponse(failures);
+    }
+
+    /**
+     * Claim, send and mark one message.
+     *
+     * @param id
+     * @return future of false when it should be retried
+     */
+    CompletableFuture<Boolean> dispatch(String id) {
+        return claim(id).thenCompose(message -> {
+            if (message == null) {
+                // Done if sent or given up on, a claim still SENDING may be from an attempt that died
+                return isDone(id);
+            }
+            return send(message).handle((providerId, t) -> {
+                if (t == null) {
+                    log.info("Sent " + message.getType() + " " + id + " to " + message.getDestination() + " with id " + providerId);
+                    return finish(id, OutboxMessage.Status.SENT, providerId).thenApply(v -> true);
+                }
+                if (message.getAttempts() >= MAX_ATTEMPTS) {
+                    log.error("Giving up on " + message.getType() + " " + id + " to " + message.getDestination() + " after " + message.getAttempts() + " attempts", unwrap(t));
+                    return finish(id, OutboxMessage.Status.FAILED, null).thenApply(v -> true);
+                }
+                log.warn("Sending " + message.getType() + " " + id + " failed on attempt " + message.getAttempts(), unwrap(t));
+                return finish(id, OutboxMessage.Status.PENDING, null).thenApply(v -> false);
+            }).thenCompose(f -> f);
+        }).exceptionally(t -> {
+            log.error("Outbox error on " + id, unwrap(t));
+            return false;
+        });
+    }
+
+    /**
+     * Mark the message SENDING if it is PENDING (or an expired claim), counting the attempt.
+     *
+     * @return future of the message, null when it is not ours to send
+     */
+    private CompletableFuture<OutboxMessage> claim(String id) {
+        final long now = System.currentTimeMillis();
+        return dynamoDbAsyncClient.updateItem(b -> b.tableName(TABLE_NAME)
+                .key(Map.of("id", AttributeValue.fromS(id)))
+                .updateExpression("SET #status = :sending, claimedAt = :now ADD attempts :one")
+                .conditionExpression("#status = :pending OR (#status = :sending AND claimedAt < :expired)")
+                .expressionAttributeNames(Map.of("#status", "status"))
+                .expressionAttributeValues(Map.of(
+                        ":sending", AttributeValue.fromS(OutboxMessage.Status.SENDING.name()),
+                        ":pending", AttributeValue.fromS(OutboxMessage.Status.PENDING.name()),
+                        ":now", AttributeValue.fromN(Long.toString(now)),
+                        ":expired", AttributeValue.fromN(Long.toString(now - CLAIM_EXPIRES_MILLIS)),
+                        ":one", AttributeValue.fromN("1")))
+                .returnValues(ReturnValue.ALL_NEW))
+                .thenApply(r -> schema.mapToItem(r.attributes()))
+                .exceptionally(t -> {
+                    if (unwrap(t) instanceof ConditionalCheckFailedException) {
+                        log.debug("Outbox " + id + " already sent or being sent");
+                        return null;
+                    }
+                    throw t instanceof CompletionException ce ? ce : new CompletionException(t);
+                });
+    }
+
+    /**
+     * Is the message SENT or FAILED (or gone, TTL).
+     */
+    private CompletableFuture<Boolean> isDone(String id) {
+        return dynamoDbAsyncClient.getItem(b -> b.tableName(TABLE_NAME)
+                .key(Map.of("id", AttributeValue.fromS(id)))
+                .consistentRead(true))
+                .thenApply(r -> {
+                    if (!r.hasItem() || r.item().isEmpty()) {
+                        return true;
+                    }
+                    final var status = schema.mapToItem(r.item()).getStatus();
+                    if (status == OutboxMessage.Status.SENT || status == OutboxMessage.Status.FAILED) {
+                        return true;
+                    }
+                    log.debug("Outbox " + id + " is " + status + ", retrying later");
+                    return false;
+                });
+    }
+
+    private CompletableFuture<Void> finish(String id, OutboxMessage.Status status, String providerId) {
+        final var values = providerId == null
+                ? Map.of(":status", AttributeValue.fromS(status.name()))
+                : Map.of(":status", AttributeValue.fromS(status.name()), ":providerId", AttributeValue.fromS(providerId));
+        return dynamoDbAsyncClient.updateItem(b -> b.tableName(TABLE_NAME)
+                .key(Map.of("id", AttributeValue.fromS(id)))
+                .updateExpression(providerId == null ? "SET #status = :status" : "SET #status = :status, providerId = :providerId")
+                .expressionAttributeNames(Map.of("#status", "status"))
+                .expressionAttributeValues(values))
+                .thenApply(r -> null);
+    }
+
+    /**
+     * Hand the message to SES, SNS or the Graph API.
+     *
+     * @return future of the provider's message id
+     */
+    private CompletableFuture<String> send(OutboxMessage message) {
+        return switch (message.getType()) {
+            case EMAIL ->
+                sesAsyncClient.sendEmail(email -> email
+                .destination(dest -> dest.toAddresses(List.of(message.getDestination())))
+                .message(mesg -> mesg.body(body -> body.text(cont -> cont.data(message.getBody())))
+                .subject(cont -> cont.data(message.getSubject())))
+                .source(EMAIL_SOURCE))
+                .thenApply(r -> r.messageId());
+            case SMS ->
+                snsAsyncClient.publish(b -> b.phoneNumber(message.getDestination()).message(message.getBody()))
+                .thenApply(r -> r.messageId());
+            case HANDOVER ->
+                FaceBookOperations.passThreadControl(message.getDestination()).thenApply(v -> "pass_thread_control");
+        };
+    }
+
+    private static DynamoDbAsyncClient buildDynamoDbClient() {
+        final var builder = DynamoDbAsyncClient.builder().httpClient(httpClient);
+        final var endpoint = System.getenv("DYNAMO_ENDPOINT");
+        if (endpoint != null && !endpoint.isBlank()) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+        return builder.build();
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+}
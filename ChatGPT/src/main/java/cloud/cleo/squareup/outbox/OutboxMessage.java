@@ -0,0 +1,70 @@
+package cloud.cleo.squareup.outbox;
+
+import lombok.Data;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
+
+/**
+ * A message waiting in (or delivered from) the outbox table.
+ *
+ * @author sjensen
+ */
+@DynamoDbBean
+@Data
+public class OutboxMessage {
+
+    public enum Type {
+        EMAIL, SMS,
+        /**
+         * Facebook Messenger thread passed to the page inbox, destination is the page scoped user ID.
+         */
+        HANDOVER
+    }
+
+    public enum Status {
+        PENDING, SENDING, SENT, FAILED
+    }
+
+    /**
+     * Hash of the session, type, destination and content, see {@link Outbox#id}. The same message asked for twice in a
+     * session (like a retried Lex turn) gets the same id and is only queued once.
+     */
+    private String id;
+    private Type type;
+    /**
+     * Email address, E164 phone number or page scoped user ID.
+     */
+    private String destination;
+    /**
+     * Email subject, null for SMS.
+     */
+    private String subject;
+    private String body;
+    /**
+     * Lex session that asked for it.
+     */
+    private String sessionId;
+    private Status status;
+    /**
+     * Delivery attempts so far.
+     */
+    private Integer attempts;
+    /**
+     * Epoch millis, when it was queued and when the current attempt claimed it.
+     */
+    private Long createdAt;
+    private Long claimedAt;
+    /**
+     * SES or SNS message id once sent.
+     */
+    private String providerId;
+    /**
+     * Unix timestamp when Dynamo should delete the entry.
+     */
+    private Long ttl;
+
+    @DynamoDbPartitionKey
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,69 @@
+package cloud.cleo.squareup.outbox;
+
+import static cloud.cleo.squareup.outbox.OutboxDispatcher.CLAIM_EXPIRES_MILLIS;
+import static cloud.cleo.squareup.outbox.OutboxDispatcher.TABLE_NAME;
+import static cloud.cleo.squareup.outbox.OutboxDispatcher.dynamoDbAsyncClient;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+/**
+ * Runs on a schedule and delivers outbox messages the stream gave up on: PENDING ones whose stream retries ran out
+ * and SENDING ones whose attempt died and whose claim has expired. Claiming works the same as for stream records, so
+ * a message the stream is still working on is left alone.
+ *
+ * @author sjensen
+ */
+public class OutboxSweeper implements RequestHandler<ScheduledEvent, Void> {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(OutboxSweeper.class);
+
+    /**
+     * Leave messages this new to the stream.
+     */
+    private final static long MIN_AGE_MILLIS = 300_000;
+
+    private final static OutboxDispatcher dispatcher = new OutboxDispatcher();
+
+    @Override
+    public Void handleRequest(ScheduledEvent event, Context context) {
+        final long now = System.currentTimeMillis();
+        final List<String> ids = new CopyOnWriteArrayList<>();
+
+        // Small table (entries expire after a week), a filtered scan is fine
+        dynamoDbAsyncClient.scanPaginator(b -> b.tableName(TABLE_NAME)
+                .filterExpression("(#status = :pending AND createdAt < :old) OR (#status = :sending AND claimedAt < :expired)")
+                .expressionAttributeNames(Map.of("#status", "status"))
+                .expressionAttributeValues(Map.of(
+                        ":pending", AttributeValue.fromS(OutboxMessage.Status.PENDING.name()),
+                        ":sending", AttributeValue.fromS(OutboxMessage.Status.SENDING.name()),
+                        ":old", AttributeValue.fromN(Long.toString(now - MIN_AGE_MILLIS)),
+                        ":expired", AttributeValue.fromN(Long.toString(now - CLAIM_EXPIRES_MILLIS))))
+                .projectionExpression("id"))
+                .items()
+                .subscribe(item -> ids.add(item.get("id").s()))
+                .join();
+
+        if (ids.isEmpty()) {
+            log.debug("Nothing left in the outbox");
+            return null;
+        }
+        log.info("Sweeping " + ids.size() + " outbox messages");
+        final var retry = ids.stream().map(dispatcher::dispatch).toList().stream()
+                .map(CompletableFuture::join)
+                .filter(ok -> !ok)
+                .count();
+        if (retry > 0) {
+            log.warn(retry + " outbox messages still not sent, next sweep will try again");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,61 @@
+package cloud.cleo.squareup.server;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.LexV2Event;
+import com.amazonaws.services.lambda.runtime.events.LexV2Response;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Lex can only call a Lambda for fulfillment, so when the logic runs in {@link FulfillmentServer} this small Lambda
+ * (128 MB is plenty) just passes the event through to FULFILLMENT_URL and hands back the response. The shared secret the
+ * server requires is sent with every event (see {@link FulfillmentSecret}).
+ *
+ * @author sjensen
+ */
+public class ForwardingLambda implements RequestHandler<LexV2Event, LexV2Response> {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(ForwardingLambda.class);
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final static URI FULFILLMENT_URI = URI.create(System.getenv("FULFILLMENT_URL"));
+
+    private final static String SECRET = FulfillmentSecret.load();
+
+    private final static HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(2))
+            .build();
+
+    @Override
+    public LexV2Response handleRequest(LexV2Event event, Context context) {
+        try {
+            final var request = HttpRequest.newBuilder(FULFILLMENT_URI)
+                    .timeout(Duration.ofMillis(Math.max(1000, context.getRemainingTimeInMillis() - 500)))
+                    .header("Content-Type", "application/json")
+                    .header(FulfillmentSecret.HEADER, SECRET)
+                    .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(event)))
+                    .build();
+            final var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IllegalStateException("Fulfillment server returned " + response.statusCode() + " " + response.body());
+            }
+            return mapper.readValue(response.body(), LexV2Response.class);
+        } catch (Exception e) {
+            log.error("Unable to forward to fulfillment server", e);
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package cloud.cleo.squareup.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.http.crt.AwsCrtAsyncHttpClient;
+import software.amazon.awssdk.services.secretsmanager.SecretsManagerAsyncClient;
+
+/**
+ * Shared secret {@link ForwardingLambda} sends in the {@value #HEADER} header and {@link FulfillmentServer} requires on
+ * every turn. Taken from FULFILLMENT_SECRET, or read once from Secrets Manager when FULFILLMENT_SECRET_ARN is set
+ * instead (so it never has to sit in the task or function config).
+ *
+ * @author sjensen
+ */
+final class FulfillmentSecret {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(FulfillmentSecret.class);
+
+    final static String HEADER = "X-Fulfillment-Secret";
+
+    private FulfillmentSecret() {
+    }
+
+    /**
+     * Load the secret from the environment or Secrets Manager.
+     *
+     * @return the secret
+     * @throws IllegalStateException when neither FULFILLMENT_SECRET nor FULFILLMENT_SECRET_ARN is set
+     */
+    static String load() {
+        final var value = System.getenv("FULFILLMENT_SECRET");
+        if (value != null && !value.isBlank()) {
+            return value.trim();
+        }
+        final var arn = System.getenv("FULFILLMENT_SECRET_ARN");
+        if (arn == null || arn.isBlank()) {
+            throw new IllegalStateException("Set FULFILLMENT_SECRET or FULFILLMENT_SECRET_ARN, /fulfill is never served without one");
+        }
+        try (var httpClient = AwsCrtAsyncHttpClient.create();
+                var client = SecretsManagerAsyncClient.builder().httpClient(httpClient).build()) {
+            final var secret = client.getSecretValue(b -> b.secretId(arn)).join().secretString();
+            if (secret == null || secret.isBlank()) {
+                throw new IllegalStateException("Secret " + arn + " has no string value");
+            }
+            log.info("Fulfillment secret loaded from Secrets Manager");
+            return secret.trim();
+        }
+    }
+
+    /**
+     * Does the presented header value match, in constant time so the secret can't be guessed by timing.
+     *
+     * @param secret
+     * @param presented header value, may be null
+     * @return
+     */
+    static boolean matches(String secret, String presented) {
+        return presented != null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), presented.getBytes(StandardCharsets.UTF_8));
+    }
+}
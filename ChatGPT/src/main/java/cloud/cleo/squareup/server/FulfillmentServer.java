@@ -0,0 +1,159 @@
+package cloud.cleo.squareup.server;
+
+import cloud.cleo.squareup.ChatGPTLambda;
+import com.amazonaws.services.lambda.runtime.events.LexV2Event;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hosts the same Lex fulfillment logic as {@link ChatGPTLambda} behind an HTTP endpoint, so many concurrent turns share
+ * one warm JVM instead of one Lambda instance each sitting idle waiting on OpenAI.
+ *
+ * <ul>
+ * <li>POST /fulfill - body is the Lex V2 event, response is the Lex V2 response</li>
+ * <li>GET /health - 200 once started, with the number of turns in flight</li>
+ * </ul>
+ *
+ * Every /fulfill request must carry the shared secret (see {@link FulfillmentSecret}) or it gets a 401, and the server
+ * won't start without one configured.
+ *
+ * Each exchange runs on its own virtual thread when running on Java 21 (falls back to a cached thread pool on 17), since
+ * a turn is mostly waiting on OpenAI, Square and Dynamo. The port comes from SERVER_PORT (default 8080), everything
+ * else is the same environment the Lambda uses.
+ *
+ * @author sjensen
+ */
+public class FulfillmentServer {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(FulfillmentServer.class);
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * Seconds to let in flight turns finish on shutdown (ECS sends SIGTERM and waits 30 by default).
+     */
+    private final static int SHUTDOWN_SECONDS = 25;
+
+    /**
+     * Set once a server is started in this JVM, background work can then outlive the turn that started it.
+     */
+    private static volatile boolean running;
+
+    private final String secret;
+    private final ChatGPTLambda handler = new ChatGPTLambda();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final HttpServer server;
+    private final ExecutorService executor = threadPerTaskExecutor();
+
+    /**
+     * @param port
+     * @param secret shared secret callers must send in the {@value FulfillmentSecret#HEADER} header
+     * @throws IOException
+     */
+    public FulfillmentServer(int port, String secret) throws IOException {
+        this.secret = secret;
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.createContext("/fulfill", this::fulfill);
+        server.createContext("/health", this::health);
+        server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final var port = System.getenv("SERVER_PORT");
+        final var server = new FulfillmentServer(port == null || port.isBlank() ? 8080 : Integer.parseInt(port), FulfillmentSecret.load());
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+    }
+
+    /**
+     * Whether turns are being served by a long running server instead of Lambda.
+     *
+     * @return true when a server was started in this JVM
+     */
+    public static boolean isRunning() {
+        return running;
+    }
+
+    public void start() {
+        server.start();
+        running = true;
+        log.info("Fulfillment server listening on port " + server.getAddress().getPort());
+    }
+
+    public void stop() {
+        log.info("Stopping with " + inFlight.get() + " turns in flight");
+        server.stop(SHUTDOWN_SECONDS);
+        executor.shutdown();
+    }
+
+    private void fulfill(HttpExchange exchange) throws IOException {
+        inFlight.incrementAndGet();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "{\"message\":\"POST a Lex V2 event\"}");
+                return;
+            }
+            if (!FulfillmentSecret.matches(secret, exchange.getRequestHeaders().getFirst(FulfillmentSecret.HEADER))) {
+                log.warn("Rejected /fulfill from " + exchange.getRemoteAddress() + " without a valid secret");
+                send(exchange, 401, "{\"message\":\"Unauthorized\"}");
+                return;
+            }
+            final LexV2Event event;
+            try {
+                event = mapper.readValue(exchange.getRequestBody(), LexV2Event.class);
+            } catch (IOException e) {
+                send(exchange, 400, mapper.createObjectNode().put("message", "Invalid Lex event: " + e.getMessage()).toString());
+                return;
+            }
+            // The handler never throws, errors come back as a Lex response with the error message
+            final var response = handler.handleRequest(event, new ServerContext());
+            send(exchange, 200, mapper.writeValueAsString(response));
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void health(HttpExchange exchange) throws IOException {
+        try {
+            send(exchange, 200, mapper.createObjectNode().put("status", "OK").put("inFlight", inFlight.get()).toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        final var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * Virtual thread per task on Java 21, looked up reflectively since we still compile for 17.
+     */
+    private static ExecutorService threadPerTaskExecutor() {
+        try {
+            final var executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info("Using virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads need Java 21, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
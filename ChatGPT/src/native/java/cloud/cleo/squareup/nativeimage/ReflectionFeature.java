@@ -0,0 +1,93 @@
+package cloud.cleo.squareup.nativeimage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import org.graalvm.nativeimage.hosted.Feature;
+import org.graalvm.nativeimage.hosted.RuntimeReflection;
+
+/**
+ * Native image build feature that registers whole packages for reflection. Jackson binds the Lex events, OpenAI and
+ * Square models and our own Dynamo beans and function Request classes by reflection, and those packages have far too
+ * many classes to list one by one in reflect-config.json (and the list would rot every time the SDKs are bumped).
+ *
+ * Only used by the native profile, see src/native/resources/META-INF/native-image for the rest of the configuration.
+ *
+ * @author sjensen
+ */
+public class ReflectionFeature implements Feature {
+
+    private final static List<String> PACKAGES = List.of(
+            // Our session beans, function Request classes and JSON serializers
+            "cloud.cleo.squareup",
+            // LexV2Event and LexV2Response
+            "com.amazonaws.services.lambda.runtime.events",
+            // Lambda log4j2 appender
+            "com.amazonaws.services.lambda.runtime.log4j2",
+            // OpenAI request/response models and the Retrofit API interface
+            "com.theokanning.openai",
+            // Square models and API wiring
+            "com.squareup.square",
+            // Log4j plugins (appenders, layouts, converters) are all found and built by reflection
+            "org.apache.logging.log4j.core"
+    );
+
+    @Override
+    public void beforeAnalysis(BeforeAnalysisAccess access) {
+        for (var entry : access.getApplicationClassPath()) {
+            for (var name : classNames(entry)) {
+                if (PACKAGES.stream().noneMatch(p -> name.startsWith(p + "."))) {
+                    continue;
+                }
+                final var clazz = access.findClassByName(name);
+                if (clazz == null) {
+                    continue;
+                }
+                try {
+                    RuntimeReflection.register(clazz);
+                    RuntimeReflection.register(clazz.getDeclaredConstructors());
+                    RuntimeReflection.register(clazz.getDeclaredMethods());
+                    RuntimeReflection.register(clazz.getDeclaredFields());
+                } catch (LinkageError e) {
+                    // Optional dependency not on the class path (Log4j has plenty), nothing will use it
+                }
+            }
+        }
+    }
+
+    /**
+     * Binary class names in a jar or classes directory.
+     */
+    private static List<String> classNames(Path entry) {
+        try {
+            if (Files.isDirectory(entry)) {
+                try (Stream<Path> files = Files.walk(entry)) {
+                    return files.map(f -> entry.relativize(f).toString().replace('\\', '/'))
+                            .filter(ReflectionFeature::isClass)
+                            .map(ReflectionFeature::toClassName)
+                            .toList();
+                }
+            }
+            try (var jar = new JarFile(entry.toFile())) {
+                return jar.stream()
+                        .map(e -> e.getName())
+                        .filter(ReflectionFeature::isClass)
+                        .map(ReflectionFeature::toClassName)
+                        .toList();
+            }
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+
+    private static boolean isClass(String path) {
+        return path.endsWith(".class") && !path.startsWith("META-INF/") && !path.endsWith("module-info.class");
+    }
+
+    private static String toClassName(String path) {
+        return path.substring(0, path.length() - ".class".length()).replace('/', '.');
+    }
+}
@@ -0,0 +1,149 @@
+package cloud.cleo.squareup;
+
+import cloud.cleo.squareup.DegradationController.Mode;
+import cloud.cleo.squareup.DegradationController.Stats;
+import static org.junit.jupiter.api.Assertions.*;
+import com.theokanning.openai.completion.chat.ChatMessage;
+import com.theokanning.openai.completion.chat.ChatMessageRole;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class DegradationControllerTest {
+
+    private final static Stats HEALTHY = new Stats(50, 0.0, 1500);
+    private final static Stats EMPTY = new Stats(0, 0, -1);
+
+    @Test
+    public void healthyOrQuietIsNormal() {
+        assertEquals(Mode.NORMAL, DegradationController.evaluate(HEALTHY, HEALTHY));
+        assertEquals(Mode.NORMAL, DegradationController.evaluate(EMPTY, EMPTY));
+    }
+
+    @Test
+    public void tooFewCallsToJudge() {
+        final var fewFailing = new Stats(5, 1.0, 60000);
+        assertEquals(Mode.NORMAL, DegradationController.evaluate(fewFailing, fewFailing));
+    }
+
+    @Test
+    public void slowOrFailingOpenAiIsReduced() {
+        assertEquals(Mode.REDUCED, DegradationController.evaluate(new Stats(20, 0.25, 1500), HEALTHY));
+        assertEquals(Mode.REDUCED, DegradationController.evaluate(new Stats(20, 0.0, 9000), HEALTHY));
+    }
+
+    @Test
+    public void mostlyFailingOpenAiIsBypass() {
+        assertEquals(Mode.BYPASS, DegradationController.evaluate(new Stats(20, 0.6, 1500), HEALTHY));
+        assertEquals(Mode.BYPASS, DegradationController.evaluate(new Stats(20, 0.0, 25000), HEALTHY));
+    }
+
+    @Test
+    public void slowOrFailingSquareIsCachedOnly() {
+        assertEquals(Mode.CACHED_ONLY, DegradationController.evaluate(HEALTHY, new Stats(20, 0.4, 200)));
+        assertEquals(Mode.CACHED_ONLY, DegradationController.evaluate(HEALTHY, new Stats(20, 0.0, 4000)));
+        // Square being down is the worse of the two
+        assertEquals(Mode.CACHED_ONLY, DegradationController.evaluate(new Stats(20, 0.25, 1500), new Stats(20, 0.4, 200)));
+    }
+
+    @Test
+    public void bypassWinsOverSquare() {
+        assertEquals(Mode.BYPASS, DegradationController.evaluate(new Stats(20, 0.6, 1500), new Stats(20, 0.4, 200)));
+    }
+
+    @Test
+    public void sharedCountsGiveP90AgainstThresholds() {
+        final long[] thresholds = {8000, 20000};
+        // The 18th of 20 is the p90, so 3 calls over 8 s put it at 8 s or more and 2 don't
+        assertEquals(8000, Stats.fromCounts(20, 0, thresholds, new long[]{3, 0}).p90());
+        assertEquals(0, Stats.fromCounts(20, 0, thresholds, new long[]{2, 0}).p90());
+        assertEquals(20000, Stats.fromCounts(20, 0, thresholds, new long[]{5, 3}).p90());
+
+        final var stats = Stats.fromCounts(20, 5, thresholds, new long[]{0, 0});
+        assertEquals(20, stats.count());
+        assertEquals(0.25, stats.errorRate());
+        assertEquals(EMPTY, Stats.fromCounts(0, 0, thresholds, new long[]{0, 0}));
+    }
+
+    @Test
+    public void sharedCountsDriveTheSameModes() {
+        final long[] openAi = {8000, 20000};
+        final long[] square = {3000};
+        final var slowOpenAi = Stats.fromCounts(40, 0, openAi, new long[]{6, 0});
+        assertEquals(Mode.REDUCED, DegradationController.evaluate(slowOpenAi, Stats.fromCounts(40, 0, square, new long[]{0})));
+        assertEquals(Mode.CACHED_ONLY, DegradationController.evaluate(HEALTHY, Stats.fromCounts(40, 0, square, new long[]{10})));
+    }
+
+    @Test
+    public void modesAreOrdered() {
+        assertTrue(Mode.BYPASS.atLeast(Mode.REDUCED));
+        assertTrue(Mode.REDUCED.atLeast(Mode.REDUCED));
+        assertFalse(Mode.NORMAL.atLeast(Mode.REDUCED));
+    }
+
+    @Test
+    public void normalSendsWholeHistory() {
+        final var messages = conversation(20);
+        assertSame(messages, DegradationController.trimHistory(messages, Mode.NORMAL));
+    }
+
+    @Test
+    public void shortHistoryIsNotTrimmed() {
+        final var messages = conversation(5);
+        assertEquals(messages, DegradationController.trimHistory(messages, Mode.REDUCED));
+    }
+
+    @Test
+    public void reducedKeepsSystemPromptAndLatestMessages() {
+        final var messages = conversation(20);
+        final var trimmed = DegradationController.trimHistory(messages, Mode.REDUCED);
+        assertEquals(7, trimmed.size());
+        assertSame(messages.get(0), trimmed.get(0));
+        assertEquals(messages.subList(messages.size() - 6, messages.size()), trimmed.subList(1, trimmed.size()));
+    }
+
+    @Test
+    public void functionResultIsNeverFirstAfterTrimming() {
+        final var messages = conversation(20);
+        // Cut lands on a function result whose call was trimmed away
+        messages.set(messages.size() - 6, new ChatMessage(ChatMessageRole.FUNCTION.value(), "{\"open\":true}", "store_hours", null));
+        final var trimmed = DegradationController.trimHistory(messages, Mode.CACHED_ONLY);
+        assertEquals(6, trimmed.size());
+        assertEquals(ChatMessageRole.SYSTEM.value(), trimmed.get(0).getRole());
+        assertNotEquals(ChatMessageRole.FUNCTION.value(), trimmed.get(1).getRole());
+    }
+
+    @Test
+    public void reducedAsksForShorterAnswers() {
+        final var profile = new CompletionProfile("gpt-3.5-turbo", 500, 0.2, null, null, "Answer in two sentences.");
+        final var adjusted = DegradationController.adjust(profile, Mode.REDUCED);
+        assertEquals(300, adjusted.maxTokens());
+        assertTrue(adjusted.brevity().startsWith("Answer in two sentences."));
+        assertEquals(profile.model(), adjusted.model());
+        assertSame(profile, DegradationController.adjust(profile, Mode.NORMAL));
+    }
+
+    @Test
+    public void tokenBudgetHasAFloor() {
+        final var profile = new CompletionProfile("gpt-3.5-turbo", 150, 0.2, null, null, null);
+        final var adjusted = DegradationController.adjust(profile, Mode.BYPASS);
+        assertEquals(120, adjusted.maxTokens());
+        assertNotNull(adjusted.brevity());
+    }
+
+    /**
+     * System prompt then alternating user and assistant messages.
+     */
+    private static List<ChatMessage> conversation(int messages) {
+        final List<ChatMessage> list = new ArrayList<>();
+        list.add(new ChatMessage(ChatMessageRole.SYSTEM.value(), "You are a helpful store assistant."));
+        for (int i = 0; i < messages; i++) {
+            final var role = i % 2 == 0 ? ChatMessageRole.USER : ChatMessageRole.ASSISTANT;
+            list.add(new ChatMessage(role.value(), "message " + i));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,56 @@
+package cloud.cleo.squareup;
+
+import cloud.cleo.squareup.functions.StoreData.Period;
+import static org.junit.jupiter.api.Assertions.*;
+import java.time.DayOfWeek;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class FaqMiningJobTest {
+
+    private final static ZoneId TZ = ZoneId.of("America/Chicago");
+
+    /**
+     * Open 10 to 6 every day but Sunday.
+     */
+    private final static List<Period> HOURS = List.of(DayOfWeek.MONDAY, DayOfWeek.TUESDAY, DayOfWeek.WEDNESDAY,
+            DayOfWeek.THURSDAY, DayOfWeek.FRIDAY, DayOfWeek.SATURDAY).stream()
+            .map(d -> new Period(d, LocalTime.of(10, 0), LocalTime.of(18, 0)))
+            .toList();
+
+    @Test
+    public void nightlyRunWarmsTheNextDay() {
+        // Tuesday night after close
+        final var now = ZonedDateTime.of(2024, 1, 2, 22, 0, 0, 0, TZ);
+        assertEquals(List.of(
+                ZonedDateTime.of(2024, 1, 3, 9, 30, 0, 0, TZ),
+                ZonedDateTime.of(2024, 1, 3, 14, 0, 0, 0, TZ),
+                ZonedDateTime.of(2024, 1, 3, 18, 30, 0, 0, TZ)), FaqMiningJob.warmTimes(HOURS, now));
+    }
+
+    @Test
+    public void earlyRunWarmsToday() {
+        final var now = ZonedDateTime.of(2024, 1, 3, 5, 0, 0, 0, TZ);
+        assertEquals(3, FaqMiningJob.warmTimes(HOURS, now).size());
+        assertTrue(FaqMiningJob.warmTimes(HOURS, now).stream().allMatch(t -> t.toLocalDate().equals(now.toLocalDate())));
+    }
+
+    @Test
+    public void closedDaysAreSkipped() {
+        // Saturday night, closed Sunday, so Monday is the coming day
+        final var now = ZonedDateTime.of(2024, 1, 6, 20, 0, 0, 0, TZ);
+        assertTrue(FaqMiningJob.warmTimes(HOURS, now).stream().allMatch(t -> t.getDayOfWeek() == DayOfWeek.MONDAY));
+    }
+
+    @Test
+    public void noHoursIsJustNow() {
+        final var now = ZonedDateTime.of(2024, 1, 3, 12, 0, 0, 0, TZ);
+        assertEquals(List.of(now), FaqMiningJob.warmTimes(List.of(), now));
+    }
+}
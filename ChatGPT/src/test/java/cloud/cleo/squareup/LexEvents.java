@@ -0,0 +1,47 @@
+package cloud.cleo.squareup;
+
+import com.amazonaws.services.lambda.runtime.events.LexV2Event;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Lex events for tests, built from JSON the same way the SnapStart priming events are.
+ *
+ * @author sjensen
+ */
+public final class LexEvents {
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private LexEvents() {
+    }
+
+    /**
+     * @param platform channel platform (Chime, Twilio, Facebook)
+     * @param inputMode Speech, DTMF or Text
+     * @param localeId bot locale (en_US, es_US, de_DE)
+     * @param transcript what the caller said or typed
+     * @return
+     */
+    public static LexV2EventWrapper event(String platform, String inputMode, String localeId, String transcript) {
+        final ObjectNode json = mapper.createObjectNode();
+        json.put("messageVersion", "1.0");
+        json.put("invocationSource", "FulfillmentCodeHook");
+        json.put("inputMode", inputMode);
+        json.put("sessionId", "15555550100");
+        json.put("inputTranscript", transcript);
+        json.putObject("bot")
+                .put("name", "Test")
+                .put("localeId", localeId);
+        json.putObject("requestAttributes").put("x-amz-lex:channels:platform", platform);
+        final var state = json.putObject("sessionState");
+        state.putObject("sessionAttributes");
+        state.putObject("intent")
+                .put("name", "FallbackIntent")
+                .put("state", "InProgress")
+                .put("confirmationState", "None");
+        return new LexV2EventWrapper(mapper.convertValue(json, LexV2Event.class));
+    }
+}
@@ -0,0 +1,111 @@
+package cloud.cleo.squareup;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class RateLimiterTest {
+
+    private final static long HOUR = Duration.ofHours(1).toMillis();
+
+    /**
+     * Time for one token to refill.
+     */
+    private final static long TOKEN_MILLIS = HOUR / RateLimiter.PER_HOUR;
+
+    @Test
+    public void burstIsLetThroughThenRefused() {
+        final long now = 1_000_000L;
+        final var bucket = new RateLimiter.Bucket(now);
+        for (int i = 0; i < RateLimiter.BURST; i++) {
+            assertTrue(bucket.take(now), "message " + i);
+        }
+        assertFalse(bucket.take(now));
+    }
+
+    @Test
+    public void tokensRefillAtTheHourlyRate() {
+        final long now = 1_000_000L;
+        final var bucket = new RateLimiter.Bucket(now);
+        drain(bucket, now);
+
+        assertFalse(bucket.take(now + TOKEN_MILLIS / 2));
+        assertTrue(bucket.take(now + TOKEN_MILLIS));
+        assertFalse(bucket.take(now + TOKEN_MILLIS));
+    }
+
+    @Test
+    public void idleSenderNeverGetsMoreThanTheBurst() {
+        final long now = 1_000_000L;
+        final var bucket = new RateLimiter.Bucket(now);
+        drain(bucket, now);
+
+        final long later = now + 24 * HOUR;
+        for (int i = 0; i < RateLimiter.BURST; i++) {
+            assertTrue(bucket.take(later), "message " + i);
+        }
+        assertFalse(bucket.take(later));
+    }
+
+    @Test
+    public void refusedMessagesDontCost() {
+        final long now = 1_000_000L;
+        final var bucket = new RateLimiter.Bucket(now);
+        drain(bucket, now);
+
+        // Hammering away while empty doesn't push the next token further out
+        for (long t = now; t < now + TOKEN_MILLIS; t += TOKEN_MILLIS / 4) {
+            bucket.take(t);
+        }
+        assertTrue(bucket.take(now + TOKEN_MILLIS));
+    }
+
+    @Test
+    public void evictionKeepsBlockedSendersAndDropsOldestFirst() {
+        final long now = 10 * HOUR;
+        final Map<String, RateLimiter.Bucket> buckets = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            // Oldest first, all used within the hour
+            buckets.put("sender" + i, new RateLimiter.Bucket(now - HOUR / 2 + i));
+        }
+        final var blocked = new RateLimiter.Bucket(now - HOUR / 2 - 1);
+        blocked.blockedUntil = now + HOUR;
+        buckets.put("blocked", blocked);
+
+        RateLimiter.evict(buckets, now, 10);
+
+        assertEquals(9, buckets.size());
+        assertSame(blocked, buckets.get("blocked"));
+        assertFalse(buckets.containsKey("sender0"));
+        assertFalse(buckets.containsKey("sender1"));
+        assertTrue(buckets.containsKey("sender9"));
+    }
+
+    @Test
+    public void evictionNeverDropsBlockedSenders() {
+        final long now = 10 * HOUR;
+        final Map<String, RateLimiter.Bucket> buckets = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            final var bucket = new RateLimiter.Bucket(now - 2 * HOUR);
+            bucket.blockedUntil = now + HOUR;
+            buckets.put("blocked" + i, bucket);
+        }
+        RateLimiter.evict(buckets, now, 2);
+        assertEquals(5, buckets.size());
+    }
+
+    @Test
+    public void everythingAdmittedWithoutTable() {
+        assertTrue(RateLimiter.admit(LexEvents.event("Twilio", "Text", "en_US", "hello")).join());
+    }
+
+    private static void drain(RateLimiter.Bucket bucket, long now) {
+        while (bucket.take(now)) {
+        }
+    }
+}
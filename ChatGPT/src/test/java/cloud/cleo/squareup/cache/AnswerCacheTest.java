@@ -0,0 +1,70 @@
+package cloud.cleo.squareup.cache;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class AnswerCacheTest {
+
+    @Test
+    public void normalizeDropsPunctuationCaseAndFillers() {
+        assertEquals("what time do you close today", AnswerCache.normalize("Um, hi! What time do you close today?"));
+        assertEquals("what are your hours", AnswerCache.normalize("%HESITATION what are your hours"));
+    }
+
+    @Test
+    public void normalizeHandlesSpanishAndGerman() {
+        assertEquals("a que hora cierran", AnswerCache.normalize("Hola, ¿a qué hora cierran, por favor?"));
+        assertEquals("wann haben sie geoffnet", AnswerCache.normalize("Hallo, wann haben Sie geöffnet? Bitte"));
+    }
+
+    @Test
+    public void normalizeNullOrOnlyFillersIsEmpty() {
+        assertEquals("", AnswerCache.normalize(null));
+        assertEquals("", AnswerCache.normalize("Um... okay"));
+    }
+
+    @Test
+    public void sameUtteranceIsDuplicate() {
+        assertTrue(AnswerCache.isNearDuplicate("are you open", "are you open"));
+    }
+
+    @Test
+    public void extraWordInLongUtteranceIsNearDuplicate() {
+        assertTrue(AnswerCache.isNearDuplicate("can you tell me what time you close on saturday night",
+                "can you tell me what time you close on saturday night just"));
+        assertTrue(AnswerCache.isNearDuplicate("i would like to know what time the store closes on saturday",
+                "actually i would like to know what time the store closes on saturday"));
+    }
+
+    @Test
+    public void differentDayIsNotNearDuplicate() {
+        assertFalse(AnswerCache.isNearDuplicate("open sunday", "open monday"));
+        assertFalse(AnswerCache.isNearDuplicate("i would like to know what time the store closes on saturday",
+                "i would like to know what time the store closes on sunday"));
+    }
+
+    @Test
+    public void differentNumberIsNotNearDuplicate() {
+        assertFalse(AnswerCache.isNearDuplicate("do you carry size 8 knitting needles", "do you carry size 9 knitting needles"));
+        assertFalse(AnswerCache.isNearDuplicate("are you open on the 4th", "are you open on the 5th"));
+    }
+
+    @Test
+    public void wordOrderAndFillersAreNearDuplicates() {
+        assertTrue(AnswerCache.isNearDuplicate("what time do you close today", "today what time do you close"));
+        assertTrue(AnswerCache.isNearDuplicate("do you carry size 8 knitting needles", "um do you really carry size 8 knitting needles"));
+    }
+
+    @Test
+    public void droppedWordIsNotNearDuplicate() {
+        assertFalse(AnswerCache.isNearDuplicate("do you carry wool yarn", "do you carry yarn"));
+    }
+
+    @Test
+    public void unrelatedUtterancesAreNotNearDuplicates() {
+        assertFalse(AnswerCache.isNearDuplicate("what time do you close today", "do you sell candles"));
+    }
+}
@@ -0,0 +1,44 @@
+package cloud.cleo.squareup.cache;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class SimHashTest {
+
+    @Test
+    public void fnvMatchesReferenceValues() {
+        // FNV-1a 64 bit offset basis and the published hash of "a"
+        assertEquals(0xcbf29ce484222325L, SimHash.fnv(""));
+        assertEquals(0xaf63dc4c8601ec8cL, SimHash.fnv("a"));
+    }
+
+    @Test
+    public void shinglesAreWordsAndWordPairs() {
+        assertEquals(Set.of("a", "b", "c", "a b", "b c"), SimHash.shingles("a b c"));
+        assertEquals(Set.of("hours"), SimHash.shingles("hours"));
+    }
+
+    @Test
+    public void sameUtteranceSameHash() {
+        assertEquals(SimHash.of("what time do you close today"), SimHash.of("what time do you close today"));
+        assertEquals(0, SimHash.distance(SimHash.of("are you open"), SimHash.of("are you open")));
+    }
+
+    @Test
+    public void distanceCountsDifferingBits() {
+        assertEquals(64, SimHash.distance(0L, -1L));
+        assertEquals(1, SimHash.distance(0b1000L, 0L));
+    }
+
+    @Test
+    public void similarUtterancesAreCloserThanUnrelatedOnes() {
+        final long base = SimHash.of("what time do you close today");
+        final int similar = SimHash.distance(base, SimHash.of("what time do you close"));
+        final int unrelated = SimHash.distance(base, SimHash.of("do you sell candles"));
+        assertTrue(similar < unrelated, similar + " should be less than " + unrelated);
+    }
+}
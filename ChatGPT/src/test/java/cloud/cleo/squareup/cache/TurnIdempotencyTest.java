@@ -0,0 +1,58 @@
+package cloud.cleo.squareup.cache;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.time.Instant;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class TurnIdempotencyTest {
+
+    @Test
+    public void keyIsSessionCounterAndTranscriptHash() {
+        final var key = TurnIdempotency.key("15555550100", "3", "What are your hours?");
+        assertTrue(key.matches("15555550100#3#[0-9a-f]{24}"), key);
+    }
+
+    @Test
+    public void redeliveredTurnGetsSameKey() {
+        assertEquals(TurnIdempotency.key("s", "1", "hello"), TurnIdempotency.key("s", "1", "hello"));
+    }
+
+    @Test
+    public void differentTurnGetsDifferentKey() {
+        final var key = TurnIdempotency.key("s", "1", "hello");
+        assertNotEquals(key, TurnIdempotency.key("s", "2", "hello"));
+        assertNotEquals(key, TurnIdempotency.key("s", "1", "hello again"));
+        assertNotEquals(key, TurnIdempotency.key("t", "1", "hello"));
+    }
+
+    @Test
+    public void blankTranscriptStillHasKey() {
+        assertTrue(TurnIdempotency.key("s", "0", null).startsWith("s#0#"));
+        assertNotEquals(TurnIdempotency.key("s", "0", null), TurnIdempotency.key("s", "0", ""));
+    }
+
+    @Test
+    public void claimInProgressLongerThanATurnCanBeTakenOver() {
+        final var now = Instant.ofEpochMilli(1_700_000_000_000L);
+        final var condition = TurnIdempotency.claimCondition(now, 30000);
+        assertTrue(condition.expression().contains("attribute_not_exists(id)"));
+        assertEquals("1699999970000", condition.expressionValues().get(":abandoned").n());
+        assertEquals("1700000000", condition.expressionValues().get(":now").n());
+        assertEquals("IN_PROGRESS", condition.expressionValues().get(":inProgress").s());
+        assertEquals("status", condition.expressionNames().get("#status"));
+    }
+
+    @Test
+    public void recordPastItsTtlIsExpired() {
+        final var now = Instant.ofEpochSecond(1_700_000_000L);
+        final var record = new TurnRecord();
+        assertFalse(TurnIdempotency.isExpired(record, now));
+        record.setTtl(now.getEpochSecond() + 60);
+        assertFalse(TurnIdempotency.isExpired(record, now));
+        record.setTtl(now.getEpochSecond() - 1);
+        assertTrue(TurnIdempotency.isExpired(record, now));
+    }
+}
@@ -0,0 +1,81 @@
+package cloud.cleo.squareup.fastpath;
+
+import cloud.cleo.squareup.LexEvents;
+import cloud.cleo.squareup.lang.LangUtil;
+import static cloud.cleo.squareup.lang.LangUtil.LanguageIds.*;
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.Locale;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class FastPathResponderTest {
+
+    @Test
+    public void normalizeDropsCaseAccentsAndPunctuation() {
+        assertEquals("que hora", FastPathResponder.normalize("¿Qué HORA?"));
+        assertEquals("whats your address", FastPathResponder.normalize("What's your address?!"));
+        assertEquals("was sind ihre offnungszeiten", FastPathResponder.normalize("Was sind Ihre Öffnungszeiten"));
+    }
+
+    @Test
+    public void simpleEnglishUtterancesMatch() {
+        assertIntent(LocalIntent.THANKS, "Thanks!");
+        assertIntent(LocalIntent.GOODBYE, "Okay, thank you, bye!");
+        assertIntent(LocalIntent.HOURS, "What are your hours?");
+        assertIntent(LocalIntent.HOURS, "Are you open right now?");
+        assertIntent(LocalIntent.LOCATION, "Where are you located?");
+    }
+
+    @Test
+    public void anythingMoreGoesToGpt() {
+        assertTrue(FastPathResponder.classify("What are your hours and do you sell candles?", "en", false, false).isEmpty());
+        assertTrue(FastPathResponder.classify("Thanks, can I talk to Jenny?", "en", false, false).isEmpty());
+    }
+
+    @Test
+    public void textMatchesAnyLanguage() {
+        final var rule = FastPathResponder.classify("¿Dónde están ubicados?", "en", false, false).orElseThrow();
+        assertEquals(LocalIntent.LOCATION, rule.intent());
+        assertEquals("es", rule.locale().getLanguage());
+
+        final var german = FastPathResponder.classify("Was sind Ihre Öffnungszeiten?", "en", false, false).orElseThrow();
+        assertEquals(LocalIntent.HOURS, german.intent());
+        assertEquals("de", german.locale().getLanguage());
+    }
+
+    @Test
+    public void voiceOnlyMatchesTheBotLanguage() {
+        assertTrue(FastPathResponder.classify("¿Dónde están ubicados?", "en", true, false).isEmpty());
+        assertEquals(LocalIntent.LOCATION, FastPathResponder.classify("¿Dónde están ubicados?", "es", true, false).orElseThrow().intent());
+    }
+
+    @Test
+    public void handoverButtonOnlyOnFacebook() {
+        final var button = "Please hand this conversation over to a person";
+        assertTrue(FastPathResponder.classify(button, "en", false, false).isEmpty());
+        assertEquals(LocalIntent.HANDOVER, FastPathResponder.classify(button, "en", false, true).orElseThrow().intent());
+    }
+
+    @Test
+    public void thanksIsAnsweredFromTheBundle() {
+        final var answer = FastPathResponder.answer(LexEvents.event("Twilio", "Text", "en_US", "Thank you so much")).join().orElseThrow();
+        assertEquals(LocalIntent.THANKS, answer.intent());
+        assertEquals(LangUtil.getString(THANKS_RESPONSE, new Locale("en", "US")), answer.text());
+        assertNull(answer.functionName());
+    }
+
+    @Test
+    public void keypadDigitsAskCallerToSpeak() {
+        final var answer = FastPathResponder.answer(LexEvents.event("Chime", "DTMF", "en_US", "5")).join().orElseThrow();
+        assertEquals(LocalIntent.DTMF, answer.intent());
+        assertEquals(LangUtil.getString(DTMF_NOT_SUPPORTED, new Locale("en", "US")), answer.text());
+    }
+
+    private static void assertIntent(LocalIntent expected, String input) {
+        final var rule = FastPathResponder.classify(input, "en", false, false);
+        assertTrue(rule.isPresent(), "No match for " + input);
+        assertEquals(expected, rule.get().intent(), input);
+    }
+}
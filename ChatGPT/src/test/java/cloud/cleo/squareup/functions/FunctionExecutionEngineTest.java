@@ -0,0 +1,180 @@
+package cloud.cleo.squareup.functions;
+
+import cloud.cleo.squareup.functions.FunctionExecutionEngine.Status;
+import static org.junit.jupiter.api.Assertions.*;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.theokanning.openai.completion.chat.ChatFunction;
+import com.theokanning.openai.completion.chat.ChatFunctionCall;
+import com.theokanning.openai.service.FunctionExecutor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Functions here aren't registered, so they run with the default timeout and in flight limit. Each test uses its own
+ * function name since the in flight counts are shared by the JVM.
+ *
+ * @author sjensen
+ */
+public class FunctionExecutionEngineTest {
+
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    public static class Request {
+
+        public int quantity;
+    }
+
+    @Test
+    public void resultOfCallIsOk() throws Exception {
+        final var result = engine("ok_function", () -> CompletableFuture.completedFuture("done"), farDeadline())
+                .execute(call("ok_function")).get(5, TimeUnit.SECONDS);
+        assertEquals(Status.OK, result.status());
+        assertEquals("done", result.value());
+        assertNull(result.error());
+    }
+
+    @Test
+    public void failedCallIsFailed() throws Exception {
+        final var engine = engine("failing_function", () -> CompletableFuture.failedFuture(new IOException("Square is down")), farDeadline());
+        final var result = engine.execute(call("failing_function")).get(5, TimeUnit.SECONDS);
+        assertEquals(Status.FAILED, result.status());
+        assertInstanceOf(IOException.class, result.error());
+        assertFalse(engine.allSucceeded());
+    }
+
+    @Test
+    public void throwingFunctionIsFailed() throws Exception {
+        final var result = engine("throwing_function", () -> {
+            throw new IllegalStateException("Square client not configured");
+        }, farDeadline()).execute(call("throwing_function")).get(5, TimeUnit.SECONDS);
+        assertEquals(Status.FAILED, result.status());
+        assertInstanceOf(IllegalStateException.class, result.error());
+    }
+
+    @Test
+    public void argumentsThatDontBindAreInvalid() throws Exception {
+        final List<Integer> calls = new ArrayList<>();
+        final var engine = engine("bind_function", () -> calls.add(1), farDeadline());
+        final var badCall = call("bind_function");
+        badCall.setArguments(mapper.createObjectNode().put("quantity", "lots"));
+        assertEquals(Status.INVALID, engine.execute(badCall).get(5, TimeUnit.SECONDS).status());
+        assertTrue(calls.isEmpty());
+
+        // Arguments sent as a JSON string still bind
+        final var textCall = call("bind_function");
+        textCall.setArguments(mapper.getNodeFactory().textNode("{\"quantity\": 2}"));
+        assertEquals(Status.OK, engine.execute(textCall).get(5, TimeUnit.SECONDS).status());
+        assertEquals(List.of(1), calls);
+    }
+
+    @Test
+    public void unknownFunctionIsInvalid() throws Exception {
+        final var result = engine("known_function", () -> "done", farDeadline())
+                .execute(call("unknown_function")).get(5, TimeUnit.SECONDS);
+        assertEquals(Status.INVALID, result.status());
+    }
+
+    @Test
+    public void nothingRunsTooCloseToTheDeadline() throws Exception {
+        final List<Integer> calls = new ArrayList<>();
+        final var engine = engine("late_function", () -> calls.add(1), System.currentTimeMillis());
+        final var result = engine.execute(call("late_function")).get(5, TimeUnit.SECONDS);
+        assertEquals(Status.DEADLINE, result.status());
+        assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    public void hungCallStopsAtTheDeadline() throws Exception {
+        final long deadline = System.currentTimeMillis() + FunctionExecutionEngine.DEADLINE_RESERVE_MILLIS + 300;
+        final var engine = engine("hung_function", CompletableFuture::new, deadline);
+        final long start = System.currentTimeMillis();
+        final var result = engine.execute(call("hung_function")).get(5, TimeUnit.SECONDS);
+        assertEquals(Status.DEADLINE, result.status());
+        assertTrue(System.currentTimeMillis() - start < AbstractFunction.DEFAULT_TIMEOUT_MILLIS);
+        assertEquals(List.of(result), engine.getResults());
+    }
+
+    @Test
+    public void callsOverTheLimitAreRejected() throws Exception {
+        final List<CompletableFuture<Object>> pending = new ArrayList<>();
+        final var engine = engine("busy_function", () -> {
+            final var f = new CompletableFuture<Object>();
+            pending.add(f);
+            return f;
+        }, farDeadline());
+
+        final List<CompletableFuture<FunctionExecutionEngine.Result>> results = new ArrayList<>();
+        for (int i = 0; i < AbstractFunction.DEFAULT_MAX_CONCURRENT; i++) {
+            results.add(engine.execute(call("busy_function")));
+        }
+        final var rejected = engine.execute(call("busy_function")).get(5, TimeUnit.SECONDS);
+        assertEquals(Status.REJECTED, rejected.status());
+        assertEquals(AbstractFunction.DEFAULT_MAX_CONCURRENT, pending.size());
+
+        // One finishing frees one slot
+        pending.get(0).complete("done");
+        assertEquals(Status.OK, results.get(0).get(5, TimeUnit.SECONDS).status());
+        results.add(engine.execute(call("busy_function")));
+        assertEquals(AbstractFunction.DEFAULT_MAX_CONCURRENT + 1, pending.size());
+
+        pending.forEach(f -> f.complete("done"));
+        for (var r : results) {
+            assertEquals(Status.OK, r.get(5, TimeUnit.SECONDS).status());
+        }
+    }
+
+    @Test
+    public void timedOutCallsKeepTheirSlotUntilTheyFinish() throws Exception {
+        final List<CompletableFuture<Object>> pending = new ArrayList<>();
+        final Supplier<Object> slow = () -> {
+            final var f = new CompletableFuture<Object>();
+            pending.add(f);
+            return f;
+        };
+
+        final long deadline = System.currentTimeMillis() + FunctionExecutionEngine.DEADLINE_RESERVE_MILLIS + 200;
+        final var hurried = engine("slow_function", slow, deadline);
+        final List<CompletableFuture<FunctionExecutionEngine.Result>> results = new ArrayList<>();
+        for (int i = 0; i < AbstractFunction.DEFAULT_MAX_CONCURRENT; i++) {
+            results.add(hurried.execute(call("slow_function")));
+        }
+        for (var r : results) {
+            assertEquals(Status.DEADLINE, r.get(5, TimeUnit.SECONDS).status());
+        }
+
+        // Nobody is waiting on them any more, but the backend still has all of them
+        final var next = engine("slow_function", slow, farDeadline());
+        assertEquals(Status.REJECTED, next.execute(call("slow_function")).get(5, TimeUnit.SECONDS).status());
+        assertTrue(pending.stream().noneMatch(CompletableFuture::isDone));
+
+        pending.forEach(f -> f.complete("late"));
+        final var after = next.execute(call("slow_function"));
+        pending.get(pending.size() - 1).complete("done");
+        assertEquals(Status.OK, after.get(5, TimeUnit.SECONDS).status());
+    }
+
+    private static FunctionExecutionEngine engine(String name, Supplier<Object> body, long deadline) {
+        final var function = ChatFunction.builder()
+                .name(name)
+                .description("Test function")
+                .executor(Request.class, r -> body.get())
+                .build();
+        return new FunctionExecutionEngine(new FunctionExecutor(List.of(function)), deadline);
+    }
+
+    private static ChatFunctionCall call(String name) {
+        final var call = new ChatFunctionCall();
+        call.setName(name);
+        call.setArguments(mapper.createObjectNode());
+        return call;
+    }
+
+    private static long farDeadline() {
+        return System.currentTimeMillis() + 60000;
+    }
+}
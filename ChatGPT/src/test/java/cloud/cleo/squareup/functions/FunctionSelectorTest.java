@@ -0,0 +1,77 @@
+package cloud.cleo.squareup.functions;
+
+import cloud.cleo.squareup.ChatGPTMessage;
+import cloud.cleo.squareup.ChatGPTMessage.MessageRole;
+import static org.junit.jupiter.api.Assertions.*;
+import com.theokanning.openai.completion.chat.ChatFunctionCall;
+import com.theokanning.openai.completion.chat.ChatMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class FunctionSelectorTest {
+
+    @Test
+    public void hoursQuestionOffersStoreHoursAndAlwaysOnFunctions() {
+        final var selected = FunctionSelector.selectedNames(conversation("what time do you close today?"));
+        assertEquals(Set.of("store_hours", "switch_language", "facebook_inbox"), selected);
+    }
+
+    @Test
+    public void emailOffersTeamMembersWithIt() {
+        final var selected = FunctionSelector.selectedNames(conversation("Can you email the owner for me?"));
+        assertTrue(selected.containsAll(Set.of("team_members", "send_email_message")));
+        assertFalse(selected.contains("aws_cost_forecast"));
+    }
+
+    @Test
+    public void spanishAndGermanKeywordsMatch() {
+        assertTrue(FunctionSelector.selectedNames(conversation("¿Tienen regalos?")).contains("store_product_item"));
+        assertTrue(FunctionSelector.selectedNames(conversation("Wo sind Sie?")).contains("driving_directions"));
+    }
+
+    @Test
+    public void noKeywordsOffersEverything() {
+        assertTrue(FunctionSelector.selectedNames(conversation("hello there")).isEmpty());
+    }
+
+    @Test
+    public void onlyRecentUserMessagesCount() {
+        assertTrue(FunctionSelector.selectedNames(conversation("do you sell candles", "thanks", "ok", "cool")).isEmpty());
+        assertTrue(FunctionSelector.selectedNames(conversation("do you sell candles", "ok", "cool")).contains("store_product_item"));
+    }
+
+    @Test
+    public void systemPromptIsNotMatched() {
+        final List<ChatMessage> messages = new ArrayList<>();
+        messages.add(new ChatGPTMessage(MessageRole.system, "You can look up store hours and send email."));
+        messages.add(new ChatGPTMessage(MessageRole.user, "hello"));
+        assertTrue(FunctionSelector.selectedNames(messages).isEmpty());
+    }
+
+    @Test
+    public void functionsAlreadyCalledStayOnOffer() {
+        final var call = new ChatFunctionCall();
+        call.setName("store_product_item");
+        final var messages = conversation("hello");
+        messages.add(new ChatGPTMessage(new ChatMessage(MessageRole.assistant.toString(), null, null, call)));
+        messages.add(new ChatGPTMessage(MessageRole.user, "what time do you close"));
+
+        final var selected = FunctionSelector.selectedNames(messages);
+        assertTrue(selected.contains("store_hours"));
+        assertTrue(selected.contains("store_product_item"));
+    }
+
+    private static List<ChatMessage> conversation(String... userMessages) {
+        final List<ChatMessage> messages = new ArrayList<>();
+        messages.add(new ChatGPTMessage(MessageRole.system, "You are a helpful store assistant."));
+        for (var m : userMessages) {
+            messages.add(new ChatGPTMessage(MessageRole.user, m));
+        }
+        return messages;
+    }
+}
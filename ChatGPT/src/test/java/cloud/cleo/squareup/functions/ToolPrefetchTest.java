@@ -0,0 +1,57 @@
+package cloud.cleo.squareup.functions;
+
+import static org.junit.jupiter.api.Assertions.*;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author sjensen
+ */
+public class ToolPrefetchTest {
+
+    @Test
+    public void hoursQuestionsPrefetchStoreHours() {
+        assertEquals(Map.of("store_hours", Map.of()), ToolPrefetch.guesses("what time do you close today"));
+        assertTrue(ToolPrefetch.guesses("a que hora cierran").containsKey("store_hours"));
+        assertTrue(ToolPrefetch.guesses("wann haben sie geoffnet").containsKey("store_hours"));
+    }
+
+    @Test
+    public void itemQuestionsPrefetchItemSearch() {
+        assertEquals(Map.of("search_text", "candles"), ToolPrefetch.guesses("do you have candles").get("store_product_item"));
+        assertEquals(Map.of("search_text", "scented candles"),
+                ToolPrefetch.guesses("do you sell any scented candles in stock").get("store_product_item"));
+        assertEquals(Map.of("search_text", "birthday gift"),
+                ToolPrefetch.guesses("im looking for a birthday gift").get("store_product_item"));
+    }
+
+    @Test
+    public void askingForSomeonePrefetchesTeamMembers() {
+        assertTrue(ToolPrefetch.guesses("can i talk to the manager").containsKey("team_members"));
+        assertTrue(ToolPrefetch.guesses("i want to leave a message").containsKey("team_members"));
+    }
+
+    @Test
+    public void knownFirstNamePrefetchesTeamMembers() {
+        assertFalse(ToolPrefetch.guesses("is jenny there").containsKey("team_members"));
+        ToolPrefetch.knownNames.add("jenny");
+        try {
+            assertTrue(ToolPrefetch.guesses("is jenny there").containsKey("team_members"));
+        } finally {
+            ToolPrefetch.knownNames.remove("jenny");
+        }
+    }
+
+    @Test
+    public void severalGuessesStartInOrder() {
+        assertEquals(List.of("store_hours", "store_product_item"),
+                List.copyOf(ToolPrefetch.guesses("are you open today and do you have candles").keySet()));
+    }
+
+    @Test
+    public void nothingObviousPrefetchesNothing() {
+        assertTrue(ToolPrefetch.guesses("hello there").isEmpty());
+        assertTrue(ToolPrefetch.guesses("thanks").isEmpty());
+    }
+}
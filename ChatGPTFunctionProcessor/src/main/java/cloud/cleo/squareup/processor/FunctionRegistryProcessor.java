@@ -0,0 +1,295 @@
+package cloud.cleo.squareup.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates {@code FunctionRegistry} next to {@code AbstractFunction} at build time, replacing the Reflections
+ * classpath scan at init.
+ *
+ * Every concrete subclass of AbstractFunction in its package gets a constructor reference in the registry, so adding a
+ * function is still just dropping a class in the package. The package is listed as a whole (sources being compiled and
+ * classes already in the output directory), since an incremental build only hands the processor the changed sources
+ * and a registry built from those would silently drop every other function. Each function's nested {@code Request} class also gets its
+ * JSON schema (the "parameters" sent to OpenAI) built here from the field types and the Jackson
+ * {@code @JsonProperty}/{@code @JsonPropertyDescription} annotations, so no schema generation happens at runtime.
+ *
+ * @author sjensen
+ */
+@SupportedAnnotationTypes("*")
+public class FunctionRegistryProcessor extends AbstractProcessor {
+
+    private final static String ABSTRACT_FUNCTION = "cloud.cleo.squareup.functions.AbstractFunction";
+    private final static String REGISTRY = "FunctionRegistry";
+    private final static String JSON_PROPERTY = "com.fasterxml.jackson.annotation.JsonProperty";
+    private final static String JSON_DESCRIPTION = "com.fasterxml.jackson.annotation.JsonPropertyDescription";
+
+    /**
+     * Function classes (binary name).
+     */
+    private final Set<String> functions = new TreeSet<>();
+    /**
+     * Request class binary name to schema JSON.
+     */
+    private final Map<String, String> schemas = new TreeMap<>();
+
+    private boolean generated = false;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        final var base = processingEnv.getElementUtils().getTypeElement(ABSTRACT_FUNCTION);
+        if (base == null || generated) {
+            // Not compiling the ChatGPT functions, nothing to do
+            return false;
+        }
+
+        final var pkg = processingEnv.getElementUtils().getPackageOf(base);
+        for (var type : ElementFilter.typesIn(pkg.getEnclosedElements())) {
+            if (type.equals(base) || !isFunction(type, base)) {
+                continue;
+            }
+            // Abstract ones (DrivingDirections) can still hold the Request class their subclasses use
+            addRequestSchemas(type);
+            if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+            if (!hasNoArgConstructor(type)) {
+                error(type, "ChatGPT functions need a no argument constructor to be registered");
+                continue;
+            }
+            functions.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+        }
+
+        // The package is complete in the first round, so write it once right away
+        write(pkg.getQualifiedName().toString());
+        generated = true;
+        // Never claim annotations, Lombok and anything else still need to see them
+        return false;
+    }
+
+    private boolean isFunction(TypeElement type, TypeElement base) {
+        final var types = processingEnv.getTypeUtils();
+        return types.isSubtype(types.erasure(type.asType()), types.erasure(base.asType()));
+    }
+
+    private static boolean hasNoArgConstructor(TypeElement type) {
+        final var constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        return constructors.stream().anyMatch(c -> c.getParameters().isEmpty() && !c.getModifiers().contains(Modifier.PRIVATE));
+    }
+
+    private void addRequestSchemas(TypeElement function) {
+        for (var nested : ElementFilter.typesIn(function.getEnclosedElements())) {
+            if (nested.getSimpleName().contentEquals("Request")) {
+                schemas.put(processingEnv.getElementUtils().getBinaryName(nested).toString(), schemaOf(nested));
+            }
+        }
+    }
+
+    /**
+     * Object schema for a Request class, one property per instance field.
+     */
+    private String schemaOf(TypeElement request) {
+        final var properties = new ArrayList<String>();
+        final var required = new ArrayList<String>();
+        for (var field : ElementFilter.fieldsIn(request.getEnclosedElements())) {
+            if (field.getModifiers().contains(Modifier.STATIC) || field.getModifiers().contains(Modifier.TRANSIENT)) {
+                continue;
+            }
+            var name = field.getSimpleName().toString();
+            String description = null;
+            boolean isRequired = false;
+            for (var mirror : field.getAnnotationMirrors()) {
+                final var annotation = annotationName(mirror);
+                if (JSON_PROPERTY.equals(annotation)) {
+                    final var value = (String) annotationValue(mirror, "value");
+                    if (value != null && !value.isEmpty()) {
+                        name = value;
+                    }
+                    isRequired = Boolean.TRUE.equals(annotationValue(mirror, "required"));
+                } else if (JSON_DESCRIPTION.equals(annotation)) {
+                    description = (String) annotationValue(mirror, "value");
+                }
+            }
+            final var property = new StringBuilder(typeSchema(field.asType()));
+            if (description != null) {
+                // Insert the description before the closing brace of the type schema
+                property.insert(property.length() - 1, ",\"description\":" + quote(description));
+            }
+            properties.add(quote(name) + ":" + property);
+            if (isRequired) {
+                required.add(quote(name));
+            }
+        }
+
+        final var sb = new StringBuilder("{\"type\":\"object\",\"properties\":{");
+        sb.append(String.join(",", properties)).append('}');
+        if (!required.isEmpty()) {
+            sb.append(",\"required\":[").append(String.join(",", required)).append(']');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * JSON schema for a field type, covering what the function Request classes use (strings, numbers, java.time and
+     * enums), anything else is just an object.
+     */
+    private String typeSchema(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return switch (type.getKind()) {
+                case BOOLEAN ->
+                    "{\"type\":\"boolean\"}";
+                case FLOAT, DOUBLE ->
+                    "{\"type\":\"number\"}";
+                default ->
+                    "{\"type\":\"integer\"}";
+            };
+        }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return "{\"type\":\"array\",\"items\":" + typeSchema(((ArrayType) type).getComponentType()) + "}";
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return "{\"type\":\"object\"}";
+        }
+
+        final var element = (TypeElement) ((DeclaredType) type).asElement();
+        if (element.getKind() == ElementKind.ENUM) {
+            final var constants = element.getEnclosedElements().stream()
+                    .filter(e -> e.getKind() == ElementKind.ENUM_CONSTANT)
+                    .map(e -> quote(e.getSimpleName().toString()))
+                    .toList();
+            return "{\"type\":\"string\",\"enum\":[" + String.join(",", constants) + "]}";
+        }
+        return switch (element.getQualifiedName().toString()) {
+            case "java.lang.String", "java.lang.CharSequence" ->
+                "{\"type\":\"string\"}";
+            case "java.lang.Boolean" ->
+                "{\"type\":\"boolean\"}";
+            case "java.lang.Integer", "java.lang.Long", "java.lang.Short", "java.lang.Byte", "java.math.BigInteger" ->
+                "{\"type\":\"integer\"}";
+            case "java.lang.Double", "java.lang.Float", "java.math.BigDecimal" ->
+                "{\"type\":\"number\"}";
+            case "java.time.LocalDate" ->
+                "{\"type\":\"string\",\"format\":\"date\"}";
+            case "java.time.LocalTime" ->
+                "{\"type\":\"string\",\"format\":\"time\"}";
+            case "java.time.ZonedDateTime", "java.time.LocalDateTime", "java.time.OffsetDateTime", "java.time.Instant" ->
+                "{\"type\":\"string\",\"format\":\"date-time\"}";
+            case "java.util.List", "java.util.Set", "java.util.Collection" -> {
+                final var args = ((DeclaredType) type).getTypeArguments();
+                yield "{\"type\":\"array\",\"items\":" + (args.isEmpty() ? "{}" : typeSchema(args.get(0))) + "}";
+            }
+            default ->
+                "{\"type\":\"object\"}";
+        };
+    }
+
+    private void write(String pkg) {
+        final var registry = pkg + "." + REGISTRY;
+        try (Writer w = processingEnv.getFiler().createSourceFile(registry).openWriter()) {
+            w.write("package " + pkg + ";\n\n");
+            w.write("import java.util.List;\n");
+            w.write("import java.util.Map;\n");
+            w.write("import java.util.function.Supplier;\n");
+            w.write("import javax.annotation.processing.Generated;\n\n");
+            w.write("/**\n * Generated at build time by " + getClass().getSimpleName() + ", do not edit.\n */\n");
+            w.write("@Generated(\"" + getClass().getName() + "\")\n");
+            w.write("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n");
+            w.write("final class " + REGISTRY + " {\n\n");
+
+            w.write("    /**\n     * Constructor for every concrete function.\n     */\n");
+            w.write("    static final List<Supplier<AbstractFunction>> FUNCTIONS = List.of(");
+            final var refs = new ArrayList<String>();
+            for (var fn : functions) {
+                refs.add("\n            " + fn.replace('$', '.') + "::new");
+            }
+            w.write(String.join(",", refs));
+            w.write(");\n\n");
+
+            w.write("    /**\n     * Parameter schema JSON by Request class name.\n     */\n");
+            w.write("    static final Map<String, String> SCHEMAS = Map.ofEntries(");
+            final var entries = new ArrayList<String>();
+            for (var e : schemas.entrySet()) {
+                entries.add("\n            Map.entry(" + quote(e.getKey()) + ",\n                    " + quote(e.getValue()) + ")");
+            }
+            w.write(String.join(",", entries));
+            w.write(");\n\n");
+
+            w.write("    private " + REGISTRY + "() {\n    }\n}\n");
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write " + registry + ": " + e.getMessage());
+        }
+    }
+
+    private static String annotationName(AnnotationMirror mirror) {
+        return ((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().toString();
+    }
+
+    private static Object annotationValue(AnnotationMirror mirror, String name) {
+        for (Map.Entry<? extends ExecutableElement, ?> e : mirror.getElementValues().entrySet()) {
+            if (e.getKey().getSimpleName().contentEquals(name)) {
+                return ((javax.lang.model.element.AnnotationValue) e.getValue()).getValue();
+            }
+        }
+        return null;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    /**
+     * Java (and JSON) string literal.
+     */
+    private static String quote(String s) {
+        final var sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"' ->
+                    sb.append("\\\"");
+                case '\\' ->
+                    sb.append("\\\\");
+                case '\n' ->
+                    sb.append("\\n");
+                case '\r' ->
+                    sb.append("\\r");
+                case '\t' ->
+                    sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,310 @@
+package cloud.cleo.squareup.harness;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Condition and update expressions for the DynamoDB stand-in, just the parts the Lambda uses. Attribute paths are top
+ * level only (no nested maps or list indexes).
+ *
+ * <ul>
+ * <li>Conditions: comparisons (= &lt;&gt; &lt; &lt;= &gt; &gt;=), attribute_exists, attribute_not_exists,
+ * begins_with, AND, OR, NOT and parentheses.</li>
+ * <li>Updates: SET (a value, if_not_exists, or + and - on numbers), ADD (numbers and sets) and REMOVE.</li>
+ * </ul>
+ *
+ * @author sjensen
+ */
+class DynamoExpressions {
+
+    private final static ObjectMapper mapper = new ObjectMapper();
+
+    private final static Pattern TOKEN = Pattern.compile("\\s*(<>|<=|>=|[=<>(),+-]|[#:]?[A-Za-z0-9_.]+)");
+
+    private final JsonNode names;
+    private final JsonNode values;
+
+    private List<String> tokens;
+    private int pos;
+
+    /**
+     * @param request the request holding ExpressionAttributeNames and ExpressionAttributeValues
+     */
+    DynamoExpressions(JsonNode request) {
+        this.names = request.path("ExpressionAttributeNames");
+        this.values = request.path("ExpressionAttributeValues");
+    }
+
+    /**
+     * Does the item (null when there isn't one) pass the condition.
+     *
+     * @param expression ConditionExpression, null or blank always passes
+     * @param item
+     * @return
+     */
+    boolean matches(String expression, ObjectNode item) {
+        if (expression == null || expression.isBlank()) {
+            return true;
+        }
+        start(expression);
+        final var result = or(item == null ? mapper.createObjectNode() : item);
+        expectEnd();
+        return result;
+    }
+
+    /**
+     * Apply an update expression to the item in place.
+     *
+     * @param expression UpdateExpression
+     * @param item
+     * @return the attribute names the update touched
+     */
+    Set<String> update(String expression, ObjectNode item) {
+        final Set<String> updated = new LinkedHashSet<>();
+        start(expression);
+        while (pos < tokens.size()) {
+            final var action = next().toUpperCase();
+            do {
+                final var name = name(next());
+                updated.add(name);
+                switch (action) {
+                    case "SET" -> {
+                        expect("=");
+                        // Evaluated against the item before this assignment
+                        final var value = setValue(item);
+                        item.set(name, value);
+                    }
+                    case "ADD" ->
+                        item.set(name, add(item.get(name), value(next())));
+                    case "REMOVE" ->
+                        item.remove(name);
+                    default ->
+                        throw new IllegalArgumentException("Update action " + action + " not supported by stand-in");
+                }
+            } while (accept(","));
+        }
+        return updated;
+    }
+
+    private boolean or(ObjectNode item) {
+        var result = and(item);
+        while (acceptWord("OR")) {
+            // Both sides are always parsed, so no short circuit
+            result = and(item) | result;
+        }
+        return result;
+    }
+
+    private boolean and(ObjectNode item) {
+        var result = not(item);
+        while (acceptWord("AND")) {
+            result = not(item) & result;
+        }
+        return result;
+    }
+
+    private boolean not(ObjectNode item) {
+        if (acceptWord("NOT")) {
+            return !not(item);
+        }
+        return primary(item);
+    }
+
+    private boolean primary(ObjectNode item) {
+        if (accept("(")) {
+            final var result = or(item);
+            expect(")");
+            return result;
+        }
+        final var token = next();
+        switch (token.toLowerCase()) {
+            case "attribute_exists", "attribute_not_exists" -> {
+                expect("(");
+                final var exists = item.has(name(next()));
+                expect(")");
+                return token.equalsIgnoreCase("attribute_exists") == exists;
+            }
+            case "begins_with" -> {
+                expect("(");
+                final var left = operand(next(), item);
+                expect(",");
+                final var right = operand(next(), item);
+                expect(")");
+                return left != null && right != null && left.has("S") && right.has("S")
+                        && left.get("S").asText().startsWith(right.get("S").asText());
+            }
+            default -> {
+                final var left = operand(token, item);
+                final var op = next();
+                final var right = operand(next(), item);
+                return compare(left, op, right);
+            }
+        }
+    }
+
+    private JsonNode setValue(ObjectNode item) {
+        final var token = next();
+        JsonNode value;
+        if (token.equalsIgnoreCase("if_not_exists")) {
+            expect("(");
+            final var existing = item.get(name(next()));
+            expect(",");
+            final var fallback = value(next());
+            expect(")");
+            value = existing != null ? existing : fallback;
+        } else {
+            value = operand(token, item);
+        }
+        if (accept("+")) {
+            value = number(decimal(value).add(decimal(operand(next(), item))));
+        } else if (accept("-")) {
+            value = number(decimal(value).subtract(decimal(operand(next(), item))));
+        }
+        return value;
+    }
+
+    private static JsonNode add(JsonNode existing, JsonNode value) {
+        if (value.has("N")) {
+            return number(decimal(existing == null ? number(BigDecimal.ZERO) : existing).add(decimal(value)));
+        }
+        // String or number set, union of the two
+        final var type = value.fieldNames().next();
+        final var union = mapper.createArrayNode();
+        final Set<String> seen = new LinkedHashSet<>();
+        if (existing != null) {
+            existing.path(type).forEach(v -> seen.add(v.asText()));
+        }
+        value.path(type).forEach(v -> seen.add(v.asText()));
+        seen.forEach(union::add);
+        final ObjectNode result = mapper.createObjectNode();
+        result.set(type, union);
+        return result;
+    }
+
+    private static boolean compare(JsonNode left, String op, JsonNode right) {
+        if (left == null || right == null) {
+            // Missing attributes fail every comparison except not equal
+            return op.equals("<>") && (left != null || right != null);
+        }
+        final int cmp;
+        if (left.has("N") && right.has("N")) {
+            cmp = decimal(left).compareTo(decimal(right));
+        } else if (left.has("S") && right.has("S")) {
+            cmp = left.get("S").asText().compareTo(right.get("S").asText());
+        } else {
+            final var equal = left.equals(right);
+            return switch (op) {
+                case "=" ->
+                    equal;
+                case "<>" ->
+                    !equal;
+                default ->
+                    false;
+            };
+        }
+        return switch (op) {
+            case "=" ->
+                cmp == 0;
+            case "<>" ->
+                cmp != 0;
+            case "<" ->
+                cmp < 0;
+            case "<=" ->
+                cmp <= 0;
+            case ">" ->
+                cmp > 0;
+            case ">=" ->
+                cmp >= 0;
+            default ->
+                throw new IllegalArgumentException("Comparator " + op + " not supported by stand-in");
+        };
+    }
+
+    private JsonNode operand(String token, ObjectNode item) {
+        return token.startsWith(":") ? value(token) : item.get(name(token));
+    }
+
+    private String name(String token) {
+        if (token.startsWith("#")) {
+            final var name = names.path(token);
+            if (name.isMissingNode()) {
+                throw new IllegalArgumentException("No ExpressionAttributeNames entry for " + token);
+            }
+            return name.asText();
+        }
+        return token;
+    }
+
+    private JsonNode value(String token) {
+        final var value = values.get(token);
+        if (value == null) {
+            throw new IllegalArgumentException("No ExpressionAttributeValues entry for " + token);
+        }
+        return value;
+    }
+
+    private static BigDecimal decimal(JsonNode value) {
+        return new BigDecimal(value.path("N").asText());
+    }
+
+    private static JsonNode number(BigDecimal value) {
+        return mapper.createObjectNode().put("N", value.stripTrailingZeros().toPlainString());
+    }
+
+    private void start(String expression) {
+        tokens = new ArrayList<>();
+        pos = 0;
+        final var m = TOKEN.matcher(expression);
+        int end = 0;
+        while (m.lookingAt()) {
+            tokens.add(m.group(1));
+            end = m.end();
+            m.region(end, expression.length());
+        }
+        if (!expression.substring(end).isBlank()) {
+            throw new IllegalArgumentException("Can't parse expression at: " + expression.substring(end));
+        }
+    }
+
+    private String next() {
+        if (pos >= tokens.size()) {
+            throw new IllegalArgumentException("Expression ended early");
+        }
+        return tokens.get(pos++);
+    }
+
+    private boolean accept(String token) {
+        if (pos < tokens.size() && tokens.get(pos).equals(token)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptWord(String word) {
+        if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(word)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw new IllegalArgumentException("Expected " + token + " in expression");
+        }
+    }
+
+    private void expectEnd() {
+        if (pos < tokens.size()) {
+            throw new IllegalArgumentException("Unexpected " + tokens.get(pos) + " in expression");
+        }
+    }
+}
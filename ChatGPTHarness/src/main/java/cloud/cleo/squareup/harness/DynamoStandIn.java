@@ -0,0 +1,252 @@
+package cloud.cleo.squareup.harness;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Minimal in memory DynamoDB stand-in speaking the JSON 1.0 protocol the SDK uses. Only the operations the Lambda
+ * makes are supported. Condition and update expressions are evaluated (see {@link DynamoExpressions}), so versioned
+ * session writes, turn and outbox claims and the rate limit counter behave as they do against the real table. Queries
+ * only match on the partition key, and there are no streams or TTL deletes. Tables must be defined up front with
+ * their key attributes since PutItem doesn't tell us which attributes make up the key.
+ *
+ * @author sjensen
+ */
+public class DynamoStandIn extends StandInServer {
+
+    private final static String CONTENT_TYPE = "application/x-amz-json-1.0";
+
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+
+    public DynamoStandIn(int port, LatencyDistribution latency, long seed, StageStats stats) throws IOException {
+        super("dynamo", port, latency, seed, stats);
+    }
+
+    /**
+     * Define a table and its key attribute names (partition key first).
+     *
+     * @param name
+     * @param keyNames
+     */
+    public void defineTable(String name, String... keyNames) {
+        if (name != null && !name.isBlank()) {
+            tables.put(name, new Table(List.of(keyNames), new ConcurrentHashMap<>()));
+        }
+    }
+
+    /**
+     * Number of items currently held in a table.
+     *
+     * @param name
+     * @return
+     */
+    public int size(String name) {
+        final var table = tables.get(name);
+        return table == null ? 0 : table.items().size();
+    }
+
+    @Override
+    protected String stageOf(HttpExchange exchange) {
+        return operation(exchange);
+    }
+
+    private static String operation(HttpExchange exchange) {
+        final var target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+        return target == null ? "Unknown" : target.substring(target.indexOf('.') + 1);
+    }
+
+    @Override
+    protected Reply respond(HttpExchange exchange, String body) throws Exception {
+        final var request = mapper.readTree(body);
+        final var op = operation(exchange);
+        if (op.equals("BatchGetItem")) {
+            return batchGet(request);
+        }
+        final var table = tables.get(request.path("TableName").asText());
+        if (table == null) {
+            return error("ResourceNotFoundException", "Requested resource not found");
+        }
+
+        try {
+            return respond(table, op, request);
+        } catch (IllegalArgumentException e) {
+            // Expression the stand-in can't parse
+            return error("ValidationException", e.getMessage());
+        }
+    }
+
+    private Reply respond(Table table, String op, JsonNode request) {
+        // Each item is read, checked and written as one step, like a real conditional write
+        synchronized (table) {
+            return switch (op) {
+                case "GetItem" -> {
+                    final var item = table.items().get(table.keyOf(request.path("Key")));
+                    final ObjectNode result = mapper.createObjectNode();
+                    if (item != null) {
+                        result.set("Item", item);
+                    }
+                    yield ok(result);
+                }
+                case "PutItem" -> {
+                    final var item = (ObjectNode) request.path("Item");
+                    final var key = table.keyOf(item);
+                    final var old = table.items().get(key);
+                    if (!conditionMet(request, old)) {
+                        yield conditionFailed();
+                    }
+                    table.items().put(key, item);
+                    yield ok(returnValues(request, old, item, null));
+                }
+                case "UpdateItem" -> {
+                    final var key = table.keyOf(request.path("Key"));
+                    final var old = table.items().get(key);
+                    if (!conditionMet(request, old)) {
+                        yield conditionFailed();
+                    }
+                    // A missing item is created from the key
+                    final var item = old == null ? ((ObjectNode) request.path("Key")).deepCopy() : old.deepCopy();
+                    final var updated = new DynamoExpressions(request).update(request.path("UpdateExpression").asText(), item);
+                    table.items().put(key, item);
+                    yield ok(returnValues(request, old, item, updated));
+                }
+                case "Query" -> {
+                    // Only "#pk = :pk" key conditions, no sort key conditions, filters or paging
+                    final var condition = request.path("KeyConditionExpression").asText().split("=");
+                    final var name = request.path("ExpressionAttributeNames").path(condition[0].trim()).asText(condition[0].trim());
+                    final var value = request.path("ExpressionAttributeValues").path(condition[1].trim());
+                    final var items = result(table.items().values().stream().filter(i -> i.path(name).equals(value)).toList());
+                    yield ok(items);
+                }
+                case "Scan" -> {
+                    // Segments split on the item key, all of a segment comes back in one page
+                    final int total = request.path("TotalSegments").asInt(1);
+                    final int segment = request.path("Segment").asInt(0);
+                    yield ok(result(table.items().entrySet().stream()
+                            .filter(e -> Math.floorMod(e.getKey().hashCode(), total) == segment)
+                            .map(Map.Entry::getValue)
+                            .toList()));
+                }
+                case "DeleteItem" -> {
+                    final var key = table.keyOf(request.path("Key"));
+                    final var old = table.items().get(key);
+                    if (!conditionMet(request, old)) {
+                        yield conditionFailed();
+                    }
+                    table.items().remove(key);
+                    yield ok(returnValues(request, old, null, null));
+                }
+                default ->
+                    error("UnknownOperationException", "Operation " + op + " not supported by stand-in");
+            };
+        }
+    }
+
+    /**
+     * Every key of every table in one page, nothing is ever left unprocessed.
+     */
+    private Reply batchGet(JsonNode request) {
+        final ObjectNode result = mapper.createObjectNode();
+        final var responses = result.putObject("Responses");
+        final var fields = request.path("RequestItems").fields();
+        while (fields.hasNext()) {
+            final var entry = fields.next();
+            final var table = tables.get(entry.getKey());
+            if (table == null) {
+                return error("ResourceNotFoundException", "Requested resource not found");
+            }
+            final var items = responses.putArray(entry.getKey());
+            synchronized (table) {
+                entry.getValue().path("Keys").forEach(k -> {
+                    final var item = table.items().get(table.keyOf(k));
+                    if (item != null) {
+                        items.add(item);
+                    }
+                });
+            }
+        }
+        result.putObject("UnprocessedKeys");
+        return ok(result);
+    }
+
+    private static boolean conditionMet(JsonNode request, ObjectNode item) {
+        return new DynamoExpressions(request).matches(request.path("ConditionExpression").asText(null), item);
+    }
+
+    private static Reply conditionFailed() {
+        return error("ConditionalCheckFailedException", "The conditional request failed");
+    }
+
+    /**
+     * Response body with the Attributes asked for by ReturnValues.
+     *
+     * @param request
+     * @param old item before the write, null if there wasn't one
+     * @param item item after the write, null when deleted
+     * @param updated attribute names an update touched, null for put and delete
+     * @return
+     */
+    private static ObjectNode returnValues(JsonNode request, ObjectNode old, ObjectNode item, Set<String> updated) {
+        final ObjectNode result = mapper.createObjectNode();
+        final var source = switch (request.path("ReturnValues").asText("NONE")) {
+            case "ALL_OLD" ->
+                old;
+            case "ALL_NEW" ->
+                item;
+            case "UPDATED_OLD" ->
+                only(old, updated);
+            case "UPDATED_NEW" ->
+                only(item, updated);
+            default ->
+                null;
+        };
+        if (source != null && !source.isEmpty()) {
+            result.set("Attributes", source);
+        }
+        return result;
+    }
+
+    private static ObjectNode only(ObjectNode item, Set<String> names) {
+        if (item == null || names == null) {
+            return null;
+        }
+        final ObjectNode result = mapper.createObjectNode();
+        names.stream().filter(item::has).forEach(n -> result.set(n, item.get(n)));
+        return result;
+    }
+
+    private static ObjectNode result(List<ObjectNode> items) {
+        final ObjectNode result = mapper.createObjectNode();
+        result.putArray("Items").addAll(items);
+        result.put("Count", items.size());
+        result.put("ScannedCount", items.size());
+        return result;
+    }
+
+    private static Reply ok(JsonNode json) {
+        return new Reply(200, CONTENT_TYPE, json);
+    }
+
+    private static Reply error(String type, String message) {
+        return new Reply(400, CONTENT_TYPE, mapper.createObjectNode()
+                .put("__type", "com.amazonaws.dynamodb.v20120810#" + type)
+                .put("message", message));
+    }
+
+    private record Table(List<String> keyNames, Map<String, ObjectNode> items) {
+
+        /**
+         * Canonical key string from the key attributes of an item or Key map.
+         */
+        String keyOf(JsonNode attributes) {
+            final var sb = new StringBuilder();
+            keyNames.forEach(k -> sb.append(attributes.path(k).toString()).append('|'));
+            return sb.toString();
+        }
+    }
+}
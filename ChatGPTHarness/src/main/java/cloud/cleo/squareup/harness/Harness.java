@@ -0,0 +1,318 @@
+package cloud.cleo.squareup.harness;
+
+import cloud.cleo.squareup.ChatGPTLambda;
+import cloud.cleo.squareup.FaqMiningJob;
+import cloud.cleo.squareup.harness.LexEvents.Channel;
+import cloud.cleo.squareup.lang.LangUtil;
+import static cloud.cleo.squareup.lang.LangUtil.LanguageIds.UNHANDLED_EXCEPTION;
+import com.amazonaws.services.lambda.runtime.events.LexV2Event;
+import com.amazonaws.services.lambda.runtime.events.LexV2Response;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load harness that starts local stand-ins for OpenAI, DynamoDB and Square, then drives
+ * {@link ChatGPTLambda#handleRequest} with synthetic Lex conversations for voice, SMS and Facebook. At the end a table
+ * of throughput and p50/p95/p99 is printed for each stage (the whole turn and each stand-in endpoint).
+ *
+ * The stand-in ports come from the same environment variables the Lambda uses (OPENAI_BASE_URL, DYNAMO_ENDPOINT and
+ * SQUARE_CUSTOM_URL), see loadTest.sh which sets everything up.
+ *
+ * Options are passed as key=value:
+ * <ul>
+ * <li>conversations=200 - conversations to run after warm up</li>
+ * <li>concurrency=16 - conversations in flight at once</li>
+ * <li>warmup=10 - conversations run (and discarded) before measuring</li>
+ * <li>mix=voice:5,sms:3,facebook:2 - relative weight of each channel</li>
+ * <li>locale=en_US - bot locale for all conversations</li>
+ * <li>seed=42 - seed for conversation choice and injected latency</li>
+ * <li>mode=run|runtime|standins|mine - run calls the handler in process, runtime drives a custom runtime bootstrap (the
+ * native build) through a Lambda Runtime API stand-in, standins just starts the stand-ins and waits (to point something
+ * else at them), mine does a run and then runs {@link FaqMiningJob} over the sessions it left (its options apply)</li>
+ * <li>bootstrap=ChatGPT/target/native/bootstrap - custom runtime to start in runtime mode</li>
+ * <li>workers=1 - runtime processes to start in runtime mode (each handles one turn at a time, like Lambda)</li>
+ * </ul>
+ *
+ * @author sjensen
+ */
+public class Harness {
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final StageStats stats = new StageStats();
+    private final List<StandInServer> standIns = new ArrayList<>();
+    private final Map<Channel, List<List<String>>> conversations = new HashMap<>();
+    private final Map<String, String> options;
+
+    /**
+     * Runs one turn, either the handler in process or a runtime process through the Runtime API stand-in.
+     */
+    private interface Invoker {
+
+        LexV2Response invoke(LexV2Event event) throws Exception;
+    }
+
+    private Invoker invoker;
+    private RuntimeApiStandIn runtimeApi;
+    private final List<Process> runtimes = new ArrayList<>();
+
+    public Harness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Must be set before anything touches Log4j, otherwise the Lambda config logs every turn at DEBUG
+        System.setProperty("log4j2.configurationFile", "log4j2-harness.xml");
+
+        final var options = new LinkedHashMap<String, String>();
+        for (var arg : args) {
+            final var kv = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+        }
+
+        final var harness = new Harness(options);
+        harness.startStandIns();
+        try {
+            if ("standins".equals(options.getOrDefault("mode", "run"))) {
+                System.out.println("Stand-ins running, Ctrl-C to stop");
+                Thread.currentThread().join();
+            }
+            harness.run();
+            if ("mine".equals(options.get("mode"))) {
+                // Sessions from the run above are in the Dynamo stand-in, mine them for the answer cache
+                new FaqMiningJob(options).run();
+            }
+        } finally {
+            harness.stopStandIns();
+        }
+        // CRT and OkHttp leave non-daemon threads around
+        System.exit(0);
+    }
+
+    /**
+     * Start the stand-ins on the ports the Lambda environment points at.
+     *
+     * @throws Exception
+     */
+    public void startStandIns() throws Exception {
+        final long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        final var dynamo = new DynamoStandIn(StandInServer.portOf(requireEnv("DYNAMO_ENDPOINT")),
+                LatencyDistribution.fromEnv("STANDIN_DYNAMO_LATENCY", "lognormal:8:0.3"), seed + 1, stats);
+        dynamo.defineTable(requireEnv("SESSION_TABLE_NAME"), "sessionId", "date");
+        dynamo.defineTable(System.getenv("CACHE_TABLE_NAME"), "bucket", "simHash");
+        dynamo.defineTable(System.getenv("TURN_TABLE_NAME"), "id");
+        dynamo.defineTable(System.getenv("OUTBOX_TABLE_NAME"), "id");
+        dynamo.defineTable(System.getenv("RATE_LIMIT_TABLE_NAME"), "id");
+        dynamo.defineTable(System.getenv("HEALTH_TABLE_NAME"), "id");
+        dynamo.defineTable(System.getenv("PHONE_TABLE_NAME"), "phoneNumber");
+        standIns.add(dynamo);
+
+        // When recording a cassette OpenAI and Square are the real thing
+        if (!"RECORD".equalsIgnoreCase(System.getenv("CASSETTE_MODE"))) {
+            standIns.add(new OpenAIStandIn(StandInServer.portOf(requireEnv("OPENAI_BASE_URL")),
+                    LatencyDistribution.fromEnv("STANDIN_OPENAI_LATENCY", "lognormal:900:0.45"), seed, stats,
+                    System.getenv("STANDIN_OPENAI_SCRIPT")));
+            standIns.add(new SquareStandIn(StandInServer.portOf(requireEnv("SQUARE_CUSTOM_URL")),
+                    LatencyDistribution.fromEnv("STANDIN_SQUARE_LATENCY", "lognormal:180:0.35"), seed + 2, stats));
+        }
+
+        standIns.forEach(s -> {
+            s.start();
+            System.out.println("Started " + s.getName() + " stand-in on port " + s.getPort() + " with latency " + s.getLatency());
+        });
+    }
+
+    public void stopStandIns() {
+        runtimes.forEach(Process::destroy);
+        if (runtimeApi != null) {
+            runtimeApi.stop();
+        }
+        standIns.forEach(StandInServer::stop);
+    }
+
+    /**
+     * Warm up, then run the measured conversations and print the report.
+     *
+     * @throws Exception
+     */
+    public void run() throws Exception {
+        loadConversations();
+
+        final int total = Integer.parseInt(options.getOrDefault("conversations", "200"));
+        final int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        final int warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        final var locale = options.getOrDefault("locale", "en_US");
+        final var random = new Random(Long.parseLong(options.getOrDefault("seed", "42")));
+        final var channels = parseMix(options.getOrDefault("mix", "voice:5,sms:3,facebook:2"));
+
+        long start = System.nanoTime();
+        if ("runtime".equals(options.get("mode"))) {
+            startRuntimes();
+        } else {
+            // Static init of the Lambda (clients, function registration) happens here, like Lambda INIT
+            final var handler = new ChatGPTLambda();
+            invoker = event -> handler.handleRequest(event, new HarnessContext());
+        }
+        final long initNanos = System.nanoTime() - start;
+
+        // First turns pay class loading, JIT and connection setup, keep them out of the numbers
+        final var counter = new AtomicInteger();
+        for (int i = 0; i < warmup; i++) {
+            runConversation(channels.get(i % channels.size()), counter.incrementAndGet(), locale, random);
+        }
+        stats.reset();
+        stats.record("init", initNanos);
+
+        System.out.println("Running " + total + " conversations with concurrency " + concurrency);
+        final ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            final Channel channel;
+            final long convSeed;
+            synchronized (random) {
+                channel = channels.get(random.nextInt(channels.size()));
+                convSeed = random.nextLong();
+            }
+            pool.submit(() -> runConversation(channel, counter.incrementAndGet(), locale, new Random(convSeed)));
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        final long wall = System.nanoTime() - start;
+
+        stats.report(System.out, wall);
+        final long turns = stats.count("turn");
+        System.out.printf("Throughput %.2f turns/s%n", turns / (wall / 1_000_000_000.0));
+    }
+
+    /**
+     * Run one scripted conversation, carrying session attributes from turn to turn like Lex does.
+     */
+    private void runConversation(Channel channel, int n, String locale, Random random) {
+        final var script = conversations.get(channel);
+        final List<String> utterances;
+        synchronized (random) {
+            utterances = script.get(random.nextInt(script.size()));
+        }
+        final var sessionId = LexEvents.sessionId(channel, n);
+        final var errorText = new LangUtil(locale).getString(UNHANDLED_EXCEPTION);
+        Map<String, String> attrs = new HashMap<>();
+
+        for (var utterance : utterances) {
+            final var event = LexEvents.event(channel, sessionId, locale, utterance, attrs);
+            final long start = System.nanoTime();
+            LexV2Response response;
+            try {
+                response = invoker.invoke(event);
+            } catch (Exception e) {
+                stats.error("turn");
+                e.printStackTrace();
+                return;
+            }
+            final long nanos = System.nanoTime() - start;
+            stats.record("turn", nanos);
+            stats.record("turn." + channel.name().toLowerCase(), nanos);
+
+            if (response.getMessages() != null && response.getMessages().length > 0
+                    && errorText.equals(response.getMessages()[0].getContent())) {
+                stats.error("turn");
+            }
+
+            final var ss = response.getSessionState();
+            attrs = ss.getSessionAttributes() != null ? new HashMap<>(ss.getSessionAttributes()) : new HashMap<>();
+            if (ss.getDialogAction() != null && "Close".equals(ss.getDialogAction().getType())) {
+                // Terminating action (hangup, transfer), control goes back to Chime
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start the Runtime API stand-in and the custom runtime processes, waiting until one has finished init and is
+     * polling for work (so init in the report is the cold start of the runtime).
+     */
+    private void startRuntimes() throws Exception {
+        final var bootstrap = new File(options.getOrDefault("bootstrap", "ChatGPT/target/native/bootstrap"));
+        if (!bootstrap.canExecute()) {
+            throw new IllegalStateException(bootstrap + " is not executable, build with mvn -Pnative package first");
+        }
+        runtimeApi = new RuntimeApiStandIn(Integer.parseInt(options.getOrDefault("runtimePort", "8784")));
+        runtimeApi.start();
+
+        final int workers = Integer.parseInt(options.getOrDefault("workers", "1"));
+        for (int i = 0; i < workers; i++) {
+            final var pb = new ProcessBuilder(bootstrap.getAbsolutePath())
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(bootstrap.getParentFile(), "runtime-" + i + ".log"));
+            final var env = pb.environment();
+            env.put("AWS_LAMBDA_RUNTIME_API", "127.0.0.1:" + runtimeApi.getPort());
+            env.put("_HANDLER", "cloud.cleo.squareup.ChatGPTLambda::handleRequest");
+            env.put("AWS_LAMBDA_FUNCTION_NAME", "harness-ChatGPT");
+            env.put("AWS_LAMBDA_FUNCTION_VERSION", "$LATEST");
+            env.put("AWS_LAMBDA_FUNCTION_MEMORY_SIZE", options.getOrDefault("memory", "512"));
+            env.put("AWS_LAMBDA_LOG_GROUP_NAME", "/aws/lambda/harness-ChatGPT");
+            env.put("AWS_LAMBDA_LOG_STREAM_NAME", "runtime-" + i);
+            runtimes.add(pb.start());
+        }
+        System.out.println("Started " + workers + " runtime process(es) from " + bootstrap + ", logs next to it");
+
+        if (!runtimeApi.awaitFirstPoll(60_000)) {
+            throw new IllegalStateException("No runtime polled for work within 60 seconds, init error: " + runtimeApi.getInitError());
+        }
+        invoker = event -> mapper.readValue(runtimeApi.invoke(mapper.writeValueAsString(event)), LexV2Response.class);
+    }
+
+    private void loadConversations() throws Exception {
+        try (InputStream in = Harness.class.getResourceAsStream("/conversations.json")) {
+            final JsonNode json = mapper.readTree(in);
+            for (var channel : Channel.values()) {
+                final var list = new ArrayList<List<String>>();
+                json.path(channel.name().toLowerCase()).forEach(conv -> {
+                    final var turns = new ArrayList<String>();
+                    conv.forEach(t -> turns.add(t.asText()));
+                    list.add(turns);
+                });
+                conversations.put(channel, list);
+            }
+        }
+    }
+
+    /**
+     * Expand voice:5,sms:3 into a weighted list to pick from.
+     */
+    private static List<Channel> parseMix(String mix) {
+        final var list = new ArrayList<Channel>();
+        for (var part : mix.split(",")) {
+            final var kv = part.split(":");
+            final var weight = kv.length > 1 ? Integer.parseInt(kv[1]) : 1;
+            for (int i = 0; i < weight; i++) {
+                list.add(Channel.fromString(kv[0]));
+            }
+        }
+        return list;
+    }
+
+    private static String requireEnv(String name) {
+        final var value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            throw new IllegalStateException(name + " must be set, see loadTest.sh");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,100 @@
+package cloud.cleo.squareup.harness;
+
+import java.util.Random;
+
+/**
+ * Latency injected by a stand-in before it answers. Parsed from a simple spec so runs can be tuned from the
+ * environment:
+ *
+ * <ul>
+ * <li>fixed:50 - always 50 ms</li>
+ * <li>uniform:20:80 - uniform between 20 and 80 ms</li>
+ * <li>lognormal:900:0.45 - log-normal with a 900 ms median and sigma of 0.45 (long right tail like a real LLM)</li>
+ * </ul>
+ *
+ * @author sjensen
+ */
+public abstract class LatencyDistribution {
+
+    /**
+     * Next latency to inject in milliseconds.
+     *
+     * @param random
+     * @return
+     */
+    public abstract long nextMillis(Random random);
+
+    /**
+     * Parse a spec like "lognormal:900:0.45".
+     *
+     * @param spec
+     * @return
+     */
+    public static LatencyDistribution parse(String spec) {
+        final var parts = spec.trim().split(":");
+        return switch (parts[0].toLowerCase()) {
+            case "fixed" ->
+                fixed(Long.parseLong(parts[1]));
+            case "uniform" ->
+                uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            case "lognormal" ->
+                logNormal(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+            default ->
+                throw new IllegalArgumentException("Unknown latency distribution [" + spec + "]");
+        };
+    }
+
+    /**
+     * Spec from the environment, or the default when not set.
+     *
+     * @param envName
+     * @param defaultSpec
+     * @return
+     */
+    public static LatencyDistribution fromEnv(String envName, String defaultSpec) {
+        final var spec = System.getenv(envName);
+        return parse(spec == null || spec.isBlank() ? defaultSpec : spec);
+    }
+
+    public static LatencyDistribution fixed(long millis) {
+        return new LatencyDistribution() {
+            @Override
+            public long nextMillis(Random random) {
+                return millis;
+            }
+
+            @Override
+            public String toString() {
+                return "fixed:" + millis;
+            }
+        };
+    }
+
+    public static LatencyDistribution uniform(long min, long max) {
+        return new LatencyDistribution() {
+            @Override
+            public long nextMillis(Random random) {
+                return min + (long) (random.nextDouble() * (max - min));
+            }
+
+            @Override
+            public String toString() {
+                return "uniform:" + min + ":" + max;
+            }
+        };
+    }
+
+    public static LatencyDistribution logNormal(double median, double sigma) {
+        return new LatencyDistribution() {
+            @Override
+            public long nextMillis(Random random) {
+                return Math.round(median * Math.exp(sigma * random.nextGaussian()));
+            }
+
+            @Override
+            public String toString() {
+                return "lognormal:" + median + ":" + sigma;
+            }
+        };
+    }
+}
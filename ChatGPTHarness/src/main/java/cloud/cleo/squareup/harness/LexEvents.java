@@ -0,0 +1,103 @@
+package cloud.cleo.squareup.harness;
+
+import com.amazonaws.services.lambda.runtime.events.LexV2Event;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.Map;
+import java.util.UUID;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Build synthetic Lex V2 events that look like what Lex sends for each channel we support.
+ *
+ * @author sjensen
+ */
+public class LexEvents {
+
+    private final static ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * Channels the harness drives.
+     */
+    @AllArgsConstructor
+    public enum Channel {
+        VOICE("Chime", "Speech"),
+        SMS("Twilio", "Text"),
+        FACEBOOK("Facebook", "Text");
+
+        @Getter
+        private final String platform;
+        @Getter
+        private final String inputMode;
+
+        public static Channel fromString(String s) {
+            return valueOf(s.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Session Id in the shape each channel uses. Chime generates a unique ID per call, Twilio uses the phone number
+     * without the +, and Facebook the page scoped user ID.
+     *
+     * @param channel
+     * @param n unique number for this conversation
+     * @return
+     */
+    public static String sessionId(Channel channel, int n) {
+        return switch (channel) {
+            case VOICE ->
+                UUID.randomUUID().toString();
+            case SMS ->
+                String.format("1320555%04d", n % 10000);
+            case FACEBOOK ->
+                String.format("6%015d", n);
+        };
+    }
+
+    /**
+     * Build a FallbackIntent event carrying the transcript.
+     *
+     * @param channel
+     * @param sessionId
+     * @param localeId like en_US
+     * @param transcript
+     * @param sessionAttributes attributes returned from the previous turn (or empty for the first)
+     * @return
+     */
+    public static LexV2Event event(Channel channel, String sessionId, String localeId, String transcript, Map<String, String> sessionAttributes) {
+        final ObjectNode json = mapper.createObjectNode();
+        json.put("messageVersion", "1.0");
+        json.put("invocationSource", "FulfillmentCodeHook");
+        json.put("inputMode", channel.getInputMode());
+        json.put("responseContentType", channel == Channel.VOICE ? "audio/pcm" : "text/plain; charset=utf-8");
+        json.put("sessionId", sessionId);
+        json.put("inputTranscript", transcript);
+
+        json.putObject("bot")
+                .put("id", "HARNESSBOT")
+                .put("name", "harness-Lex-Bot-GPT")
+                .put("aliasId", "HARNESSALIAS")
+                .put("aliasName", "Latest")
+                .put("localeId", localeId)
+                .put("version", "1");
+
+        json.putObject("requestAttributes").put("x-amz-lex:channels:platform", channel.getPlatform());
+
+        final var state = json.putObject("sessionState");
+        final var attrs = state.putObject("sessionAttributes");
+        sessionAttributes.forEach(attrs::put);
+        if (channel == Channel.VOICE && !sessionAttributes.containsKey("callingNumber")) {
+            // SMA passes the calling number in on the first turn
+            attrs.put("callingNumber", "+1320555" + String.format("%04d", Math.abs(sessionId.hashCode()) % 10000));
+        }
+        state.putObject("intent")
+                .put("name", "FallbackIntent")
+                .put("state", "InProgress")
+                .put("confirmationState", "None");
+
+        return mapper.convertValue(json, LexV2Event.class);
+    }
+}
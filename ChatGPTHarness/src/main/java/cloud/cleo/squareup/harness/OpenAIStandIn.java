@@ -0,0 +1,144 @@
+package cloud.cleo.squareup.harness;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the OpenAI chat completions endpoint. Responses are scripted: the last user message is matched against
+ * a list of rules, and a rule either answers with text or asks for one of the functions offered in the request. Once
+ * the function result comes back a canned reply for that function is returned, which mirrors how GPT behaves on a tool
+ * turn (two completions).
+ *
+ * @author sjensen
+ */
+public class OpenAIStandIn extends StandInServer {
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final Map<String, String> functionReplies;
+    private final String defaultReply;
+
+    public OpenAIStandIn(int port, LatencyDistribution latency, long seed, StageStats stats, String scriptFile) throws IOException {
+        super("openai", port, latency, seed, stats);
+
+        final JsonNode script;
+        if (scriptFile != null && !scriptFile.isBlank()) {
+            script = mapper.readTree(Files.readString(Path.of(scriptFile)));
+        } else {
+            try (InputStream in = OpenAIStandIn.class.getResourceAsStream("/openai-script.json")) {
+                script = mapper.readTree(in);
+            }
+        }
+
+        script.path("rules").forEach(r -> rules.add(new Rule(
+                Pattern.compile(r.path("pattern").asText(), Pattern.CASE_INSENSITIVE),
+                r.hasNonNull("function") ? r.get("function").asText() : null,
+                r.path("arguments"),
+                r.hasNonNull("reply") ? r.get("reply").asText() : null)));
+        functionReplies = mapper.convertValue(script.path("function_replies"), Map.class);
+        defaultReply = script.path("default_reply").asText("How else can I help you today?");
+    }
+
+    @Override
+    protected String stageOf(HttpExchange exchange) {
+        return "chat_completions";
+    }
+
+    @Override
+    protected Reply respond(HttpExchange exchange, String body) throws Exception {
+        if (!exchange.getRequestURI().getPath().endsWith("/chat/completions")) {
+            return new Reply(404, "application/json", mapper.createObjectNode().put("error", "Not supported by stand-in"));
+        }
+
+        final var request = mapper.readTree(body);
+        final var messages = request.path("messages");
+        final var last = messages.get(messages.size() - 1);
+
+        // Functions the Lambda offered on this request
+        final var offered = new HashSet<String>();
+        request.path("functions").forEach(f -> offered.add(f.path("name").asText()));
+
+        final ObjectNode message = mapper.createObjectNode().put("role", "assistant");
+        String finishReason = "stop";
+
+        if ("function".equals(last.path("role").asText())) {
+            // Function result came back, answer with the canned reply for that function
+            message.put("content", functionReplies.getOrDefault(last.path("name").asText(), defaultReply));
+        } else {
+            final var input = last.path("content").asText("");
+            final var rule = rules.stream()
+                    .filter(r -> r.pattern().matcher(input).find())
+                    .filter(r -> r.function() == null || offered.contains(r.function()))
+                    .findFirst()
+                    .orElse(null);
+
+            if (rule == null) {
+                message.put("content", defaultReply);
+            } else if (rule.function() != null) {
+                final var matcher = rule.pattern().matcher(input);
+                matcher.find();
+                message.putNull("content");
+                message.putObject("function_call")
+                        .put("name", rule.function())
+                        // Real API sends arguments as a JSON string
+                        .put("arguments", substitute(rule.arguments(), matcher).toString());
+                finishReason = "function_call";
+            } else {
+                message.put("content", rule.reply());
+            }
+        }
+
+        final ObjectNode result = mapper.createObjectNode();
+        result.put("id", "chatcmpl-" + UUID.randomUUID());
+        result.put("object", "chat.completion");
+        result.put("created", Instant.now().getEpochSecond());
+        result.put("model", request.path("model").asText());
+        final var choice = result.putArray("choices").addObject();
+        choice.put("index", 0);
+        choice.set("message", message);
+        choice.put("finish_reason", finishReason);
+
+        // Rough token counts (4 chars a token) so anything looking at usage sees plausible numbers
+        final int prompt = body.length() / 4;
+        final int completion = message.toString().length() / 4;
+        result.putObject("usage").put("prompt_tokens", prompt).put("completion_tokens", completion).put("total_tokens", prompt + completion);
+
+        return new Reply(200, "application/json", result);
+    }
+
+    /**
+     * Replace $1..$9 in string argument values with the regex groups from the user message.
+     */
+    private static JsonNode substitute(JsonNode arguments, Matcher matcher) {
+        final ObjectNode out = mapper.createObjectNode();
+        arguments.fields().forEachRemaining(e -> {
+            if (e.getValue().isTextual()) {
+                var value = e.getValue().asText();
+                for (int i = Math.min(9, matcher.groupCount()); i >= 1; i--) {
+                    final var group = matcher.group(i);
+                    value = value.replace("$" + i, group == null ? "" : group.trim());
+                }
+                out.put(e.getKey(), value);
+            } else {
+                out.set(e.getKey(), e.getValue());
+            }
+        });
+        return out;
+    }
+
+    private record Rule(Pattern pattern, String function, JsonNode arguments, String reply) {
+
+    }
+}
@@ -0,0 +1,145 @@
+package cloud.cleo.squareup.harness;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+
+/**
+ * Stand-in for the Lambda Runtime API (what a custom runtime bootstrap polls), so a native build of the ChatGPT Lambda
+ * can be driven by the harness exactly like it runs in Lambda. Events handed to {@link #invoke} are queued until a
+ * runtime process asks for the next invocation, and the call returns when that process posts the response.
+ *
+ * @author sjensen
+ */
+public class RuntimeApiStandIn {
+
+    private final static String PREFIX = "/2018-06-01/runtime/";
+    private final static int TIMEOUT_MILLIS = 60_000;
+
+    private final HttpServer server;
+    private final BlockingQueue<Invocation> pending = new LinkedBlockingQueue<>();
+    private final Map<String, Invocation> inFlight = new ConcurrentHashMap<>();
+    private final CountDownLatch firstPoll = new CountDownLatch(1);
+
+    @Getter
+    private volatile String initError;
+
+    private record Invocation(String id, String event, CompletableFuture<String> result) {
+
+    }
+
+    public RuntimeApiStandIn(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 64);
+        server.createContext("/", this::handle);
+        // next blocks until there is work, so each runtime process ties up a thread
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Wait for the first runtime process to finish init and ask for work.
+     *
+     * @param timeoutMillis
+     * @return true if a process is polling
+     * @throws InterruptedException
+     */
+    public boolean awaitFirstPoll(long timeoutMillis) throws InterruptedException {
+        return firstPoll.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand an event to the next free runtime process and wait for its response.
+     *
+     * @param event JSON event
+     * @return JSON response
+     * @throws Exception if the function reported an error or timed out
+     */
+    public String invoke(String event) throws Exception {
+        final var invocation = new Invocation(UUID.randomUUID().toString(), event, new CompletableFuture<>());
+        inFlight.put(invocation.id(), invocation);
+        pending.put(invocation);
+        try {
+            return invocation.result().get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } finally {
+            inFlight.remove(invocation.id());
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final var path = exchange.getRequestURI().getPath();
+            final var body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (!path.startsWith(PREFIX)) {
+                send(exchange, 404, "");
+                return;
+            }
+            final var parts = path.substring(PREFIX.length()).split("/");
+
+            if (parts.length == 2 && parts[0].equals("invocation") && parts[1].equals("next")) {
+                firstPoll.countDown();
+                final var invocation = pending.take();
+                final var headers = exchange.getResponseHeaders();
+                headers.add("Lambda-Runtime-Aws-Request-Id", invocation.id());
+                headers.add("Lambda-Runtime-Deadline-Ms", String.valueOf(System.currentTimeMillis() + TIMEOUT_MILLIS));
+                headers.add("Lambda-Runtime-Invoked-Function-Arn", "arn:aws:lambda:us-east-1:000000000000:function:harness-ChatGPT");
+                headers.add("Lambda-Runtime-Trace-Id", "Root=1-00000000-000000000000000000000000;Sampled=0");
+                send(exchange, 200, invocation.event());
+            } else if (parts.length == 3 && parts[0].equals("invocation")) {
+                final var invocation = inFlight.get(parts[1]);
+                if (invocation == null) {
+                    send(exchange, 400, "{\"errorMessage\":\"Unknown request id\"}");
+                    return;
+                }
+                switch (parts[2]) {
+                    case "response" ->
+                        invocation.result().complete(body);
+                    default ->
+                        invocation.result().completeExceptionally(new IllegalStateException("Function error: " + body));
+                }
+                send(exchange, 202, "{\"status\":\"OK\"}");
+            } else if (parts.length == 2 && parts[0].equals("init") && parts[1].equals("error")) {
+                initError = body;
+                System.err.println("Runtime init error: " + body);
+                send(exchange, 202, "{\"status\":\"OK\"}");
+            } else {
+                send(exchange, 404, "");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        final var bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package cloud.cleo.squareup.harness;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Stand-in for the Square Locations, Catalog and Team APIs the functions call. Data comes from the bundled
+ * square-data.json so answers are stable from run to run.
+ *
+ * @author sjensen
+ */
+public class SquareStandIn extends StandInServer {
+
+    private final JsonNode data;
+
+    public SquareStandIn(int port, LatencyDistribution latency, long seed, StageStats stats) throws IOException {
+        super("square", port, latency, seed, stats);
+        try (InputStream in = SquareStandIn.class.getResourceAsStream("/square-data.json")) {
+            data = mapper.readTree(in);
+        }
+    }
+
+    @Override
+    protected String stageOf(HttpExchange exchange) {
+        final var path = exchange.getRequestURI().getPath();
+        if (path.startsWith("/v2/locations")) {
+            return "locations";
+        }
+        if (path.startsWith("/v2/catalog/search-catalog-items")) {
+            return "catalog_items";
+        }
+        if (path.startsWith("/v2/catalog/search")) {
+            return "catalog_search";
+        }
+        if (path.startsWith("/v2/team-members")) {
+            return "team_members";
+        }
+        return "unknown";
+    }
+
+    @Override
+    protected Reply respond(HttpExchange exchange, String body) throws Exception {
+        final var request = body.isBlank() ? mapper.createObjectNode() : mapper.readTree(body);
+        final ObjectNode result = mapper.createObjectNode();
+
+        switch (stageOf(exchange)) {
+            case "locations" ->
+                result.set("location", data.path("location"));
+            case "catalog_search" -> {
+                final var keywords = request.path("query").path("text_query").path("keywords");
+                final ArrayNode objects = mapper.createArrayNode();
+                int id = 0;
+                for (var cat : data.path("categories")) {
+                    id++;
+                    if (matches(cat.asText(), keywords.path(0).asText(""))) {
+                        final var obj = objects.addObject().put("type", "CATEGORY").put("id", "CAT" + id);
+                        obj.putObject("category_data").put("name", cat.asText());
+                    }
+                }
+                if (!objects.isEmpty()) {
+                    result.set("objects", objects);
+                }
+            }
+            case "catalog_items" -> {
+                final var filter = request.path("text_filter").asText("");
+                final var limit = request.path("limit").asInt(100);
+                final ArrayNode items = mapper.createArrayNode();
+                int id = 0;
+                for (var item : data.path("items")) {
+                    id++;
+                    if (items.size() < limit && matches(item.asText(), filter)) {
+                        final var obj = items.addObject().put("type", "ITEM").put("id", "ITEM" + id);
+                        obj.putObject("item_data").put("name", item.asText());
+                    }
+                }
+                if (!items.isEmpty()) {
+                    result.set("items", items);
+                }
+            }
+            case "team_members" ->
+                result.set("team_members", data.path("team_members"));
+            default -> {
+                return new Reply(404, "application/json", mapper.createObjectNode().put("message", "Not supported by stand-in"));
+            }
+        }
+        return new Reply(200, "application/json", result);
+    }
+
+    /**
+     * Match if any word of the search text is found in the name (roughly what Square text search does).
+     */
+    private static boolean matches(String name, String search) {
+        final var lower = name.toLowerCase(Locale.US);
+        return Arrays.stream(search.toLowerCase(Locale.US).split("\\W+"))
+                .filter(w -> w.length() > 2)
+                .anyMatch(lower::contains);
+    }
+}
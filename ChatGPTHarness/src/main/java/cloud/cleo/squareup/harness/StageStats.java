@@ -0,0 +1,94 @@
+package cloud.cleo.squareup.harness;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Latency samples recorded per stage (end to end turn, each stand-in endpoint, etc.) so we can report throughput and
+ * p50/p95/p99 at the end of a run.
+ *
+ * @author sjensen
+ */
+public class StageStats {
+
+    private final Map<String, List<Long>> samples = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> errors = new ConcurrentHashMap<>();
+
+    /**
+     * Record one sample for a stage.
+     *
+     * @param stage
+     * @param nanos
+     */
+    public void record(String stage, long nanos) {
+        samples.computeIfAbsent(stage, s -> Collections.synchronizedList(new ArrayList<>())).add(nanos);
+    }
+
+    /**
+     * Count an error for a stage.
+     *
+     * @param stage
+     */
+    public void error(String stage) {
+        errors.merge(stage, 1L, Long::sum);
+    }
+
+    /**
+     * Forget everything, used after warm up turns so JIT and connection setup don't skew the numbers.
+     */
+    public void reset() {
+        samples.clear();
+        errors.clear();
+    }
+
+    /**
+     * Number of samples for a stage.
+     *
+     * @param stage
+     * @return
+     */
+    public long count(String stage) {
+        final var list = samples.get(stage);
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * Print a table of all stages.
+     *
+     * @param out
+     * @param wallNanos total wall clock time of the run
+     */
+    public void report(PrintStream out, long wallNanos) {
+        final double seconds = wallNanos / 1_000_000_000.0;
+        out.printf("%n%-40s %8s %9s %9s %9s %9s %9s %7s%n", "stage", "count", "per sec", "mean ms", "p50 ms", "p95 ms", "p99 ms", "errors");
+        samples.forEach((stage, list) -> {
+            final long[] sorted;
+            synchronized (list) {
+                sorted = list.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            if (sorted.length == 0) {
+                return;
+            }
+            final double mean = Arrays.stream(sorted).average().orElse(0) / 1_000_000.0;
+            out.printf("%-40s %8d %9.2f %9.1f %9.1f %9.1f %9.1f %7d%n", stage, sorted.length, sorted.length / seconds,
+                    mean, percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), errors.getOrDefault(stage, 0L));
+        });
+        errors.keySet().stream().filter(s -> !samples.containsKey(s))
+                .forEach(s -> out.printf("%-40s %8d %9s %9s %9s %9s %9s %7d%n", s, 0, "-", "-", "-", "-", "-", errors.get(s)));
+        out.printf("%nWall time %.1f s%n", seconds);
+    }
+
+    /**
+     * Nearest rank percentile in milliseconds.
+     */
+    private static double percentile(long[] sorted, int p) {
+        final int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1_000_000.0;
+    }
+}
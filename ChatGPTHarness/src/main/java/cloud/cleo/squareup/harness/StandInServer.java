@@ -0,0 +1,133 @@
+package cloud.cleo.squareup.harness;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import lombok.Getter;
+
+/**
+ * Base for the local HTTP stand-ins. Each exchange gets the configured latency injected, and the server side time is
+ * recorded as its own stage so the report shows where a turn spends its time.
+ *
+ * @author sjensen
+ */
+public abstract class StandInServer {
+
+    protected final static ObjectMapper mapper = new ObjectMapper();
+
+    private final HttpServer server;
+
+    @Getter
+    private final String name;
+
+    @Getter
+    private final LatencyDistribution latency;
+
+    private final Random random;
+
+    protected final StageStats stats;
+
+    protected StandInServer(String name, int port, LatencyDistribution latency, long seed, StageStats stats) throws IOException {
+        this.name = name;
+        this.latency = latency;
+        this.random = new Random(seed);
+        this.stats = stats;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 512);
+        this.server.createContext("/", this::handle);
+        // Latency is injected by sleeping, so every exchange needs its own thread
+        this.server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Port number from a URL like http://localhost:8781/
+     *
+     * @param url
+     * @return
+     */
+    public static int portOf(String url) {
+        return URI.create(url).getPort();
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stage name for the exchange (used in the report).
+     *
+     * @param exchange
+     * @return
+     */
+    protected abstract String stageOf(HttpExchange exchange);
+
+    /**
+     * Produce the response.
+     *
+     * @param exchange
+     * @param body request body (may be empty)
+     * @return
+     * @throws Exception
+     */
+    protected abstract Reply respond(HttpExchange exchange, String body) throws Exception;
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        final var stage = name + "." + stageOf(exchange);
+        try {
+            final var body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            Reply reply;
+            try {
+                reply = respond(exchange, body);
+            } catch (Exception e) {
+                e.printStackTrace();
+                reply = new Reply(500, "application/json", mapper.createObjectNode().put("message", String.valueOf(e.getMessage())));
+            }
+            final long sleep;
+            synchronized (random) {
+                sleep = latency.nextMillis(random);
+            }
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+            final var bytes = reply.body().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", reply.contentType());
+            exchange.sendResponseHeaders(reply.status(), bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0) {
+                exchange.getResponseBody().write(bytes);
+            }
+            if (reply.status() >= 400) {
+                stats.error(stage);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+            stats.record(stage, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Response to send back.
+     */
+    protected record Reply(int status, String contentType, String body) {
+
+        public Reply(int status, String contentType, JsonNode json) {
+            this(status, contentType, json.toString());
+        }
+    }
+}
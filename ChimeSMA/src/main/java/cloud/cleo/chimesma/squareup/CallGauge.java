@@ -0,0 +1,219 @@
+package cloud.cleo.chimesma.squareup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.http.crt.AwsCrtHttpClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+
+/**
+ * Shared count of calls talking to the GPT bot, so when OpenAI is slow new calls go to the main number instead of
+ * piling onto Lex and slowing down every call already in progress.
+ *
+ * The count is one item in the call gauge table (CALL_GAUGE_TABLE_NAME) holding a lease per active call (transaction
+ * ID to expiry). A call takes a lease when it starts if there are fewer than CALL_LIMIT live leases, with a conditional
+ * write on the item's version so two calls can't both take the last slot. The lease is removed at hangup. If a hangup is
+ * never seen (Lambda error) the lease just expires after CALL_LEASE_MINUTES.
+ *
+ * Every call goes to the bot when CALL_GAUGE_TABLE_NAME or CALL_LIMIT is not set, and when the table can't be reached.
+ * A call admitted that way still writes its lease (even over the limit) so the menu admits it on any instance.
+ *
+ * @author sjensen
+ */
+public class CallGauge {
+
+    // Initialize the Log4j logger.
+    private static final Logger log = LogManager.getLogger(CallGauge.class);
+
+    private final static String TABLE_NAME = System.getenv("CALL_GAUGE_TABLE_NAME");
+
+    private final static int CALL_LIMIT = envInt("CALL_LIMIT", 0);
+
+    private final static Duration LEASE = Duration.ofMinutes(envInt("CALL_LEASE_MINUTES", 60));
+
+    private final static boolean enabled = TABLE_NAME != null && !TABLE_NAME.isBlank() && CALL_LIMIT > 0;
+
+    private final static DynamoDbClient dynamoDbClient = enabled
+            ? DynamoDbClient.builder().httpClient(AwsCrtHttpClient.create()).build() : null;
+
+    /**
+     * The one gauge item.
+     */
+    private final static Map<String, AttributeValue> KEY = Map.of("id", AttributeValue.fromS("gpt-calls"));
+
+    /**
+     * Attempts at taking a lease while other calls keep changing the item.
+     */
+    private final static int MAX_ATTEMPTS = 5;
+
+    /**
+     * Calls this instance admitted, so the menu doesn't need a read when the same instance handles it.
+     */
+    private final static Set<String> admitted = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > 1000;
+        }
+    }));
+
+    private CallGauge() {
+    }
+
+    /**
+     * Take a lease for a new call if under the limit.
+     *
+     * @param callId transaction ID
+     * @return whether the call should go to the bot
+     */
+    public static boolean acquire(String callId) {
+        if (!enabled) {
+            return true;
+        }
+        try {
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                final var item = dynamoDbClient.getItem(r -> r.tableName(TABLE_NAME).key(KEY).consistentRead(true)).item();
+                final long now = Instant.now().getEpochSecond();
+
+                // Expired leases are dropped as the item is rewritten
+                final Map<String, AttributeValue> live = new HashMap<>();
+                if (item.containsKey("leases")) {
+                    item.get("leases").m().forEach((id, expires) -> {
+                        if (Long.parseLong(expires.n()) > now) {
+                            live.put(id, expires);
+                        }
+                    });
+                }
+                if (live.size() >= CALL_LIMIT) {
+                    log.warn("Call limit " + CALL_LIMIT + " reached, sending call " + callId + " to the main number");
+                    return false;
+                }
+                live.put(callId, AttributeValue.fromN(Long.toString(now + LEASE.toSeconds())));
+
+                final var version = item.containsKey("version") ? Long.parseLong(item.get("version").n()) : 0L;
+                final Map<String, AttributeValue> updated = new HashMap<>(KEY);
+                updated.put("leases", AttributeValue.fromM(live));
+                updated.put("version", AttributeValue.fromN(Long.toString(version + 1)));
+                try {
+                    dynamoDbClient.putItem(r -> r.tableName(TABLE_NAME).item(updated)
+                            .conditionExpression("attribute_not_exists(id) OR #version = :v")
+                            .expressionAttributeNames(Map.of("#version", "version"))
+                            .expressionAttributeValues(Map.of(":v", AttributeValue.fromN(Long.toString(version)))));
+                    admitted.add(callId);
+                    log.debug("Call " + callId + " admitted, " + live.size() + " active GPT calls");
+                    return true;
+                } catch (ConditionalCheckFailedException e) {
+                    log.debug("Call gauge changed, retrying");
+                }
+            }
+            log.warn("Call gauge busy, admitting call " + callId);
+        } catch (RuntimeException e) {
+            log.warn("Call gauge failed, admitting call " + callId, e);
+        }
+        admitted.add(callId);
+        forceLease(callId);
+        return true;
+    }
+
+    /**
+     * Write a lease without checking the limit, for a call admitted because the gauge was busy or failing. Without it
+     * the menu would send the call to overflow when it lands on another instance.
+     *
+     * @param callId transaction ID
+     */
+    private static void forceLease(String callId) {
+        final var expires = AttributeValue.fromN(Long.toString(Instant.now().getEpochSecond() + LEASE.toSeconds()));
+        try {
+            for (int attempt = 1; attempt <= 2; attempt++) {
+                try {
+                    // Adds to the existing leases, version bumped so a lease being taken from an older read can't drop it
+                    dynamoDbClient.updateItem(r -> r.tableName(TABLE_NAME).key(KEY)
+                            .updateExpression("SET leases.#call = :expires, #version = if_not_exists(#version, :zero) + :one")
+                            .conditionExpression("attribute_exists(leases)")
+                            .expressionAttributeNames(Map.of("#call", callId, "#version", "version"))
+                            .expressionAttributeValues(Map.of(":expires", expires, ":zero", AttributeValue.fromN("0"), ":one", AttributeValue.fromN("1"))));
+                    return;
+                } catch (ConditionalCheckFailedException e) {
+                    log.debug("No call gauge yet, creating it");
+                }
+                try {
+                    final Map<String, AttributeValue> item = new HashMap<>(KEY);
+                    item.put("leases", AttributeValue.fromM(Map.of(callId, expires)));
+                    item.put("version", AttributeValue.fromN("1"));
+                    dynamoDbClient.putItem(r -> r.tableName(TABLE_NAME).item(item).conditionExpression("attribute_not_exists(leases)"));
+                    return;
+                } catch (ConditionalCheckFailedException e) {
+                    log.debug("Call gauge created meanwhile, retrying");
+                }
+            }
+            log.warn("Unable to write lease for call " + callId);
+        } catch (RuntimeException e) {
+            // The menu fails open too if the table is still unreachable
+            log.warn("Unable to write lease for call " + callId, e);
+        }
+    }
+
+    /**
+     * Whether a call was admitted, asked when it reaches the main menu (which may be on another instance).
+     *
+     * @param callId transaction ID
+     * @return
+     */
+    public static boolean isAdmitted(String callId) {
+        if (!enabled || admitted.contains(callId)) {
+            return true;
+        }
+        try {
+            final var item = dynamoDbClient.getItem(r -> r.tableName(TABLE_NAME).key(KEY).consistentRead(true)).item();
+            return item.containsKey("leases") && item.get("leases").m().containsKey(callId);
+        } catch (RuntimeException e) {
+            log.warn("Call gauge failed, admitting call " + callId, e);
+            return true;
+        }
+    }
+
+    /**
+     * Give up a call's lease, nothing happens if it never had one.
+     *
+     * @param callId transaction ID
+     */
+    public static void release(String callId) {
+        if (!enabled) {
+            return;
+        }
+        admitted.remove(callId);
+        try {
+            // Bump the version too, so a lease being taken from an older read can't put this one back
+            dynamoDbClient.updateItem(r -> r.tableName(TABLE_NAME).key(KEY)
+                    .updateExpression("REMOVE leases.#call SET #version = if_not_exists(#version, :zero) + :one")
+                    .conditionExpression("attribute_exists(leases)")
+                    .expressionAttributeNames(Map.of("#call", callId, "#version", "version"))
+                    .expressionAttributeValues(Map.of(":zero", AttributeValue.fromN("0"), ":one", AttributeValue.fromN("1"))));
+        } catch (ConditionalCheckFailedException e) {
+            log.debug("No call gauge yet, nothing to release");
+        } catch (RuntimeException e) {
+            // Expires on its own
+            log.warn("Unable to release call " + callId, e);
+        }
+    }
+
+    private static int envInt(String name, int defaultValue) {
+        final var value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid " + name + " value " + value);
+            return defaultValue;
+        }
+    }
+}
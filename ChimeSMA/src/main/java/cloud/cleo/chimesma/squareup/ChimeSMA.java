@@ -30,6 +30,11 @@ public class ChimeSMA extends AbstractFlow {
 
     private final static Action MAIN_MENU = getMainMenu();
 
+    /**
+     * Where calls go when too many are already talking to the bot, see {@link CallGauge}.
+     */
+    private final static Action OVERFLOW = getOverflowAction();
+
     /**
      * Initial action is to play welcome message and whether store is open or closed
      *
@@ -44,6 +49,8 @@ public class ChimeSMA extends AbstractFlow {
                 .withNextAction(MAIN_MENU)
                 .withErrorAction(MAIN_MENU)
                 .build();
+        // Calls over the limit skip the bot and go right to the store
+        openClosed.setNextActionF(a -> CallGauge.isAdmitted(a.getEvent().getCallDetails().getTransactionId()) ? MAIN_MENU : OVERFLOW);
 
         // Start with a welcome message
         final var welcome = PlayAudioAction.builder()
@@ -129,6 +136,11 @@ public class ChimeSMA extends AbstractFlow {
             final var attrs = a.getActionData().getIntentResult().getSessionState().getSessionAttributes();
             final var botResponse = attrs.get("bot_response");  // When transferring or hanging up, play back GPT's last response
             final var action = attrs.get("action");  // We don't need or want real intents, so the action when exiting the Bot will be set
+            if (!"switch_language".equals(action)) {
+                // Leaving the bot (transfer, hold, hangup or error), free the slot now rather than when the call ends.
+                // A caller back from hold goes straight to the bot and isn't counted again.
+                CallGauge.release(a.getEvent().getCallDetails().getTransactionId());
+            }
             return switch (action) {
                 case "transfer_call" -> {
                     final var phone = attrs.get("transfer_number");
@@ -183,6 +195,26 @@ public class ChimeSMA extends AbstractFlow {
         return lexBotEN;
     }
 
+    /**
+     * Send the call to the main number, for calls that arrive while the bot is at its call limit.
+     *
+     * @return
+     */
+    public static Action getOverflowAction() {
+        final var transfer = CallAndBridgeAction.builder()
+                .withDescription("Send Call to Main Number (bot at call limit)")
+                .withRingbackToneKey("ringing.wav")
+                .withCallTimeoutSeconds(60) // Store has 40 seconds before VM, and default is 30, so push to 60 to be safe
+                .withUri(MAIN_NUMBER)
+                .build();
+        if (!VC_ARN.equalsIgnoreCase("PSTN")) {
+            // Use SIP by sending call to Voice Connector
+            transfer.setArn(VC_ARN);
+            transfer.setDescription("Send Call to Main Number via SIP (bot at call limit)");
+        }
+        return transfer;
+    }
+
     /**
      * When an error occurs on a Action and the Action did not specify an Error Action
      *
@@ -201,12 +233,14 @@ public class ChimeSMA extends AbstractFlow {
 
     @Override
     protected void newCallHandler(Action action) {
-        log.info("New Call Handler Code Here");
+        // Count the call against the bot's limit, the main menu checks the result
+        CallGauge.acquire(action.getEvent().getCallDetails().getTransactionId());
     }
 
     @Override
     protected void hangupHandler(Action action) {
-        log.info("Hangup Handler Code Here");
+        // Usually already released when the call left the bot, this covers callers hanging up while in it
+        CallGauge.release(action.getEvent().getCallDetails().getTransactionId());
     }
 
     /**
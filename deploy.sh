@@ -105,7 +105,7 @@ pushd "ChimeSMALibrary"
 mvn -N install
 popd
 
-mvn -B install -DskipTests --no-transfer-progress --projects '!ChimeSMA,!ChatGPT,!ChimeCDKProvision,!ChimeSMALibrary/PollyPromptCreation'
+mvn -B install -DskipTests --no-transfer-progress --projects '!ChimeSMA,!ChatGPT,!ChatGPTHarness,!ChimeCDKProvision,!ChimeSMALibrary/PollyPromptCreation'
 
 # Build App Once
 sam build
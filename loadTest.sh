@@ -0,0 +1,49 @@
+#!/bin/bash
+
+# Exit immediately if a command exits with a non-zero status.
+set -e
+
+# Run the ChatGPT Lambda locally against stand-ins for OpenAI, DynamoDB and Square
+#  No network or AWS account needed, any arguments are passed to the harness (conversations=500 concurrency=32 etc.)
+
+HARNESS_JAR=ChatGPTHarness/target/chatgpt-harness-1.0.jar
+
+if [ ! -f ${HARNESS_JAR} ]; then
+    mvn -B install -DskipTests --no-transfer-progress -pl ChatGPTHarness -am
+fi
+
+# Where the Lambda will find the stand-ins (the harness starts them on these ports)
+export DYNAMO_ENDPOINT=${DYNAMO_ENDPOINT:-http://localhost:8782}
+if [ "${CASSETTE_MODE}" == "RECORD" ]; then
+    # Recording a cassette talks to the real OpenAI and Square APIs, so real keys must already be exported
+    export SQUARE_ENVIRONMENT=${SQUARE_ENVIRONMENT:-PRODUCTION}
+else
+    export OPENAI_BASE_URL=${OPENAI_BASE_URL:-http://localhost:8781/}
+    export SQUARE_CUSTOM_URL=${SQUARE_CUSTOM_URL:-http://localhost:8783}
+    export SQUARE_ENVIRONMENT=CUSTOM
+fi
+
+# Everything else the Lambda expects in its environment
+export OPENAI_API_KEY=${OPENAI_API_KEY:-harness}
+export OPENAI_MODEL=${OPENAI_MODEL:-gpt-3.5-turbo-1106}
+export SQUARE_API_KEY=${SQUARE_API_KEY:-harness}
+export SQUARE_LOCATION_ID=${SQUARE_LOCATION_ID:-L5KK29RDQG17Q}
+export SESSION_TABLE_NAME=harness-sessions
+# Answer cache is off unless asked for, otherwise repeated conversations stop measuring OpenAI
+export CACHE_TABLE_NAME=${CACHE_TABLE_NAME:-}
+export MAIN_NUMBER=+18004444444
+export VC_ARN=PSTN
+export FB_PAGE_ID=DISABLED
+export FB_PAGE_ACCESS_TOKEN=DISABLED
+
+# SDK needs a region and something to sign with, nothing leaves the machine
+export AWS_REGION=us-east-1
+export AWS_ACCESS_KEY_ID=harness
+export AWS_SECRET_ACCESS_KEY=harness
+
+# Latency injected by each stand-in (fixed:N, uniform:MIN:MAX or lognormal:MEDIAN:SIGMA in ms)
+export STANDIN_OPENAI_LATENCY=${STANDIN_OPENAI_LATENCY:-lognormal:900:0.45}
+export STANDIN_DYNAMO_LATENCY=${STANDIN_DYNAMO_LATENCY:-lognormal:8:0.3}
+export STANDIN_SQUARE_LATENCY=${STANDIN_SQUARE_LATENCY:-lognormal:180:0.35}
+
+java -cp ${HARNESS_JAR} cloud.cleo.squareup.harness.Harness "$@"